@@ -0,0 +1,54 @@
+package com.trikorasolutions.keycloak.client.bl;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Facets a user or a group can be enriched with by getUserInfo and getGroupInfo. Each facet is a
+ * request of its own, the selected ones are sent concurrently once the user or the group is found.
+ * The attributes and the client roles of a group come from the same request, the full
+ * representation of the group.
+ */
+public enum Enrichment {
+
+  /**
+   * The effective realm roles of a user, or the realm roles of a group.
+   */
+  ROLES,
+
+  /**
+   * The groups a user belongs to.
+   */
+  GROUPS,
+
+  /**
+   * The direct members of a group.
+   */
+  MEMBERS,
+
+  /**
+   * The attributes of a group.
+   */
+  ATTRIBUTES,
+
+  /**
+   * The client roles of a group, by client id.
+   */
+  CLIENT_ROLES;
+
+  /**
+   * @return every facet of a user, the default of getUserInfo.
+   */
+  public static Set<Enrichment> ofUser() {
+    return EnumSet.of(ROLES, GROUPS);
+  }
+
+  /**
+   * @return the facets of a group getGroupInfo is enriched with by default. The attributes and the
+   *     client roles need the full representation of the group, one more request, they are only
+   *     fetched when selected.
+   */
+  public static Set<Enrichment> ofGroup() {
+    return EnumSet.of(ROLES, MEMBERS);
+  }
+}
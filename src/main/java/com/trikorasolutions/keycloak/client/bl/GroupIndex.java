@@ -0,0 +1,127 @@
+package com.trikorasolutions.keycloak.client.bl;
+
+import com.trikorasolutions.keycloak.client.cache.CacheWeights;
+import com.trikorasolutions.keycloak.client.cache.Weighted;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+/**
+ * Immutable index of the groups of a realm by name and by path, built from the group tree. Names
+ * shared by several groups (subgroups of different parents) are not indexed by name, they must be
+ * searched or addressed by their path. The changes made by this client produce a new copy of the
+ * index.
+ */
+final class GroupIndex implements Weighted {
+
+  private final Map<String, String> idsByName;
+  private final Map<String, String> idsByPath;
+  private final Set<String> ambiguousNames;
+  private final long loadedAt;
+
+  private GroupIndex(Map<String, String> idsByName, Map<String, String> idsByPath,
+      Set<String> ambiguousNames, long loadedAt) {
+    this.idsByName = idsByName;
+    this.idsByPath = idsByPath;
+    this.ambiguousNames = ambiguousNames;
+    this.loadedAt = loadedAt;
+  }
+
+  /**
+   * @param groups the group tree, as returned by the groups endpoint.
+   * @return the index of all the groups of the tree.
+   */
+  static GroupIndex from(final JsonArray groups) {
+    final GroupIndex index = new GroupIndex(new HashMap<>(), new HashMap<>(), new HashSet<>(),
+        System.currentTimeMillis());
+    index.addAll(groups);
+    return index;
+  }
+
+  private void addAll(final JsonArray groups) {
+    for (JsonValue value : groups) {
+      if (value.getValueType() != ValueType.OBJECT) {
+        continue;
+      }
+      final JsonObject group = value.asJsonObject();
+      this.add(group.getString("name", null), group.getString("path", null),
+          group.getString("id", null));
+      if (group.containsKey("subGroups")
+          && group.get("subGroups").getValueType() == ValueType.ARRAY) {
+        this.addAll(group.getJsonArray("subGroups"));
+      }
+    }
+  }
+
+  // Only called while building a new index
+  private void add(final String name, final String path, final String id) {
+    if (id == null) {
+      return;
+    }
+    if (path != null) {
+      idsByPath.put(path, id);
+    }
+    if (name == null || ambiguousNames.contains(name)) {
+      return;
+    }
+    final String previous = idsByName.putIfAbsent(name, id);
+    if (previous != null && !previous.equals(id)) {
+      idsByName.remove(name);
+      ambiguousNames.add(name);
+    }
+  }
+
+  /**
+   * @param nameOrPath name of the group, or its path when it starts with a slash.
+   * @return the id of the group, or null if it is not indexed.
+   */
+  String idOf(final String nameOrPath) {
+    return nameOrPath.startsWith("/") ? idsByPath.get(nameOrPath) : idsByName.get(nameOrPath);
+  }
+
+  boolean isAmbiguous(final String name) {
+    return ambiguousNames.contains(name);
+  }
+
+  long getLoadedAt() {
+    return loadedAt;
+  }
+
+  int size() {
+    return idsByPath.size();
+  }
+
+  @Override
+  public long estimatedBytes() {
+    return 32L + CacheWeights.estimate(idsByName) + CacheWeights.estimate(idsByPath)
+        + CacheWeights.estimate(ambiguousNames);
+  }
+
+  /**
+   * @return a copy of the index including the given group.
+   */
+  GroupIndex with(final String name, final String path, final String id) {
+    final GroupIndex copy = new GroupIndex(new HashMap<>(idsByName), new HashMap<>(idsByPath),
+        new HashSet<>(ambiguousNames), loadedAt);
+    copy.add(name, path, id);
+    return copy;
+  }
+
+  /**
+   * @return a copy of the index without the group with the given id.
+   */
+  GroupIndex without(final String id) {
+    final Map<String, String> names = new HashMap<>(idsByName);
+    final Map<String, String> paths = new HashMap<>(idsByPath);
+    names.values().removeIf(id::equals);
+    // The subgroups are deleted with their parent, but their ids are unknown here: they are
+    // dropped on the next refresh, or on the first 404 of an operation addressed to them
+    paths.values().removeIf(id::equals);
+    return new GroupIndex(names, paths, new HashSet<>(ambiguousNames), loadedAt);
+  }
+}
@@ -5,6 +5,7 @@ import static javax.ws.rs.core.Response.Status.CONFLICT;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
 import static javax.ws.rs.core.Response.Status.UNAUTHORIZED;
 
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
 import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthAdminResource;
 import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthorizationResource;
 import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
@@ -18,20 +19,42 @@ import com.trikorasolutions.keycloak.client.exception.DuplicatedUserException;
 import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
 import com.trikorasolutions.keycloak.client.exception.NoSuchRoleException;
 import com.trikorasolutions.keycloak.client.exception.NoSuchUserException;
-import io.restassured.RestAssured;
+import com.trikorasolutions.keycloak.client.invalidation.CacheInvalidation;
+import com.trikorasolutions.keycloak.client.invalidation.KeycloakCacheInvalidator;
+import com.trikorasolutions.keycloak.client.mirror.KeycloakRealmMirror;
+import com.trikorasolutions.keycloak.client.mirror.RealmSnapshot;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import com.trikorasolutions.keycloak.client.token.KeycloakSessionPool;
+import com.trikorasolutions.keycloak.client.token.KeycloakTokenManager;
+import com.trikorasolutions.keycloak.client.token.KeycloakTokenValidator;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import io.smallrye.mutiny.groups.UniJoin.Builder;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.jboss.resteasy.reactive.ClientWebApplicationException;
-import org.keycloak.representations.AccessTokenResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,15 +62,50 @@ import org.slf4j.LoggerFactory;
 public final class KeycloakClientLogic {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakClientLogic.class);
-  static final String BEARER = "Bearer ";
-  static final String GRANT_TYPE = "implicit";
-  static final String GRANT_TYPE_PS = "password";
+  public static final String BEARER = "Bearer ";
+  public static final String GRANT_TYPE = "implicit";
+  public static final String GRANT_TYPE_PS = "password";
+  private static final String ROLE_CATALOG_KEY = "roles";
+  static final String CATALOG_ROLE_LIST = "roles";
+  static final String CATALOG_GROUPS = "groups";
+  private static final String CATALOG_ROLE_GROUPS = "role-groups:";
+  private static final String CATALOG_ROLE_COMPOSITES = "role-composites:";
+  static final String MISSING_USER = "user:";
+  static final String MISSING_GROUP = "group:";
+  static final String MISSING_ROLE = "role:";
 
-  @ConfigProperty(name = "trikora.keycloak.buffer-size")
-  private Integer KC_BUFFER_SIZE;
+  @ConfigProperty(name = "trikora.keycloak.user-id-cache.max-entries", defaultValue = "10000")
+  private Integer USER_ID_CACHE_SIZE;
 
-  @ConfigProperty(name = "quarkus.oidc.auth-server-url")
-  private String KC_URL;
+  @ConfigProperty(name = "trikora.keycloak.user-id-cache.ttl", defaultValue = "300")
+  private Integer USER_ID_CACHE_TTL;
+
+  @ConfigProperty(name = "trikora.keycloak.negative-cache.max-entries", defaultValue = "10000")
+  private Integer NEGATIVE_CACHE_SIZE;
+
+  @ConfigProperty(name = "trikora.keycloak.negative-cache.ttl", defaultValue = "30")
+  private Integer NEGATIVE_CACHE_TTL;
+
+  @ConfigProperty(name = "trikora.keycloak.role-catalog.refresh", defaultValue = "60")
+  private Integer ROLE_CATALOG_REFRESH;
+
+  @ConfigProperty(name = "trikora.keycloak.role-catalog.max-stale", defaultValue = "600")
+  private Integer ROLE_CATALOG_MAX_STALE;
+
+  @ConfigProperty(name = "trikora.keycloak.catalog-cache.max-entries", defaultValue = "1000")
+  private Integer CATALOG_CACHE_SIZE;
+
+  @ConfigProperty(name = "trikora.keycloak.catalog-cache.soft-ttl", defaultValue = "30")
+  private Integer CATALOG_SOFT_TTL;
+
+  @ConfigProperty(name = "trikora.keycloak.catalog-cache.hard-ttl", defaultValue = "600")
+  private Integer CATALOG_HARD_TTL;
+
+  @ConfigProperty(name = "trikora.keycloak.effective-role.concurrency", defaultValue = "8")
+  private Integer EFFECTIVE_ROLE_CONCURRENCY;
+
+  @ConfigProperty(name = "trikora.keycloak.membership-index.ttl", defaultValue = "30")
+  private Integer MEMBERSHIP_INDEX_TTL;
 
   @RestClient
   private KeycloakAuthAdminResource keycloakClient;
@@ -55,12 +113,32 @@ public final class KeycloakClientLogic {
   @RestClient
   private KeycloakAuthorizationResource keycloakUserClient;
 
+  @Inject
+  private KeycloakRealmRouter realms;
+
   @Inject
   private KeycloakGroupLogic blGroup;
 
+  @Inject
+  private KeycloakRealmMirror mirror;
+
+  @Inject
+  private KeycloakCacheInvalidator invalidator;
+
+  @Inject
+  private KeycloakTokenManager tokenManager;
+
+  @Inject
+  private KeycloakTokenValidator tokenValidator;
+
+  @Inject
+  private KeycloakSessionPool sessionPool;
+
   /******************************* SYSTEM FUNCTIONS *******************************/
   /**
-   * Get the access token from the system
+   * Get the access token from the system. The token is cached by the {@link KeycloakTokenManager}
+   * until it is about to expire, so this call only reaches Keycloak when the token needs to be
+   * renewed.
    *
    * @param realm            the realm name in which the users are going to be queried.
    * @param keycloakClientId id of the client (service name).
@@ -70,22 +148,41 @@ public final class KeycloakClientLogic {
   public Uni<String> getTokenForUser(final String realm, final String keycloakClientId,
       final String secret) {
     LOGGER.debug("Getting token with params [realm: {}, client_id: {}]", realm, keycloakClientId);
-    final String tok = RestAssured.given()
-        .param("grant_type", "client_credentials")
-        .param("client_id", keycloakClientId)
-        .param("client_secret", secret)
-        .when()
-        .post(KC_URL + "/protocol/openid-connect/token")
-        .as(AccessTokenResponse.class)
-        .getToken();
-    return Uni.createFrom().item(tok);
-
-//    return keycloakUserClient.getToken(realm, "client_credentials", keycloakClientId, secret)
-//        .onFailure().invoke(ex->LOGGER.warn("ERR KC: {}." + ex))
-//        .map(jsonArray -> (jsonArray.size() != 1) ? null : jsonArray.get(0).asJsonObject())
-//        .onItem().ifNull().failWith(() -> new TrikoraGenericException("More than one token"))
-//        .onItem().ifNotNull()
-//        .transform(obj -> obj.getString("access_token"));
+    return tokenManager.getServiceToken(realm, keycloakClientId, secret);
+  }
+
+  /**
+   * Get the access token of a user with its credentials. The session of the user is kept by the
+   * {@link KeycloakSessionPool} and renewed with its refresh token, so the password grant is only
+   * sent the first time and when Keycloak ends the session. It can throw InvalidTokenException or
+   * ClientNotFoundException.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param keycloakClientId id of the client (service name).
+   * @param secret           secret of the client (the one given by KC).
+   * @param username         username of the user.
+   * @param password         password of the user.
+   * @return an access token of the user.
+   */
+  public Uni<String> getTokenForUser(final String realm, final String keycloakClientId,
+      final String secret, final String username, final String password) {
+    LOGGER.debug("Getting token with params [realm: {}, client_id: {}, username: {}]", realm,
+        keycloakClientId, username);
+    return sessionPool.getAccessToken(realm, keycloakClientId, secret, username, password);
+  }
+
+  /**
+   * Opens a session bound to the given realm, client and token. The Authorization header and the
+   * ids resolved by the session are reused by all its operations.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @return a new session.
+   */
+  public KeycloakSession session(final String realm, final String token,
+      final String keycloakClientId) {
+    return new KeycloakSession(realm, token, keycloakClientId, this, blGroup);
   }
 
   /******************************* USER FUNCTIONS *******************************/
@@ -102,22 +199,39 @@ public final class KeycloakClientLogic {
    */
   public Uni<KeycloakUserRepresentation> createUser(final String realm, final String token,
       final String keycloakClientId, final UserRepresentation newUser) {
+    return this.createUser(this.session(realm, token, keycloakClientId), newUser);
+  }
+
+  /**
+   * Same as {@link #createUser(String, String, String, UserRepresentation)}, within a session.
+   */
+  public Uni<KeycloakUserRepresentation> createUser(final KeycloakSession session,
+      final UserRepresentation newUser) {
     LOGGER.debug("#createUser(UserRepresentation)...: {}", newUser);
-    return keycloakClient.createUser(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            newUser)
+    return realms.submit(session.getRealm(), () -> keycloakClient.createUser(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+            newUser))
         .onFailure(ClientWebApplicationException.class).transform(ex -> {
           if (ex.getMessage().contains(String.valueOf(CONFLICT.getStatusCode()))) {
             return new DuplicatedUserException(newUser.username);
           } else if (ex.getMessage().contains(String.valueOf(UNAUTHORIZED.getStatusCode()))) {
             return new InvalidTokenException();
           } else if (ex.getMessage().contains(String.valueOf(NOT_FOUND.getStatusCode()))) {
-            return new ClientNotFoundException(keycloakClientId, realm);
+            return new ClientNotFoundException(session.getClientId(), session.getRealm());
           } else {
             return new ArgumentsFormatException(
                 "The user representation provided to Keycloak is incorrect, with error: "
                     + ex.getMessage());
           }
-        }).replaceWith(this.getUserInfo(realm, token, keycloakClientId, newUser.username));
+        })
+        .invoke(() -> {
+          this.forgetMissing(session.getRealm(), MISSING_USER, userIdKey(newUser.username));
+          mirror.userChanged(session.getRealm(), newUser.username);
+          this.forgetMemberships(session.getRealm());
+          session.forgetLookups();
+          invalidator.publish(CacheInvalidation.user(session.getRealm(), null, newUser.username));
+        })
+        .replaceWith(this.getUserInfo(session, newUser.username));
   }
 
   /**
@@ -133,11 +247,30 @@ public final class KeycloakClientLogic {
    */
   public Uni<KeycloakUserRepresentation> updateUser(final String realm, final String token,
       final String keycloakClientId, final String userName, final UserRepresentation newUser) {
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .map(KeycloakUserRepresentation::getId)
-        .call(userId -> keycloakClient.updateUser(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, userId, newUser))
-        .replaceWith(this.getUserInfo(realm, token, keycloakClientId, newUser.username));
+    return this.updateUser(this.session(realm, token, keycloakClientId), userName, newUser);
+  }
+
+  /**
+   * Same as {@link #updateUser(String, String, String, String, UserRepresentation)}, within a
+   * session.
+   */
+  public Uni<KeycloakUserRepresentation> updateUser(final KeycloakSession session,
+      final String userName, final UserRepresentation newUser) {
+    final String newName = (newUser.username == null) ? userName : newUser.username;
+    return this.withUserId(session, userName,
+            userId -> realms.submit(session.getRealm(), () -> keycloakClient.updateUser(
+                    session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                    session.getClientId(), userId, newUser))
+                .invoke(() -> { // It may have been renamed
+                  this.forgetUserId(session, userName);
+                  this.rememberUserId(session, newName, userId);
+                  invalidator.publish(CacheInvalidation.user(session.getRealm(), userId, newName));
+                }))
+        .invoke(() -> {
+          this.forgetMissing(session.getRealm(), MISSING_USER, userIdKey(newName));
+          mirror.userUpdated(session.getRealm(), userName, newUser);
+        })
+        .replaceWith(this.getUserInfo(session, newName));
   }
 
   /**
@@ -153,11 +286,16 @@ public final class KeycloakClientLogic {
    */
   public Uni<KeycloakUserRepresentation> resetPassword(final String realm, final String token,
       final String keycloakClientId, final String userName, final String password) {
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .map(KeycloakUserRepresentation::getId)
-        .call(userId -> keycloakClient.resetPassword(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, userId, UserRepresentation.credentialsFrom(password, Boolean.FALSE)))
-        .replaceWith(this.getUserInfo(realm, token, keycloakClientId, userName));
+    return this.resetPassword(this.session(realm, token, keycloakClientId), userName, password,
+        Boolean.FALSE);
+  }
+
+  /**
+   * Same as {@link #resetPassword(String, String, String, String, String)}, within a session.
+   */
+  public Uni<KeycloakUserRepresentation> resetPassword(final KeycloakSession session,
+      final String userName, final String password) {
+    return this.resetPassword(session, userName, password, Boolean.FALSE);
   }
 
   /**
@@ -176,11 +314,26 @@ public final class KeycloakClientLogic {
   public Uni<KeycloakUserRepresentation> resetPassword(final String realm, final String token,
       final String keycloakClientId, final String userName, final String password,
       final Boolean isTemporary) {
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .map(KeycloakUserRepresentation::getId)
-        .call(userId -> keycloakClient.resetPassword(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, userId, UserRepresentation.credentialsFrom(password, isTemporary)))
-        .replaceWith(this.getUserInfo(realm, token, keycloakClientId, userName));
+    return this.resetPassword(this.session(realm, token, keycloakClientId), userName, password,
+        isTemporary);
+  }
+
+  /**
+   * Same as {@link #resetPassword(String, String, String, String, String, Boolean)}, within a
+   * session.
+   */
+  public Uni<KeycloakUserRepresentation> resetPassword(final KeycloakSession session,
+      final String userName, final String password, final Boolean isTemporary) {
+    return this.withUserId(session, userName,
+            userId -> realms.submit(session.getRealm(), () -> keycloakClient.resetPassword(
+                session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+                userId, UserRepresentation.credentialsFrom(password, isTemporary)))
+                .invoke(() -> {
+                  // The pooled sessions were opened with the old password
+                  sessionPool.invalidate(session.getRealm(), userName);
+                  invalidator.publish(CacheInvalidation.user(session.getRealm(), userId, userName));
+                }))
+        .replaceWith(this.getUserInfo(session, userName));
   }
 
   /**
@@ -194,11 +347,24 @@ public final class KeycloakClientLogic {
    */
   public Uni<Boolean> enableUser(final String realm, final String token,
       final String keycloakClientId, final String userName) {
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .call(user -> keycloakClient.updateUser(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, user.id, UserRepresentation.from(user).setEnabled(true)))
-        .replaceWith(this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-            .map(user -> user.enabled));
+    return this.enableUser(this.session(realm, token, keycloakClientId), userName);
+  }
+
+  /**
+   * Same as {@link #enableUser(String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> enableUser(final KeycloakSession session, final String userName) {
+    return this.getUserInfoNoEnrich(session, userName)
+        .call(user -> realms.submit(session.getRealm(), () -> keycloakClient.updateUser(
+                session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+                user.id, UserRepresentation.from(user).setEnabled(true))))
+        .invoke(user -> {
+          mirror.userUpdated(session.getRealm(), userName,
+              new UserRepresentation().setEnabled(true));
+          session.forgetLookups();
+          invalidator.publish(CacheInvalidation.user(session.getRealm(), user.id, userName));
+        })
+        .replaceWith(Uni.createFrom().deferred(() -> this.isEnabled(session, userName)));
   }
 
   /**
@@ -212,11 +378,34 @@ public final class KeycloakClientLogic {
    */
   public Uni<Boolean> disableUser(final String realm, final String token,
       final String keycloakClientId, final String userName) {
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .call(user -> keycloakClient.updateUser(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, user.id, UserRepresentation.from(user).setEnabled(false)))
-        .replaceWith(this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-            .map(user -> !user.enabled));
+    return this.disableUser(this.session(realm, token, keycloakClientId), userName);
+  }
+
+  /**
+   * Same as {@link #disableUser(String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> disableUser(final KeycloakSession session, final String userName) {
+    return this.getUserInfoNoEnrich(session, userName)
+        .call(user -> realms.submit(session.getRealm(), () -> keycloakClient.updateUser(
+                session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+                user.id, UserRepresentation.from(user).setEnabled(false))))
+        .invoke(user -> {
+          mirror.userUpdated(session.getRealm(), userName,
+              new UserRepresentation().setEnabled(false));
+          session.forgetLookups();
+          invalidator.publish(CacheInvalidation.user(session.getRealm(), user.id, userName));
+        })
+        .replaceWith(Uni.createFrom().deferred(() -> this.isEnabled(session, userName))
+            .map(enabled -> !enabled));
+  }
+
+  // Written through to the mirror, it answers without reading the user back. The callers defer
+  // it until their update is done, it must not be looked up when the pipeline is assembled
+  private Uni<Boolean> isEnabled(final KeycloakSession session, final String userName) {
+    return this.fromMirror(session, snapshot -> {
+      final KeycloakUserRepresentation user = snapshot.getUserInfo(userName);
+      return (user == null) ? null : user.enabled;
+    }, () -> this.getUserInfoNoEnrich(session, userName).map(user -> user.enabled));
   }
 
   /**
@@ -231,22 +420,347 @@ public final class KeycloakClientLogic {
    */
   public Uni<KeycloakUserRepresentation> getUserInfo(final String realm, final String token,
       final String keycloakClientId, final String userName) {
-    LOGGER.debug("#getUserInfo(String)...{}", userName);
+    return this.getUserInfo(this.session(realm, token, keycloakClientId), userName);
+  }
 
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .flatMap(user -> this.getUserRolesById(realm, token, keycloakClientId, user.id)
-            .map(user::addRoles))   // Enrich with roles
-        .flatMap(user -> this.getGroupsForUser(realm, token, keycloakClientId, user.id)
-            .map(user::addGroups)); // Enrich with groups
+  /**
+   * Same as {@link #getUserInfo(String, String, String, String)}, within a session.
+   */
+  public Uni<KeycloakUserRepresentation> getUserInfo(final KeycloakSession session,
+      final String userName) {
+    return this.getUserInfo(session, userName, Enrichment.ofUser());
+  }
+
+  /**
+   * Same as {@link #getUserInfo(String, String, String, String)}, only enriched with the selected
+   * facets: {@link Enrichment#ROLES} and {@link Enrichment#GROUPS}. Their requests are sent
+   * concurrently, so the latency is the one of the slowest, not their sum.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param userName         username of the user witch is going to be searched.
+   * @param enrichments      facets the user is enriched with, the others are left empty.
+   * @return a UserRepresentation of the user.
+   */
+  public Uni<KeycloakUserRepresentation> getUserInfo(final String realm, final String token,
+      final String keycloakClientId, final String userName, final Set<Enrichment> enrichments) {
+    return this.getUserInfo(this.session(realm, token, keycloakClientId), userName, enrichments);
+  }
+
+  /**
+   * Same as {@link #getUserInfo(String, String, String, String, Set)}, within a session.
+   */
+  public Uni<KeycloakUserRepresentation> getUserInfo(final KeycloakSession session,
+      final String userName, final Set<Enrichment> enrichments) {
+    LOGGER.debug("#getUserInfo(String, Set)...{} {}", userName, enrichments);
+    return this.fromMirror(session, snapshot -> snapshot.getUserInfo(userName),
+            () -> this.getUserInfoNoEnrich(session, userName)
+                .flatMap(user -> this.enrichUser(session, user, enrichments)))
+        .invoke(user -> {
+          // The mirror answers with every facet
+          if (!enrichments.contains(Enrichment.ROLES)) {
+            user.setRoles(new LinkedHashSet<>());
+          }
+          if (!enrichments.contains(Enrichment.GROUPS)) {
+            user.setGroups(new LinkedHashSet<>());
+          }
+        });
+  }
+
+  private Uni<KeycloakUserRepresentation> enrichUser(final KeycloakSession session,
+      final KeycloakUserRepresentation user, final Set<Enrichment> enrichments) {
+    final List<Uni<UnaryOperator<KeycloakUserRepresentation>>> facets = new ArrayList<>();
+    if (enrichments.contains(Enrichment.ROLES)) {
+      facets.add(this.getUserRolesById(session, user.id)
+          .map(roles -> enriched -> enriched.addRoles(roles)));
+    }
+    if (enrichments.contains(Enrichment.GROUPS)) {
+      facets.add(this.getGroupsForUser(session, user.id)
+          .map(groups -> enriched -> enriched.addGroups(groups)));
+    }
+    return enrich(user, facets);
+  }
+
+  /**
+   * Runs the requests of the facets concurrently, then applies them to the item in the order of
+   * the list, so the item is only changed by the thread joining them.
+   *
+   * @param item   the user or group to be enriched.
+   * @param facets the requests, each giving the change of the item.
+   * @param <T>    type of the item.
+   * @return the item enriched.
+   */
+  static <T> Uni<T> enrich(final T item, final List<Uni<UnaryOperator<T>>> facets) {
+    if (facets.isEmpty()) {
+      return Uni.createFrom().item(item);
+    }
+    return Uni.join().all(facets).andFailFast().map(changes -> {
+      T res = item;
+      for (UnaryOperator<T> change : changes) {
+        res = change.apply(res);
+      }
+      return res;
+    });
   }
 
   public Uni<KeycloakUserRepresentation> getUserInfoNoEnrich(final String realm, final String token,
       final String keycloakClientId, final String userName) {
-    return keycloakClient.getUserInfo(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            userName, Boolean.TRUE)
+    return this.getUserInfoNoEnrich(this.session(realm, token, keycloakClientId), userName);
+  }
+
+  public Uni<KeycloakUserRepresentation> getUserInfoNoEnrich(final KeycloakSession session,
+      final String userName) {
+    // Checked on subscription, a write composed before this read may have created the user
+    return Uni.createFrom().deferred(
+        () -> this.isKnownMissing(session.getRealm(), MISSING_USER, userIdKey(userName))
+            ? Uni.createFrom().failure(new NoSuchUserException(userName))
+            : this.lookupUser(session, userName));
+  }
+
+  private Uni<KeycloakUserRepresentation> lookupUser(final KeycloakSession session,
+      final String userName) {
+    final String key = session.readKey("getUserInfo", userName);
+    return session.memo(key, () -> realms.read(session.getRealm(), key,
+            () -> keycloakClient.getUserInfo(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), userName, Boolean.TRUE)))
         .map(jsonArray -> (jsonArray.size() != 1) ? null : jsonArray.get(0).asJsonObject())
         .onItem().ifNull().failWith(() -> new NoSuchUserException(userName)).onItem().ifNotNull()
-        .transform(KeycloakUserRepresentation::from);
+        .transform(KeycloakUserRepresentation::from)
+        .invoke(user -> this.rememberUserId(session, userName, user.id))
+        .onFailure(NoSuchUserException.class).invoke(() -> this.rememberMissing(
+            session.getRealm(), MISSING_USER, userIdKey(userName)));
+  }
+
+  /**
+   * Runs an operation on the id of the user. The id is taken from the session or from the realm
+   * cache of ids when known, and searched otherwise. If Keycloak answers 404 to an operation run
+   * with a remembered id, the id is stale: it is forgotten, searched again and the operation is
+   * retried once. It can throw NoSuchUserException.
+   *
+   * @param session   session in which the operation is run.
+   * @param userName  username of the user.
+   * @param operation operation to run on the id of the user.
+   * @param <T>       type of the result of the operation.
+   * @return the result of the operation.
+   */
+  <T> Uni<T> withUserId(final KeycloakSession session, final String userName,
+      final Function<String, Uni<T>> operation) {
+    final String knownId = this.knownUserId(session, userName);
+    if (knownId == null) {
+      return this.searchUserId(session, userName).flatMap(operation::apply);
+    }
+    return operation.apply(knownId)
+        .onFailure(KeycloakClientLogic::isNotFound).recoverWithUni(() -> {
+          LOGGER.debug("Stale id {} of the user {}, searching it again", knownId, userName);
+          this.forgetUserId(session, userName);
+          return this.searchUserId(session, userName).flatMap(operation::apply);
+        });
+  }
+
+  private Uni<String> searchUserId(final KeycloakSession session, final String userName) {
+    return this.getUserInfoNoEnrich(session, userName).map(KeycloakUserRepresentation::getId);
+  }
+
+  private String knownUserId(final KeycloakSession session, final String userName) {
+    final String sessionId = session.userId(userName);
+    if (sessionId != null) {
+      return sessionId;
+    }
+    final String cachedId = this.userIds(session.getRealm()).getIfPresent(userIdKey(userName));
+    session.rememberUserId(userName, cachedId);
+    return cachedId;
+  }
+
+  private void rememberUserId(final KeycloakSession session, final String userName,
+      final String id) {
+    session.rememberUserId(userName, id);
+    if (userName != null && id != null) {
+      this.userIds(session.getRealm()).put(userIdKey(userName), id);
+    }
+  }
+
+  /**
+   * Fills the username to id cache of the realm with all its users, ahead of the first mutations.
+   * The cache keeps the most recent ones when the realm has more users than it can hold.
+   *
+   * @param session session in which the users are listed.
+   * @return the number of users of the realm.
+   */
+  public Uni<Integer> preloadUserIds(final KeycloakSession session) {
+    return this.listAllUsers(session)
+        .invoke(users -> users.forEach(user -> this.rememberUserId(session, user.username,
+            user.id)))
+        .map(List::size);
+  }
+
+  private void forgetUserId(final KeycloakSession session, final String userName) {
+    session.forgetUserId(userName);
+    session.forgetLookups();
+    this.userIds(session.getRealm()).invalidate(userIdKey(userName));
+  }
+
+  private ExpiringCache<String, String> userIds(final String realm) {
+    return realms.context(realm).cache("user-ids", USER_ID_CACHE_SIZE,
+        Duration.ofSeconds(USER_ID_CACHE_TTL));
+  }
+
+  // Keycloak keeps the usernames in lower case and searches them ignoring the case
+  private static String userIdKey(final String userName) {
+    return userName.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Tells whether a search of the name failed recently, so the caller can fail without asking
+   * Keycloak again. The names created by this client are forgotten at once, the ones created by
+   * others are found again when the negative-cache ttl elapses.
+   *
+   * @param realm the realm name.
+   * @param kind  kind of the name (MISSING_USER, MISSING_GROUP or MISSING_ROLE).
+   * @param name  the name that was searched.
+   * @return true if the last search of the name did not find it.
+   */
+  boolean isKnownMissing(final String realm, final String kind, final String name) {
+    return this.missingNames(realm).getIfPresent(kind + name) != null;
+  }
+
+  void rememberMissing(final String realm, final String kind, final String name) {
+    LOGGER.debug("Remembering the missing {}{} of the realm {}", kind, name, realm);
+    this.missingNames(realm).put(kind + name, Boolean.TRUE);
+  }
+
+  /**
+   * @param name the name found, null to forget all the missing names of the kind.
+   */
+  void forgetMissing(final String realm, final String kind, final String name) {
+    if (name == null) {
+      this.missingNames(realm).invalidateIf((key, missing) -> key.startsWith(kind));
+    } else {
+      this.missingNames(realm).invalidate(kind + name);
+    }
+  }
+
+  private ExpiringCache<String, Boolean> missingNames(final String realm) {
+    return realms.context(realm).cache("not-found", NEGATIVE_CACHE_SIZE,
+        Duration.ofSeconds(NEGATIVE_CACHE_TTL));
+  }
+
+  /**
+   * Drops what this client has cached of a user changed by others, e.g. from the Keycloak console.
+   *
+   * @param realm    the realm name.
+   * @param userId   id of the user changed, null if it is not known (e.g. a user created).
+   * @param userName its username, null if it is not known.
+   */
+  public void invalidateUser(final String realm, final String userId, final String userName) {
+    LOGGER.debug("Invalidating the user {}/{} of the realm {}", userId, userName, realm);
+    this.forgetMemberships(realm);
+    this.forgetMissing(realm, MISSING_USER, (userName == null) ? null : userIdKey(userName));
+    if (userId != null) {
+      this.userIds(realm).invalidateIf((name, id) -> id.equals(userId));
+      mirror.userIdChanged(realm, userId);
+    } else if (userName != null) {
+      this.userIds(realm).invalidate(userIdKey(userName));
+      mirror.userChanged(realm, userName);
+    }
+  }
+
+  /**
+   * Forgets the pooled sessions of a user changed by others, e.g. whose password was reset from the
+   * Keycloak console: they may have been opened with a password that is no longer valid.
+   *
+   * @param realm    the realm name.
+   * @param userId   id of the user changed, null if it is not known.
+   * @param userName its name, null if it is not known.
+   */
+  public void forgetSessions(final String realm, final String userId, final String userName) {
+    if (userId != null) {
+      sessionPool.invalidateSubject(realm, userId);
+    }
+    if (userName != null) {
+      sessionPool.invalidate(realm, userName);
+    }
+  }
+
+  /**
+   * Drops what this client has cached of a realm role changed by others, e.g. from the Keycloak
+   * console. Its composites may have changed too, so the mirror of the realm is dropped.
+   *
+   * @param realm    the realm name.
+   * @param roleId   id of the role changed, null if it is not known.
+   * @param roleName its name, null if it is not known.
+   */
+  public void invalidateRole(final String realm, final String roleId, final String roleName) {
+    LOGGER.debug("Invalidating the role {}/{} of the realm {}", roleId, roleName, realm);
+    if (roleId == null && roleName == null) {
+      this.roleCatalogs(realm).invalidate(ROLE_CATALOG_KEY);
+    } else {
+      this.updateRoleCatalog(realm, catalog -> {
+        final RoleRepresentation known = (roleId == null) ? null : catalog.byId(roleId);
+        final RoleCatalog updated = (known == null) ? catalog : catalog.without(known.getName());
+        return (roleName == null) ? updated : updated.without(roleName);
+      });
+    }
+    this.forgetMissing(realm, MISSING_ROLE, roleName);
+    this.forgetCatalogs(realm);
+    mirror.invalidate(realm);
+  }
+
+  /**
+   * Returns a catalog of the realm (a small listing that rarely changes) from the refresh-ahead
+   * catalog cache: it is served at once, reloaded in the background once older than the soft ttl
+   * and only dropped after the hard ttl, when its reloads keep failing. Keycloak answers each
+   * caller according to its realm-management roles, so the entries are kept by the scope of the
+   * token (see {@link KeycloakTokenValidator#getAdminScope}) and only shared by the tokens of the
+   * same caller with the same roles. A token that does not validate reads Keycloak, which answers
+   * with its own error.
+   *
+   * @param key    key of the catalog within the realm.
+   * @param loader reads the catalog from Keycloak.
+   */
+  Uni<JsonArray> catalog(final KeycloakSession session, final String key,
+      final Supplier<Uni<JsonArray>> loader) {
+    return tokenValidator.getAdminScope(session.getRealm(), session.getToken())
+        .onFailure().recoverWithNull()
+        .flatMap(scope -> (scope != null)
+            ? this.catalogs(session.getRealm()).getRefreshing(scope + "/" + key, loader,
+            Duration.ofSeconds(CATALOG_SOFT_TTL), Duration.ofSeconds(CATALOG_HARD_TTL))
+            : loader.get());
+  }
+
+  /**
+   * Drops the cached catalogs of the realm after a change of its roles or groups.
+   */
+  void forgetCatalogs(final String realm) {
+    this.catalogs(realm).invalidateAll();
+    this.forgetMemberships(realm);
+  }
+
+  // The cached JsonArrays are immutable, every caller gets its own representations
+  private ExpiringCache<String, JsonArray> catalogs(final String realm) {
+    return realms.context(realm).cache("catalogs", CATALOG_CACHE_SIZE,
+        Duration.ofSeconds(CATALOG_HARD_TTL));
+  }
+
+  /**
+   * Serves a read from the realm mirror when it can answer it, from Keycloak otherwise. The mirror
+   * is looked up on subscription, so a read composed after a write sees the write.
+   *
+   * @param lookup the read on the snapshot, returning null when the snapshot cannot answer it.
+   * @param live   the read on Keycloak.
+   */
+  <T> Uni<T> fromMirror(final KeycloakSession session, final Function<RealmSnapshot, T> lookup,
+      final Supplier<Uni<T>> live) {
+    return Uni.createFrom().deferred(() -> {
+      final RealmSnapshot snapshot = mirror.snapshot(session.getRealm());
+      final T mirrored = (snapshot == null) ? null : lookup.apply(snapshot);
+      return (mirrored != null) ? Uni.createFrom().item(mirrored) : live.get();
+    });
+  }
+
+  static boolean isNotFound(final Throwable ex) {
+    return ex instanceof ClientWebApplicationException
+        && ex.getMessage().contains(String.valueOf(NOT_FOUND.getStatusCode()));
   }
 
   /**
@@ -261,10 +775,26 @@ public final class KeycloakClientLogic {
    */
   public Uni<Boolean> deleteUser(final String realm, final String token,
       final String keycloakClientId, final String userName) {
+    return this.deleteUser(this.session(realm, token, keycloakClientId), userName);
+  }
+
+  /**
+   * Same as {@link #deleteUser(String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> deleteUser(final KeycloakSession session, final String userName) {
     LOGGER.debug("#deleteUser(String)...{}", userName);
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .call(user -> keycloakClient.deleteUser(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, user.id))
+    return this.withUserId(session, userName,
+            userId -> realms.submit(session.getRealm(), () -> keycloakClient.deleteUser(
+                    session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                    session.getClientId(), userId))
+                .invoke(() -> invalidator.publish(
+                    CacheInvalidation.user(session.getRealm(), userId, userName))))
+        .invoke(() -> {
+          this.forgetUserId(session, userName);
+          this.forgetMemberships(session.getRealm());
+          sessionPool.invalidate(session.getRealm(), userName);
+          mirror.userDeleted(session.getRealm(), userName);
+        })
         .map(x -> Boolean.TRUE)
         .onFailure(NoSuchUserException.class).recoverWithItem(Boolean.FALSE);
   }
@@ -281,8 +811,14 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<KeycloakUserRepresentation>> listAllUsers(final String realm, final String token,
       final String keycloakClientId) {
-    return this.listAllUsersRec(realm, token, keycloakClientId, 0, Integer.MAX_VALUE,
-        new ArrayList<>());
+    return this.listAllUsers(this.session(realm, token, keycloakClientId));
+  }
+
+  /**
+   * Same as {@link #listAllUsers(String, String, String)}, within a session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers(final KeycloakSession session) {
+    return this.listAllUsersRec(session, 0, Integer.MAX_VALUE, new ArrayList<>());
   }
 
   /**
@@ -299,31 +835,226 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<KeycloakUserRepresentation>> listAllUsers(final String realm, final String token,
       final String keycloakClientId, Integer first, Integer recCount) {
+    return this.listAllUsers(this.session(realm, token, keycloakClientId), first, recCount);
+  }
 
-    return this.listAllUsersRec(realm, token, keycloakClientId, first, recCount,
-        new ArrayList<>());
+  /**
+   * Same as {@link #listAllUsers(String, String, String, Integer, Integer)}, within a session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers(final KeycloakSession session,
+      Integer first, Integer recCount) {
+    return this.listAllUsersRec(session, first, recCount, new ArrayList<>());
   }
 
-  private Uni<List<KeycloakUserRepresentation>> listAllUsersRec(final String realm,
-      final String token,
-      final String keycloakClientId, Integer first, Integer recCount,
-      List<KeycloakUserRepresentation> res) {
+  private Uni<List<KeycloakUserRepresentation>> listAllUsersRec(final KeycloakSession session,
+      Integer first, Integer recCount, List<KeycloakUserRepresentation> res) {
     LOGGER.debug("#listAllUsersRec(first, usersFetched)...{}-{}", first, res.size());
-    return keycloakClient.listAllUsers(BEARER + token, realm, GRANT_TYPE, keycloakClientId, first,
-            (KC_BUFFER_SIZE < (recCount - first) ? KC_BUFFER_SIZE : recCount - first))
+    final int pageSize = realms.getPageSize(session.getRealm());
+    final int max = Math.min(pageSize, recCount - first);
+    return realms.read(session.getRealm(), session.readKey("listAllUsers", first, max),
+            () -> keycloakClient.listAllUsers(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), first, max))
         .map(KeycloakUserRepresentation::allFrom)
         .flatMap(currentSelection -> {
           res.addAll(currentSelection);
-          if (currentSelection.size() < KC_BUFFER_SIZE || res.size() >= recCount) {
+          if (currentSelection.size() < pageSize || res.size() >= recCount) {
             return Uni.createFrom().item(res); // Recursion Base case
           } else {
-            return this.listAllUsersRec(realm, token, keycloakClientId, first + KC_BUFFER_SIZE,
-                recCount,
-                res);
+            return this.listAllUsersRec(session, first + pageSize, recCount, res);
+          }
+        });
+  }
+
+  /**
+   * Same as {@link #listAllUsers(String, String, String, Integer, Integer)}, with the users
+   * enriched with the selected facets: {@link Enrichment#ROLES} and {@link Enrichment#GROUPS}.
+   * See {@link #enrichUsers(KeycloakSession, List, Set)}.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param first            first user to be fetched
+   * @param recCount         number of users to be fetched from the first one
+   * @param enrichments      facets the users are enriched with, the others are left empty.
+   * @return the users.
+   */
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers(final String realm, final String token,
+      final String keycloakClientId, Integer first, Integer recCount,
+      final Set<Enrichment> enrichments) {
+    return this.listAllUsers(this.session(realm, token, keycloakClientId), first, recCount,
+        enrichments);
+  }
+
+  /**
+   * Same as {@link #listAllUsers(String, String, String, Integer, Integer, Set)}, within a
+   * session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers(final KeycloakSession session,
+      Integer first, Integer recCount, final Set<Enrichment> enrichments) {
+    return this.listAllUsers(session, first, recCount)
+        .flatMap(users -> this.enrichUsers(session, users, enrichments));
+  }
+
+  /**
+   * Enriches the users in bulk with the selected facets, the same ones getUserInfo returns. Instead
+   * of requesting the roles and groups of each user, the users and groups of each realm role and
+   * the members of each group are fetched and inverted into an index of the memberships of the
+   * realm. Building it reads every membership of the realm, about as many pages as users, so the
+   * index is kept for a few seconds (trikora.keycloak.membership-index.ttl) and the following pages
+   * of a listing are enriched from it without any request. It is dropped on any change of the
+   * users, groups or roles seen by this client.
+   *
+   * @param session     the session.
+   * @param users       the users, with their id.
+   * @param enrichments {@link Enrichment#ROLES} and/or {@link Enrichment#GROUPS}.
+   * @return the same users, enriched.
+   */
+  public Uni<List<KeycloakUserRepresentation>> enrichUsers(final KeycloakSession session,
+      final List<KeycloakUserRepresentation> users, final Set<Enrichment> enrichments) {
+    if (users.isEmpty() || (!enrichments.contains(Enrichment.ROLES)
+        && !enrichments.contains(Enrichment.GROUPS))) {
+      return Uni.createFrom().item(users);
+    }
+    return this.fromMirror(session, snapshot -> enrichFrom(snapshot, users, enrichments),
+        () -> this.membershipIndex(session, enrichments.contains(Enrichment.ROLES))
+            .map(index -> {
+              users.forEach(user -> index.enrich(user, enrichments));
+              return users;
+            }));
+  }
+
+  // Null, so the memberships are fetched, unless the snapshot knows every user
+  private static List<KeycloakUserRepresentation> enrichFrom(final RealmSnapshot snapshot,
+      final List<KeycloakUserRepresentation> users, final Set<Enrichment> enrichments) {
+    final List<KeycloakUserRepresentation> mirrored = new ArrayList<>(users.size());
+    for (KeycloakUserRepresentation user : users) {
+      final KeycloakUserRepresentation known = snapshot.getUserInfo(user.getUsername());
+      if (known == null) {
+        return null;
+      }
+      mirrored.add(known);
+    }
+    for (int i = 0; i < users.size(); i++) {
+      if (enrichments.contains(Enrichment.ROLES)) {
+        users.get(i).addRoles(mirrored.get(i).getRoles());
+      }
+      if (enrichments.contains(Enrichment.GROUPS)) {
+        users.get(i).addGroups(mirrored.get(i).getGroups());
+      }
+    }
+    return users;
+  }
+
+  // Kept by the scope of the caller, as the catalogs: other callers may not read the memberships
+  private Uni<MembershipIndex> membershipIndex(final KeycloakSession session,
+      final boolean withRoles) {
+    return tokenValidator.getAdminScope(session.getRealm(), session.getToken())
+        .onFailure().recoverWithNull()
+        .flatMap(scope -> (scope != null)
+            ? this.membershipIndexes(session.getRealm()).get(scope + "/" + withRoles,
+            () -> this.loadMembershipIndex(session, withRoles))
+            : this.loadMembershipIndex(session, withRoles));
+  }
+
+  /**
+   * Drops the membership indexes of the realm after a change of its users, groups or roles.
+   */
+  void forgetMemberships(final String realm) {
+    this.membershipIndexes(realm).invalidateAll();
+  }
+
+  private ExpiringCache<String, MembershipIndex> membershipIndexes(final String realm) {
+    return realms.context(realm).cache("membership-index", 16,
+        Duration.ofSeconds(MEMBERSHIP_INDEX_TTL));
+  }
+
+  private Uni<MembershipIndex> loadMembershipIndex(final KeycloakSession session,
+      final boolean withRoles) {
+    final String realm = session.getRealm();
+    final Uni<RoleCatalog> catalog = withRoles ? this.cachedRoleCatalog(session)
+        : Uni.createFrom().item(RoleCatalog.empty());
+    final Uni<JsonArray> groupTree = realms.read(realm, session.readKey("listAllGroups"),
+        () -> keycloakClient.listAllGroups(session.getAuthorization(), realm, GRANT_TYPE,
+            session.getClientId()));
+    return Uni.combine().all().unis(catalog, groupTree).asTuple().flatMap(loaded -> {
+      final MembershipIndex.Builder index = new MembershipIndex.Builder(loaded.getItem1(),
+          loaded.getItem2());
+      final Uni<List<String>> members = Multi.createFrom().iterable(index.groupIds())
+          .onItem().transformToUniAndMerge(groupId -> this.allPages(session,
+                  session.readKey("getGroupUsers", groupId),
+                  (first, max) -> keycloakClient.getGroupUsers(session.getAuthorization(), realm,
+                      GRANT_TYPE, session.getClientId(), groupId, first, max))
+              .invoke(page -> index.addMembers(groupId, page))
+              .replaceWith(groupId))
+          .collect().asList();
+      final Uni<List<String>> mappings = Multi.createFrom().iterable(loaded.getItem1().all())
+          .onItem().transformToUniAndMerge(role -> this.roleMemberships(session, role, index))
+          .collect().asList();
+      return Uni.combine().all().unis(members, mappings).asTuple()
+          .map(done -> index.build());
+    });
+  }
+
+  private Uni<String> roleMemberships(final KeycloakSession session, final RoleRepresentation role,
+      final MembershipIndex.Builder index) {
+    final String realm = session.getRealm();
+    final String roleName = role.getName();
+    // The default roles are listed too: they are mapped on creation but can be removed since, so
+    // the users listed are the only ones that hold them
+    final Uni<List<JsonObject>> users = this.allPages(session,
+        session.readKey("getUsersInRolePage", roleName),
+        (first, max) -> keycloakClient.getUsersInRolePage(session.getAuthorization(), realm,
+            GRANT_TYPE, session.getClientId(), roleName, first, max));
+    final Uni<List<JsonObject>> groups = this.allPages(session,
+        session.readKey("getGroupsInRolePage", roleName),
+        (first, max) -> keycloakClient.getGroupsInRolePage(session.getAuthorization(), realm,
+            GRANT_TYPE, session.getClientId(), roleName, first, max));
+    final Uni<List<JsonObject>> composites = !Boolean.TRUE.equals(role.getComposite())
+        ? Uni.createFrom().item(List.of())
+        : realms.read(realm, session.readKey("getRoleComposites", roleName),
+                () -> keycloakClient.getRoleComposites(session.getAuthorization(), realm,
+                    GRANT_TYPE, session.getClientId(), roleName))
+            .map(KeycloakClientLogic::objects);
+    return Uni.combine().all().unis(users, groups, composites).asTuple()
+        .invoke(edges -> index.addRole(role.getId(), edges.getItem1(), edges.getItem2(),
+            edges.getItem3()))
+        .replaceWith(role.getId());
+  }
+
+  /**
+   * Reads every page of a paginated endpoint, one after the other.
+   *
+   * @param session the session.
+   * @param key     identity of the read, completed with the position of each page.
+   * @param page    request of the page at the given first position and size.
+   * @return the items of all the pages.
+   */
+  private Uni<List<JsonObject>> allPages(final KeycloakSession session, final String key,
+      final BiFunction<Integer, Integer, Uni<JsonArray>> page) {
+    return this.allPagesFrom(session, key, page, 0, realms.getPageSize(session.getRealm()),
+        new ArrayList<>());
+  }
+
+  private Uni<List<JsonObject>> allPagesFrom(final KeycloakSession session, final String key,
+      final BiFunction<Integer, Integer, Uni<JsonArray>> page, final int first,
+      final int pageSize, final List<JsonObject> res) {
+    return realms.read(session.getRealm(), key + first, () -> page.apply(first, pageSize))
+        .flatMap(array -> {
+          res.addAll(objects(array));
+          if (array.size() < pageSize) {
+            return Uni.createFrom().item(res); // Recursion Base case
           }
+          return this.allPagesFrom(session, key, page, first + pageSize, pageSize, res);
         });
   }
 
+  private static List<JsonObject> objects(final JsonArray array) {
+    return array.stream()
+        .filter(value -> value.getValueType() == ValueType.OBJECT)
+        .map(JsonValue::asJsonObject)
+        .collect(Collectors.toList());
+  }
+
   /**
    * This method return a list with all the groups for the given user
    *
@@ -336,8 +1067,17 @@ public final class KeycloakClientLogic {
   public Uni<List<TrikoraGroupRepresentation>> getGroupsForUser(final String realm,
       final String token,
       final String keycloakClientId, final String userId) {
-    return keycloakClient.getUserGroups(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, userId)
+    return this.getGroupsForUser(this.session(realm, token, keycloakClientId), userId);
+  }
+
+  /**
+   * Same as {@link #getGroupsForUser(String, String, String, String)}, within a session.
+   */
+  public Uni<List<TrikoraGroupRepresentation>> getGroupsForUser(final KeycloakSession session,
+      final String userId) {
+    return realms.read(session.getRealm(), session.readKey("getUserGroups", userId),
+            () -> keycloakClient.getUserGroups(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), userId))
         .map(TrikoraGroupRepresentation::allFrom);
   }
 
@@ -353,22 +1093,36 @@ public final class KeycloakClientLogic {
    */
   public Uni<RoleRepresentation> createRole(final String realm, final String token,
       final String keycloakClientId, final RoleRepresentation newRole) {
-    return keycloakClient.createRole(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            newRole)
+    return this.createRole(this.session(realm, token, keycloakClientId), newRole);
+  }
+
+  /**
+   * Same as {@link #createRole(String, String, String, RoleRepresentation)}, within a session.
+   */
+  public Uni<RoleRepresentation> createRole(final KeycloakSession session,
+      final RoleRepresentation newRole) {
+    return realms.submit(session.getRealm(), () -> keycloakClient.createRole(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+            newRole))
         .onFailure(ClientWebApplicationException.class).transform(ex -> {
           if (ex.getMessage().contains(String.valueOf(CONFLICT.getStatusCode()))) {
             return new DuplicatedRoleException(newRole.name);
           } else if (ex.getMessage().contains(String.valueOf(UNAUTHORIZED.getStatusCode()))) {
             return new InvalidTokenException();
           } else if (ex.getMessage().contains(String.valueOf(NOT_FOUND.getStatusCode()))) {
-            return new ClientNotFoundException(keycloakClientId, realm);
+            return new ClientNotFoundException(session.getClientId(), session.getRealm());
           } else {
             return new ArgumentsFormatException(
                 "The role representation provided to Keycloak is incorrect, with error: "
                     + ex.getMessage());
           }
         })
-        .replaceWith(this.getRoleInfoNoEnrich(realm, token, keycloakClientId, newRole.name));
+        .invoke(() -> {
+          this.forgetMissing(session.getRealm(), MISSING_ROLE, newRole.name);
+          this.forgetCatalogs(session.getRealm());
+          invalidator.publish(CacheInvalidation.role(session.getRealm(), null, newRole.name));
+        })
+        .replaceWith(this.getRoleInfoNoEnrich(session, newRole.name));
   }
 
   /**
@@ -381,7 +1135,17 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<RoleRepresentation>> listAllRoles(final String realm, final String token,
       final String keycloakClientId) {
-    return keycloakClient.getAllRoles(BEARER + token, realm, GRANT_TYPE, keycloakClientId)
+    return this.listAllRoles(this.session(realm, token, keycloakClientId));
+  }
+
+  /**
+   * Same as {@link #listAllRoles(String, String, String)}, within a session.
+   */
+  public Uni<List<RoleRepresentation>> listAllRoles(final KeycloakSession session) {
+    return this.catalog(session, CATALOG_ROLE_LIST, () -> realms.read(session.getRealm(),
+            session.readKey("getAllRoles"), () -> keycloakClient.getAllRoles(
+                session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                session.getClientId())))
         .map(RoleRepresentation::allFrom);
   }
 
@@ -397,11 +1161,126 @@ public final class KeycloakClientLogic {
    */
   public Uni<RoleRepresentation> getRoleInfoNoEnrich(final String realm, final String token,
       final String keycloakClientId, final String roleName) {
-    return keycloakClient.getRoleInfo(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            roleName, Boolean.TRUE)
+    return this.getRoleInfoNoEnrich(this.session(realm, token, keycloakClientId), roleName);
+  }
+
+  /**
+   * Same as {@link #getRoleInfoNoEnrich(String, String, String, String)}, within a session.
+   */
+  public Uni<RoleRepresentation> getRoleInfoNoEnrich(final KeycloakSession session,
+      final String roleName) {
+    // Checked on subscription, a write composed before this read may have created the role
+    return Uni.createFrom().deferred(
+        () -> this.isKnownMissing(session.getRealm(), MISSING_ROLE, roleName)
+            ? Uni.createFrom().failure(new NoSuchRoleException(roleName))
+            : this.lookupRole(session, roleName));
+  }
+
+  private Uni<RoleRepresentation> lookupRole(final KeycloakSession session,
+      final String roleName) {
+    final String key = session.readKey("getRoleInfo", roleName);
+    return session.memo(key, () -> realms.read(session.getRealm(), key,
+            () -> keycloakClient.getRoleInfo(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), roleName, Boolean.TRUE)))
         .map(jsonArray -> (jsonArray.size() != 1) ? null : jsonArray.get(0).asJsonObject())
         .onItem().ifNull().failWith(() -> new NoSuchRoleException(roleName))
-        .map(RoleRepresentation::from);
+        .map(RoleRepresentation::from)
+        .invoke(role -> this.updateRoleCatalog(session.getRealm(),
+            catalog -> catalog.with(role)))
+        .onFailure(NoSuchRoleException.class).invoke(() -> this.rememberMissing(
+            session.getRealm(), MISSING_ROLE, roleName));
+  }
+
+  /**
+   * Resolves the given role names with the role catalog of the realm, so a warm catalog resolves
+   * them without any request. Only the names missing from the catalog are searched. It can throw
+   * NoSuchRoleException.
+   *
+   * @param session   session in which the roles are resolved.
+   * @param roleNames names of the realm roles.
+   * @return the roles, in the order of the names.
+   */
+  Uni<List<RoleRepresentation>> resolveRoles(final KeycloakSession session,
+      final String... roleNames) {
+    return this.roleCatalog(session).flatMap(catalog -> {
+      final Builder<RoleRepresentation> missing = Uni.join().builder();
+      final Set<String> missingNames = new LinkedHashSet<>();
+      for (String roleName : roleNames) {
+        if (catalog.byName(roleName) == null && missingNames.add(roleName)) {
+          missing.add(this.getRoleInfoNoEnrich(session, roleName));
+        }
+      }
+      if (missingNames.isEmpty()) {
+        return Uni.createFrom().item(Arrays.stream(roleNames)
+            .map(catalog::byName)
+            .collect(Collectors.toList()));
+      }
+      LOGGER.debug("Roles not in the catalog: {}", missingNames);
+      return missing.joinAll().andFailFast().map(found -> {
+        final Map<String, RoleRepresentation> foundByName = found.stream()
+            .collect(Collectors.toMap(RoleRepresentation::getName, identity(), (a, b) -> a));
+        return Arrays.stream(roleNames)
+            .map(name -> Optional.ofNullable(catalog.byName(name)).orElse(foundByName.get(name)))
+            .collect(Collectors.toList());
+      });
+    });
+  }
+
+  /**
+   * Returns the role catalog of the realm, loading it on first use. A catalog older than the
+   * refresh interval is still served while a single reload runs in the background, so only a
+   * catalog older than max-stale makes the caller wait for the reload.
+   */
+  private Uni<RoleCatalog> roleCatalog(final KeycloakSession session) {
+    return this.cachedRoleCatalog(session)
+        // Without the catalog (e.g. the token can not list the roles) the roles are searched
+        .onFailure().recoverWithItem(ex -> {
+          LOGGER.debug("Role catalog of the realm {} not available: {}", session.getRealm(),
+              ex.getMessage());
+          return RoleCatalog.empty();
+        });
+  }
+
+  private Uni<RoleCatalog> cachedRoleCatalog(final KeycloakSession session) {
+    return this.roleCatalogs(session.getRealm())
+        .getRefreshing(ROLE_CATALOG_KEY, () -> this.loadRoleCatalog(session),
+            Duration.ofSeconds(ROLE_CATALOG_REFRESH), Duration.ofSeconds(ROLE_CATALOG_MAX_STALE));
+  }
+
+  /**
+   * Loads the role catalog of the realm ahead of its first use, e.g. at startup. Unlike the
+   * lookups, a catalog that can not be loaded fails.
+   *
+   * @param session session in which the roles are listed.
+   * @return the number of roles of the realm.
+   */
+  public Uni<Integer> preloadRoleCatalog(final KeycloakSession session) {
+    return this.cachedRoleCatalog(session).map(RoleCatalog::size);
+  }
+
+  private Uni<RoleCatalog> loadRoleCatalog(final KeycloakSession session) {
+    return realms.read(session.getRealm(), session.readKey("getAllRoles"),
+            () -> keycloakClient.getAllRoles(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId()))
+        .map(RoleRepresentation::allFrom)
+        .map(RoleCatalog::from)
+        .invoke(catalog -> LOGGER.debug("Loaded {} roles of the realm {}", catalog.size(),
+            session.getRealm()));
+  }
+
+  // The catalog copies replace each other without locking, a lost update only costs a search
+  private void updateRoleCatalog(final String realm, final UnaryOperator<RoleCatalog> change) {
+    final ExpiringCache<String, RoleCatalog> catalogs = this.roleCatalogs(realm);
+    final RoleCatalog catalog = catalogs.getIfPresent(ROLE_CATALOG_KEY);
+    if (catalog != null) {
+      catalogs.put(ROLE_CATALOG_KEY, change.apply(catalog),
+          catalog.getLoadedAt() + ROLE_CATALOG_MAX_STALE * 1000L);
+    }
+  }
+
+  private ExpiringCache<String, RoleCatalog> roleCatalogs(final String realm) {
+    return realms.context(realm).cache("role-catalog", 1,
+        Duration.ofSeconds(ROLE_CATALOG_MAX_STALE));
   }
 
   /**
@@ -416,9 +1295,30 @@ public final class KeycloakClientLogic {
    */
   public Uni<RoleRepresentation> updateRole(final String realm, final String token,
       final String keycloakClientId, final String roleName, final RoleRepresentation newRole) {
-    return keycloakClient.updateRole(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            roleName, newRole)
-        .replaceWith(this.getRoleInfoNoEnrich(realm, token, keycloakClientId, newRole.name));
+    return this.updateRole(this.session(realm, token, keycloakClientId), roleName, newRole);
+  }
+
+  /**
+   * Same as {@link #updateRole(String, String, String, String, RoleRepresentation)}, within a
+   * session.
+   */
+  public Uni<RoleRepresentation> updateRole(final KeycloakSession session, final String roleName,
+      final RoleRepresentation newRole) {
+    return realms.submit(session.getRealm(), () -> keycloakClient.updateRole(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+            roleName, newRole))
+        .invoke(() -> {
+          this.updateRoleCatalog(session.getRealm(), catalog -> catalog.without(roleName));
+          this.forgetMissing(session.getRealm(), MISSING_ROLE, newRole.name);
+          this.forgetCatalogs(session.getRealm());
+          mirror.invalidate(session.getRealm());
+          session.forgetLookups();
+          invalidator.publish(CacheInvalidation.role(session.getRealm(), null, roleName));
+          if (newRole.name != null && !newRole.name.equals(roleName)) {
+            invalidator.publish(CacheInvalidation.role(session.getRealm(), null, newRole.name));
+          }
+        })
+        .replaceWith(this.getRoleInfoNoEnrich(session, newRole.name));
   }
 
   /**
@@ -433,8 +1333,23 @@ public final class KeycloakClientLogic {
    */
   public Uni<Boolean> deleteRole(final String realm, final String token,
       final String keycloakClientId, final String roleName) {
-    return keycloakClient.deleteRole(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, roleName)
+    return this.deleteRole(this.session(realm, token, keycloakClientId), roleName);
+  }
+
+  /**
+   * Same as {@link #deleteRole(String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> deleteRole(final KeycloakSession session, final String roleName) {
+    return realms.submit(session.getRealm(), () -> keycloakClient.deleteRole(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+            roleName))
+        .invoke(() -> {
+          this.updateRoleCatalog(session.getRealm(), catalog -> catalog.without(roleName));
+          this.forgetCatalogs(session.getRealm());
+          mirror.invalidate(session.getRealm());
+          session.forgetLookups();
+          invalidator.publish(CacheInvalidation.role(session.getRealm(), null, roleName));
+        })
         .map(x -> Boolean.TRUE)
         .onFailure(ClientWebApplicationException.class).recoverWithItem(Boolean.FALSE);
 
@@ -451,11 +1366,17 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<RoleRepresentation>> getUserRoles(final String realm, final String token,
       final String keycloakClientId, final String userName) {
-    return this.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .map(userInfo -> userInfo.id)
-        .flatMap(userId -> keycloakClient.getUserRoles(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, userId))
-        .map(RoleRepresentation::allFrom);
+    return this.getUserRoles(this.session(realm, token, keycloakClientId), userName);
+  }
+
+  /**
+   * Same as {@link #getUserRoles(String, String, String, String)}, within a session.
+   */
+  public Uni<List<RoleRepresentation>> getUserRoles(final KeycloakSession session,
+      final String userName) {
+    return this.fromMirror(session, snapshot -> snapshot.getUserRoles(userName),
+        () -> this.withUserId(session, userName,
+            userId -> this.getUserRolesById(session, userId)));
   }
 
   /**
@@ -469,11 +1390,81 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<RoleRepresentation>> getUserRolesById(final String realm, final String token,
       final String keycloakClientId, final String id) {
-    return keycloakClient.getUserRoles(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, id)
+    return this.getUserRolesById(this.session(realm, token, keycloakClientId), id);
+  }
+
+  /**
+   * Same as {@link #getUserRolesById(String, String, String, String)}, within a session.
+   */
+  public Uni<List<RoleRepresentation>> getUserRolesById(final KeycloakSession session,
+      final String id) {
+    return realms.read(session.getRealm(), session.readKey("getUserRoles", id),
+            () -> keycloakClient.getUserRoles(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), id))
         .map(RoleRepresentation::allFrom);
   }
 
+  /**
+   * Checks whether the user has the realm role effective: assigned, inherited from its groups, or
+   * included in a composite role. With the realm mirrored the check is answered from memory, from
+   * the precomputed roles of each user, else the roles of the user are read from Keycloak.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param userName         username of the user.
+   * @param roleName         name of the realm role.
+   * @return true if the user has the role.
+   */
+  public Uni<Boolean> hasEffectiveRole(final String realm, final String token,
+      final String keycloakClientId, final String userName, final String roleName) {
+    return this.hasEffectiveRole(this.session(realm, token, keycloakClientId), userName, roleName);
+  }
+
+  /**
+   * Same as {@link #hasEffectiveRole(String, String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> hasEffectiveRole(final KeycloakSession session, final String userName,
+      final String roleName) {
+    return this.fromMirror(session, snapshot -> snapshot.hasEffectiveRole(userName, roleName),
+        () -> this.withUserId(session, userName, userId -> this.getUserRolesById(session, userId))
+            .map(roles -> roles.stream().anyMatch(role -> roleName.equals(role.getName()))));
+  }
+
+  /**
+   * Checks whether the user is a member of the group or of any of its subgroups. With the realm
+   * mirrored the check is answered from memory, from the precomputed groups of each user, else the
+   * groups of the user are read from Keycloak. It can throw NoSuchGroupException.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param userName         username of the user.
+   * @param groupName        name of the group, or its path.
+   * @return true if the user is a member of the group.
+   */
+  public Uni<Boolean> isMember(final String realm, final String token,
+      final String keycloakClientId, final String userName, final String groupName) {
+    return this.isMember(this.session(realm, token, keycloakClientId), userName, groupName);
+  }
+
+  /**
+   * Same as {@link #isMember(String, String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> isMember(final KeycloakSession session, final String userName,
+      final String groupName) {
+    return this.fromMirror(session, snapshot -> snapshot.isMember(userName, groupName),
+        () -> Uni.combine().all().unis(
+                this.withUserId(session, userName,
+                    userId -> this.getGroupsForUser(session, userId)),
+                blGroup.getGroupInfoNoEnrich(session, groupName))
+            .combinedWith((groups, group) -> groups.stream()
+                .map(TrikoraGroupRepresentation::getPath)
+                .filter(Objects::nonNull)
+                .anyMatch(path -> path.equals(group.getPath())
+                    || path.startsWith(group.getPath() + "/"))));
+  }
+
   /**
    * Get all the users that has the given role assigned (but not effective)
    *
@@ -485,9 +1476,21 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<KeycloakUserRepresentation>> getAllUsersInAssignedRole(final String realm,
       final String token, final String keycloakClientId, final String role) {
+    return this.getAllUsersInAssignedRole(this.session(realm, token, keycloakClientId), role);
+  }
 
-    return keycloakClient.getAllUsersInRole(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-        role).map(KeycloakUserRepresentation::allFrom);
+  /**
+   * Same as {@link #getAllUsersInAssignedRole(String, String, String, String)}, within a session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> getAllUsersInAssignedRole(
+      final KeycloakSession session, final String role) {
+    // Paged, Keycloak only returns the first 100 users of the role otherwise
+    return this.allPages(session, session.readKey("getUsersInRolePage", role),
+            (first, max) -> keycloakClient.getUsersInRolePage(session.getAuthorization(),
+                session.getRealm(), GRANT_TYPE, session.getClientId(), role, first, max))
+        .map(users -> users.stream()
+            .map(KeycloakUserRepresentation::from)
+            .collect(Collectors.toList()));
   }
 
   /**
@@ -501,9 +1504,20 @@ public final class KeycloakClientLogic {
    */
   public Uni<List<TrikoraGroupRepresentation>> getAllGroupsInAssignedRole(final String realm,
       final String token, final String keycloakClientId, final String role) {
+    return this.getAllGroupsInAssignedRole(this.session(realm, token, keycloakClientId), role);
+  }
 
-    return keycloakClient.getAllGroupsInRole(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-        role).map(TrikoraGroupRepresentation::allFrom);
+  /**
+   * Same as {@link #getAllGroupsInAssignedRole(String, String, String, String)}, within a session.
+   */
+  public Uni<List<TrikoraGroupRepresentation>> getAllGroupsInAssignedRole(
+      final KeycloakSession session, final String role) {
+    return this.catalog(session, CATALOG_ROLE_GROUPS + role, () -> realms.read(
+            session.getRealm(), session.readKey("getAllGroupsInRole", role),
+            () -> keycloakClient.getAllGroupsInRole(
+                session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                session.getClientId(), role)))
+        .map(TrikoraGroupRepresentation::allFrom);
   }
 
   /**
@@ -519,30 +1533,92 @@ public final class KeycloakClientLogic {
    */
   public Uni<Set<KeycloakUserRepresentation>> getAllUserInEffectiveRole(final String realm,
       final String token, final String keycloakClientId, final String roleName) {
+    return this.getAllUserInEffectiveRole(this.session(realm, token, keycloakClientId), roleName);
+  }
 
-    Uni<List<KeycloakUserRepresentation>> userAssigned = this.getAllUsersInAssignedRole(realm,
-        token, keycloakClientId, roleName);
-    Uni<List<TrikoraGroupRepresentation>> groupAssigned = this.getAllGroupsInAssignedRole(realm,
-        token,
-        keycloakClientId, roleName);
-
-    return Uni.combine().all().unis(userAssigned, groupAssigned)
-        .combinedWith((users, groups) -> {
-          Builder<List<KeycloakUserRepresentation>> builder = Uni.join().builder();
-          for (TrikoraGroupRepresentation group : groups) {
-            builder.add(blGroup.getGroupMembers(realm, token, keycloakClientId, group.getName()));
-          }
-          return builder.joinAll().andCollectFailures()
-              .map(listOfList -> listOfList.stream()
-                  .flatMap(List::stream)
-                  .distinct()
-                  .collect(Collectors.toList()))
-              .map(listWithGroupUsers -> {
-                Set<KeycloakUserRepresentation> ret = new LinkedHashSet<>(listWithGroupUsers);
-                ret.addAll(users);
-                return ret;
-              });
-        }).flatMap(identity());
+  /**
+   * Same as {@link #getAllUserInEffectiveRole(String, String, String, String)}, within a session.
+   */
+  public Uni<Set<KeycloakUserRepresentation>> getAllUserInEffectiveRole(
+      final KeycloakSession session, final String roleName) {
+    return this.fromMirror(session, snapshot -> snapshot.getAllUserInEffectiveRole(roleName),
+        () -> this.getAllUserInEffectiveRoleLive(session, roleName));
+  }
+
+  private Uni<Set<KeycloakUserRepresentation>> getAllUserInEffectiveRoleLive(
+      final KeycloakSession session, final String roleName) {
+    return this.streamUsersInEffectiveRole(session, roleName)
+        .collect().in(LinkedHashSet::new, Set::add);
+  }
+
+  /**
+   * Streams the users that have the given role effective, each one once, as they are found: the
+   * users and groups assigned the role or any composite role including it are fetched, then the
+   * members of those groups and of all their subgroups. The member lists are fetched at most
+   * trikora.keycloak.effective-role.concurrency at once. It can throw NoSuchRoleException.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param roleName         name of the realm role.
+   * @return the users, unordered.
+   */
+  public Multi<KeycloakUserRepresentation> streamUsersInEffectiveRole(final String realm,
+      final String token, final String keycloakClientId, final String roleName) {
+    return this.streamUsersInEffectiveRole(this.session(realm, token, keycloakClientId),
+        roleName);
+  }
+
+  /**
+   * Same as {@link #streamUsersInEffectiveRole(String, String, String, String)}, within a
+   * session.
+   */
+  public Multi<KeycloakUserRepresentation> streamUsersInEffectiveRole(
+      final KeycloakSession session, final String roleName) {
+    final Uni<RoleGraph> graph = this.resolveRoles(session, roleName)
+        .flatMap(known -> this.roleGraph(session));
+    return Multi.createFrom().uni(graph)
+        .onItem().transformToMultiAndConcatenate(roles -> {
+          final Set<String> granting = roles.grantingRoles(roleName);
+          final Multi<KeycloakUserRepresentation> assigned = Multi.createFrom().iterable(granting)
+              .onItem().transformToUni(role -> this.getAllUsersInAssignedRole(session, role))
+              .merge(EFFECTIVE_ROLE_CONCURRENCY)
+              .onItem().transformToIterable(identity());
+          final Multi<KeycloakUserRepresentation> members = Multi.createFrom().iterable(granting)
+              .onItem().transformToUni(role -> this.allPages(session,
+                  session.readKey("getGroupsInRolePage", role),
+                  (first, max) -> keycloakClient.getGroupsInRolePage(session.getAuthorization(),
+                      session.getRealm(), GRANT_TYPE, session.getClientId(), role, first, max)))
+              .merge(EFFECTIVE_ROLE_CONCURRENCY)
+              .onItem().transformToIterable(identity())
+              .map(group -> group.getString("id"))
+              .collect().<Set<String>>in(HashSet::new, Set::add)
+              .onItem().transformToMulti(groupIds -> Multi.createFrom()
+                  .iterable(roles.withSubGroups(groupIds)))
+              .onItem().transformToUni(groupId -> blGroup.getGroupMembersById(session, groupId))
+              .merge(EFFECTIVE_ROLE_CONCURRENCY)
+              .onItem().transformToIterable(identity());
+          return Multi.createBy().merging().streams(assigned, members);
+        })
+        .select().distinct();
+  }
+
+  // The composites of each composite role and the group tree, each from the catalog cache. Without
+  // the role catalog only the role itself grants it
+  private Uni<RoleGraph> roleGraph(final KeycloakSession session) {
+    final Uni<Map<String, List<RoleRepresentation>>> composites = this.roleCatalog(session)
+        .onItem().transformToMulti(catalog -> Multi.createFrom().iterable(catalog.all()))
+        .select().where(role -> Boolean.TRUE.equals(role.getComposite()))
+        .onItem().transformToUni(role -> this.catalog(session,
+                CATALOG_ROLE_COMPOSITES + role.getName(), () -> realms.read(session.getRealm(),
+                    session.readKey("getRoleComposites", role.getName()),
+                    () -> keycloakClient.getRoleComposites(session.getAuthorization(),
+                        session.getRealm(), GRANT_TYPE, session.getClientId(), role.getName())))
+            .map(included -> Map.entry(role.getName(), RoleRepresentation.allFrom(included))))
+        .merge(EFFECTIVE_ROLE_CONCURRENCY)
+        .collect().asMap(Map.Entry::getKey, Map.Entry::getValue);
+    return Uni.combine().all().unis(composites, blGroup.groupTree(session))
+        .combinedWith(RoleGraph::from);
   }
 
 }
@@ -1,11 +1,13 @@
 package com.trikorasolutions.keycloak.client.bl;
 
-import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.BEARER;
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.CATALOG_GROUPS;
 import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE;
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.MISSING_GROUP;
 import static javax.ws.rs.core.Response.Status.CONFLICT;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
 import static javax.ws.rs.core.Response.Status.UNAUTHORIZED;
 
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
 import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthAdminResource;
 import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthorizationResource;
 import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
@@ -16,16 +18,28 @@ import com.trikorasolutions.keycloak.client.exception.ClientNotFoundException;
 import com.trikorasolutions.keycloak.client.exception.DuplicatedGroupException;
 import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
 import com.trikorasolutions.keycloak.client.exception.NoSuchGroupException;
+import com.trikorasolutions.keycloak.client.invalidation.CacheInvalidation;
+import com.trikorasolutions.keycloak.client.invalidation.KeycloakCacheInvalidator;
+import com.trikorasolutions.keycloak.client.mirror.KeycloakRealmMirror;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
 import io.smallrye.mutiny.Uni;
-import io.smallrye.mutiny.groups.UniJoin.Builder;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.jboss.resteasy.reactive.ClientWebApplicationException;
@@ -37,9 +51,13 @@ import org.slf4j.LoggerFactory;
 public final class KeycloakGroupLogic {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakGroupLogic.class);
+  private static final String GROUP_INDEX = "groups";
 
-  @ConfigProperty(name = "trikora.keycloak.buffer-size")
-  private Integer KC_BUFFER_SIZE;
+  @ConfigProperty(name = "trikora.keycloak.group-index.refresh", defaultValue = "300")
+  private Integer GROUP_INDEX_REFRESH;
+
+  @ConfigProperty(name = "trikora.keycloak.group-index.min-reload", defaultValue = "5")
+  private Integer GROUP_INDEX_MIN_RELOAD;
 
   @RestClient
   private KeycloakAuthAdminResource keycloakClient;
@@ -47,9 +65,18 @@ public final class KeycloakGroupLogic {
   @RestClient
   private KeycloakAuthorizationResource keycloakUserClient;
 
+  @Inject
+  private KeycloakRealmRouter realms;
+
   @Inject
   private KeycloakClientLogic blClient;
 
+  @Inject
+  private KeycloakRealmMirror mirror;
+
+  @Inject
+  private KeycloakCacheInvalidator invalidator;
+
   /******************************* GROUP FUNCTIONS *******************************/
   /**
    * This method return a list with all the groups in the client provided as argument
@@ -61,8 +88,26 @@ public final class KeycloakGroupLogic {
    */
   public Uni<List<TrikoraGroupRepresentation>> listAllGroups(final String realm, final String token,
       final String keycloakClientId) {
-    return keycloakClient.listAllGroups(BEARER + token, realm, GRANT_TYPE, keycloakClientId)
-        .map(TrikoraGroupRepresentation::allFrom);
+    return this.listAllGroups(blClient.session(realm, token, keycloakClientId));
+  }
+
+  /**
+   * Same as {@link #listAllGroups(String, String, String)}, within a session.
+   */
+  public Uni<List<TrikoraGroupRepresentation>> listAllGroups(final KeycloakSession session) {
+    return this.groupTree(session).map(TrikoraGroupRepresentation::allFrom);
+  }
+
+  /**
+   * @return the group tree of the realm, from the catalog cache.
+   */
+  Uni<JsonArray> groupTree(final KeycloakSession session) {
+    return blClient.catalog(session, CATALOG_GROUPS, () -> realms.read(session.getRealm(),
+        session.readKey("listAllGroups"), () -> keycloakClient.listAllGroups(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+            session.getClientId()))
+        .invoke(groups -> this.groupIndexes(session.getRealm())
+            .put(GROUP_INDEX, GroupIndex.from(groups))));
   }
 
   /**
@@ -80,23 +125,40 @@ public final class KeycloakGroupLogic {
   public Uni<TrikoraGroupRepresentation> createGroup(final String realm, final String token,
       final String keycloakClientId, final String name,
       final Map<String, List<String>> attributes) {
+    return this.createGroup(blClient.session(realm, token, keycloakClientId), name, attributes);
+  }
 
-    return keycloakClient.createGroup(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            this.createUploadDto(name, attributes))
+  /**
+   * Same as {@link #createGroup(String, String, String, String, Map)}, within a session.
+   */
+  public Uni<TrikoraGroupRepresentation> createGroup(final KeycloakSession session,
+      final String name, final Map<String, List<String>> attributes) {
+
+    return realms.submit(session.getRealm(), () -> keycloakClient.createGroup(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+            this.createUploadDto(name, attributes)))
         .onFailure(ClientWebApplicationException.class).transform(ex -> {
           if (ex.getMessage().contains(String.valueOf(CONFLICT.getStatusCode()))) {
             return new DuplicatedGroupException(name);
           } else if (ex.getMessage().contains(String.valueOf(UNAUTHORIZED.getStatusCode()))) {
             return new InvalidTokenException();
           } else if (ex.getMessage().contains(String.valueOf(NOT_FOUND.getStatusCode()))) {
-            return new ClientNotFoundException(keycloakClientId, realm);
+            return new ClientNotFoundException(session.getClientId(), session.getRealm());
           } else {
             return new ArgumentsFormatException(
                 "The group representation provided to Keycloak is incorrect, with error: "
                     + ex.getMessage());
           }
         })
-        .replaceWith(this.getGroupInfoNoEnrich(realm, token, keycloakClientId, name));
+        .invoke(() -> {
+          blClient.forgetMissing(session.getRealm(), MISSING_GROUP, name);
+          blClient.forgetCatalogs(session.getRealm());
+        })
+        .replaceWith(this.searchGroup(session, name))
+        .invoke(group -> {
+          this.rememberGroup(session, name, group);
+          invalidator.publish(CacheInvalidation.group(session.getRealm(), group.getId(), name));
+        });
   }
 
   /**
@@ -112,22 +174,300 @@ public final class KeycloakGroupLogic {
    */
   public Uni<TrikoraGroupRepresentation> getGroupInfo(final String realm, final String token,
       final String keycloakClientId, final String groupName) {
-    return getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .flatMap(group -> this.getGroupRolesById(realm, token, keycloakClientId, group.getId())
-            .map(group::addRoles))
-        .flatMap(group -> this.getGroupMembers(realm, token, keycloakClientId, group.getName())
-            .map(group::addMembers)
-        );
+    return this.getGroupInfo(blClient.session(realm, token, keycloakClientId), groupName);
+  }
+
+  /**
+   * Same as {@link #getGroupInfo(String, String, String, String)}, within a session.
+   */
+  public Uni<TrikoraGroupRepresentation> getGroupInfo(final KeycloakSession session,
+      final String groupName) {
+    return this.getGroupInfo(session, groupName, Enrichment.ofGroup());
+  }
+
+  /**
+   * Same as {@link #getGroupInfo(String, String, String, String)}, only enriched with the selected
+   * facets: {@link Enrichment#ROLES}, {@link Enrichment#MEMBERS}, {@link Enrichment#ATTRIBUTES}
+   * and {@link Enrichment#CLIENT_ROLES}. Their requests are sent concurrently, so the latency is
+   * the one of the slowest, not their sum.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param groupName        name of the group that is going to be queried in the Keycloak
+   *                         database.
+   * @param enrichments      facets the group is enriched with, the others are left empty.
+   * @return a GroupRepresentation of the desired group.
+   */
+  public Uni<TrikoraGroupRepresentation> getGroupInfo(final String realm, final String token,
+      final String keycloakClientId, final String groupName, final Set<Enrichment> enrichments) {
+    return this.getGroupInfo(blClient.session(realm, token, keycloakClientId), groupName,
+        enrichments);
+  }
+
+  /**
+   * Same as {@link #getGroupInfo(String, String, String, String, Set)}, within a session.
+   */
+  public Uni<TrikoraGroupRepresentation> getGroupInfo(final KeycloakSession session,
+      final String groupName, final Set<Enrichment> enrichments) {
+    return this.getGroupInfoNoEnrich(session, groupName).flatMap(group -> {
+      final List<Uni<UnaryOperator<TrikoraGroupRepresentation>>> facets = new ArrayList<>();
+      if (enrichments.contains(Enrichment.ROLES)) {
+        facets.add(this.getGroupRolesById(session, group.getId())
+            .map(roles -> enriched -> enriched.addRoles(roles)));
+      }
+      if (enrichments.contains(Enrichment.MEMBERS)) {
+        facets.add(this.getGroupMembersById(session, group.getId())
+            .map(members -> enriched -> enriched.addMembers(members)));
+      }
+      if (enrichments.contains(Enrichment.ATTRIBUTES)
+          || enrichments.contains(Enrichment.CLIENT_ROLES)) {
+        facets.add(this.getGroupDetails(session, group.getId()).map(details -> enriched -> {
+          if (enrichments.contains(Enrichment.ATTRIBUTES)) {
+            enriched.setAttributes(stringLists(details, "attributes"));
+          }
+          if (enrichments.contains(Enrichment.CLIENT_ROLES)) {
+            enriched.setClientRoles(stringLists(details, "clientRoles"));
+          }
+          return enriched;
+        }));
+      }
+      return KeycloakClientLogic.enrich(group, facets);
+    });
   }
 
   public Uni<TrikoraGroupRepresentation> getGroupInfoNoEnrich(final String realm,
       final String token,
       final String keycloakClientId, final String groupName) {
-    return keycloakClient.getGroupInfo(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            groupName, Boolean.TRUE)
+    return this.getGroupInfoNoEnrich(blClient.session(realm, token, keycloakClientId), groupName);
+  }
+
+  /**
+   * Same as {@link #getGroupInfoNoEnrich(String, String, String, String)}, within a session. The
+   * group can also be addressed by its path (e.g. /parent/child).
+   */
+  public Uni<TrikoraGroupRepresentation> getGroupInfoNoEnrich(final KeycloakSession session,
+      final String groupName) {
+    return this.indexedGroupId(session, groupName).flatMap(knownId -> (knownId == null)
+        ? this.searchGroup(session, groupName)
+        : this.lookupGroupById(session, knownId)
+            .map(TrikoraGroupRepresentation::from)
+            .onFailure(KeycloakClientLogic::isNotFound).recoverWithUni(() -> {
+              LOGGER.debug("Stale id {} of the group {}, searching it again", knownId, groupName);
+              this.forgetGroup(session, groupName, knownId);
+              return this.searchGroup(session, groupName);
+            }));
+  }
+
+  // The full representation of the group: the searches only answer the brief one
+  private Uni<JsonObject> getGroupDetails(final KeycloakSession session, final String groupId) {
+    final String key = session.readKey("getGroupDetails", groupId);
+    return session.memo(key, () -> realms.read(session.getRealm(), key,
+        () -> keycloakClient.getGroupById(session.getAuthorization(), session.getRealm(),
+            GRANT_TYPE, session.getClientId(), groupId)));
+  }
+
+  // A field mapping names to lists of strings, e.g. the attributes of a group
+  private static Map<String, List<String>> stringLists(final JsonObject json,
+      final String field) {
+    final Map<String, List<String>> res = new HashMap<>();
+    final JsonValue value = json.get(field);
+    if (value == null || value.getValueType() != ValueType.OBJECT) {
+      return res;
+    }
+    value.asJsonObject().forEach((name, values) -> res.put(name,
+        (values.getValueType() != ValueType.ARRAY) ? List.of()
+            : values.asJsonArray().getValuesAs(JsonString.class).stream()
+                .map(JsonString::getString)
+                .collect(Collectors.toList())));
+    return res;
+  }
+
+  private Uni<JsonObject> lookupGroupById(final KeycloakSession session, final String groupId) {
+    final String key = session.readKey("getGroupById", groupId);
+    return session.memo(key, () -> realms.read(session.getRealm(), key,
+        () -> keycloakClient.getGroupById(session.getAuthorization(), session.getRealm(),
+            GRANT_TYPE, session.getClientId(), groupId)));
+  }
+
+  private Uni<TrikoraGroupRepresentation> searchGroup(final KeycloakSession session,
+      final String groupName) {
+    // Checked on subscription, a write composed before this read may have created the group
+    return Uni.createFrom().deferred(
+        () -> blClient.isKnownMissing(session.getRealm(), MISSING_GROUP, groupName)
+            ? Uni.createFrom().failure(new NoSuchGroupException(groupName))
+            : this.lookupGroup(session, groupName));
+  }
+
+  private Uni<TrikoraGroupRepresentation> lookupGroup(final KeycloakSession session,
+      final String groupName) {
+    final String key = session.readKey("getGroupInfo", groupName);
+    return session.memo(key, () -> realms.read(session.getRealm(), key,
+            () -> keycloakClient.getGroupInfo(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), groupName, Boolean.TRUE)))
         .map(jsonArray -> (jsonArray.size() != 1) ? null : jsonArray.get(0).asJsonObject())
         .onItem().ifNull().failWith(() -> new NoSuchGroupException(groupName))
-        .map(TrikoraGroupRepresentation::from);
+        // Also the answer of the lookup of the group by its id, within the session
+        .invoke(json -> session.remember(session.readKey("getGroupById", json.getString("id")),
+            json))
+        .map(TrikoraGroupRepresentation::from)
+        .invoke(group -> this.rememberGroup(session, groupName, group))
+        .onFailure(NoSuchGroupException.class).invoke(() -> blClient.rememberMissing(
+            session.getRealm(), MISSING_GROUP, groupName));
+  }
+
+  /**
+   * Runs an operation on the id of a group. When the operation fails with a 404 on an id taken from
+   * the session or the index, the id is stale: it is forgotten, searched again and the operation is
+   * retried once. It can throw NoSuchGroupException.
+   *
+   * @param session   session in which the operation is run.
+   * @param groupName name or path of the group.
+   * @param operation operation to run on the id of the group.
+   * @param <T>       type of the result of the operation.
+   * @return the result of the operation.
+   */
+  <T> Uni<T> withGroupId(final KeycloakSession session, final String groupName,
+      final Function<String, Uni<T>> operation) {
+    return this.indexedGroupId(session, groupName).flatMap(knownId -> {
+      if (knownId == null) {
+        return this.searchGroup(session, groupName)
+            .map(TrikoraGroupRepresentation::getId)
+            .flatMap(operation::apply);
+      }
+      return operation.apply(knownId)
+          .onFailure(KeycloakClientLogic::isNotFound).recoverWithUni(() -> {
+            LOGGER.debug("Stale id {} of the group {}, searching it again", knownId, groupName);
+            this.forgetGroup(session, groupName, knownId);
+            return this.searchGroup(session, groupName)
+                .map(TrikoraGroupRepresentation::getId)
+                .flatMap(operation::apply);
+          });
+    });
+  }
+
+  /**
+   * Looks the group up in the session and in the index of the realm, loading the index on first
+   * use. A name missing from the index reloads it, at most once every min-reload seconds, as the
+   * group may have been created by another client. Names shared by several groups are never
+   * indexed.
+   *
+   * @return the id of the group, or null if it has to be searched.
+   */
+  private Uni<String> indexedGroupId(final KeycloakSession session, final String groupName) {
+    final String sessionId = session.groupId(groupName);
+    if (sessionId != null) {
+      return Uni.createFrom().item(sessionId);
+    }
+    final ExpiringCache<String, GroupIndex> indexes = this.groupIndexes(session.getRealm());
+    return indexes.get(GROUP_INDEX, () -> this.loadGroupIndex(session))
+        .flatMap(index -> {
+          final String id = index.idOf(groupName);
+          if (id != null || index.isAmbiguous(groupName) || System.currentTimeMillis()
+              - index.getLoadedAt() < GROUP_INDEX_MIN_RELOAD * 1000L
+              || blClient.isKnownMissing(session.getRealm(), MISSING_GROUP, groupName)) {
+            return Uni.createFrom().item(id);
+          }
+          LOGGER.debug("Group {} not indexed, reloading the index", groupName);
+          if (indexes.getIfPresent(GROUP_INDEX) == index) {
+            indexes.invalidate(GROUP_INDEX);
+          }
+          return indexes.get(GROUP_INDEX, () -> this.loadGroupIndex(session))
+              .map(fresh -> fresh.idOf(groupName));
+        })
+        // Without the index (e.g. the token can not list the groups) the group is searched
+        .onFailure().recoverWithItem(ex -> {
+          LOGGER.debug("Group index of the realm {} not available: {}", session.getRealm(),
+              ex.getMessage());
+          return null;
+        })
+        .invoke(id -> session.rememberGroupId(groupName, id));
+  }
+
+  /**
+   * Loads the group index of the realm ahead of its first use, e.g. at startup.
+   *
+   * @param session session in which the groups are listed.
+   * @return the number of groups indexed.
+   */
+  public Uni<Integer> preloadGroupIndex(final KeycloakSession session) {
+    return this.groupIndexes(session.getRealm())
+        .get(GROUP_INDEX, () -> this.loadGroupIndex(session))
+        .map(GroupIndex::size);
+  }
+
+  private Uni<GroupIndex> loadGroupIndex(final KeycloakSession session) {
+    return realms.read(session.getRealm(), session.readKey("listAllGroups"),
+            () -> keycloakClient.listAllGroups(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId()))
+        .map(GroupIndex::from)
+        .invoke(index -> LOGGER.debug("Indexed {} groups of the realm {}", index.size(),
+            session.getRealm()));
+  }
+
+  // The index copies replace each other without locking, a lost update only costs a search
+  private void rememberGroup(final KeycloakSession session, final String groupName,
+      final TrikoraGroupRepresentation group) {
+    session.rememberGroupId(groupName, group.getId());
+    final ExpiringCache<String, GroupIndex> indexes = this.groupIndexes(session.getRealm());
+    final GroupIndex index = indexes.getIfPresent(GROUP_INDEX);
+    if (index != null && group.getPath() != null && index.idOf(group.getPath()) == null) {
+      indexes.put(GROUP_INDEX, index.with(group.getName(), group.getPath(), group.getId()),
+          index.getLoadedAt() + GROUP_INDEX_REFRESH * 1000L);
+    }
+  }
+
+  private void forgetGroup(final KeycloakSession session, final String groupName,
+      final String id) {
+    session.forgetGroupId(groupName);
+    session.forgetLookups();
+    this.unindexGroup(session.getRealm(), id);
+  }
+
+  private void unindexGroup(final String realm, final String id) {
+    final ExpiringCache<String, GroupIndex> indexes = this.groupIndexes(realm);
+    final GroupIndex index = indexes.getIfPresent(GROUP_INDEX);
+    if (index != null) {
+      indexes.put(GROUP_INDEX, index.without(id),
+          index.getLoadedAt() + GROUP_INDEX_REFRESH * 1000L);
+    }
+  }
+
+  /**
+   * Drops what this client has cached of a group changed by others, e.g. from the Keycloak
+   * console. The group is searched again the next time it is used.
+   *
+   * @param realm     the realm name.
+   * @param groupId   id of the group changed, null if it is not known.
+   * @param groupName its name, null if it is not known.
+   */
+  public void invalidateGroup(final String realm, final String groupId, final String groupName) {
+    LOGGER.debug("Invalidating the group {}/{} of the realm {}", groupId, groupName, realm);
+    if (groupId == null) {
+      this.groupIndexes(realm).invalidate(GROUP_INDEX);
+    } else {
+      this.unindexGroup(realm, groupId);
+    }
+    blClient.forgetMissing(realm, MISSING_GROUP, groupName);
+    this.invalidateGroupRoles(realm, groupId);
+  }
+
+  /**
+   * Drops what this client has cached of the realm roles of a group changed by others, e.g. from
+   * the Keycloak console.
+   *
+   * @param realm   the realm name.
+   * @param groupId id of the group changed, null if it is not known.
+   */
+  public void invalidateGroupRoles(final String realm, final String groupId) {
+    LOGGER.debug("Invalidating the roles of the group {} of the realm {}", groupId, realm);
+    blClient.forgetCatalogs(realm);
+    mirror.invalidate(realm);
+  }
+
+  private ExpiringCache<String, GroupIndex> groupIndexes(final String realm) {
+    return realms.context(realm).cache("group-index", 1,
+        Duration.ofSeconds(GROUP_INDEX_REFRESH));
   }
 
   /**
@@ -140,19 +480,35 @@ public final class KeycloakGroupLogic {
    * @param realm            the realm groupName in which the users are going to be queried.
    * @param token            access token provided by the keycloak SecurityIdentity.
    * @param keycloakClientId id of the client (service groupName).
-   * @param groupName        groupName of the group that is desired to be updated.
+   * @param groupName        name of the group that is desired to be updated, or its path.
    * @param attributes       attributes mapping for the group
    * @return True if the groups has been removed from the DB, False otherwise.
    */
   public Uni<TrikoraGroupRepresentation> updateGroup(final String realm, final String token,
       final String keycloakClientId, final String groupName,
       final Map<String, List<String>> attributes) {
-    return this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId)
-        .call(groupId -> keycloakClient.updateGroup(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, groupId,
-            this.createUploadDto(groupName, attributes)))
-        .replaceWith(this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName));
+    return this.updateGroup(blClient.session(realm, token, keycloakClientId), groupName,
+        attributes);
+  }
+
+  /**
+   * Same as {@link #updateGroup(String, String, String, String, Map)}, within a session.
+   */
+  public Uni<TrikoraGroupRepresentation> updateGroup(final KeycloakSession session,
+      final String groupName, final Map<String, List<String>> attributes) {
+    return this.withGroupId(session, groupName,
+            groupId -> realms.submit(session.getRealm(), () -> keycloakClient.updateGroup(
+                    session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                    session.getClientId(), groupId,
+                    this.createUploadDto(nameOf(groupName), attributes)))
+                .invoke(() -> invalidator.publish(
+                    CacheInvalidation.group(session.getRealm(), groupId, groupName))))
+        .invoke(() -> {
+          session.forgetLookups();
+          blClient.forgetCatalogs(session.getRealm());
+          mirror.invalidate(session.getRealm());
+        })
+        .replaceWith(this.getGroupInfoNoEnrich(session, groupName));
   }
 
   /**
@@ -166,33 +522,39 @@ public final class KeycloakGroupLogic {
    */
   public Uni<Boolean> deleteGroup(final String realm, final String token,
       final String keycloakClientId, final String groupName) {
-    return this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId)
-        .flatMap(groupId -> keycloakClient.deleteGroup(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, groupId))
+    return this.deleteGroup(blClient.session(realm, token, keycloakClientId), groupName);
+  }
+
+  /**
+   * Same as {@link #deleteGroup(String, String, String, String)}, within a session.
+   */
+  public Uni<Boolean> deleteGroup(final KeycloakSession session, final String groupName) {
+    return this.withGroupId(session, groupName,
+            groupId -> realms.submit(session.getRealm(), () -> keycloakClient.deleteGroup(
+                    session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                    session.getClientId(), groupId))
+                .invoke(() -> {
+                  this.forgetGroup(session, groupName, groupId);
+                  blClient.forgetCatalogs(session.getRealm());
+                  mirror.invalidate(session.getRealm());
+                  invalidator.publish(
+                      CacheInvalidation.group(session.getRealm(), groupId, groupName));
+                }))
         .map(x -> Boolean.TRUE)
         .onFailure(NoSuchGroupException.class).recoverWithItem(Boolean.FALSE);
   }
 
-  private Uni<String> generateRolesJsonFromNameArray(final String realm, final String token,
-      final String keycloakClientId, String... roles) {
-    Builder<String> builder = Uni.join().builder();
-    LinkedHashMap<String, String> idMapper = new LinkedHashMap<>();
-    Arrays.stream(roles).forEach(roleName ->
-        builder.add(blClient.getRoleInfoNoEnrich(realm, token, keycloakClientId, roleName)
-            .map(role -> idMapper.put(role.name, role.id))
-        )
-    );
-    return builder.joinAll().andCollectFailures()
-        .map(ids -> {
-          StringJoiner newRoles = new StringJoiner(",", "[", "]");
-          for (String role : idMapper.keySet()) {
-            newRoles.add("{\"id\": \"" + idMapper.get(role) + "\", \"name\": \"" + role + "\"}");
-          }
-          LOGGER.debug("Roles to add/delete: {}", newRoles);
-          return newRoles.toString();
-        });
+  private static String generateRolesJson(final List<RoleRepresentation> roles) {
+    StringJoiner newRoles = new StringJoiner(",", "[", "]");
+    for (RoleRepresentation role : roles) {
+      newRoles.add("{\"id\": \"" + role.id + "\", \"name\": \"" + role.name + "\"}");
+    }
+    LOGGER.debug("Roles to add/delete: {}", newRoles);
+    return newRoles.toString();
+  }
 
+  private static List<String> roleIds(final List<RoleRepresentation> roles) {
+    return roles.stream().map(RoleRepresentation::getId).collect(Collectors.toList());
   }
 
   /**
@@ -207,15 +569,31 @@ public final class KeycloakGroupLogic {
    */
   public Uni<TrikoraGroupRepresentation> addRolesToGroup(final String realm, final String token,
       final String keycloakClientId, final String groupName, String... roles) {
+    return this.addRolesToGroup(blClient.session(realm, token, keycloakClientId), groupName,
+        roles);
+  }
 
-    return this.generateRolesJsonFromNameArray(realm, token, keycloakClientId, roles)
-        .flatMap(rolesStr ->
-            this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-                .map(TrikoraGroupRepresentation::getId)
-                .flatMap(
-                    groupId -> keycloakClient.addRolesToGroup(BEARER + token, realm, GRANT_TYPE,
-                        keycloakClientId, groupId, rolesStr))
-                .replaceWith(this.getGroupInfo(realm, token, keycloakClientId, groupName))
+  /**
+   * Same as {@link #addRolesToGroup(String, String, String, String, String...)}, within a session.
+   */
+  public Uni<TrikoraGroupRepresentation> addRolesToGroup(final KeycloakSession session,
+      final String groupName, String... roles) {
+
+    return blClient.resolveRoles(session, roles)
+        .flatMap(resolved ->
+            this.withGroupId(session, groupName,
+                    groupId -> realms.submit(session.getRealm(), () -> keycloakClient
+                            .addRolesToGroup(session.getAuthorization(), session.getRealm(),
+                                GRANT_TYPE, session.getClientId(), groupId,
+                                generateRolesJson(resolved)))
+                        .invoke(() -> {
+                          blClient.forgetCatalogs(session.getRealm());
+                          mirror.groupRolesChanged(session.getRealm(), groupId,
+                              roleIds(resolved), true);
+                          invalidator.publish(
+                              CacheInvalidation.groupRoles(session.getRealm(), groupId));
+                        }))
+                .replaceWith(this.getGroupInfo(session, groupName))
         );
   }
 
@@ -232,15 +610,32 @@ public final class KeycloakGroupLogic {
   public Uni<TrikoraGroupRepresentation> removeRolesFromGroup(final String realm,
       final String token,
       final String keycloakClientId, final String groupName, String... roles) {
+    return this.removeRolesFromGroup(blClient.session(realm, token, keycloakClientId), groupName,
+        roles);
+  }
 
-    return this.generateRolesJsonFromNameArray(realm, token, keycloakClientId, roles)
-        .flatMap(rolesStr ->
-            this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-                .map(TrikoraGroupRepresentation::getId)
-                .flatMap(
-                    groupId -> keycloakClient.removeRolesToGroup(BEARER + token, realm, GRANT_TYPE,
-                        keycloakClientId, groupId, rolesStr))
-                .replaceWith(this.getGroupInfo(realm, token, keycloakClientId, groupName))
+  /**
+   * Same as {@link #removeRolesFromGroup(String, String, String, String, String...)}, within a
+   * session.
+   */
+  public Uni<TrikoraGroupRepresentation> removeRolesFromGroup(final KeycloakSession session,
+      final String groupName, String... roles) {
+
+    return blClient.resolveRoles(session, roles)
+        .flatMap(resolved ->
+            this.withGroupId(session, groupName,
+                    groupId -> realms.submit(session.getRealm(), () -> keycloakClient
+                            .removeRolesToGroup(session.getAuthorization(), session.getRealm(),
+                                GRANT_TYPE, session.getClientId(), groupId,
+                                generateRolesJson(resolved)))
+                        .invoke(() -> {
+                          blClient.forgetCatalogs(session.getRealm());
+                          mirror.groupRolesChanged(session.getRealm(), groupId,
+                              roleIds(resolved), false);
+                          invalidator.publish(
+                              CacheInvalidation.groupRoles(session.getRealm(), groupId));
+                        }))
+                .replaceWith(this.getGroupInfo(session, groupName))
 
         );
   }
@@ -256,11 +651,15 @@ public final class KeycloakGroupLogic {
    */
   public Uni<List<KeycloakUserRepresentation>> getGroupMembers(final String realm,
       final String token, final String keycloakClientId, final String groupName) {
-    return this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId)
-        .flatMap(groupId -> this.getGroupMembersRec(realm, token, keycloakClientId, groupId, 0,
-            Integer.MAX_VALUE, new ArrayList<>()));
+    return this.getGroupMembers(blClient.session(realm, token, keycloakClientId), groupName);
+  }
 
+  /**
+   * Same as {@link #getGroupMembers(String, String, String, String)}, within a session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembers(final KeycloakSession session,
+      final String groupName) {
+    return this.getGroupMembers(session, groupName, 0, Integer.MAX_VALUE);
   }
 
   /**
@@ -277,28 +676,74 @@ public final class KeycloakGroupLogic {
   public Uni<List<KeycloakUserRepresentation>> getGroupMembers(final String realm,
       final String token, final String keycloakClientId, final String groupName, Integer first,
       Integer recCount) {
-    return this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId)
-        .flatMap(groupId -> this.getGroupMembersRec(realm, token, keycloakClientId, groupId, first,
-            recCount, new ArrayList<>()));
+    return this.getGroupMembers(blClient.session(realm, token, keycloakClientId), groupName,
+        first, recCount);
+  }
+
+  /**
+   * Same as {@link #getGroupMembers(String, String, String, String, Integer, Integer)}, within a
+   * session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembers(final KeycloakSession session,
+      final String groupName, Integer first, Integer recCount) {
+    return blClient.fromMirror(session,
+        snapshot -> snapshot.getGroupMembers(groupName, first, recCount),
+        () -> this.withGroupId(session, groupName,
+            groupId -> this.getGroupMembersRec(session, groupId, first, recCount,
+                new ArrayList<>())));
 
   }
 
-  private Uni<List<KeycloakUserRepresentation>> getGroupMembersRec(final String realm,
-      final String token,
-      final String keycloakClientId, final String groupId, Integer first, Integer recCount,
+  /**
+   * Same as {@link #getGroupMembers(String, String, String, String)}, with the id of the group,
+   * e.g. the one of a group already fetched, which saves looking it up again by its name.
+   *
+   * @param realm            the realm name in which the users are going to be queried.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @param groupId          id of the group that is going to be queried.
+   * @return the members of the group.
+   */
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembersById(final String realm,
+      final String token, final String keycloakClientId, final String groupId) {
+    return this.getGroupMembersById(blClient.session(realm, token, keycloakClientId), groupId);
+  }
+
+  /**
+   * Same as {@link #getGroupMembersById(String, String, String, String)}, within a session.
+   */
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembersById(final KeycloakSession session,
+      final String groupId) {
+    return this.getGroupMembersById(session, groupId, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as {@link #getGroupMembers(KeycloakSession, String, Integer, Integer)}, with the id of
+   * the group.
+   */
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembersById(final KeycloakSession session,
+      final String groupId, Integer first, Integer recCount) {
+    return blClient.fromMirror(session,
+        snapshot -> snapshot.getGroupMembersById(groupId, first, recCount),
+        () -> this.getGroupMembersRec(session, groupId, first, recCount, new ArrayList<>()));
+  }
+
+  private Uni<List<KeycloakUserRepresentation>> getGroupMembersRec(final KeycloakSession session,
+      final String groupId, Integer first, Integer recCount,
       List<KeycloakUserRepresentation> res) {
     LOGGER.debug("#getGroupMembersRec(cursor, usersFetched)...{}-{}", first, res.size());
-    return keycloakClient.getGroupUsers(BEARER + token, realm, GRANT_TYPE, keycloakClientId,
-            groupId, first, (KC_BUFFER_SIZE < (recCount - first) ? KC_BUFFER_SIZE : recCount - first))
+    final int pageSize = realms.getPageSize(session.getRealm());
+    final int max = Math.min(pageSize, recCount - first);
+    return realms.read(session.getRealm(), session.readKey("getGroupUsers", groupId, first, max),
+            () -> keycloakClient.getGroupUsers(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), groupId, first, max))
         .map(KeycloakUserRepresentation::allFrom)
         .flatMap(currentSelection -> {
           res.addAll(currentSelection);
-          if (currentSelection.size() < KC_BUFFER_SIZE || res.size() >= recCount) {
+          if (currentSelection.size() < pageSize || res.size() >= recCount) {
             return Uni.createFrom().item(res); // Recursion Base case
           } else {
-            return this.getGroupMembersRec(realm, token, keycloakClientId, groupId,
-                first + KC_BUFFER_SIZE, recCount, res);
+            return this.getGroupMembersRec(session, groupId, first + pageSize, recCount, res);
           }
         });
   }
@@ -315,18 +760,26 @@ public final class KeycloakGroupLogic {
    */
   public Uni<KeycloakUserRepresentation> putUserInGroup(final String realm, final String token,
       final String keycloakClientId, final String userName, final String groupName) {
+    return this.putUserInGroup(blClient.session(realm, token, keycloakClientId), userName,
+        groupName);
+  }
 
-    Uni<String> userId = blClient.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .map(KeycloakUserRepresentation::getId);
-
-    Uni<String> groupId = this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId);
-
-    return Uni.combine().all().unis(userId, groupId).asTuple().flatMap(tuple2 ->
-            keycloakClient.putUserInGroup(BEARER + token, realm, GRANT_TYPE,
-                keycloakClientId, tuple2.getItem1(), tuple2.getItem2()))
-
-        .flatMap(x -> blClient.getUserInfo(realm, token, keycloakClientId, userName));
+  /**
+   * Same as {@link #putUserInGroup(String, String, String, String, String)}, within a session.
+   */
+  public Uni<KeycloakUserRepresentation> putUserInGroup(final KeycloakSession session,
+      final String userName, final String groupName) {
+
+    return blClient.withUserId(session, userName, userId -> this.withGroupId(session, groupName,
+            groupId -> realms.submit(session.getRealm(), () -> keycloakClient
+                    .putUserInGroup(session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                        session.getClientId(), userId, groupId))
+                .invoke(() -> {
+                  mirror.membershipChanged(session.getRealm(), userName, groupId, true);
+                  blClient.forgetMemberships(session.getRealm());
+                  invalidator.publish(CacheInvalidation.user(session.getRealm(), userId, userName));
+                })))
+        .flatMap(x -> blClient.getUserInfo(session, userName));
   }
 
   /**
@@ -342,16 +795,26 @@ public final class KeycloakGroupLogic {
    */
   public Uni<KeycloakUserRepresentation> deleteUserFromGroup(final String realm, final String token,
       final String keycloakClientId, final String userName, final String groupName) {
-    Uni<String> userId = blClient.getUserInfoNoEnrich(realm, token, keycloakClientId, userName)
-        .map(KeycloakUserRepresentation::getId);
-
-    Uni<String> groupId = this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId);
+    return this.deleteUserFromGroup(blClient.session(realm, token, keycloakClientId), userName,
+        groupName);
+  }
 
-    return Uni.combine().all().unis(userId, groupId).asTuple().flatMap(tuple2 ->
-            keycloakClient.deleteUserFromGroup(BEARER + token, realm, GRANT_TYPE,
-                keycloakClientId, tuple2.getItem1(), tuple2.getItem2()))
-        .replaceWith(blClient.getUserInfo(realm, token, keycloakClientId, userName));
+  /**
+   * Same as {@link #deleteUserFromGroup(String, String, String, String, String)}, within a
+   * session.
+   */
+  public Uni<KeycloakUserRepresentation> deleteUserFromGroup(final KeycloakSession session,
+      final String userName, final String groupName) {
+    return blClient.withUserId(session, userName, userId -> this.withGroupId(session, groupName,
+            groupId -> realms.submit(session.getRealm(), () -> keycloakClient
+                    .deleteUserFromGroup(session.getAuthorization(), session.getRealm(),
+                        GRANT_TYPE, session.getClientId(), userId, groupId))
+                .invoke(() -> {
+                  mirror.membershipChanged(session.getRealm(), userName, groupId, false);
+                  blClient.forgetMemberships(session.getRealm());
+                  invalidator.publish(CacheInvalidation.user(session.getRealm(), userId, userName));
+                })))
+        .replaceWith(blClient.getUserInfo(session, userName));
   }
 
   /**
@@ -366,11 +829,15 @@ public final class KeycloakGroupLogic {
    */
   public Uni<List<RoleRepresentation>> getGroupRoles(final String realm, final String token,
       final String keycloakClientId, final String groupName) {
-    return this.getGroupInfoNoEnrich(realm, token, keycloakClientId, groupName)
-        .map(TrikoraGroupRepresentation::getId)
-        .flatMap(id -> keycloakClient.getGroupRoles(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, id))
-        .map(RoleRepresentation::allFrom);
+    return this.getGroupRoles(blClient.session(realm, token, keycloakClientId), groupName);
+  }
+
+  /**
+   * Same as {@link #getGroupRoles(String, String, String, String)}, within a session.
+   */
+  public Uni<List<RoleRepresentation>> getGroupRoles(final KeycloakSession session,
+      final String groupName) {
+    return this.withGroupId(session, groupName, id -> this.getGroupRolesById(session, id));
   }
 
   /**
@@ -384,11 +851,29 @@ public final class KeycloakGroupLogic {
    */
   public Uni<List<RoleRepresentation>> getGroupRolesById(final String realm, final String token,
       final String keycloakClientId, final String id) {
-    return keycloakClient.getGroupRoles(BEARER + token, realm, GRANT_TYPE,
-            keycloakClientId, id)
+    return this.getGroupRolesById(blClient.session(realm, token, keycloakClientId), id);
+  }
+
+  /**
+   * Same as {@link #getGroupRolesById(String, String, String, String)}, within a session.
+   */
+  public Uni<List<RoleRepresentation>> getGroupRolesById(final KeycloakSession session,
+      final String id) {
+    return realms.read(session.getRealm(), session.readKey("getGroupRoles", id),
+            () -> keycloakClient.getGroupRoles(session.getAuthorization(), session.getRealm(),
+                GRANT_TYPE, session.getClientId(), id))
         .map(RoleRepresentation::allFrom);
   }
 
+  /**
+   * @param nameOrPath name of a group, or its path when it starts with a slash.
+   * @return the name of the group, the last segment of its path.
+   */
+  private static String nameOf(final String nameOrPath) {
+    return nameOrPath.startsWith("/") ? nameOrPath.substring(nameOrPath.lastIndexOf('/') + 1)
+        : nameOrPath;
+  }
+
   private GroupRepresentation createUploadDto(final String name,
       final Map<String, List<String>> attributes) {
     GroupRepresentation representation = new GroupRepresentation();
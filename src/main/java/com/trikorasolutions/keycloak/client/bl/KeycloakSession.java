@@ -0,0 +1,347 @@
+package com.trikorasolutions.keycloak.client.bl;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.BEARER;
+
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.dto.TrikoraGroupRepresentation;
+import com.trikorasolutions.keycloak.client.dto.UserRepresentation;
+import com.trikorasolutions.keycloak.client.realm.SingleFlight;
+import io.smallrye.mutiny.Uni;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Handle bound to one realm, client and access token. The Authorization header is built once when
+ * the session is opened and reused by every request, including the ones issued by the composite
+ * operations (e.g. getUserInfo, which also fetches the roles and the groups of the user).
+ * <p>
+ * The session remembers the ids of the users and groups it has already resolved, so the operations
+ * on the same user or group within the session do not search them again. Sessions are cheap and
+ * meant to be short lived, typically one per incoming request: open them with
+ * {@link KeycloakClientLogic#session(String, String, String)}.
+ * <p>
+ * Within a session, the lookups of a user, a group or a role by name are also done only once: the
+ * steps of a composite operation (e.g. putUserInGroup, which resolves the user and then returns
+ * it) share the first answer. The changes made through the session to a user, group or role drop
+ * the lookups, the changes made by others are seen by the next session.
+ */
+public final class KeycloakSession {
+
+  private final String realm;
+  private final String token;
+  private final String clientId;
+  private final String authorization;
+
+  private final KeycloakClientLogic clientLogic;
+  private final KeycloakGroupLogic groupLogic;
+
+  private final Map<String, String> userIds = new ConcurrentHashMap<>();
+  private final Map<String, String> groupIds = new ConcurrentHashMap<>();
+  private final Map<String, Uni<?>> lookups = new ConcurrentHashMap<>();
+
+  KeycloakSession(String realm, String token, String clientId, KeycloakClientLogic clientLogic,
+      KeycloakGroupLogic groupLogic) {
+    this.realm = realm;
+    this.token = token;
+    this.clientId = clientId;
+    this.authorization = BEARER + token;
+    this.clientLogic = clientLogic;
+    this.groupLogic = groupLogic;
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * @return the value of the Authorization header of the requests of the session.
+   */
+  public String getAuthorization() {
+    return authorization;
+  }
+
+  /**
+   * @param endpoint the read.
+   * @param params   its parameters, besides the realm.
+   * @return identity of the read, shared by the sessions with the same token.
+   */
+  String readKey(final String endpoint, final Object... params) {
+    final Object[] parts = new Object[params.length + 3];
+    parts[0] = endpoint;
+    parts[1] = authorization;
+    parts[2] = clientId;
+    System.arraycopy(params, 0, parts, 3, params.length);
+    return SingleFlight.key(parts);
+  }
+
+  /**
+   * Runs a lookup once within the session, the following calls share its answer. A failed lookup is
+   * not kept.
+   *
+   * @param key    identity of the lookup, see {@link #readKey(String, Object...)}.
+   * @param lookup the lookup, returning an immutable value.
+   * @param <T>    type of the value.
+   * @return the value.
+   */
+  @SuppressWarnings("unchecked")
+  <T> Uni<T> memo(final String key, final Supplier<Uni<T>> lookup) {
+    return Uni.createFrom().deferred(() -> (Uni<T>) lookups.computeIfAbsent(key, k -> {
+      final AtomicReference<Uni<T>> self = new AtomicReference<>();
+      final Uni<T> memo = Uni.createFrom().deferred(lookup::get)
+          .onFailure().invoke(() -> lookups.remove(k, self.get()))
+          .memoize().indefinitely();
+      self.set(memo);
+      return memo;
+    }));
+  }
+
+  /**
+   * Stores the answer of a lookup obtained otherwise, e.g. the group found by a search is the
+   * answer of the lookup of the group by its id.
+   */
+  <T> void remember(final String key, final T value) {
+    lookups.put(key, Uni.createFrom().item(value));
+  }
+
+  /**
+   * Drops every lookup of the session, after a change made through it.
+   */
+  void forgetLookups() {
+    lookups.clear();
+  }
+
+  String userId(final String userName) {
+    return userIds.get(userName);
+  }
+
+  void rememberUserId(final String userName, final String id) {
+    if (userName != null && id != null) {
+      userIds.put(userName, id);
+    }
+  }
+
+  void forgetUserId(final String userName) {
+    userIds.remove(userName);
+  }
+
+  String groupId(final String groupName) {
+    return groupIds.get(groupName);
+  }
+
+  void rememberGroupId(final String groupName, final String id) {
+    if (groupName != null && id != null) {
+      groupIds.put(groupName, id);
+    }
+  }
+
+  void forgetGroupId(final String groupName) {
+    groupIds.remove(groupName);
+  }
+
+  /******************************* USER FUNCTIONS *******************************/
+
+  public Uni<KeycloakUserRepresentation> createUser(final UserRepresentation newUser) {
+    return clientLogic.createUser(this, newUser);
+  }
+
+  public Uni<KeycloakUserRepresentation> updateUser(final String userName,
+      final UserRepresentation newUser) {
+    return clientLogic.updateUser(this, userName, newUser);
+  }
+
+  public Uni<KeycloakUserRepresentation> resetPassword(final String userName,
+      final String password) {
+    return clientLogic.resetPassword(this, userName, password);
+  }
+
+  public Uni<KeycloakUserRepresentation> resetPassword(final String userName,
+      final String password, final Boolean isTemporary) {
+    return clientLogic.resetPassword(this, userName, password, isTemporary);
+  }
+
+  public Uni<Boolean> enableUser(final String userName) {
+    return clientLogic.enableUser(this, userName);
+  }
+
+  public Uni<Boolean> disableUser(final String userName) {
+    return clientLogic.disableUser(this, userName);
+  }
+
+  public Uni<KeycloakUserRepresentation> getUserInfo(final String userName) {
+    return clientLogic.getUserInfo(this, userName);
+  }
+
+  public Uni<KeycloakUserRepresentation> getUserInfo(final String userName,
+      final Set<Enrichment> enrichments) {
+    return clientLogic.getUserInfo(this, userName, enrichments);
+  }
+
+  public Uni<KeycloakUserRepresentation> getUserInfoNoEnrich(final String userName) {
+    return clientLogic.getUserInfoNoEnrich(this, userName);
+  }
+
+  public Uni<Boolean> deleteUser(final String userName) {
+    return clientLogic.deleteUser(this, userName);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers() {
+    return clientLogic.listAllUsers(this);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers(final Integer first,
+      final Integer recCount) {
+    return clientLogic.listAllUsers(this, first, recCount);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> listAllUsers(final Integer first,
+      final Integer recCount, final Set<Enrichment> enrichments) {
+    return clientLogic.listAllUsers(this, first, recCount, enrichments);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> enrichUsers(
+      final List<KeycloakUserRepresentation> users, final Set<Enrichment> enrichments) {
+    return clientLogic.enrichUsers(this, users, enrichments);
+  }
+
+  public Uni<Boolean> hasEffectiveRole(final String userName, final String roleName) {
+    return clientLogic.hasEffectiveRole(this, userName, roleName);
+  }
+
+  public Uni<Boolean> isMember(final String userName, final String groupName) {
+    return clientLogic.isMember(this, userName, groupName);
+  }
+
+  public Uni<List<TrikoraGroupRepresentation>> getGroupsForUser(final String userId) {
+    return clientLogic.getGroupsForUser(this, userId);
+  }
+
+  /******************************* ROLE FUNCTIONS *******************************/
+
+  public Uni<RoleRepresentation> createRole(final RoleRepresentation newRole) {
+    return clientLogic.createRole(this, newRole);
+  }
+
+  public Uni<List<RoleRepresentation>> listAllRoles() {
+    return clientLogic.listAllRoles(this);
+  }
+
+  public Uni<RoleRepresentation> getRoleInfoNoEnrich(final String roleName) {
+    return clientLogic.getRoleInfoNoEnrich(this, roleName);
+  }
+
+  public Uni<RoleRepresentation> updateRole(final String roleName,
+      final RoleRepresentation newRole) {
+    return clientLogic.updateRole(this, roleName, newRole);
+  }
+
+  public Uni<Boolean> deleteRole(final String roleName) {
+    return clientLogic.deleteRole(this, roleName);
+  }
+
+  public Uni<List<RoleRepresentation>> getUserRoles(final String userName) {
+    return clientLogic.getUserRoles(this, userName);
+  }
+
+  public Uni<List<RoleRepresentation>> getUserRolesById(final String id) {
+    return clientLogic.getUserRolesById(this, id);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> getAllUsersInAssignedRole(final String role) {
+    return clientLogic.getAllUsersInAssignedRole(this, role);
+  }
+
+  public Uni<List<TrikoraGroupRepresentation>> getAllGroupsInAssignedRole(final String role) {
+    return clientLogic.getAllGroupsInAssignedRole(this, role);
+  }
+
+  public Uni<Set<KeycloakUserRepresentation>> getAllUserInEffectiveRole(final String roleName) {
+    return clientLogic.getAllUserInEffectiveRole(this, roleName);
+  }
+
+  /******************************* GROUP FUNCTIONS *******************************/
+
+  public Uni<List<TrikoraGroupRepresentation>> listAllGroups() {
+    return groupLogic.listAllGroups(this);
+  }
+
+  public Uni<TrikoraGroupRepresentation> createGroup(final String name,
+      final Map<String, List<String>> attributes) {
+    return groupLogic.createGroup(this, name, attributes);
+  }
+
+  public Uni<TrikoraGroupRepresentation> getGroupInfo(final String groupName) {
+    return groupLogic.getGroupInfo(this, groupName);
+  }
+
+  public Uni<TrikoraGroupRepresentation> getGroupInfo(final String groupName,
+      final Set<Enrichment> enrichments) {
+    return groupLogic.getGroupInfo(this, groupName, enrichments);
+  }
+
+  public Uni<TrikoraGroupRepresentation> getGroupInfoNoEnrich(final String groupName) {
+    return groupLogic.getGroupInfoNoEnrich(this, groupName);
+  }
+
+  public Uni<TrikoraGroupRepresentation> updateGroup(final String groupName,
+      final Map<String, List<String>> attributes) {
+    return groupLogic.updateGroup(this, groupName, attributes);
+  }
+
+  public Uni<Boolean> deleteGroup(final String groupName) {
+    return groupLogic.deleteGroup(this, groupName);
+  }
+
+  public Uni<TrikoraGroupRepresentation> addRolesToGroup(final String groupName,
+      final String... roles) {
+    return groupLogic.addRolesToGroup(this, groupName, roles);
+  }
+
+  public Uni<TrikoraGroupRepresentation> removeRolesFromGroup(final String groupName,
+      final String... roles) {
+    return groupLogic.removeRolesFromGroup(this, groupName, roles);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembers(final String groupName) {
+    return groupLogic.getGroupMembers(this, groupName);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembersById(final String groupId) {
+    return groupLogic.getGroupMembersById(this, groupId);
+  }
+
+  public Uni<List<KeycloakUserRepresentation>> getGroupMembers(final String groupName,
+      final Integer first, final Integer recCount) {
+    return groupLogic.getGroupMembers(this, groupName, first, recCount);
+  }
+
+  public Uni<KeycloakUserRepresentation> putUserInGroup(final String userName,
+      final String groupName) {
+    return groupLogic.putUserInGroup(this, userName, groupName);
+  }
+
+  public Uni<KeycloakUserRepresentation> deleteUserFromGroup(final String userName,
+      final String groupName) {
+    return groupLogic.deleteUserFromGroup(this, userName, groupName);
+  }
+
+  public Uni<List<RoleRepresentation>> getGroupRoles(final String groupName) {
+    return groupLogic.getGroupRoles(this, groupName);
+  }
+
+  public Uni<List<RoleRepresentation>> getGroupRolesById(final String id) {
+    return groupLogic.getGroupRolesById(this, id);
+  }
+}
@@ -0,0 +1,158 @@
+package com.trikorasolutions.keycloak.client.bl;
+
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.dto.TrikoraGroupRepresentation;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+/**
+ * Role and group memberships of the users of a realm, inverted from the users and groups of each
+ * realm role and the members of each group. Enriching any number of users with it costs a request
+ * per role and per group, instead of two per user. Immutable once built.
+ */
+final class MembershipIndex {
+
+  private final RoleCatalog roles;
+  private final Map<String, JsonObject> groups;
+  private final Map<String, String> groupParents;
+  private final Map<String, Set<String>> roleComposites;
+  private final Map<String, Set<String>> groupRoles;
+  private final Map<String, Set<String>> userGroups;
+  private final Map<String, Set<String>> userRoles;
+
+  private MembershipIndex(Builder builder) {
+    this.roles = builder.roles;
+    this.groups = builder.groups;
+    this.groupParents = builder.groupParents;
+    this.roleComposites = builder.roleComposites;
+    this.groupRoles = builder.groupRoles;
+    this.userGroups = builder.userGroups;
+    this.userRoles = builder.userRoles;
+  }
+
+  /**
+   * Adds the selected facets to the user, as getUserInfo does.
+   *
+   * @param user        the user, with its id.
+   * @param enrichments {@link Enrichment#ROLES} and/or {@link Enrichment#GROUPS}.
+   * @return the user.
+   */
+  KeycloakUserRepresentation enrich(final KeycloakUserRepresentation user,
+      final Set<Enrichment> enrichments) {
+    if (enrichments.contains(Enrichment.ROLES)) {
+      user.addRoles(this.effectiveRoles(user.getId()));
+    }
+    if (enrichments.contains(Enrichment.GROUPS)) {
+      user.addGroups(userGroups.getOrDefault(user.getId(), Set.of()).stream()
+          .map(groups::get)
+          .filter(Objects::nonNull)
+          .map(TrikoraGroupRepresentation::from)
+          .collect(Collectors.toList()));
+    }
+    return user;
+  }
+
+  // Same as the composite role mappings of the user: assigned, inherited from the groups and
+  // their parents, and the composites of all of them
+  private List<RoleRepresentation> effectiveRoles(final String userId) {
+    final Set<String> granted = new HashSet<>(userRoles.getOrDefault(userId, Set.of()));
+    for (String groupId : userGroups.getOrDefault(userId, Set.of())) {
+      for (String id = groupId; id != null; id = groupParents.get(id)) {
+        granted.addAll(groupRoles.getOrDefault(id, Set.of()));
+      }
+    }
+    final Set<String> effective = new LinkedHashSet<>();
+    final Deque<String> pending = new ArrayDeque<>(granted);
+    while (!pending.isEmpty()) {
+      final String roleId = pending.pop();
+      if (effective.add(roleId)) {
+        pending.addAll(roleComposites.getOrDefault(roleId, Set.of()));
+      }
+    }
+    return effective.stream()
+        .map(roles::byId)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Collects the memberships while they are fetched concurrently.
+   */
+  static final class Builder {
+
+    private final RoleCatalog roles;
+    private final Map<String, JsonObject> groups = new HashMap<>();
+    private final Map<String, String> groupParents = new HashMap<>();
+    // Guarded by this, filled by the concurrent requests
+    private final Map<String, Set<String>> roleComposites = new HashMap<>();
+    private final Map<String, Set<String>> groupRoles = new HashMap<>();
+    private final Map<String, Set<String>> userGroups = new HashMap<>();
+    private final Map<String, Set<String>> userRoles = new HashMap<>();
+
+    /**
+     * @param roles     the realm roles.
+     * @param groupTree the group tree, as returned by the groups endpoint.
+     */
+    Builder(final RoleCatalog roles, final JsonArray groupTree) {
+      this.roles = roles;
+      this.addGroups(groupTree, null);
+    }
+
+    private void addGroups(final JsonArray tree, final String parentId) {
+      for (JsonValue value : tree) {
+        if (value.getValueType() != ValueType.OBJECT) {
+          continue;
+        }
+        final JsonObject group = value.asJsonObject();
+        final String id = group.getString("id");
+        groups.put(id, group);
+        if (parentId != null) {
+          groupParents.put(id, parentId);
+        }
+        if (group.containsKey("subGroups")
+            && group.get("subGroups").getValueType() == ValueType.ARRAY) {
+          this.addGroups(group.getJsonArray("subGroups"), id);
+        }
+      }
+    }
+
+    Set<String> groupIds() {
+      return groups.keySet();
+    }
+
+    synchronized Builder addMembers(final String groupId, final List<JsonObject> members) {
+      members.forEach(member -> userGroups
+          .computeIfAbsent(member.getString("id"), id -> new HashSet<>()).add(groupId));
+      return this;
+    }
+
+    synchronized Builder addRole(final String roleId, final List<JsonObject> withUsers,
+        final List<JsonObject> withGroups, final List<JsonObject> composites) {
+      withUsers.forEach(user -> userRoles
+          .computeIfAbsent(user.getString("id"), id -> new HashSet<>()).add(roleId));
+      withGroups.forEach(group -> groupRoles
+          .computeIfAbsent(group.getString("id"), id -> new HashSet<>()).add(roleId));
+      roleComposites.put(roleId, composites.stream()
+          .map(composite -> composite.getString("id"))
+          .collect(Collectors.toSet()));
+      return this;
+    }
+
+    synchronized MembershipIndex build() {
+      return new MembershipIndex(this);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.trikorasolutions.keycloak.client.bl;
+
+import com.trikorasolutions.keycloak.client.cache.CacheWeights;
+import com.trikorasolutions.keycloak.client.cache.Weighted;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable catalog of the realm roles of a realm, by name and by id. The changes made by this
+ * client produce a new copy of the catalog, which keeps the load instant of the original one.
+ */
+final class RoleCatalog implements Weighted {
+
+  private final Map<String, RoleRepresentation> rolesByName;
+  private final Map<String, RoleRepresentation> rolesById;
+  private final long loadedAt;
+
+  private RoleCatalog(Map<String, RoleRepresentation> rolesByName,
+      Map<String, RoleRepresentation> rolesById, long loadedAt) {
+    this.rolesByName = rolesByName;
+    this.rolesById = rolesById;
+    this.loadedAt = loadedAt;
+  }
+
+  /**
+   * @param roles all the roles of the realm.
+   * @return the catalog of the given roles.
+   */
+  static RoleCatalog from(final Collection<RoleRepresentation> roles) {
+    final RoleCatalog catalog = new RoleCatalog(new HashMap<>(), new HashMap<>(),
+        System.currentTimeMillis());
+    roles.forEach(catalog::add);
+    return catalog;
+  }
+
+  /**
+   * @return a catalog without roles, every lookup on it misses.
+   */
+  static RoleCatalog empty() {
+    return new RoleCatalog(Map.of(), Map.of(), 0L);
+  }
+
+  // Only called while building a new catalog
+  private void add(final RoleRepresentation role) {
+    if (role == null || role.getId() == null || role.getName() == null) {
+      return;
+    }
+    rolesByName.put(role.getName(), role);
+    rolesById.put(role.getId(), role);
+  }
+
+  /**
+   * @return the role with the given name, or null if it is not in the catalog.
+   */
+  RoleRepresentation byName(final String name) {
+    return rolesByName.get(name);
+  }
+
+  /**
+   * @return the role with the given id, or null if it is not in the catalog.
+   */
+  RoleRepresentation byId(final String id) {
+    return rolesById.get(id);
+  }
+
+  /**
+   * @return every role of the catalog.
+   */
+  Collection<RoleRepresentation> all() {
+    return rolesByName.values();
+  }
+
+  long getLoadedAt() {
+    return loadedAt;
+  }
+
+  int size() {
+    return rolesByName.size();
+  }
+
+  @Override
+  public long estimatedBytes() {
+    // Both maps share the roles
+    return 32L + CacheWeights.estimate(rolesByName) + 48L + 32L * rolesById.size();
+  }
+
+  /**
+   * @return a copy of the catalog including the given role, replacing any role with its name.
+   */
+  RoleCatalog with(final RoleRepresentation role) {
+    final RoleCatalog copy = this.without(role.getName());
+    copy.add(role);
+    return copy;
+  }
+
+  /**
+   * @return a copy of the catalog without the role with the given name.
+   */
+  RoleCatalog without(final String name) {
+    final Map<String, RoleRepresentation> names = new HashMap<>(rolesByName);
+    final Map<String, RoleRepresentation> ids = new HashMap<>(rolesById);
+    final RoleRepresentation removed = names.remove(name);
+    if (removed != null) {
+      ids.remove(removed.getId());
+    }
+    return new RoleCatalog(names, ids, loadedAt);
+  }
+}
@@ -0,0 +1,101 @@
+package com.trikorasolutions.keycloak.client.bl;
+
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+/**
+ * Immutable graph of the realm roles included in composite roles, and of the group tree, to tell
+ * who is granted a role: the users and groups assigned the role or any composite role including
+ * it, the members of those groups and of their subgroups.
+ */
+final class RoleGraph {
+
+  // Role name to the names of the composite roles directly including it
+  private final Map<String, Set<String>> includedIn;
+  // Group id to the ids of its direct subgroups
+  private final Map<String, Set<String>> subGroups;
+
+  private RoleGraph(Map<String, Set<String>> includedIn, Map<String, Set<String>> subGroups) {
+    this.includedIn = includedIn;
+    this.subGroups = subGroups;
+  }
+
+  /**
+   * @param composites the roles each composite role includes, by name of the composite role.
+   * @param groupTree  the group tree, as returned by the groups endpoint.
+   * @return the graph.
+   */
+  static RoleGraph from(final Map<String, List<RoleRepresentation>> composites,
+      final JsonArray groupTree) {
+    final Map<String, Set<String>> includedIn = new HashMap<>();
+    composites.forEach((composite, roles) -> roles.forEach(role -> includedIn
+        .computeIfAbsent(role.getName(), name -> new HashSet<>()).add(composite)));
+    final Map<String, Set<String>> subGroups = new HashMap<>();
+    addSubGroups(subGroups, groupTree);
+    return new RoleGraph(includedIn, subGroups);
+  }
+
+  private static void addSubGroups(final Map<String, Set<String>> subGroups,
+      final JsonArray tree) {
+    for (JsonValue value : tree) {
+      if (value.getValueType() != ValueType.OBJECT) {
+        continue;
+      }
+      final JsonObject group = value.asJsonObject();
+      if (group.containsKey("subGroups")
+          && group.get("subGroups").getValueType() == ValueType.ARRAY) {
+        final JsonArray children = group.getJsonArray("subGroups");
+        for (JsonValue child : children) {
+          if (child.getValueType() == ValueType.OBJECT) {
+            subGroups.computeIfAbsent(group.getString("id"), id -> new HashSet<>())
+                .add(child.asJsonObject().getString("id"));
+          }
+        }
+        addSubGroups(subGroups, children);
+      }
+    }
+  }
+
+  /**
+   * @param roleName name of the realm role.
+   * @return the role and every composite role including it, directly or not.
+   */
+  Set<String> grantingRoles(final String roleName) {
+    return closure(roleName, includedIn);
+  }
+
+  /**
+   * @param groupIds ids of groups.
+   * @return the groups and all their subgroups, which inherit their roles.
+   */
+  Set<String> withSubGroups(final Collection<String> groupIds) {
+    final Set<String> res = new LinkedHashSet<>();
+    groupIds.forEach(groupId -> res.addAll(closure(groupId, subGroups)));
+    return res;
+  }
+
+  // Breadth first, the graphs may have cycles (Keycloak allows composites including each other)
+  private static Set<String> closure(final String start, final Map<String, Set<String>> edges) {
+    final Set<String> res = new LinkedHashSet<>();
+    final Deque<String> pending = new ArrayDeque<>(List.of(start));
+    while (!pending.isEmpty()) {
+      final String node = pending.poll();
+      if (res.add(node)) {
+        pending.addAll(edges.getOrDefault(node, Set.of()));
+      }
+    }
+    return res;
+  }
+}
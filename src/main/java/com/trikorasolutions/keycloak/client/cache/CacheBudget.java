@@ -0,0 +1,93 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory shared by a set of caches, in estimated bytes. The caches add the weight of the entries
+ * they keep, and a cache storing an entry while the budget is exceeded evicts its own least
+ * recently used entries. Under heap pressure the limit can be restricted below the configured one,
+ * so the caches stop growing until it is relaxed again.
+ */
+public final class CacheBudget {
+
+  private final long maxBytes;
+  private final AtomicLong used = new AtomicLong();
+  private volatile long limit;
+  private volatile boolean restricted;
+
+  /**
+   * @param maxBytes estimated bytes the caches can keep.
+   */
+  public CacheBudget(final long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("The cache budget needs a positive size");
+    }
+    this.maxBytes = maxBytes;
+    this.limit = maxBytes;
+  }
+
+  /**
+   * @return a budget that never runs out, the caches are only bounded by their number of entries.
+   */
+  public static CacheBudget unbounded() {
+    return new CacheBudget(Long.MAX_VALUE);
+  }
+
+  /**
+   * @return false if the weights of the entries need not be computed.
+   */
+  public boolean isBounded() {
+    return maxBytes != Long.MAX_VALUE;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return estimated bytes the caches can keep now, below the max while restricted.
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return estimated bytes kept by the caches.
+   */
+  public long getUsed() {
+    return used.get();
+  }
+
+  /**
+   * @return true from {@link #restrict(double)} until {@link #relax()}.
+   */
+  public boolean isRestricted() {
+    return restricted;
+  }
+
+  boolean isExceeded() {
+    return used.get() > limit;
+  }
+
+  void add(final long bytes) {
+    used.addAndGet(bytes);
+  }
+
+  /**
+   * Lowers the limit to a fraction of what the caches use now, the caches have to shrink to it.
+   *
+   * @param fraction part of the current use that is kept, between 0 and 1.
+   */
+  public void restrict(final double fraction) {
+    limit = Math.min(maxBytes, (long) (used.get() * fraction));
+    restricted = true;
+  }
+
+  /**
+   * Restores the configured limit.
+   */
+  public void relax() {
+    limit = maxBytes;
+    restricted = false;
+  }
+}
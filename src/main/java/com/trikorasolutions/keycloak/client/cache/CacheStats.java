@@ -0,0 +1,101 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import java.util.StringJoiner;
+
+/**
+ * Point in time counters of one cache, useful to size it. All the counters are cumulative since the
+ * creation of the cache.
+ */
+public final class CacheStats {
+
+  private final String name;
+  private final long hits;
+  private final long misses;
+  private final long loads;
+  private final long evictions;
+  private final long expirations;
+  private final int size;
+  private final long weight;
+
+  public CacheStats(String name, long hits, long misses, long loads, long evictions,
+      long expirations, int size, long weight) {
+    this.name = name;
+    this.hits = hits;
+    this.misses = misses;
+    this.loads = loads;
+    this.evictions = evictions;
+    this.expirations = expirations;
+    this.size = size;
+    this.weight = weight;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return number of lookups answered from memory.
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return number of lookups that did not find a live entry, including the ones that joined a
+   * load already running.
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return number of loads really started, that is, of requests sent to Keycloak.
+   */
+  public long getLoads() {
+    return loads;
+  }
+
+  /**
+   * @return number of live entries removed to keep the cache within its bounds.
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return number of entries removed because they reached their expiration.
+   */
+  public long getExpirations() {
+    return expirations;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return estimated bytes of the live entries, 0 if the cache is only bounded by its size.
+   */
+  public long getWeight() {
+    return weight;
+  }
+
+  public double getHitRatio() {
+    final long total = hits + misses;
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", CacheStats.class.getSimpleName() + "[", "]")
+        .add("name='" + name + "'")
+        .add("hits=" + hits)
+        .add("misses=" + misses)
+        .add("loads=" + loads)
+        .add("evictions=" + evictions)
+        .add("expirations=" + expirations)
+        .add("size=" + size)
+        .add("weight=" + weight)
+        .toString();
+  }
+}
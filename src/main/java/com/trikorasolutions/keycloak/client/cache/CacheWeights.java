@@ -0,0 +1,128 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.dto.TrikoraGroupRepresentation;
+import java.util.Collection;
+import java.util.Map;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Estimates the heap retained by the cached values from their contents: the strings, the role and
+ * group sets of the users, the members of the groups. The figures are those of a 64-bit JVM with
+ * compressed references, good enough to size the caches, not to account the heap exactly. Objects
+ * shared between values (e.g. the same role in many users) are counted once per value.
+ */
+public final class CacheWeights {
+
+  // Any other object, and the nested values beyond the max depth
+  private static final long DEFAULT_WEIGHT = 64L;
+  private static final int MAX_DEPTH = 6;
+
+  private CacheWeights() {
+  }
+
+  /**
+   * @param key   key of the entry.
+   * @param value value of the entry.
+   * @return estimated bytes of the entry, including the cache bookkeeping.
+   */
+  public static long of(final Object key, final Object value) {
+    return 64L + estimate(key, 0) + estimate(value, 0);
+  }
+
+  /**
+   * @param value any value.
+   * @return estimated bytes of heap retained by the value.
+   */
+  public static long estimate(final Object value) {
+    return estimate(value, 0);
+  }
+
+  private static long estimate(final Object value, final int depth) {
+    if (value == null) {
+      return 0L;
+    }
+    if (depth > MAX_DEPTH) {
+      return DEFAULT_WEIGHT;
+    }
+    if (value instanceof String) {
+      return 40L + ((String) value).length();
+    }
+    if (value instanceof Boolean || value instanceof Number || value instanceof Enum) {
+      return 16L;
+    }
+    if (value instanceof Weighted) {
+      return ((Weighted) value).estimatedBytes();
+    }
+    if (value instanceof KeycloakUserRepresentation) {
+      return user((KeycloakUserRepresentation) value, depth);
+    }
+    if (value instanceof TrikoraGroupRepresentation) {
+      return group((TrikoraGroupRepresentation) value, depth);
+    }
+    if (value instanceof RoleRepresentation) {
+      final RoleRepresentation role = (RoleRepresentation) value;
+      return 48L + estimate(role.id, depth) + estimate(role.name, depth)
+          + estimate(role.description, depth) + estimate(role.containerId, depth);
+    }
+    if (value instanceof JsonValue) {
+      return json((JsonValue) value, depth);
+    }
+    if (value instanceof Collection) {
+      long weight = 32L;
+      for (Object element : (Collection<?>) value) {
+        weight += 16L + estimate(element, depth + 1);
+      }
+      return weight;
+    }
+    if (value instanceof Map) {
+      long weight = 48L;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        weight += 32L + estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1);
+      }
+      return weight;
+    }
+    return DEFAULT_WEIGHT;
+  }
+
+  private static long user(final KeycloakUserRepresentation user, final int depth) {
+    return 48L + estimate(user.id, depth) + estimate(user.username, depth)
+        + estimate(user.firstName, depth) + estimate(user.lastName, depth)
+        + estimate(user.email, depth) + estimate(user.roles, depth + 1)
+        + estimate(user.groups, depth + 1);
+  }
+
+  private static long group(final TrikoraGroupRepresentation group, final int depth) {
+    return 64L + estimate(group.getId(), depth) + estimate(group.getName(), depth)
+        + estimate(group.getPath(), depth) + estimate(group.getAttributes(), depth + 1)
+        + estimate(group.getRealmRoles(), depth + 1) + estimate(group.roles, depth + 1)
+        + estimate(group.members, depth + 1) + estimate(group.getSubGroups(), depth + 1);
+  }
+
+  private static long json(final JsonValue value, final int depth) {
+    switch (value.getValueType()) {
+      case STRING:
+        return 24L + estimate(((JsonString) value).getString(), depth);
+      case NUMBER:
+        return 32L;
+      case OBJECT:
+        long object = 48L;
+        for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+          object += 32L + estimate(entry.getKey(), depth) + json(entry.getValue(), depth + 1);
+        }
+        return object;
+      case ARRAY:
+        long array = 32L;
+        for (JsonValue element : (JsonArray) value) {
+          array += 8L + json(element, depth + 1);
+        }
+        return array;
+      default: // The constants are shared
+        return 0L;
+    }
+  }
+}
@@ -0,0 +1,381 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import io.smallrye.mutiny.Uni;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded in-memory cache whose entries expire at a given instant. When the cache is full, or the
+ * {@link CacheBudget} it shares with other caches is exceeded, the least recently used entries are
+ * evicted. The weight of the entries is estimated by {@link CacheWeights}.
+ * <p>
+ * Loads are single-flight: while the value of a key is being loaded, the rest of the callers asking
+ * for the same key wait for that load instead of starting a new one. Failed loads are not cached.
+ *
+ * @param <K> type of the keys.
+ * @param <V> type of the cached values, they must be safe to share between callers.
+ */
+public final class ExpiringCache<K, V> {
+
+  // Number of least recently used entries checked for expiration before evicting live ones
+  private static final int EXPIRED_SCAN = 16;
+
+  private final String name;
+  private final int maxEntries;
+  private final long defaultTtlMillis;
+  private final CacheBudget budget;
+
+  // Access ordered, the eldest entry is the least recently used one. Guarded by itself
+  private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Estimated bytes of the entries, guarded by entries
+  private long weight;
+  private final Map<K, Load> loading = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  /**
+   * @param name       name of the cache, used in its stats.
+   * @param maxEntries maximum number of entries kept in memory.
+   * @param defaultTtl time to live of the entries stored without an explicit expiration.
+   */
+  public ExpiringCache(final String name, final int maxEntries, final Duration defaultTtl) {
+    this(name, maxEntries, defaultTtl, CacheBudget.unbounded());
+  }
+
+  /**
+   * @param name       name of the cache, used in its stats.
+   * @param maxEntries maximum number of entries kept in memory.
+   * @param defaultTtl time to live of the entries stored without an explicit expiration.
+   * @param budget     memory shared with other caches.
+   */
+  public ExpiringCache(final String name, final int maxEntries, final Duration defaultTtl,
+      final CacheBudget budget) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("The cache " + name + " needs a positive size");
+    }
+    this.name = name;
+    this.maxEntries = maxEntries;
+    this.defaultTtlMillis = defaultTtl.toMillis();
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the live value of the key, if any.
+   *
+   * @param key key to look up.
+   * @return the cached value or null if it is not cached or it has expired.
+   */
+  public V getIfPresent(final K key) {
+    final V value = this.lookup(key, System.currentTimeMillis());
+    (value == null ? misses : hits).increment();
+    return value;
+  }
+
+  /**
+   * Returns the cached value of the key, or loads it with the default time to live.
+   *
+   * @param key    key to look up.
+   * @param loader supplier of the request that produces the value when it is not cached.
+   * @return the cached or loaded value.
+   */
+  public Uni<V> get(final K key, final Supplier<Uni<V>> loader) {
+    return this.get(key, loader, value -> System.currentTimeMillis() + defaultTtlMillis);
+  }
+
+  /**
+   * Returns the cached value of the key, or loads it and keeps it until the expiration computed
+   * from the loaded value.
+   *
+   * @param key       key to look up.
+   * @param loader    supplier of the request that produces the value when it is not cached.
+   * @param expiresAt computes the expiration instant (epoch millis) of a loaded value.
+   * @return the cached or loaded value.
+   */
+  public Uni<V> get(final K key, final Supplier<Uni<V>> loader,
+      final ToLongFunction<V> expiresAt) {
+    return Uni.createFrom().deferred(() -> {
+      final V cached = this.getIfPresent(key);
+      if (cached != null) {
+        return Uni.createFrom().item(cached);
+      }
+      return loading.computeIfAbsent(key, k -> this.load(k, loader, expiresAt)).pending;
+    });
+  }
+
+  /**
+   * Refresh-ahead lookup: returns the cached value at once and, once it is older than the soft
+   * ttl, starts a single reload in the background. The entries expire the hard ttl after their
+   * last successful load, so an old value is only served while its reloads fail (e.g. Keycloak is
+   * unreachable) and never beyond the hard ttl. Only a missing value makes the caller wait.
+   *
+   * @param key     key to look up.
+   * @param loader  supplier of the request that produces the value.
+   * @param softTtl age of the value from which it is reloaded in the background.
+   * @param hardTtl age of the value from which it is not served any more.
+   * @return the cached or loaded value.
+   */
+  public Uni<V> getRefreshing(final K key, final Supplier<Uni<V>> loader, final Duration softTtl,
+      final Duration hardTtl) {
+    final ToLongFunction<V> expiresAt = value -> System.currentTimeMillis() + hardTtl.toMillis();
+    return Uni.createFrom().deferred(() -> {
+      final long now = System.currentTimeMillis();
+      final Entry<V> cached = this.lookupEntry(key, now);
+      (cached == null ? misses : hits).increment();
+      if (cached == null) {
+        return loading.computeIfAbsent(key, k -> this.load(k, loader, expiresAt)).pending;
+      }
+      if (now - cached.loadedAt >= softTtl.toMillis() && !loading.containsKey(key)) {
+        // A failed reload keeps the current value until its hard ttl
+        loading.computeIfAbsent(key, k -> this.load(k, loader, expiresAt)).pending
+            .subscribe().with(value -> { }, ex -> { });
+      }
+      return Uni.createFrom().item(cached.value);
+    });
+  }
+
+  private Load load(final K key, final Supplier<Uni<V>> loader,
+      final ToLongFunction<V> expiresAt) {
+    loads.increment();
+    final Load load = new Load();
+    load.pending = Uni.createFrom().deferred(loader::get)
+        .invoke(value -> {
+          // Checked under the lock the invalidations remove the entries with
+          synchronized (entries) {
+            if (value != null && !load.isInvalidated(key, value)) {
+              this.put(key, value, expiresAt.applyAsLong(value));
+            }
+          }
+        })
+        .eventually(() -> loading.remove(key, load))
+        .memoize().indefinitely();
+    return load;
+  }
+
+  /**
+   * Stores a value with the default time to live.
+   *
+   * @param key   key of the value.
+   * @param value value to be stored, null values are ignored.
+   */
+  public void put(final K key, final V value) {
+    this.put(key, value, System.currentTimeMillis() + defaultTtlMillis);
+  }
+
+  /**
+   * Stores a value until the given instant.
+   *
+   * @param key       key of the value.
+   * @param value     value to be stored, null values are ignored.
+   * @param expiresAt expiration instant (epoch millis), values already expired are not stored.
+   */
+  public void put(final K key, final V value, final long expiresAt) {
+    if (value == null || expiresAt <= System.currentTimeMillis()) {
+      return;
+    }
+    final long bytes = budget.isBounded() ? CacheWeights.of(key, value) : 0L;
+    synchronized (entries) {
+      this.release(entries.put(key, new Entry<>(value, System.currentTimeMillis(), expiresAt,
+          bytes)));
+      weight += bytes;
+      budget.add(bytes);
+      this.evictIfNeeded();
+    }
+  }
+
+  public void invalidate(final K key) {
+    final Load load = loading.remove(key);
+    if (load != null) {
+      load.invalidate();
+    }
+    synchronized (entries) {
+      this.release(entries.remove(key));
+    }
+  }
+
+  /**
+   * Removes all the entries matching the given condition. The values being loaded are tested
+   * once loaded, and not stored if they match.
+   *
+   * @param condition predicate on the key and the value of each entry.
+   */
+  public void invalidateIf(final BiPredicate<K, V> condition) {
+    loading.values().forEach(load -> load.invalidateIf(condition));
+    synchronized (entries) {
+      final Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<K, Entry<V>> e = it.next();
+        if (condition.test(e.getKey(), e.getValue().value)) {
+          it.remove();
+          this.release(e.getValue());
+        }
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    loading.values().forEach(Load::invalidate);
+    loading.clear();
+    synchronized (entries) {
+      entries.clear();
+      budget.add(-weight);
+      weight = 0L;
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries, e.g. to relieve the heap. Unless the fraction is 0,
+   * the most recently used entry is always kept: a cache holding a single value (e.g. the state of
+   * a mirror, an index) is not emptied by a shrink.
+   *
+   * @param fraction part of the entries that is kept, between 0 and 1.
+   */
+  public void shrink(final double fraction) {
+    synchronized (entries) {
+      final int keep = (fraction <= 0.0) ? 0 : Math.max(1, (int) (entries.size() * fraction));
+      final Iterator<Entry<V>> lru = entries.values().iterator();
+      while (lru.hasNext() && entries.size() > keep) {
+        this.release(lru.next());
+        lru.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return estimated bytes of the entries, 0 if the cache has no budget.
+   */
+  public long weight() {
+    synchronized (entries) {
+      return weight;
+    }
+  }
+
+  public CacheStats stats() {
+    synchronized (entries) {
+      return new CacheStats(name, hits.sum(), misses.sum(), loads.sum(), evictions.sum(),
+          expirations.sum(), entries.size(), weight);
+    }
+  }
+
+  private V lookup(final K key, final long now) {
+    final Entry<V> entry = this.lookupEntry(key, now);
+    return (entry == null) ? null : entry.value;
+  }
+
+  private Entry<V> lookupEntry(final K key, final long now) {
+    synchronized (entries) {
+      final Entry<V> entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expiresAt <= now) {
+        this.release(entries.remove(key));
+        expirations.increment();
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  // Must be called holding the lock of entries
+  private void release(final Entry<V> entry) {
+    if (entry != null) {
+      weight -= entry.weight;
+      budget.add(-entry.weight);
+    }
+  }
+
+  // Must be called holding the lock of entries. The entry just stored (the most recently used one)
+  // is kept even if the budget is still exceeded, other caches may be using it
+  private boolean isOverLimit() {
+    return entries.size() > maxEntries || (entries.size() > 1 && budget.isExceeded());
+  }
+
+  // Must be called holding the lock of entries
+  private void evictIfNeeded() {
+    if (!this.isOverLimit()) {
+      return;
+    }
+    // Drop the expired entries first, then the least recently used ones
+    final long now = System.currentTimeMillis();
+    final Iterator<Entry<V>> it = entries.values().iterator();
+    int scanned = 0;
+    while (it.hasNext() && this.isOverLimit() && scanned++ < EXPIRED_SCAN) {
+      final Entry<V> entry = it.next();
+      if (entry.expiresAt <= now) {
+        it.remove();
+        this.release(entry);
+        expirations.increment();
+      }
+    }
+    final Iterator<Entry<V>> lru = entries.values().iterator();
+    while (lru.hasNext() && this.isOverLimit()) {
+      this.release(lru.next());
+      lru.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * A load in flight. Its result is not stored if its key is invalidated before it completes, the
+   * loads of the other keys are not affected.
+   */
+  private final class Load {
+
+    private Uni<V> pending;
+    // Guarded by this
+    private boolean invalidated;
+    private List<BiPredicate<K, V>> conditions;
+
+    private synchronized void invalidate() {
+      invalidated = true;
+    }
+
+    // The value is not known yet, the condition is tested once it is loaded
+    private synchronized void invalidateIf(final BiPredicate<K, V> condition) {
+      if (conditions == null) {
+        conditions = new ArrayList<>(1);
+      }
+      conditions.add(condition);
+    }
+
+    private synchronized boolean isInvalidated(final K key, final V value) {
+      return invalidated || (conditions != null
+          && conditions.stream().anyMatch(condition -> condition.test(key, value)));
+    }
+  }
+
+  private static final class Entry<V> {
+
+    private final V value;
+    private final long loadedAt;
+    private final long expiresAt;
+    private final long weight;
+
+    private Entry(V value, long loadedAt, long expiresAt, long weight) {
+      this.value = value;
+      this.loadedAt = loadedAt;
+      this.expiresAt = expiresAt;
+      this.weight = weight;
+    }
+  }
+}
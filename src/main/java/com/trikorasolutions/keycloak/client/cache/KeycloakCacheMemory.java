@@ -0,0 +1,100 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the caches of the client on one {@link CacheBudget}, so all of them together keep at most
+ * the configured estimated bytes whatever the size of the realms. The budget is either explicit or
+ * a fraction of the max heap:
+ * <pre>
+ * trikora.keycloak.cache.max-bytes=67108864
+ * trikora.keycloak.cache.max-heap-fraction=0.1
+ * </pre>
+ * The caches created are tracked (weakly, they go away with their realm) so they can be shrunk at
+ * once when the heap runs short, see {@link KeycloakHeapMonitor}.
+ */
+@ApplicationScoped
+public final class KeycloakCacheMemory {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakCacheMemory.class);
+
+  @ConfigProperty(name = "trikora.keycloak.cache.max-bytes")
+  private Optional<Long> MAX_BYTES;
+
+  @ConfigProperty(name = "trikora.keycloak.cache.max-heap-fraction", defaultValue = "0.1")
+  private Double MAX_HEAP_FRACTION;
+
+  private CacheBudget budget;
+  private final Set<ExpiringCache<?, ?>> caches =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  @PostConstruct
+  void init() {
+    final long maxBytes = MAX_BYTES.orElseGet(
+        () -> (long) (Runtime.getRuntime().maxMemory() * MAX_HEAP_FRACTION));
+    LOGGER.info("The caches can keep up to {} KB", maxBytes / 1024);
+    budget = new CacheBudget(Math.max(1L, maxBytes));
+  }
+
+  public CacheBudget getBudget() {
+    return budget;
+  }
+
+  /**
+   * Creates a cache on the shared budget.
+   *
+   * @param name       name of the cache, used in its stats.
+   * @param maxEntries maximum number of entries, whatever their weight.
+   * @param defaultTtl time to live of the entries stored without an explicit expiration.
+   * @param <K>        type of the keys.
+   * @param <V>        type of the values.
+   * @return the new cache.
+   */
+  public <K, V> ExpiringCache<K, V> create(final String name, final int maxEntries,
+      final Duration defaultTtl) {
+    final ExpiringCache<K, V> cache = new ExpiringCache<>(name, maxEntries, defaultTtl, budget);
+    caches.add(cache);
+    return cache;
+  }
+
+  /**
+   * Restricts the budget to a fraction of its current use and shrinks every cache to it. The
+   * caches do not grow back until {@link #relax()}.
+   *
+   * @param fraction part of the entries that is kept, between 0 and 1.
+   */
+  public void shrink(final double fraction) {
+    budget.restrict(fraction);
+    this.snapshot().forEach(cache -> cache.shrink(fraction));
+  }
+
+  /**
+   * Restores the configured budget after a {@link #shrink(double)}.
+   */
+  public void relax() {
+    budget.relax();
+  }
+
+  public List<CacheStats> cacheStats() {
+    final List<CacheStats> stats = new ArrayList<>();
+    this.snapshot().forEach(cache -> stats.add(cache.stats()));
+    return stats;
+  }
+
+  private List<ExpiringCache<?, ?>> snapshot() {
+    synchronized (caches) {
+      return new ArrayList<>(caches);
+    }
+  }
+}
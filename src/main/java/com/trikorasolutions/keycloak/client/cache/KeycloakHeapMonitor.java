@@ -0,0 +1,135 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import io.quarkus.runtime.StartupEvent;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shrinks the caches when the old generation stays full after a collection, so the caches never
+ * push the application into back to back collections (e.g. during a bulk job). After each GC it
+ * reads the occupancy of the old generation: on crossing the threshold every cache is shrunk to
+ * the configured fraction and the budget is held there while it stays above, below it the budget
+ * is restored.
+ * <p>
+ * It is enabled with:
+ * <pre>
+ * trikora.keycloak.cache.gc-monitor.enabled=true
+ * </pre>
+ */
+@ApplicationScoped
+public final class KeycloakHeapMonitor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakHeapMonitor.class);
+  // GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION, not a standard API
+  private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+  @ConfigProperty(name = "trikora.keycloak.cache.gc-monitor.enabled", defaultValue = "false")
+  private Boolean GC_MONITOR_ENABLED;
+
+  @ConfigProperty(name = "trikora.keycloak.cache.gc-monitor.old-gen-threshold",
+      defaultValue = "0.85")
+  private Double OLD_GEN_THRESHOLD;
+
+  @ConfigProperty(name = "trikora.keycloak.cache.gc-monitor.shrink-to", defaultValue = "0.5")
+  private Double SHRINK_TO;
+
+  @Inject
+  private KeycloakCacheMemory memory;
+
+  private final List<Runnable> listeners = new ArrayList<>();
+
+  void onStart(@Observes final StartupEvent event) {
+    if (!GC_MONITOR_ENABLED) {
+      return;
+    }
+    final NotificationListener listener =
+        (notification, handback) -> this.afterCollection(oldGenOccupancy());
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        final NotificationEmitter emitter = (NotificationEmitter) gc;
+        emitter.addNotificationListener(listener,
+            notification -> GC_NOTIFICATION.equals(notification.getType()), null);
+        listeners.add(() -> {
+          try {
+            emitter.removeNotificationListener(listener);
+          } catch (ListenerNotFoundException ex) {
+            // Already removed
+          }
+        });
+      }
+    }
+    LOGGER.info("Shrinking the caches above {}% of old generation after GC",
+        (int) (OLD_GEN_THRESHOLD * 100));
+  }
+
+  @PreDestroy
+  void onStop() {
+    listeners.forEach(Runnable::run);
+    listeners.clear();
+  }
+
+  /**
+   * Called after each collection, from the thread of the JMX notifications. The young collections
+   * keep notifying while the old generation stays full, the caches are only shrunk once.
+   *
+   * @param occupancy part of the old generation in use after the collection.
+   */
+  void afterCollection(final double occupancy) {
+    if (occupancy >= OLD_GEN_THRESHOLD) {
+      if (memory.getBudget().isRestricted()) {
+        return; // Already held, shrinking again would take the caches down to nothing
+      }
+      LOGGER.warn("Old generation {}% full after GC, shrinking the caches to {}%",
+          (int) (occupancy * 100), (int) (SHRINK_TO * 100));
+      memory.shrink(SHRINK_TO);
+    } else if (memory.getBudget().isRestricted()) {
+      LOGGER.info("Old generation {}% full after GC, the caches can grow again",
+          (int) (occupancy * 100));
+      memory.relax();
+    }
+  }
+
+  /**
+   * @return part of the old generation in use after the last collection, between 0 and 1. The
+   *     whole heap for the collectors without generations.
+   */
+  public static double oldGenOccupancy() {
+    long used = 0L;
+    long max = 0L;
+    long heapUsed = 0L;
+    long heapMax = 0L;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (pool.getType() != MemoryType.HEAP || usage == null) {
+        continue;
+      }
+      final long poolMax = (usage.getMax() > 0) ? usage.getMax() : usage.getCommitted();
+      heapUsed += usage.getUsed();
+      heapMax += poolMax;
+      final String name = pool.getName();
+      if (name.contains("Old") || name.contains("Tenured")) {
+        used += usage.getUsed();
+        max += poolMax;
+      }
+    }
+    if (max == 0L) {
+      return (heapMax == 0L) ? 0.0 : (double) heapUsed / heapMax;
+    }
+    return (double) used / max;
+  }
+}
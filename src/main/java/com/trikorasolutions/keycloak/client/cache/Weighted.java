@@ -0,0 +1,12 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+/**
+ * A cached value that knows its own size, for the values {@link CacheWeights} can not inspect.
+ */
+public interface Weighted {
+
+  /**
+   * @return estimated bytes of heap retained by the value.
+   */
+  long estimatedBytes();
+}
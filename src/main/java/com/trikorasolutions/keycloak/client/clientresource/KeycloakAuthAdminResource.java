@@ -4,7 +4,9 @@ import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
 import com.trikorasolutions.keycloak.client.dto.UserRepresentation;
 import com.trikorasolutions.keycloak.client.dto.UserRepresentation.UserDtoCredential;
 import io.smallrye.mutiny.Uni;
+import java.util.List;
 import javax.json.JsonArray;
+import javax.json.JsonObject;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -148,6 +150,43 @@ public interface KeycloakAuthAdminResource {
       @QueryParam("client_id") String clientId, @QueryParam("first") Integer first,
       @QueryParam("max") Integer max);
 
+  /**
+   * Same as {@link #listAllUsers}, with the brief representation of the users (no attributes nor
+   * access), in the same order.
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @param first       first user to be queried. (number of user).
+   * @param max         maximum number of users to be retrieved from keycloak.
+   * @param brief       true for the brief representation.
+   * @return a JsonArray of brief Keycloak UserRepresentations.
+   */
+  @GET
+  @Path("/realms/{realm}/users")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonArray> listUsersBrief(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId, @QueryParam("first") Integer first,
+      @QueryParam("max") Integer max, @QueryParam("briefRepresentation") Boolean brief);
+
+  /**
+   * Number of users of the realm.
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @return the number, as the plain text of the response.
+   */
+  @GET
+  @Path("/realms/{realm}/users/count")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<String> countUsers(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId);
+
   /**
    * This method return a list with all the groups in the client provided as argument
    *
@@ -164,6 +203,22 @@ public interface KeycloakAuthAdminResource {
       @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
       @QueryParam("client_id") String clientId);
 
+  /**
+   * Number of groups of the realm, subgroups included.
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the groups are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @return a JsonObject with the number as "count".
+   */
+  @GET
+  @Path("/realms/{realm}/groups/count")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonObject> countGroups(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId);
+
   /**
    * This will update the group and set the parent if it exists. Create it and set the parent if the
    * group doesn't exist.
@@ -201,6 +256,23 @@ public interface KeycloakAuthAdminResource {
       @QueryParam("client_id") String clientId, @QueryParam("search") String groupName,
       @QueryParam("exact") Boolean exact);
 
+  /**
+   * Return information of one group by its id.
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @param id          id of the group that is going to be queried.
+   * @return a GroupRepresentation of the desired group.
+   */
+  @GET
+  @Path("/realms/{realm}/groups/{id}")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonObject> getGroupById(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId, @PathParam("id") String id);
+
   /**
    * This will update the group and ignore subgroups.
    *
@@ -347,6 +419,81 @@ public interface KeycloakAuthAdminResource {
       @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
       @QueryParam("client_id") String clientId, @PathParam("role-name") String roleName);
 
+  /**
+   * Return a page of the users which have ASSIGNED the given role
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @param roleName    role name
+   * @param first       first user to be queried.
+   * @param max         maximum number of users to be retrieved.
+   * @return JsonArray with the users of the page
+   */
+  @GET
+  @Path("/realms/{realm}/roles/{role-name}/users")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonArray> getUsersInRolePage(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId, @PathParam("role-name") String roleName,
+      @QueryParam("first") Integer first, @QueryParam("max") Integer max);
+
+  /**
+   * Return a page of the groups which have ASSIGNED the given role
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @param roleName    role name
+   * @param first       first group to be queried.
+   * @param max         maximum number of groups to be retrieved.
+   * @return JsonArray with the groups of the page
+   */
+  @GET
+  @Path("/realms/{realm}/roles/{role-name}/groups")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonArray> getGroupsInRolePage(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId, @PathParam("role-name") String roleName,
+      @QueryParam("first") Integer first, @QueryParam("max") Integer max);
+
+  /**
+   * Return the realm roles that compose the given role, one level down.
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @param roleName    role name
+   * @return JsonArray with the realm roles of the composite
+   */
+  @GET
+  @Path("/realms/{realm}/roles/{role-name}/composites/realm")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonArray> getRoleComposites(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId, @PathParam("role-name") String roleName);
+
+  /**
+   * Return the realm roles mapped directly to the user, without the ones of its groups nor the
+   * composites.
+   *
+   * @param bearerToken access token provided by the keycloak SecurityIdentity.
+   * @param realm       the realm name in which the users are going to be queried.
+   * @param grantType   kind of authentication method.
+   * @param clientId    id of the client (service name).
+   * @param userId      id of the user
+   * @return JsonArray with the realm roles of the user
+   */
+  @GET
+  @Path("/realms/{realm}/users/{id}/role-mappings/realm")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonArray> getUserRealmRoles(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId, @PathParam("id") String userId);
+
   /**
    * Return ALL the roles of one user
    *
@@ -547,4 +694,28 @@ public interface KeycloakAuthAdminResource {
   Uni<JsonArray> deleteRole(@HeaderParam("Authorization") String bearerToken,
       @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
       @QueryParam("client_id") String clientId, @PathParam("role-name") String roleName);
+
+  /**
+   * Return a page of the admin events of the realm, the newest first. The realm must be saving its
+   * admin events.
+   *
+   * @param bearerToken   access token provided by the keycloak SecurityIdentity.
+   * @param realm         the realm name in which the users are going to be queried.
+   * @param grantType     kind of authentication method.
+   * @param clientId      id of the client (service name).
+   * @param resourceTypes types of the resources changed (USER, GROUP, REALM_ROLE...).
+   * @param dateFrom      first day of the events, as yyyy-MM-dd.
+   * @param first         first event to be returned.
+   * @param max           maximum number of events to be returned.
+   * @return JsonArray of AdminEventRepresentation
+   */
+  @GET
+  @Path("/realms/{realm}/admin-events")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonArray> getAdminEvents(@HeaderParam("Authorization") String bearerToken,
+      @PathParam("realm") String realm, @QueryParam("grant_type") String grantType,
+      @QueryParam("client_id") String clientId,
+      @QueryParam("resourceTypes") List<String> resourceTypes,
+      @QueryParam("dateFrom") String dateFrom, @QueryParam("first") Integer first,
+      @QueryParam("max") Integer max);
 }
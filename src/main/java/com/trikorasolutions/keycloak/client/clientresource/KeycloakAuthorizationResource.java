@@ -2,6 +2,8 @@ package com.trikorasolutions.keycloak.client.clientresource;
 
 import io.smallrye.mutiny.Uni;
 import javax.json.JsonObject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
@@ -34,7 +36,19 @@ public interface KeycloakAuthorizationResource {
       @QueryParam("client_id") String clientId);
 
   /**
-   * Get the access token of the current user.
+   * Return the public keys (JWKS) the realm uses to sign its tokens.
+   *
+   * @param realm the realm name whose keys are going to be fetched.
+   * @return a JsonObject with the "keys" array of the realm, in JWK format.
+   */
+  @GET
+  @Path("/{realm}/protocol/openid-connect/certs")
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonObject> certs(@PathParam("realm") String realm);
+
+  /**
+   * Get the access token of the current user. The token endpoint only reads form parameters, so
+   * the credentials are sent as an urlencoded body.
    *
    * @param realm     the realm name in which the users are going to be queried.
    * @param grantType kind of authentication method.
@@ -44,9 +58,65 @@ public interface KeycloakAuthorizationResource {
    */
   @POST
   @Path("/{realm}/protocol/openid-connect/token")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
   @Produces(MediaType.APPLICATION_JSON)
   Uni<JsonObject> getToken(@PathParam("realm") String realm,
-      @QueryParam("grant_type") String grantType,
-      @QueryParam("client_id") String clientId, @QueryParam("client_secret") String secret);
+      @FormParam("grant_type") String grantType,
+      @FormParam("client_id") String clientId, @FormParam("client_secret") String secret);
+
+  /**
+   * Get the access token of a user with the password grant. Keycloak hashes the password on every
+   * call, prefer renewing the tokens obtained with {@link #refreshToken refreshToken}.
+   *
+   * @param realm     the realm name in which the users are going to be queried.
+   * @param grantType kind of authentication method (password).
+   * @param clientId  id of the client (service name).
+   * @param secret    secret of the client (the one given by KC).
+   * @param username  username of the user.
+   * @param password  password of the user.
+   * @return The access and refresh tokens from Keycloak
+   */
+  @POST
+  @Path("/{realm}/protocol/openid-connect/token")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonObject> getToken(@PathParam("realm") String realm,
+      @FormParam("grant_type") String grantType,
+      @FormParam("client_id") String clientId, @FormParam("client_secret") String secret,
+      @FormParam("username") String username, @FormParam("password") String password);
+
+  /**
+   * Renew the tokens of a session with its refresh token.
+   *
+   * @param realm        the realm name in which the users are going to be queried.
+   * @param grantType    kind of authentication method (refresh_token).
+   * @param clientId     id of the client (service name).
+   * @param secret       secret of the client (the one given by KC).
+   * @param refreshToken refresh token of the session.
+   * @return The new access and refresh tokens from Keycloak
+   */
+  @POST
+  @Path("/{realm}/protocol/openid-connect/token")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_JSON)
+  Uni<JsonObject> refreshToken(@PathParam("realm") String realm,
+      @FormParam("grant_type") String grantType,
+      @FormParam("client_id") String clientId, @FormParam("client_secret") String secret,
+      @FormParam("refresh_token") String refreshToken);
+
+  /**
+   * Ends the session of the given refresh token, which revokes it.
+   *
+   * @param realm        the realm name in which the users are going to be queried.
+   * @param clientId     id of the client (service name).
+   * @param secret       secret of the client (the one given by KC).
+   * @param refreshToken refresh token of the session.
+   * @return -
+   */
+  @POST
+  @Path("/{realm}/protocol/openid-connect/logout")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  Uni<Void> logout(@PathParam("realm") String realm, @FormParam("client_id") String clientId,
+      @FormParam("client_secret") String secret, @FormParam("refresh_token") String refreshToken);
 
 }
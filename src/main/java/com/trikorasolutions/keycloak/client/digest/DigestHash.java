@@ -0,0 +1,35 @@
+package com.trikorasolutions.keycloak.client.digest;
+
+/**
+ * 64-bit FNV-1a hash of the values of a digest, stable between JVMs (unlike the hash codes).
+ */
+final class DigestHash {
+
+  static final long SEED = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  private DigestHash() {
+  }
+
+  static long of(final long hash, final String value) {
+    long res = hash;
+    if (value == null) {
+      return of(res, -1L);
+    }
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      res = (res ^ (c & 0xff)) * PRIME;
+      res = (res ^ (c >>> 8)) * PRIME;
+    }
+    // Separator, so "ab" + "c" does not hash as "a" + "bc"
+    return (res ^ 0xff) * PRIME;
+  }
+
+  static long of(final long hash, final long value) {
+    long res = hash;
+    for (int shift = 0; shift < 64; shift += 8) {
+      res = (res ^ ((value >>> shift) & 0xff)) * PRIME;
+    }
+    return res;
+  }
+}
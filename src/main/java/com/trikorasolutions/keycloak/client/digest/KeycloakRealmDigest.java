@@ -0,0 +1,157 @@
+package com.trikorasolutions.keycloak.client.digest;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE;
+
+import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakSession;
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthAdminResource;
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import io.smallrye.mutiny.Uni;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.JsonArray;
+import javax.json.JsonValue;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes the {@link RealmDigest} of a realm, so a periodic sync can tell whether anything changed
+ * before downloading the realm again, and then only fetch the pages of users that changed:
+ * <pre>
+ * final RealmDigest current = digests.digest(session);
+ * if (current.usersChanged(previous)) {
+ *   digests.listUserPages(session, current, current.changedUserPages(previous));
+ * }
+ * </pre>
+ * The counts, the group tree and the roles are one request each, the pages of users are listed
+ * with their brief representation and only hashed, never parsed.
+ */
+@ApplicationScoped
+public final class KeycloakRealmDigest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakRealmDigest.class);
+
+  @RestClient
+  private KeycloakAuthAdminResource keycloakClient;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  @Inject
+  private KeycloakClientLogic blClient;
+
+  /**
+   * Takes the digest of the realm.
+   *
+   * @param realm            the realm name.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @return the digest of the current state of the realm.
+   */
+  public Uni<RealmDigest> digest(final String realm, final String token,
+      final String keycloakClientId) {
+    return this.digest(blClient.session(realm, token, keycloakClientId));
+  }
+
+  /**
+   * Same as {@link #digest(String, String, String)}, within a session.
+   */
+  public Uni<RealmDigest> digest(final KeycloakSession session) {
+    final String realm = session.getRealm();
+    final long takenAt = System.currentTimeMillis();
+    final int pageSize = realms.getPageSize(realm);
+    final Uni<Integer> userCount = realms.submit(realm, () -> keycloakClient.countUsers(
+            session.getAuthorization(), realm, GRANT_TYPE, session.getClientId()))
+        .map(count -> Integer.valueOf(count.trim()));
+    final Uni<Integer> groupCount = realms.submit(realm, () -> keycloakClient.countGroups(
+            session.getAuthorization(), realm, GRANT_TYPE, session.getClientId()))
+        .map(count -> count.getInt("count"));
+    final Uni<Long> groupsHash = realms.submit(realm, () -> keycloakClient.listAllGroups(
+            session.getAuthorization(), realm, GRANT_TYPE, session.getClientId()))
+        .map(KeycloakRealmDigest::hash);
+    final Uni<Long> rolesHash = realms.submit(realm, () -> keycloakClient.getAllRoles(
+            session.getAuthorization(), realm, GRANT_TYPE, session.getClientId()))
+        .map(KeycloakRealmDigest::hash);
+    return Uni.combine().all().unis(userCount, groupCount, groupsHash, rolesHash).asTuple()
+        .flatMap(parts -> this.userPages(session, parts.getItem1(), pageSize)
+            .map(pages -> new RealmDigest(realm, takenAt, parts.getItem1(), parts.getItem2(),
+                pageSize, pages, parts.getItem3(), parts.getItem4())))
+        .invoke(digest -> LOGGER.debug("#digest(...) {}", digest));
+  }
+
+  /**
+   * Lists the users of the given pages of a digest, e.g. the pages changed since the previous one.
+   *
+   * @param session the session.
+   * @param digest  the digest giving the size of the pages.
+   * @param pages   indexes of the pages.
+   * @return the users of the pages, in the order of the pages.
+   */
+  public Uni<List<KeycloakUserRepresentation>> listUserPages(final KeycloakSession session,
+      final RealmDigest digest, final List<Integer> pages) {
+    if (pages.isEmpty()) {
+      return Uni.createFrom().item(List.of());
+    }
+    final int pageSize = digest.getPageSize();
+    final List<Uni<List<KeycloakUserRepresentation>>> requests = pages.stream()
+        .map(page -> realms.submit(session.getRealm(), () -> keycloakClient.listAllUsers(
+                session.getAuthorization(), session.getRealm(), GRANT_TYPE,
+                session.getClientId(), page * pageSize, pageSize))
+            .map(KeycloakUserRepresentation::allFrom))
+        .collect(Collectors.toList());
+    return Uni.join().all(requests).andFailFast().map(lists -> {
+      final List<KeycloakUserRepresentation> res = new ArrayList<>();
+      lists.forEach(res::addAll);
+      return res;
+    });
+  }
+
+  // The pages the count announces, fetched concurrently, then more if users were just created
+  private Uni<long[]> userPages(final KeycloakSession session, final int userCount,
+      final int pageSize) {
+    final int pageCount = Math.max(1, (userCount + pageSize - 1) / pageSize);
+    final List<Uni<JsonArray>> requests = IntStream.range(0, pageCount)
+        .mapToObj(page -> this.briefPage(session, page, pageSize))
+        .collect(Collectors.toList());
+    return Uni.join().all(requests).andFailFast()
+        .flatMap(pages -> this.morePages(session, pages, pageSize))
+        .map(pages -> pages.stream()
+            .filter(page -> !page.isEmpty() || pages.size() == 1)
+            .mapToLong(KeycloakRealmDigest::hash)
+            .toArray());
+  }
+
+  private Uni<List<JsonArray>> morePages(final KeycloakSession session,
+      final List<JsonArray> pages, final int pageSize) {
+    if (pages.get(pages.size() - 1).size() < pageSize) {
+      return Uni.createFrom().item(pages); // Recursion Base case
+    }
+    return this.briefPage(session, pages.size(), pageSize).flatMap(page -> {
+      final List<JsonArray> res = new ArrayList<>(pages);
+      res.add(page);
+      return this.morePages(session, res, pageSize);
+    });
+  }
+
+  private Uni<JsonArray> briefPage(final KeycloakSession session, final int page,
+      final int pageSize) {
+    return realms.submit(session.getRealm(), () -> keycloakClient.listUsersBrief(
+        session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+        page * pageSize, pageSize, Boolean.TRUE));
+  }
+
+  // Keycloak lists the users, groups and roles by name, the order is part of the state
+  private static long hash(final JsonArray array) {
+    long hash = DigestHash.SEED;
+    for (JsonValue value : array) {
+      hash = DigestHash.of(hash, value.toString());
+    }
+    return hash;
+  }
+}
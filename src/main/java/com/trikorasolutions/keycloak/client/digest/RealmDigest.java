@@ -0,0 +1,136 @@
+package com.trikorasolutions.keycloak.client.digest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Fingerprint of the state of a realm: the number of users and groups, a hash of the group tree
+ * and of the realm roles, and a hash of each page of users. Comparing two digests tells which
+ * parts of the realm changed, so a resync only fetches those.
+ * <p>
+ * The users are listed by username, a user created or deleted changes its page and the following
+ * ones. The hashes cover the brief representation of the users, not their groups nor roles.
+ */
+public final class RealmDigest {
+
+  private final String realm;
+  private final long takenAt;
+  private final int userCount;
+  private final int groupCount;
+  private final int pageSize;
+  private final long[] userPages;
+  private final long groupsHash;
+  private final long rolesHash;
+
+  RealmDigest(String realm, long takenAt, int userCount, int groupCount, int pageSize,
+      long[] userPages, long groupsHash, long rolesHash) {
+    this.realm = realm;
+    this.takenAt = takenAt;
+    this.userCount = userCount;
+    this.groupCount = groupCount;
+    this.pageSize = pageSize;
+    this.userPages = userPages;
+    this.groupsHash = groupsHash;
+    this.rolesHash = rolesHash;
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  /**
+   * @return instant (epoch millis) the digest was started.
+   */
+  public long getTakenAt() {
+    return takenAt;
+  }
+
+  public int getUserCount() {
+    return userCount;
+  }
+
+  public int getGroupCount() {
+    return groupCount;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public int getUserPageCount() {
+    return userPages.length;
+  }
+
+  /**
+   * @return the combination of all the hashes, equal for two digests of the same realm state.
+   */
+  public String getFingerprint() {
+    long hash = DigestHash.of(DigestHash.SEED, userCount);
+    hash = DigestHash.of(hash, groupCount);
+    hash = DigestHash.of(hash, groupsHash);
+    hash = DigestHash.of(hash, rolesHash);
+    for (long page : userPages) {
+      hash = DigestHash.of(hash, page);
+    }
+    return String.format("%016x", hash);
+  }
+
+  /**
+   * @param previous an older digest of the realm, may be null.
+   * @return true if both digests have the same fingerprint.
+   */
+  public boolean matches(final RealmDigest previous) {
+    return previous != null && realm.equals(previous.realm) && userCount == previous.userCount
+        && groupCount == previous.groupCount && groupsHash == previous.groupsHash
+        && rolesHash == previous.rolesHash && pageSize == previous.pageSize
+        && Arrays.equals(userPages, previous.userPages);
+  }
+
+  /**
+   * @param previous an older digest of the realm, may be null.
+   * @return the indexes of the pages of users of this digest that differ from the previous one,
+   *     all of them if it is null or was taken with another page size.
+   */
+  public List<Integer> changedUserPages(final RealmDigest previous) {
+    final boolean comparable = previous != null && pageSize == previous.pageSize;
+    return IntStream.range(0, userPages.length)
+        .filter(page -> !comparable || page >= previous.userPages.length
+            || userPages[page] != previous.userPages[page])
+        .boxed()
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @param previous an older digest of the realm, may be null.
+   * @return true if users were created, deleted or changed since the previous digest.
+   */
+  public boolean usersChanged(final RealmDigest previous) {
+    return previous == null || userCount != previous.userCount
+        || pageSize != previous.pageSize || !Arrays.equals(userPages, previous.userPages);
+  }
+
+  /**
+   * @param previous an older digest of the realm, may be null.
+   * @return true if the group tree changed since the previous digest.
+   */
+  public boolean groupsChanged(final RealmDigest previous) {
+    return previous == null || groupCount != previous.groupCount
+        || groupsHash != previous.groupsHash;
+  }
+
+  /**
+   * @param previous an older digest of the realm, may be null.
+   * @return true if the realm roles changed since the previous digest.
+   */
+  public boolean rolesChanged(final RealmDigest previous) {
+    return previous == null || rolesHash != previous.rolesHash;
+  }
+
+  @Override
+  public String toString() {
+    return "RealmDigest{realm=" + realm + ", users=" + userCount + ", groups=" + groupCount
+        + ", pages=" + userPages.length + ", fingerprint=" + this.getFingerprint() + "}";
+  }
+}
@@ -108,14 +108,16 @@ public final class KeycloakUserRepresentation {
    */
   public static KeycloakUserRepresentation from(JsonObject from) {
     LOGGER.debug("from(JsonObject)... {}", from);
-    // All response must have a username (exception must be launched in bl)
-    if (from == null || from.getString("username") == null) {
+    // All response must have a username (exception must be launched in bl). The userinfo endpoint
+    // and the tokens name it preferred_username
+    final String username = (from == null) ? null
+        : from.getString("username", from.getString("preferred_username", null));
+    if (username == null) {
       return null;
     }
 
     // Create the DTO only with the mandatory fields
-    KeycloakUserRepresentation parsedResponse = new KeycloakUserRepresentation(
-        from.getString("username"));
+    KeycloakUserRepresentation parsedResponse = new KeycloakUserRepresentation(username);
 
     // Then add only the available optional fields
     Iterator<String> iterator = from.keySet().iterator();
@@ -123,6 +125,7 @@ public final class KeycloakUserRepresentation {
       String key = iterator.next();
       switch (key) {
         case "id":
+        case "sub":
           parsedResponse.setId(from.getString(key));
           break;
         case "given_name":
@@ -0,0 +1,134 @@
+package com.trikorasolutions.keycloak.client.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.StringJoiner;
+import javax.json.JsonObject;
+import javax.json.JsonValue.ValueType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a Download DTO for the responses of the openid-connect token endpoint. The lifetimes are
+ * kept as they are sent by Keycloak, that is, in seconds relative to the moment of the response.
+ */
+public final class TokenRepresentation {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TokenRepresentation.class);
+
+  @JsonProperty("access_token")
+  public String accessToken;
+
+  @JsonProperty("expires_in")
+  public Long expiresIn;
+
+  @JsonProperty("refresh_token")
+  public String refreshToken;
+
+  @JsonProperty("refresh_expires_in")
+  public Long refreshExpiresIn;
+
+  @JsonProperty("token_type")
+  public String tokenType;
+
+  public TokenRepresentation() {
+  }
+
+  public TokenRepresentation(String accessToken, Long expiresIn) {
+    this.accessToken = accessToken;
+    this.expiresIn = expiresIn;
+  }
+
+  /**
+   * Parse a JsonObject to a TokenRepresentation dto.
+   *
+   * @param from Json retrieved from the Keycloak token endpoint.
+   * @return a TokenRepresentation build up from the Json information, or null if the response does
+   * not carry an access token.
+   */
+  public static TokenRepresentation from(JsonObject from) {
+    // Never log the whole response, it contains credentials
+    if (from == null || !from.containsKey("access_token")) {
+      LOGGER.debug("from(JsonObject)... response without access_token");
+      return null;
+    }
+
+    TokenRepresentation parsedResponse = new TokenRepresentation(from.getString("access_token"),
+        longValue(from, "expires_in"));
+
+    for (String key : from.keySet()) {
+      switch (key) {
+        case "refresh_token":
+          parsedResponse.setRefreshToken(from.getString(key));
+          break;
+        case "refresh_expires_in":
+          parsedResponse.setRefreshExpiresIn(longValue(from, key));
+          break;
+        case "token_type":
+          parsedResponse.setTokenType(from.getString(key));
+          break;
+        default:
+          break;
+      }
+    }
+    return parsedResponse;
+  }
+
+  private static Long longValue(JsonObject from, String key) {
+    if (!from.containsKey(key) || from.get(key).getValueType() != ValueType.NUMBER) {
+      return null;
+    }
+    return from.getJsonNumber(key).longValue();
+  }
+
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  public void setAccessToken(String accessToken) {
+    this.accessToken = accessToken;
+  }
+
+  public Long getExpiresIn() {
+    return expiresIn;
+  }
+
+  public void setExpiresIn(Long expiresIn) {
+    this.expiresIn = expiresIn;
+  }
+
+  public String getRefreshToken() {
+    return refreshToken;
+  }
+
+  public void setRefreshToken(String refreshToken) {
+    this.refreshToken = refreshToken;
+  }
+
+  public Long getRefreshExpiresIn() {
+    return refreshExpiresIn;
+  }
+
+  public void setRefreshExpiresIn(Long refreshExpiresIn) {
+    this.refreshExpiresIn = refreshExpiresIn;
+  }
+
+  public String getTokenType() {
+    return tokenType;
+  }
+
+  public void setTokenType(String tokenType) {
+    this.tokenType = tokenType;
+  }
+
+  @Override
+  public String toString() {
+    // The tokens themselves are credentials, only their presence is printed
+    return new StringJoiner(", ", TokenRepresentation.class.getSimpleName() + "[", "]")
+        .add("accessToken=" + (accessToken == null ? "null" : "***"))
+        .add("expiresIn=" + expiresIn)
+        .add("refreshToken=" + (refreshToken == null ? "null" : "***"))
+        .add("refreshExpiresIn=" + refreshExpiresIn)
+        .add("tokenType='" + tokenType + "'")
+        .toString();
+  }
+}
@@ -0,0 +1,60 @@
+package com.trikorasolutions.keycloak.client.events;
+
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
+
+/**
+ * Reading of the admin events of Keycloak, shared by the consumers of the events.
+ */
+public final class AdminEvents {
+
+  /**
+   * Types of resource whose changes affect what this client caches.
+   */
+  public static final List<String> RESOURCE_TYPES = List.of("USER", "GROUP", "GROUP_MEMBERSHIP",
+      "REALM_ROLE", "REALM_ROLE_MAPPING");
+
+  private AdminEvents() {
+  }
+
+  public static long time(final JsonObject event) {
+    return event.getJsonNumber("time").longValue();
+  }
+
+  /**
+   * @param event an admin event.
+   * @return the segments of its resource path, decoded, e.g. [users, {id}, groups, {groupId}].
+   */
+  public static List<String> path(final JsonObject event) {
+    return Arrays.stream(event.getString("resourcePath", "").split("/"))
+        .map(segment -> URLDecoder.decode(segment, StandardCharsets.UTF_8))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @param event an admin event.
+   * @return the representation of the resource, only present if the realm saves the
+   *     representations in its admin events, or null.
+   */
+  public static JsonObject representation(final JsonObject event) {
+    final String rep = event.getString("representation", null);
+    if (rep == null) {
+      return null;
+    }
+    try (JsonReader reader = Json.createReader(new StringReader(rep))) {
+      final JsonStructure json = reader.read();
+      return (json instanceof JsonObject) ? (JsonObject) json : null;
+    } catch (JsonException ex) {
+      return null;
+    }
+  }
+}
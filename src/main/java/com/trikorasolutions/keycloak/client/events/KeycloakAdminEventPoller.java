@@ -0,0 +1,306 @@
+package com.trikorasolutions.keycloak.client.events;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.BEARER;
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE;
+import static com.trikorasolutions.keycloak.client.events.AdminEvents.RESOURCE_TYPES;
+import static com.trikorasolutions.keycloak.client.events.AdminEvents.representation;
+import static com.trikorasolutions.keycloak.client.events.AdminEvents.time;
+
+import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakGroupLogic;
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthAdminResource;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import com.trikorasolutions.keycloak.client.realm.RealmContext;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.JsonObject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the admin events of the active realms and turns the changes made by others (the Keycloak
+ * console, other services) into targeted invalidations of what this client has cached of the
+ * users, groups and realm roles. With the poller running the caches can keep their entries for
+ * longer.
+ * <p>
+ * Each realm keeps a checkpoint (the newest event applied) as long as its context lives. The first
+ * poll of a context only takes the newest event Keycloak returns as the checkpoint, the times of
+ * the events are Keycloak's and can not be compared with this JVM's clock, and drops the caches of
+ * the realm filled until then. When more than max-events changes are pending all the caches of the
+ * realm are dropped at once.
+ * <p>
+ * The realm must save its admin events (realm settings, events, admin events settings) and its
+ * client needs the view-events role of realm-management. The poller is enabled with:
+ * <pre>
+ * trikora.keycloak.admin-events.enabled=true
+ * </pre>
+ */
+@ApplicationScoped
+public final class KeycloakAdminEventPoller {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakAdminEventPoller.class);
+
+  @ConfigProperty(name = "trikora.keycloak.admin-events.enabled", defaultValue = "false")
+  private Boolean ADMIN_EVENTS_ENABLED;
+
+  @ConfigProperty(name = "trikora.keycloak.admin-events.interval", defaultValue = "30")
+  private Integer ADMIN_EVENTS_INTERVAL;
+
+  @ConfigProperty(name = "trikora.keycloak.admin-events.max-events", defaultValue = "1000")
+  private Integer ADMIN_EVENTS_MAX;
+
+  @RestClient
+  private KeycloakAuthAdminResource keycloakClient;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  @Inject
+  private KeycloakClientLogic blClient;
+
+  @Inject
+  private KeycloakGroupLogic blGroup;
+
+  @Inject
+  private Vertx vertx;
+
+  private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+  private volatile long timerId = -1L;
+
+  void onStart(@Observes final StartupEvent event) {
+    if (ADMIN_EVENTS_ENABLED) {
+      LOGGER.info("Polling the admin events every {} seconds", ADMIN_EVENTS_INTERVAL);
+      timerId = vertx.setPeriodic(ADMIN_EVENTS_INTERVAL * 1000L, id -> this.pollActiveRealms());
+    }
+  }
+
+  @PreDestroy
+  void onStop() {
+    if (timerId >= 0) {
+      vertx.cancelTimer(timerId);
+    }
+  }
+
+  private void pollActiveRealms() {
+    final Set<String> active = realms.getActiveRealms();
+    checkpoints.keySet().retainAll(active);
+    active.forEach(realm -> this.poll(realm).subscribe().with(
+        applied -> LOGGER.debug("Applied {} admin events of the realm {}", applied, realm),
+        ex -> LOGGER.warn("Could not poll the admin events of the realm {}: {}", realm,
+            ex.getMessage())));
+  }
+
+  /**
+   * Applies the admin events of the realm newer than its checkpoint. Only one poll of each realm
+   * runs at a time, and a realm without context or without client is skipped.
+   *
+   * @param realm the realm name.
+   * @return the number of events applied.
+   */
+  public Uni<Integer> poll(final String realm) {
+    final RealmContext context = realms.getIfActive(realm);
+    if (context == null || context.getClientId() == null) {
+      return Uni.createFrom().item(0);
+    }
+    // A new context of the realm starts over
+    final Checkpoint checkpoint = checkpoints.compute(realm,
+        (name, current) -> (current != null && current.context == context) ? current
+            : new Checkpoint(context));
+    if (!checkpoint.polling.compareAndSet(false, true)) {
+      return Uni.createFrom().item(0);
+    }
+    return context.getServiceToken()
+        .flatMap(token -> checkpoint.isStarted()
+            ? this.fetch(context, BEARER + token, checkpoint, 0, new ArrayList<>())
+            .map(events -> this.apply(realm, checkpoint, events))
+            : this.start(context, BEARER + token, checkpoint))
+        .eventually(() -> checkpoint.polling.set(false));
+  }
+
+  // The newest events become the checkpoint, what happened before is not known
+  private Uni<Integer> start(final RealmContext context, final String authorization,
+      final Checkpoint checkpoint) {
+    return context.getLimiter().submit(() -> keycloakClient.getAdminEvents(authorization,
+            context.getRealm(), GRANT_TYPE, context.getClientId(), RESOURCE_TYPES, null, 0,
+            context.getPageSize()))
+        .map(page -> {
+          checkpoint.start(page.getValuesAs(JsonObject.class));
+          // The changes made since the caches of the context started filling are not known
+          context.invalidateCaches();
+          return 0;
+        });
+  }
+
+  // The events come the newest first, the pages are fetched until reaching the checkpoint
+  private Uni<List<JsonObject>> fetch(final RealmContext context, final String authorization,
+      final Checkpoint checkpoint, final int first, final List<JsonObject> res) {
+    final int pageSize = context.getPageSize();
+    final String dateFrom = Instant.ofEpochMilli(checkpoint.time).atOffset(ZoneOffset.UTC)
+        .toLocalDate().minusDays(1).toString(); // Keycloak filters by its own time zone
+    // Not counted as a use of the realm, so the poller does not keep it alive
+    return context.getLimiter().submit(() -> keycloakClient.getAdminEvents(authorization,
+            context.getRealm(), GRANT_TYPE, context.getClientId(), RESOURCE_TYPES, dateFrom, first,
+            pageSize))
+        .flatMap(page -> {
+          final boolean reached = checkpoint.collect(page.getValuesAs(JsonObject.class),
+              pageSize, res);
+          if (reached || res.size() > ADMIN_EVENTS_MAX) {
+            return Uni.createFrom().item(res); // Recursion Base case
+          }
+          return this.fetch(context, authorization, checkpoint, first + pageSize, res);
+        });
+  }
+
+  // Package-private for the tests
+  int apply(final String realm, final Checkpoint checkpoint, final List<JsonObject> events) {
+    if (events.isEmpty()) {
+      return 0;
+    }
+    if (events.size() > ADMIN_EVENTS_MAX) {
+      LOGGER.info("Too many admin events of the realm {}, dropping all its caches", realm);
+      checkpoint.context.invalidateCaches();
+    } else {
+      // Oldest first, as they happened
+      for (int i = events.size() - 1; i >= 0; i--) {
+        this.apply(realm, events.get(i));
+      }
+    }
+    checkpoint.advance(events);
+    return events.size();
+  }
+
+  private void apply(final String realm, final JsonObject event) {
+    final String type = event.getString("resourceType", "");
+    final List<String> path = AdminEvents.path(event);
+    final String id = (path.size() > 1) ? path.get(1) : null;
+    final JsonObject rep = representation(event);
+    LOGGER.debug("Admin event {} {} of the realm {}", event.getString("operationType", ""),
+        event.getString("resourcePath", ""), realm);
+    switch (type) {
+      case "USER": // users/{id}, users/{id}/reset-password...
+        final String userName = (rep == null) ? null : rep.getString("username", null);
+        blClient.invalidateUser(realm, id, userName);
+        blClient.forgetSessions(realm, id, userName);
+        break;
+      case "GROUP_MEMBERSHIP": // users/{id}/groups/{groupId}
+        blClient.invalidateUser(realm, id, null);
+        break;
+      case "REALM_ROLE_MAPPING": // users/{id}/role-mappings/realm or groups/{id}/...
+        if ("users".equals(path.get(0))) {
+          blClient.invalidateUser(realm, id, null);
+        } else {
+          blGroup.invalidateGroupRoles(realm, id);
+        }
+        break;
+      case "GROUP":
+        // groups/{id}, or groups/{parentId}/children when a subgroup is created
+        final boolean child = path.size() > 2 && "children".equals(path.get(2));
+        blGroup.invalidateGroup(realm, child ? null : id,
+            (rep == null) ? null : rep.getString("name", null));
+        break;
+      case "REALM_ROLE": // roles/{name} or roles-by-id/{id}
+        final boolean byId = "roles-by-id".equals(path.get(0));
+        blClient.invalidateRole(realm, byId ? id : null,
+            byId ? ((rep == null) ? null : rep.getString("name", null)) : id);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Newest event applied of a realm context: its time, and the events applied at that same
+   * millisecond, since the next poll gets them again. Only used by the single poll in progress.
+   */
+  static final class Checkpoint {
+
+    private final RealmContext context;
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private final Set<String> seen = new HashSet<>();
+    private volatile boolean started;
+    private volatile long time;
+
+    Checkpoint(RealmContext context) {
+      this.context = context;
+    }
+
+    boolean isStarted() {
+      return started;
+    }
+
+    /**
+     * Takes the newest events of the realm as the checkpoint, or the epoch when there are none.
+     *
+     * @param newest the newest events, the newest first.
+     */
+    void start(final List<JsonObject> newest) {
+      if (!newest.isEmpty()) {
+        this.advance(newest);
+      }
+      started = true;
+    }
+
+    boolean isNew(final JsonObject event) {
+      final long eventTime = time(event);
+      return eventTime > time || (eventTime == time && !seen.contains(key(event)));
+    }
+
+    /**
+     * Adds the new events of a page to the pending ones. The pages shift when events happen while
+     * they are fetched, so a page may repeat events of the previous one.
+     *
+     * @param page     a page of events, the newest first.
+     * @param pageSize the size asked for.
+     * @param pending  the new events of the previous pages, the newest first.
+     * @return true once the checkpoint is reached: no older page has new events.
+     */
+    boolean collect(final List<JsonObject> page, final int pageSize,
+        final List<JsonObject> pending) {
+      boolean reached = page.size() < pageSize;
+      for (JsonObject event : page) {
+        if (!this.isNew(event)) {
+          reached = true;
+        } else if (!pending.contains(event)) {
+          pending.add(event);
+        }
+      }
+      return reached;
+    }
+
+    // With the events the newest first
+    void advance(final List<JsonObject> applied) {
+      final long newestTime = time(applied.get(0));
+      if (newestTime > time) {
+        seen.clear();
+        time = newestTime;
+      }
+      for (JsonObject event : applied) {
+        if (time(event) != newestTime) {
+          break;
+        }
+        seen.add(key(event));
+      }
+    }
+
+    private static String key(final JsonObject event) {
+      return time(event) + " " + event.getString("operationType", "")
+          + " " + event.getString("resourcePath", "");
+    }
+  }
+}
@@ -5,4 +5,8 @@ public class InvalidTokenException extends RuntimeException {
   public InvalidTokenException() {
     super("Token incorrect");
   }
+
+  public InvalidTokenException(String reason) {
+    super("Token incorrect: " + reason);
+  }
 }
@@ -0,0 +1,126 @@
+package com.trikorasolutions.keycloak.client.invalidation;
+
+import java.io.StringReader;
+import java.util.StringJoiner;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+
+/**
+ * A change made by one client instance to an entity of a realm, broadcast so the other instances
+ * drop what they have cached of it. It only names the entity changed: its type, realm, id and name
+ * (any of the last two can be missing).
+ */
+public final class CacheInvalidation {
+
+  /**
+   * Kind of entity changed.
+   */
+  public enum Type {
+    USER, GROUP, GROUP_ROLES, ROLE
+  }
+
+  private final Type type;
+  private final String realm;
+  private final String id;
+  private final String name;
+  private final String origin;
+
+  public CacheInvalidation(Type type, String realm, String id, String name, String origin) {
+    this.type = type;
+    this.realm = realm;
+    this.id = id;
+    this.name = name;
+    this.origin = origin;
+  }
+
+  public static CacheInvalidation user(final String realm, final String id, final String name) {
+    return new CacheInvalidation(Type.USER, realm, id, name, null);
+  }
+
+  public static CacheInvalidation group(final String realm, final String id, final String name) {
+    return new CacheInvalidation(Type.GROUP, realm, id, name, null);
+  }
+
+  public static CacheInvalidation groupRoles(final String realm, final String id) {
+    return new CacheInvalidation(Type.GROUP_ROLES, realm, id, null, null);
+  }
+
+  public static CacheInvalidation role(final String realm, final String id, final String name) {
+    return new CacheInvalidation(Type.ROLE, realm, id, name, null);
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return id of the client instance that made the change, null until it is published.
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  CacheInvalidation from(final String origin) {
+    return new CacheInvalidation(type, realm, id, name, origin);
+  }
+
+  /**
+   * @return the message in its wire format, a compact JSON object.
+   */
+  public String encode() {
+    final JsonObjectBuilder json = Json.createObjectBuilder()
+        .add("t", type.name())
+        .add("r", realm);
+    if (id != null) {
+      json.add("i", id);
+    }
+    if (name != null) {
+      json.add("n", name);
+    }
+    if (origin != null) {
+      json.add("o", origin);
+    }
+    return json.build().toString();
+  }
+
+  /**
+   * @param message a message in the format of {@link #encode()}.
+   * @return the invalidation, or null if the message is not one.
+   */
+  public static CacheInvalidation decode(final String message) {
+    try (JsonReader reader = Json.createReader(new StringReader(message))) {
+      final JsonObject json = reader.readObject();
+      return new CacheInvalidation(Type.valueOf(json.getString("t")), json.getString("r"),
+          json.getString("i", null), json.getString("n", null), json.getString("o", null));
+    } catch (JsonException | ClassCastException | NullPointerException
+        | IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return new StringJoiner(", ", CacheInvalidation.class.getSimpleName() + "[", "]")
+        .add("type=" + type)
+        .add("realm='" + realm + "'")
+        .add("id='" + id + "'")
+        .add("name='" + name + "'")
+        .add("origin='" + origin + "'")
+        .toString();
+  }
+}
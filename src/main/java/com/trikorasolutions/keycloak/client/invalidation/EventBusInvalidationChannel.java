@@ -0,0 +1,49 @@
+package com.trikorasolutions.keycloak.client.invalidation;
+
+import io.quarkus.arc.DefaultBean;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import java.util.function.Consumer;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invalidation channel over the Vert.x event bus. The messages reach the other instances when the
+ * event bus is clustered (quarkus.vertx.cluster), and always the subscribers of this JVM, so
+ * several client instances can share one JVM without any broker.
+ */
+@DefaultBean
+@ApplicationScoped
+public final class EventBusInvalidationChannel implements InvalidationChannel {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EventBusInvalidationChannel.class);
+
+  @ConfigProperty(name = "trikora.keycloak.invalidation.address",
+      defaultValue = "trikora.keycloak.invalidation")
+  private String INVALIDATION_ADDRESS;
+
+  @Inject
+  private Vertx vertx;
+
+  @Override
+  public void publish(final CacheInvalidation message) {
+    vertx.eventBus().publish(INVALIDATION_ADDRESS, message.encode());
+  }
+
+  @Override
+  public Runnable subscribe(final Consumer<CacheInvalidation> listener) {
+    final MessageConsumer<String> consumer = vertx.eventBus().consumer(INVALIDATION_ADDRESS,
+        msg -> {
+          final CacheInvalidation message = CacheInvalidation.decode(msg.body());
+          if (message == null) {
+            LOGGER.warn("Ignoring the invalidation message {}", msg.body());
+          } else {
+            listener.accept(message);
+          }
+        });
+    return consumer::unregister;
+  }
+}
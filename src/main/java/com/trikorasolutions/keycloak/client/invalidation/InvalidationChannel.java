@@ -0,0 +1,29 @@
+package com.trikorasolutions.keycloak.client.invalidation;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport of the {@link CacheInvalidation} messages between the client instances. The default
+ * one is the Vert.x event bus ({@link EventBusInvalidationChannel}); an application can plug its
+ * own (a broker, a database notification) declaring another bean implementing this interface.
+ * <p>
+ * The delivery is best effort: a message lost only delays the invalidation until the entries
+ * expire.
+ */
+public interface InvalidationChannel {
+
+  /**
+   * Sends the message to every subscriber, of this instance and of the others.
+   *
+   * @param message the invalidation, with its origin set.
+   */
+  void publish(CacheInvalidation message);
+
+  /**
+   * Registers a listener of the messages published.
+   *
+   * @param listener called with each message, maybe from an event loop thread, it must not block.
+   * @return the action that unregisters the listener.
+   */
+  Runnable subscribe(Consumer<CacheInvalidation> listener);
+}
@@ -0,0 +1,118 @@
+package com.trikorasolutions.keycloak.client.invalidation;
+
+import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakGroupLogic;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import io.quarkus.runtime.StartupEvent;
+import java.util.UUID;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the caches of several instances of the client coherent: each mutation made by this
+ * instance is published on the {@link InvalidationChannel}, and the mutations published by the
+ * other instances drop what this one has cached of the entities changed. The own messages are
+ * recognised by the id of the instance and skipped, the mutation already updated the local caches.
+ * <p>
+ * It is enabled with:
+ * <pre>
+ * trikora.keycloak.invalidation.enabled=true
+ * </pre>
+ */
+@ApplicationScoped
+public final class KeycloakCacheInvalidator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakCacheInvalidator.class);
+
+  @ConfigProperty(name = "trikora.keycloak.invalidation.enabled", defaultValue = "false")
+  private Boolean INVALIDATION_ENABLED;
+
+  @Inject
+  private InvalidationChannel channel;
+
+  @Inject
+  private KeycloakClientLogic blClient;
+
+  @Inject
+  private KeycloakGroupLogic blGroup;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  private final String instanceId = UUID.randomUUID().toString();
+  private volatile Runnable subscription;
+
+  void onStart(@Observes final StartupEvent event) {
+    if (INVALIDATION_ENABLED) {
+      LOGGER.info("Sharing the cache invalidations as the instance {}", instanceId);
+      subscription = channel.subscribe(this::receive);
+    }
+  }
+
+  @PreDestroy
+  void onStop() {
+    if (subscription != null) {
+      subscription.run();
+    }
+  }
+
+  /**
+   * @return id of this instance, the origin of the messages it publishes.
+   */
+  public String getInstanceId() {
+    return instanceId;
+  }
+
+  /**
+   * Tells the other instances about a change made by this one. Nothing is sent while disabled,
+   * but the reads of the realm in flight are never joined again, they may miss the change.
+   *
+   * @param message the entity changed.
+   */
+  public void publish(final CacheInvalidation message) {
+    realms.changed(message.getRealm());
+    if (INVALIDATION_ENABLED) {
+      try {
+        channel.publish(message.from(instanceId));
+      } catch (RuntimeException ex) {
+        // The change is done, the other instances catch up when their entries expire
+        LOGGER.warn("Could not publish the invalidation {}: {}", message, ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Applies a change made by another instance to the local caches.
+   *
+   * @param message the entity changed.
+   */
+  public void receive(final CacheInvalidation message) {
+    if (instanceId.equals(message.getOrigin())) {
+      return;
+    }
+    LOGGER.debug("Received the invalidation {}", message);
+    realms.changed(message.getRealm());
+    switch (message.getType()) {
+      case USER:
+        blClient.invalidateUser(message.getRealm(), message.getId(), message.getName());
+        blClient.forgetSessions(message.getRealm(), message.getId(), message.getName());
+        break;
+      case GROUP:
+        blGroup.invalidateGroup(message.getRealm(), message.getId(), message.getName());
+        break;
+      case GROUP_ROLES:
+        blGroup.invalidateGroupRoles(message.getRealm(), message.getId());
+        break;
+      case ROLE:
+        blClient.invalidateRole(message.getRealm(), message.getId(), message.getName());
+        break;
+      default:
+        break;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Effective realm roles and groups of each user of a snapshot, as bitsets over a dictionary of the
+ * roles and groups, so an authorization check is a couple of map lookups and a bit test. Immutable:
+ * the snapshot patched for some users derives its index recomputing only their bitsets.
+ */
+final class AuthorizationIndex {
+
+  private final Map<String, Integer> roleBits;
+  private final Map<String, Integer> groupBits;
+  private final Map<String, long[]> userRoles;
+  private final Map<String, long[]> userGroups;
+
+  private AuthorizationIndex(Map<String, Integer> roleBits, Map<String, Integer> groupBits,
+      Map<String, long[]> userRoles, Map<String, long[]> userGroups) {
+    this.roleBits = roleBits;
+    this.groupBits = groupBits;
+    this.userRoles = userRoles;
+    this.userGroups = userGroups;
+  }
+
+  /**
+   * @param snapshot the snapshot.
+   * @return the index of every user of the snapshot.
+   */
+  static AuthorizationIndex of(final RealmSnapshot snapshot) {
+    final Map<String, Integer> roleBits = dictionary(snapshot.roles().keySet());
+    final Map<String, Integer> groupBits = dictionary(snapshot.groups().keySet());
+    final AuthorizationIndex index = new AuthorizationIndex(roleBits, groupBits,
+        new HashMap<>(snapshot.users().size() * 2), new HashMap<>(snapshot.users().size() * 2));
+    for (String userId : snapshot.users().keySet()) {
+      index.put(snapshot, userId);
+    }
+    return index;
+  }
+
+  /**
+   * @param snapshot the snapshot patched for the given users.
+   * @param userIds  ids of the users patched, added or removed.
+   * @return the index of the patched snapshot, or null if the users have roles or groups missing
+   *     from the dictionaries: the index has to be built again.
+   */
+  AuthorizationIndex withUsers(final RealmSnapshot snapshot, final Collection<String> userIds) {
+    final AuthorizationIndex index = new AuthorizationIndex(roleBits, groupBits,
+        new HashMap<>(userRoles), new HashMap<>(userGroups));
+    for (String userId : userIds) {
+      index.userRoles.remove(userId);
+      index.userGroups.remove(userId);
+      if (snapshot.users().containsKey(userId) && !index.put(snapshot, userId)) {
+        return null;
+      }
+    }
+    return index;
+  }
+
+  // Only called while building a new index
+  private boolean put(final RealmSnapshot snapshot, final String userId) {
+    final long[] roles = bitset(snapshot.effectiveRoleIds(userId), roleBits);
+    final long[] groups = bitset(snapshot.memberGroupIds(userId), groupBits);
+    if (roles == null || groups == null) {
+      return false;
+    }
+    userRoles.put(userId, roles);
+    userGroups.put(userId, groups);
+    return true;
+  }
+
+  /**
+   * @return true if the user has the role effective.
+   */
+  boolean hasRole(final String userId, final String roleId) {
+    return isSet(userRoles.get(userId), roleBits.get(roleId));
+  }
+
+  /**
+   * @return true if the user is a member of the group or of any of its subgroups.
+   */
+  boolean isMember(final String userId, final String groupId) {
+    return isSet(userGroups.get(userId), groupBits.get(groupId));
+  }
+
+  private static Map<String, Integer> dictionary(final Set<String> ids) {
+    final Map<String, Integer> bits = new HashMap<>(ids.size() * 2);
+    for (String id : ids) {
+      bits.put(id, bits.size());
+    }
+    return bits;
+  }
+
+  // Null if an id is not in the dictionary
+  private static long[] bitset(final Set<String> ids, final Map<String, Integer> bits) {
+    final long[] res = new long[(bits.size() + 63) >>> 6];
+    for (String id : ids) {
+      final Integer bit = bits.get(id);
+      if (bit == null) {
+        return null;
+      }
+      res[bit >>> 6] |= 1L << bit;
+    }
+    return res;
+  }
+
+  private static boolean isSet(final long[] bitset, final Integer bit) {
+    return bitset != null && bit != null && (bitset[bit >>> 6] & (1L << bit)) != 0;
+  }
+}
@@ -0,0 +1,690 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.BEARER;
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE;
+import static com.trikorasolutions.keycloak.client.events.AdminEvents.RESOURCE_TYPES;
+import static com.trikorasolutions.keycloak.client.events.AdminEvents.representation;
+import static com.trikorasolutions.keycloak.client.events.AdminEvents.time;
+
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthAdminResource;
+import com.trikorasolutions.keycloak.client.dto.UserRepresentation;
+import com.trikorasolutions.keycloak.client.events.AdminEvents;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import com.trikorasolutions.keycloak.client.realm.RealmContext;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.unchecked.Unchecked;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an in-memory copy of the users, groups and realm roles of the mirrored realms, so the
+ * reads can be answered without asking Keycloak. The mirror is loaded in the background with the
+ * service token of the realm client, brought up to date every refresh seconds, and the users
+ * written by this client are patched in one by one as soon as they change. A snapshot older than
+ * max-staleness is never served.
+ * <p>
+ * With the admin events of the realm ({@code trikora.keycloak.admin-events.enabled}), a refresh
+ * only reads the admin events since the last one and patches in the users they name. The whole
+ * realm is only read again every full-refresh seconds, or when the events name changes to groups
+ * or roles, or too many of them. Without the admin events every refresh reads the whole realm.
+ * <p>
+ * The reads answered by the mirror are not checked against the token of the caller: only mirror
+ * the realms whose callers are all allowed to read its users, groups and roles. A realm is mirrored
+ * with:
+ * <pre>
+ * trikora.keycloak.realms.&lt;realm&gt;.mirror=true
+ * </pre>
+ * With a snapshot directory, every snapshot loaded from Keycloak is also written to a file of the
+ * realm ({@link SnapshotFile}). After a restart the first load reads the file back and only asks
+ * Keycloak for the admin events since it was written, then patches in the users they name. This
+ * needs the admin events of the realm ({@code trikora.keycloak.admin-events.enabled}); a file older
+ * than snapshot-max-age, corrupt or of another version, or changes to groups or roles since it was
+ * written fall back to the full load.
+ */
+@ApplicationScoped
+public final class KeycloakRealmMirror {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakRealmMirror.class);
+  private static final String STATE = "state";
+
+  @ConfigProperty(name = "trikora.keycloak.mirror.refresh", defaultValue = "60")
+  private Integer MIRROR_REFRESH;
+
+  @ConfigProperty(name = "trikora.keycloak.mirror.full-refresh", defaultValue = "3600")
+  private Integer MIRROR_FULL_REFRESH;
+
+  @ConfigProperty(name = "trikora.keycloak.mirror.max-staleness", defaultValue = "300")
+  private Integer MIRROR_MAX_STALENESS;
+
+  @ConfigProperty(name = "trikora.keycloak.mirror.snapshot-dir")
+  private Optional<String> MIRROR_SNAPSHOT_DIR;
+
+  @ConfigProperty(name = "trikora.keycloak.mirror.snapshot-max-age", defaultValue = "86400")
+  private Integer MIRROR_SNAPSHOT_MAX_AGE;
+
+  @ConfigProperty(name = "trikora.keycloak.admin-events.enabled", defaultValue = "false")
+  private Boolean ADMIN_EVENTS_ENABLED;
+
+  @ConfigProperty(name = "trikora.keycloak.admin-events.max-events", defaultValue = "1000")
+  private Integer ADMIN_EVENTS_MAX;
+
+  @RestClient
+  private KeycloakAuthAdminResource keycloakClient;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  /**
+   * Returns the snapshot of the realm to answer a read. A missing or old snapshot starts a reload
+   * in the background, the read never waits for it.
+   *
+   * @param realm the realm name.
+   * @return the snapshot, or null if the realm is not mirrored or its snapshot is too old.
+   */
+  public RealmSnapshot snapshot(final String realm) {
+    final RealmContext context = realms.context(realm);
+    if (!context.isMirrored()) {
+      return null;
+    }
+    final MirrorState state = this.state(context);
+    final RealmSnapshot snapshot = state.current();
+    if (snapshot == null || snapshot.getAge() > MIRROR_REFRESH * 1000L) {
+      this.reload(realm, state);
+    }
+    return (snapshot != null && snapshot.getAge() <= MIRROR_MAX_STALENESS * 1000L)
+        ? snapshot : null;
+  }
+
+  /**
+   * Loads the snapshot of the realm now, whether it is mirrored or not.
+   *
+   * @param realm the realm name.
+   * @return the snapshot installed, or null if the mirror was invalidated during the load.
+   */
+  public Uni<RealmSnapshot> refresh(final String realm) {
+    return this.load(realm, this.state(realms.context(realm)));
+  }
+
+  /**
+   * Marks the user as changed by this client, its new state is read and patched in the snapshot.
+   * Until then the mirror does not answer the reads involving the user.
+   *
+   * @param realm    the realm name.
+   * @param userName the username, the old and the new one when it is renamed.
+   */
+  public void userChanged(final String realm, final String userName) {
+    final RealmContext context = realms.context(realm);
+    if (!context.isMirrored() || userName == null) {
+      return;
+    }
+    final MirrorState state = this.state(context);
+    final long mark = state.markWritten(userName);
+    if (state.current() != null) {
+      this.patch(realm, state, userName, mark);
+    }
+  }
+
+  /**
+   * Applies an update of a user made by this client to the snapshot, so the following reads are
+   * answered without reading the user back. Falls back to {@link #userChanged(String, String)}
+   * when the snapshot can not apply it.
+   *
+   * @param realm    the realm name.
+   * @param userName the username before the update.
+   * @param update   the fields written, the null ones are not changed by Keycloak.
+   */
+  public void userUpdated(final String realm, final String userName,
+      final UserRepresentation update) {
+    final JsonObjectBuilder fields = Json.createObjectBuilder();
+    addIfPresent(fields, "username", update.username);
+    addIfPresent(fields, "firstName", update.firstName);
+    addIfPresent(fields, "lastName", update.lastName);
+    addIfPresent(fields, "email", update.email);
+    if (update.enabled != null) {
+      fields.add("enabled", update.enabled);
+    }
+    final JsonObject written = fields.build();
+    if (!this.writeThrough(realm, userName,
+        snapshot -> snapshot.withUserFields(userName, written))) {
+      this.userChanged(realm, userName);
+      if (update.username != null && !update.username.equalsIgnoreCase(userName)) {
+        this.userChanged(realm, update.username);
+      }
+    }
+  }
+
+  /**
+   * Applies the deletion of a user made by this client to the snapshot.
+   *
+   * @param realm    the realm name.
+   * @param userName the username.
+   */
+  public void userDeleted(final String realm, final String userName) {
+    if (!this.writeThrough(realm, userName, snapshot -> snapshot.withoutUser(userName))) {
+      this.userChanged(realm, userName);
+    }
+  }
+
+  /**
+   * Applies a change of the groups of a user made by this client to the snapshot.
+   *
+   * @param realm    the realm name.
+   * @param userName the username.
+   * @param groupId  id of the group.
+   * @param member   true if the user joined the group, false if it left it.
+   */
+  public void membershipChanged(final String realm, final String userName, final String groupId,
+      final boolean member) {
+    if (!this.writeThrough(realm, userName,
+        snapshot -> snapshot.withMembership(userName, groupId, member))) {
+      this.userChanged(realm, userName);
+    }
+  }
+
+  /**
+   * Applies a change of the realm roles of a group made by this client to the snapshot. Falls back
+   * to {@link #invalidate(String)} when the snapshot can not apply it.
+   *
+   * @param realm   the realm name.
+   * @param groupId id of the group.
+   * @param roleIds ids of the roles.
+   * @param granted true if the roles were added to the group, false if they were removed.
+   */
+  public void groupRolesChanged(final String realm, final String groupId,
+      final Collection<String> roleIds, final boolean granted) {
+    if (!this.writeThrough(realm, null,
+        snapshot -> snapshot.withGroupRoles(groupId, roleIds, granted))) {
+      this.invalidate(realm);
+    }
+  }
+
+  // True if the realm is not mirrored, there is nothing to update
+  private boolean writeThrough(final String realm, final String userName,
+      final UnaryOperator<RealmSnapshot> change) {
+    final RealmContext context = realms.context(realm);
+    return !context.isMirrored() || this.state(context).writeThrough(userName, change);
+  }
+
+  private static void addIfPresent(final JsonObjectBuilder fields, final String name,
+      final String value) {
+    if (value != null) {
+      fields.add(name, value);
+    }
+  }
+
+  /**
+   * Same as {@link #userChanged(String, String)} for a user changed by others and known by its id.
+   * A user missing from the snapshot (e.g. just created, maybe in default groups) drops the whole
+   * snapshot.
+   *
+   * @param realm  the realm name.
+   * @param userId id of the user.
+   */
+  public void userIdChanged(final String realm, final String userId) {
+    final RealmContext context = realms.context(realm);
+    if (!context.isMirrored()) {
+      return;
+    }
+    final RealmSnapshot snapshot = this.state(context).current();
+    final String userName = (snapshot == null) ? null : snapshot.getUserName(userId);
+    if (userName != null) {
+      this.userChanged(realm, userName);
+    } else if (snapshot != null) {
+      this.invalidate(realm);
+    }
+  }
+
+  /**
+   * Drops the snapshot of the realm, after a change of this client that affects many users (e.g.
+   * the roles of a group). The reads go to Keycloak until the snapshot is loaded again.
+   *
+   * @param realm the realm name.
+   */
+  public void invalidate(final String realm) {
+    final RealmContext context = realms.context(realm);
+    if (context.isMirrored()) {
+      LOGGER.debug("Invalidating the mirror of the realm {}", realm);
+      this.state(context).invalidate();
+    }
+  }
+
+  private MirrorState state(final RealmContext context) {
+    final ExpiringCache<String, MirrorState> states = this.states(context);
+    MirrorState state = states.getIfPresent(STATE);
+    if (state == null) {
+      synchronized (states) {
+        state = states.getIfPresent(STATE);
+        if (state == null) {
+          state = new MirrorState();
+          states.put(STATE, state);
+        }
+      }
+    }
+    return state;
+  }
+
+  private ExpiringCache<String, MirrorState> states(final RealmContext context) {
+    // A single entry living as long as the context of the realm
+    return context.cache("mirror", 1, Duration.ofDays(365));
+  }
+
+  // Stores the state again, so the budget of the caches accounts the snapshot installed
+  private void reweigh(final RealmContext context, final MirrorState state) {
+    final ExpiringCache<String, MirrorState> states = this.states(context);
+    synchronized (states) {
+      if (states.getIfPresent(STATE) == state) {
+        states.put(STATE, state);
+      }
+    }
+  }
+
+  private void reload(final String realm, final MirrorState state) {
+    if (!state.startLoading()) {
+      return;
+    }
+    this.load(realm, state)
+        .subscribe().with(
+            snapshot -> state.endLoading(0L),
+            ex -> {
+              // Not retried before the next refresh, the reads go to Keycloak meanwhile
+              LOGGER.warn("Could not load the mirror of the realm {}: {}", realm,
+                  ex.getMessage());
+              state.endLoading(System.currentTimeMillis() + MIRROR_REFRESH * 1000L);
+            });
+  }
+
+  private Uni<RealmSnapshot> load(final String realm, final MirrorState state) {
+    final long generation = state.getGeneration();
+    final long since = state.beginLoad();
+    return this.restore(realm, state)
+        .flatMap(restored -> (restored != null) ? Uni.createFrom().item(restored)
+            : this.update(realm, state))
+        .flatMap(updated -> (updated != null) ? Uni.createFrom().item(updated)
+            : this.fetch(realm).invoke(fresh -> {
+              state.setFetchedAt(fresh.getLoadedAt());
+              this.persist(realm, fresh);
+            }))
+        // The authorization checks find the index built, off the event loop
+        .emitOn(Infrastructure.getDefaultWorkerPool())
+        .map(RealmSnapshot::indexed)
+        .map(fresh -> {
+          final Map<String, Long> pending = state.install(fresh, generation, since);
+          if (pending == null) {
+            LOGGER.debug("Mirror of the realm {} invalidated while loading", realm);
+            return null;
+          }
+          LOGGER.debug("Mirrored {} users, {} groups and {} roles of the realm {}",
+              fresh.getUserCount(), fresh.getGroupCount(), fresh.getRoleCount(), realm);
+          this.reweigh(realms.context(realm), state);
+          pending.forEach((userName, mark) -> this.patch(realm, state, userName, mark));
+          return state.current();
+        }).eventually(state::endLoad);
+  }
+
+  /**
+   * Reads the snapshot file of the realm and brings it up to date with the admin events since it
+   * was written. The users they name are recorded as written, so the install patches them in.
+   *
+   * @return the snapshot restored, or null if it has to be fetched.
+   */
+  private Uni<RealmSnapshot> restore(final String realm, final MirrorState state) {
+    if (MIRROR_SNAPSHOT_DIR.isEmpty() || !ADMIN_EVENTS_ENABLED || !state.claimRestore()) {
+      return Uni.createFrom().nullItem();
+    }
+    final Path file = SnapshotFile.of(Path.of(MIRROR_SNAPSHOT_DIR.get()), realm);
+    final long startedAt = System.currentTimeMillis();
+    return Uni.createFrom().item(Unchecked.supplier(() -> SnapshotFile.read(file, realm)))
+        .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+        .flatMap(saved -> {
+          if (saved == null) {
+            return Uni.createFrom().nullItem();
+          }
+          if (startedAt - saved.getLoadedAt() > MIRROR_SNAPSHOT_MAX_AGE * 1000L) {
+            LOGGER.info("Snapshot of the realm {} too old, loading it again", realm);
+            return Uni.createFrom().nullItem();
+          }
+          return this.changedUsers(realm, saved).map(changed -> {
+            if (changed == null) {
+              LOGGER.info("Realm {} changed too much since its snapshot, loading it again",
+                  realm);
+              return null;
+            }
+            changed.forEach(state::markWritten);
+            LOGGER.info("Restored the mirror of the realm {} from {}, {} users changed since",
+                realm, file, changed.size());
+            state.setFetchedAt(saved.getLoadedAt());
+            return saved.withLoadedAt(startedAt);
+          });
+        })
+        .onFailure().recoverWithItem(ex -> {
+          LOGGER.warn("Could not restore the mirror of the realm {} from {}: {}", realm, file,
+              ex.getMessage());
+          return null;
+        });
+  }
+
+  /**
+   * Brings the current snapshot up to date with the admin events since it was loaded, instead of
+   * reading the whole realm again. The users they name, and the ones still dirty, are recorded as
+   * written so the install patches them in.
+   *
+   * @return the snapshot updated, or null if the realm has to be fetched.
+   */
+  private Uni<RealmSnapshot> update(final String realm, final MirrorState state) {
+    final RealmSnapshot current = state.current();
+    final long startedAt = System.currentTimeMillis();
+    if (!ADMIN_EVENTS_ENABLED || current == null
+        || startedAt - state.getFetchedAt() > MIRROR_FULL_REFRESH * 1000L) {
+      return Uni.createFrom().nullItem();
+    }
+    return this.changedUsers(realm, current).map(changed -> {
+      if (changed == null) {
+        LOGGER.debug("Realm {} changed too much since its last refresh, loading it again", realm);
+        return null;
+      }
+      changed.addAll(current.dirtyUsers());
+      changed.forEach(state::markWritten);
+      LOGGER.debug("Refreshed the mirror of the realm {}, {} users changed since", realm,
+          changed.size());
+      return current.withLoadedAt(startedAt);
+    }).onFailure().recoverWithItem(ex -> {
+      LOGGER.debug("Could not refresh the mirror of the realm {} from its admin events: {}",
+          realm, ex.getMessage());
+      return null;
+    });
+  }
+
+  /**
+   * The users changed since the snapshot was taken, from the admin events.
+   *
+   * @return their usernames, or null if the realm changed in a way only a full load catches
+   *     (groups, roles, users created without their representation, or too many events).
+   */
+  private Uni<Set<String>> changedUsers(final String realm, final RealmSnapshot saved) {
+    final String clientId = realms.context(realm).getClientId();
+    return this.authorization(realm)
+        .flatMap(authorization -> this.eventsSince(realm, authorization, clientId,
+            saved.getLoadedAt(), 0, new ArrayList<>()))
+        .map(events -> {
+          if (events.size() > ADMIN_EVENTS_MAX) {
+            return null;
+          }
+          // The users written with their representation, e.g. created since the snapshot
+          final Map<String, String> named = new HashMap<>();
+          for (JsonObject event : events) {
+            final List<String> path = AdminEvents.path(event);
+            final JsonObject rep = "USER".equals(event.getString("resourceType", ""))
+                ? representation(event) : null;
+            if (rep != null && rep.containsKey("username") && path.size() > 1) {
+              named.put(path.get(1), rep.getString("username"));
+            }
+          }
+          final Set<String> changed = new HashSet<>(named.values());
+          for (JsonObject event : events) {
+            final String type = event.getString("resourceType", "");
+            final List<String> path = AdminEvents.path(event);
+            final boolean ofUser = "USER".equals(type) || "GROUP_MEMBERSHIP".equals(type)
+                || ("REALM_ROLE_MAPPING".equals(type) && "users".equals(path.get(0)));
+            final String userId = (ofUser && path.size() > 1) ? path.get(1) : null;
+            final String known = (userId == null) ? null : saved.getUserName(userId);
+            if (known != null) {
+              changed.add(known);
+            } else if (!named.containsKey(userId)) {
+              return null;
+            }
+          }
+          return changed;
+        });
+  }
+
+  // The events come the newest first, the pages are fetched until reaching the checkpoint
+  private Uni<List<JsonObject>> eventsSince(final String realm, final String authorization,
+      final String clientId, final long checkpoint, final int first,
+      final List<JsonObject> res) {
+    final int pageSize = realms.getPageSize(realm);
+    final String dateFrom = Instant.ofEpochMilli(checkpoint).atOffset(ZoneOffset.UTC)
+        .toLocalDate().minusDays(1).toString(); // Keycloak filters by its own time zone
+    return realms.submit(realm, () -> keycloakClient.getAdminEvents(authorization, realm,
+            GRANT_TYPE, clientId, RESOURCE_TYPES, dateFrom, first, pageSize))
+        .flatMap(page -> {
+          boolean reached = page.size() < pageSize;
+          for (JsonObject event : objects(page)) {
+            if (time(event) >= checkpoint) {
+              res.add(event);
+            } else {
+              reached = true;
+            }
+          }
+          if (reached || res.size() > ADMIN_EVENTS_MAX) {
+            return Uni.createFrom().item(res); // Recursion Base case
+          }
+          return this.eventsSince(realm, authorization, clientId, checkpoint, first + pageSize,
+              res);
+        });
+  }
+
+  // Written in the background, a failure only costs a full load at the next start
+  private void persist(final String realm, final RealmSnapshot fresh) {
+    if (MIRROR_SNAPSHOT_DIR.isEmpty()) {
+      return;
+    }
+    final Path file = SnapshotFile.of(Path.of(MIRROR_SNAPSHOT_DIR.get()), realm);
+    Infrastructure.getDefaultWorkerPool().execute(() -> {
+      try {
+        SnapshotFile.write(file, realm, fresh);
+        LOGGER.debug("Snapshot of the realm {} written to {}", realm, file);
+      } catch (IOException ex) {
+        LOGGER.warn("Could not write the snapshot of the realm {} to {}: {}", realm, file,
+            ex.getMessage());
+      }
+    });
+  }
+
+  private void patch(final String realm, final MirrorState state, final String userName,
+      final long mark) {
+    this.authorization(realm)
+        .flatMap(authorization -> this.fetchUser(realm, authorization, userName))
+        .subscribe().with(
+            patch -> state.patch(snapshot -> snapshot.withUser(userName, mark, patch.user,
+                patch.groups, patch.roles)),
+            ex -> LOGGER.debug("Could not patch the user {} in the mirror of the realm {}: {}",
+                userName, realm, ex.getMessage()));
+  }
+
+  private Uni<String> authorization(final String realm) {
+    return realms.getServiceToken(realm).map(token -> BEARER + token);
+  }
+
+  private Uni<UserPatch> fetchUser(final String realm, final String authorization,
+      final String userName) {
+    final String clientId = realms.context(realm).getClientId();
+    return realms.submit(realm, () -> keycloakClient.getUserInfo(authorization, realm, GRANT_TYPE,
+            clientId, userName, Boolean.TRUE))
+        .flatMap(found -> {
+          if (found.size() != 1) {
+            return Uni.createFrom().item(new UserPatch(null, List.of(), List.of()));
+          }
+          final JsonObject user = found.getJsonObject(0);
+          final String id = user.getString("id");
+          return Uni.combine().all().unis(
+                  realms.submit(realm, () -> keycloakClient.getUserGroups(authorization, realm,
+                      GRANT_TYPE, clientId, id)),
+                  realms.submit(realm, () -> keycloakClient.getUserRealmRoles(authorization,
+                      realm, GRANT_TYPE, clientId, id)))
+              .combinedWith((groups, roles) -> new UserPatch(user, objects(groups),
+                  objects(roles)));
+        });
+  }
+
+  /**
+   * Reads the whole realm: the users, the group tree and the realm roles, then the members of each
+   * group, and the users, groups and composites of each role.
+   */
+  private Uni<RealmSnapshot> fetch(final String realm) {
+    final long startedAt = System.currentTimeMillis();
+    final String clientId = realms.context(realm).getClientId();
+    return this.authorization(realm).flatMap(authorization -> {
+      final Uni<List<JsonObject>> users = this.pages(realm, (first, max) -> keycloakClient
+          .listAllUsers(authorization, realm, GRANT_TYPE, clientId, first, max));
+      final Uni<JsonArray> groups = realms.submit(realm, () -> keycloakClient
+          .listAllGroups(authorization, realm, GRANT_TYPE, clientId));
+      final Uni<JsonArray> roles = realms.submit(realm, () -> keycloakClient
+          .getAllRoles(authorization, realm, GRANT_TYPE, clientId));
+      return Uni.combine().all().unis(users, groups, roles).asTuple().flatMap(loaded -> {
+        final SnapshotData data = new SnapshotData();
+        loaded.getItem1().forEach(user -> data.users.put(user.getString("id"), user));
+        data.addGroups(loaded.getItem2(), null);
+        objects(loaded.getItem3()).forEach(role -> data.roles.put(role.getString("id"), role));
+
+        final Uni<List<String>> members = Multi.createFrom().iterable(data.groups.keySet())
+            .onItem().transformToUniAndMerge(groupId -> this.pages(realm, (first, max) ->
+                    keycloakClient.getGroupUsers(authorization, realm, GRANT_TYPE, clientId,
+                        groupId, first, max))
+                .invoke(page -> data.addMembers(groupId, page))
+                .replaceWith(groupId))
+            .collect().asList();
+        final Uni<List<String>> mappings = Multi.createFrom().iterable(data.roles.values())
+            .onItem().transformToUniAndMerge(role -> this.fetchRole(realm, authorization,
+                clientId, role, data))
+            .collect().asList();
+        return Uni.combine().all().unis(members, mappings).asTuple()
+            .map(done -> data.build(startedAt));
+      });
+    });
+  }
+
+  private Uni<String> fetchRole(final String realm, final String authorization,
+      final String clientId, final JsonObject role, final SnapshotData data) {
+    final String roleId = role.getString("id");
+    final String roleName = role.getString("name");
+    final Uni<List<JsonObject>> users = this.pages(realm, (first, max) -> keycloakClient
+        .getUsersInRolePage(authorization, realm, GRANT_TYPE, clientId, roleName, first, max));
+    final Uni<List<JsonObject>> groups = this.pages(realm, (first, max) -> keycloakClient
+        .getGroupsInRolePage(authorization, realm, GRANT_TYPE, clientId, roleName, first, max));
+    final Uni<List<JsonObject>> composites = !role.getBoolean("composite", false)
+        ? Uni.createFrom().item(List.of())
+        : realms.submit(realm, () -> keycloakClient.getRoleComposites(authorization, realm,
+            GRANT_TYPE, clientId, roleName)).map(KeycloakRealmMirror::objects);
+    return Uni.combine().all().unis(users, groups, composites).asTuple()
+        .invoke(edges -> data.addRoleEdges(roleId, edges.getItem1(), edges.getItem2(),
+            edges.getItem3()))
+        .replaceWith(roleId);
+  }
+
+  private Uni<List<JsonObject>> pages(final String realm,
+      final BiFunction<Integer, Integer, Uni<JsonArray>> page) {
+    return this.pagesFrom(realm, page, 0, realms.getPageSize(realm), new ArrayList<>());
+  }
+
+  private Uni<List<JsonObject>> pagesFrom(final String realm,
+      final BiFunction<Integer, Integer, Uni<JsonArray>> page, final int first,
+      final int pageSize, final List<JsonObject> res) {
+    return realms.submit(realm, () -> page.apply(first, pageSize)).flatMap(array -> {
+      res.addAll(objects(array));
+      if (array.size() < pageSize) {
+        return Uni.createFrom().item(res); // Recursion Base case
+      }
+      return this.pagesFrom(realm, page, first + pageSize, pageSize, res);
+    });
+  }
+
+  private static List<JsonObject> objects(final JsonArray array) {
+    return array.stream()
+        .filter(value -> value.getValueType() == ValueType.OBJECT)
+        .map(JsonValue::asJsonObject)
+        .collect(Collectors.toList());
+  }
+
+  private static final class UserPatch {
+
+    private final JsonObject user;
+    private final List<JsonObject> groups;
+    private final List<JsonObject> roles;
+
+    private UserPatch(JsonObject user, List<JsonObject> groups, List<JsonObject> roles) {
+      this.user = user;
+      this.groups = groups;
+      this.roles = roles;
+    }
+  }
+
+  /**
+   * Collects the parts of a snapshot while they are fetched concurrently.
+   */
+  private static final class SnapshotData {
+
+    private final Map<String, JsonObject> users = new HashMap<>();
+    private final Map<String, JsonObject> groups = new HashMap<>();
+    private final Map<String, String> groupParents = new HashMap<>();
+    private final Map<String, JsonObject> roles = new HashMap<>();
+    // Guarded by this, filled by the concurrent requests
+    private final Map<String, Set<String>> roleComposites = new HashMap<>();
+    private final Map<String, Set<String>> groupRoles = new HashMap<>();
+    private final Map<String, Set<String>> userGroups = new HashMap<>();
+    private final Map<String, Set<String>> userRoles = new HashMap<>();
+
+    private void addGroups(final JsonArray tree, final String parentId) {
+      for (JsonObject group : objects(tree)) {
+        final String id = group.getString("id");
+        groups.put(id, Json.createObjectBuilder(group).remove("subGroups").build());
+        if (parentId != null) {
+          groupParents.put(id, parentId);
+        }
+        if (group.containsKey("subGroups")
+            && group.get("subGroups").getValueType() == ValueType.ARRAY) {
+          this.addGroups(group.getJsonArray("subGroups"), id);
+        }
+      }
+    }
+
+    private synchronized void addMembers(final String groupId, final List<JsonObject> members) {
+      members.forEach(member -> userGroups
+          .computeIfAbsent(member.getString("id"), id -> new HashSet<>()).add(groupId));
+    }
+
+    private synchronized void addRoleEdges(final String roleId, final List<JsonObject> withUsers,
+        final List<JsonObject> withGroups, final List<JsonObject> composites) {
+      withUsers.forEach(user -> userRoles
+          .computeIfAbsent(user.getString("id"), id -> new HashSet<>()).add(roleId));
+      withGroups.forEach(group -> groupRoles
+          .computeIfAbsent(group.getString("id"), id -> new HashSet<>()).add(roleId));
+      roleComposites.put(roleId, composites.stream()
+          .map(composite -> composite.getString("id"))
+          .collect(Collectors.toSet()));
+    }
+
+    private synchronized RealmSnapshot build(final long startedAt) {
+      return new RealmSnapshot(startedAt, users, groups, groupParents, roles, roleComposites,
+          groupRoles, userGroups, userRoles, Map.of());
+    }
+  }
+}
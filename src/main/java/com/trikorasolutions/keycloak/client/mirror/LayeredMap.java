@@ -0,0 +1,109 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Immutable map made of a base map and the entries changed on top of it, so the copy of a snapshot
+ * with a few entries changed shares the base instead of copying it. The changes are folded into a
+ * new base once they outgrow the square root of its size: a change copies at most that many
+ * entries, and a lookup is at most two hash lookups.
+ * <p>
+ * The base is never modified, the maps given to {@link #with(Map, Object, Object)} and
+ * {@link #without(Map, Object)} must not be modified afterwards either.
+ */
+final class LayeredMap<K, V> extends AbstractMap<K, V> {
+
+  // Marks a removed key among the changes
+  private static final Object REMOVED = new Object();
+  private static final int MIN_CHANGES = 16;
+
+  private final Map<K, V> base;
+  private final Map<K, Object> changes;
+  private final int size;
+
+  private LayeredMap(Map<K, V> base, Map<K, Object> changes, int size) {
+    this.base = base;
+    this.changes = changes;
+    this.size = size;
+  }
+
+  /**
+   * @return a map with the entries of the given one, and the key mapped to the value.
+   */
+  static <K, V> Map<K, V> with(final Map<K, V> map, final K key, final V value) {
+    return change(map, key, value);
+  }
+
+  /**
+   * @return a map with the entries of the given one but the key, the same map without it.
+   */
+  static <K, V> Map<K, V> without(final Map<K, V> map, final K key) {
+    return map.containsKey(key) ? change(map, key, REMOVED) : map;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Map<K, V> change(final Map<K, V> map, final K key, final Object value) {
+    final Map<K, V> base;
+    final Map<K, Object> changes;
+    if (map instanceof LayeredMap) {
+      base = ((LayeredMap<K, V>) map).base;
+      changes = new HashMap<>(((LayeredMap<K, V>) map).changes);
+    } else {
+      base = map;
+      changes = new HashMap<>();
+    }
+    final boolean present = map.containsKey(key);
+    changes.put(key, value);
+    final int size = map.size() + ((value == REMOVED) ? (present ? -1 : 0) : (present ? 0 : 1));
+    final LayeredMap<K, V> res = new LayeredMap<>(base, changes, size);
+    return (changes.size() > Math.max(MIN_CHANGES, (int) Math.sqrt(base.size())))
+        ? new HashMap<>(res) : res;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(final Object key) {
+    final Object changed = changes.get(key);
+    if (changed != null) {
+      return (changed == REMOVED) ? null : (V) changed;
+    }
+    return base.get(key);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    final Object changed = changes.get(key);
+    return (changed != null) ? changed != REMOVED : base.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return Stream.concat(
+                base.entrySet().stream().filter(e -> !changes.containsKey(e.getKey())),
+                changes.entrySet().stream().filter(e -> e.getValue() != REMOVED))
+            .<Entry<K, V>>map(e -> new SimpleImmutableEntry<>(e.getKey(), (V) e.getValue()))
+            .iterator();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+}
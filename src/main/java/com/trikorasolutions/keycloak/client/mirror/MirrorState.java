@@ -0,0 +1,228 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import com.trikorasolutions.keycloak.client.cache.Weighted;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Mirror of one realm: its current snapshot and the writes of this client that the snapshot may
+ * not include yet. Every write gets an increasing mark, its version stamp. A load only installs its
+ * snapshot after applying the writes made since the load started, so a slow load never overwrites
+ * a newer local write: the writes applied through are replayed, the other users written are
+ * marked as dirty.
+ */
+final class MirrorState implements Weighted {
+
+  private final AtomicReference<RealmSnapshot> snapshot = new AtomicReference<>();
+  private final AtomicBoolean loading = new AtomicBoolean();
+  private final AtomicBoolean restoreClaimed = new AtomicBoolean();
+  private final AtomicLong writes = new AtomicLong();
+  private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+  private volatile long retryAt;
+  private volatile long fetchedAt;
+  // Guarded by this
+  private long generation;
+  private int loads;
+  private final List<Write> journal = new ArrayList<>();
+
+  RealmSnapshot current() {
+    return snapshot.get();
+  }
+
+  @Override
+  public long estimatedBytes() {
+    final RealmSnapshot current = snapshot.get();
+    return 128L + ((current == null) ? 0L : current.estimatedBytes());
+  }
+
+  /**
+   * Claims the load of the snapshot, so only one load runs at a time.
+   *
+   * @return true if the caller has to load the snapshot.
+   */
+  boolean startLoading() {
+    return System.currentTimeMillis() >= retryAt && loading.compareAndSet(false, true);
+  }
+
+  /**
+   * Claims the restore of the snapshot from its file, only tried by the first load.
+   *
+   * @return true if the caller has to try the restore.
+   */
+  boolean claimRestore() {
+    return restoreClaimed.compareAndSet(false, true);
+  }
+
+  /**
+   * @param retryAt instant (epoch millis) before which no other load is started.
+   */
+  void endLoading(final long retryAt) {
+    this.retryAt = retryAt;
+    loading.set(false);
+  }
+
+  /**
+   * Registers a load of the snapshot, the writes applied through are kept until it ends.
+   *
+   * @return mark of the last write when the load starts.
+   */
+  synchronized long beginLoad() {
+    loads++;
+    return writes.get();
+  }
+
+  synchronized void endLoad() {
+    if (--loads == 0) {
+      journal.clear();
+    }
+  }
+
+  /**
+   * @return instant (epoch millis) the realm was last read whole, the admin events only bring the
+   *     snapshot up to date since then.
+   */
+  long getFetchedAt() {
+    return fetchedAt;
+  }
+
+  void setFetchedAt(final long fetchedAt) {
+    this.fetchedAt = fetchedAt;
+  }
+
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Records a write of the user and marks it as dirty in the current snapshot.
+   *
+   * @return the mark of the write.
+   */
+  long markWritten(final String userName) {
+    final String key = RealmSnapshot.userKey(userName);
+    final long mark = writes.incrementAndGet();
+    lastWrites.merge(key, mark, Math::max);
+    snapshot.updateAndGet(current -> (current == null) ? null
+        : current.withDirtyUsers(Map.of(key, mark)));
+    return mark;
+  }
+
+  /**
+   * Applies a write of this client to the current snapshot, without reading it back from Keycloak.
+   * The change must be idempotent, it is replayed on the snapshots being loaded.
+   *
+   * @param userName the user written, null if the write is not about a single user.
+   * @param change   the write, returning null if it can not be applied to the given snapshot
+   *                 (e.g. the user is dirty).
+   * @return false if the current snapshot could not apply the write, the caller has to fall back.
+   */
+  boolean writeThrough(final String userName, final UnaryOperator<RealmSnapshot> change) {
+    final long mark = writes.incrementAndGet();
+    synchronized (this) {
+      if (loads > 0) {
+        journal.add(new Write(mark, (userName == null) ? null : RealmSnapshot.userKey(userName),
+            change));
+      }
+    }
+    RealmSnapshot current;
+    RealmSnapshot updated;
+    do {
+      current = snapshot.get();
+      if (current == null) {
+        return true; // Nothing to update, the next load reads the write
+      }
+      updated = change.apply(current);
+      if (updated == null) {
+        return false;
+      }
+    } while (!snapshot.compareAndSet(current, updated));
+    return true;
+  }
+
+  /**
+   * Installs a loaded snapshot, unless the mirror has been invalidated since the load started.
+   *
+   * @param fresh      the snapshot loaded.
+   * @param generation generation of the mirror when the load started.
+   * @param since      mark of the last write when the load started.
+   * @return the users written during the load, to be patched in, or null if the snapshot has not
+   *     been installed.
+   */
+  Map<String, Long> install(final RealmSnapshot fresh, final long generation, final long since) {
+    final Map<String, Long> pending = new HashMap<>();
+    synchronized (this) {
+      if (generation != this.generation) {
+        return null;
+      }
+      final Map<String, Long> replayDirty = new HashMap<>();
+      final RealmSnapshot replayed = this.replay(fresh, since, replayDirty);
+      if (replayed == null) {
+        return null;
+      }
+      snapshot.updateAndGet(current -> {
+        pending.clear();
+        pending.putAll(replayDirty);
+        lastWrites.forEach((key, mark) -> {
+          if (mark > since) {
+            pending.merge(key, mark, Math::max);
+          }
+        });
+        return replayed.withDirtyUsers(pending);
+      });
+    }
+    // The older writes are already in the snapshot
+    lastWrites.values().removeIf(mark -> mark <= since);
+    return pending;
+  }
+
+  // Guarded by this: the writes applied through since the load started, in order
+  private RealmSnapshot replay(final RealmSnapshot fresh, final long since,
+      final Map<String, Long> pending) {
+    RealmSnapshot replayed = fresh;
+    for (Write write : journal) {
+      if (write.mark <= since) {
+        continue;
+      }
+      final RealmSnapshot updated = write.change.apply(replayed);
+      if (updated != null) {
+        replayed = updated;
+      } else if (write.userKey != null) {
+        pending.merge(write.userKey, write.mark, Math::max);
+        lastWrites.merge(write.userKey, write.mark, Math::max);
+      } else {
+        return null; // Can not tell what the realm looks like, wait for the next load
+      }
+    }
+    return replayed;
+  }
+
+  void patch(final UnaryOperator<RealmSnapshot> change) {
+    snapshot.updateAndGet(current -> (current == null) ? null : change.apply(current));
+  }
+
+  synchronized void invalidate() {
+    generation++;
+    journal.clear();
+    snapshot.set(null);
+  }
+
+  private static final class Write {
+
+    private final long mark;
+    private final String userKey;
+    private final UnaryOperator<RealmSnapshot> change;
+
+    private Write(long mark, String userKey, UnaryOperator<RealmSnapshot> change) {
+      this.mark = mark;
+      this.userKey = userKey;
+      this.change = change;
+    }
+  }
+}
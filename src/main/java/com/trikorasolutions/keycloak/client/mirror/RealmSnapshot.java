@@ -0,0 +1,729 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import com.trikorasolutions.keycloak.client.cache.CacheWeights;
+import com.trikorasolutions.keycloak.client.cache.Weighted;
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.dto.TrikoraGroupRepresentation;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Point in time copy of the users, groups and realm roles of a realm, with the edges between them.
+ * A snapshot is never modified: the changes produce a new snapshot, so the readers never lock. The
+ * representations returned are new objects on every call, the callers can modify them.
+ * <p>
+ * The users changed by this client since the snapshot was taken are marked as dirty until their
+ * new state is patched in. The lookups of a dirty user, and the lookups spanning several users
+ * while any user is dirty, return null: the caller has to ask Keycloak.
+ * <p>
+ * A change shares the maps and the indexes it does not touch with the snapshot it is made on, and
+ * layers the few entries it touches on top of the others ({@link LayeredMap}): writing a user
+ * through costs about the entries of that user, not a copy of the realm.
+ */
+public final class RealmSnapshot implements Weighted {
+
+  private final long loadedAt;
+  private final Map<String, JsonObject> users;
+  private final Map<String, JsonObject> groups;
+  private final Map<String, String> groupParents;
+  private final Map<String, JsonObject> roles;
+  private final Map<String, Set<String>> roleComposites;
+  private final Map<String, Set<String>> groupRoles;
+  private final Map<String, Set<String>> userGroups;
+  private final Map<String, Set<String>> userRoles;
+  private final Map<String, Long> dirtyUsers;
+
+  // Derived from the maps above, the members of each group sorted by username
+  private final Map<String, String> userIdsByName;
+  private final Map<String, String> groupIdsByName;
+  private final Map<String, String> roleIdsByName;
+  private final Map<String, List<String>> groupMembers;
+  // Built by the loader, or derived from the index of the snapshot this one was patched from
+  private volatile AuthorizationIndex authorization;
+  private final AtomicBoolean indexing = new AtomicBoolean();
+
+  RealmSnapshot(long loadedAt, Map<String, JsonObject> users, Map<String, JsonObject> groups,
+      Map<String, String> groupParents, Map<String, JsonObject> roles,
+      Map<String, Set<String>> roleComposites, Map<String, Set<String>> groupRoles,
+      Map<String, Set<String>> userGroups, Map<String, Set<String>> userRoles,
+      Map<String, Long> dirtyUsers) {
+    this(loadedAt, users, groups, groupParents, roles, roleComposites, groupRoles, userGroups,
+        userRoles, dirtyUsers, userIds(users), groupIds(groups), roleIds(roles),
+        groupMembers(users, userGroups));
+  }
+
+  // Takes the indexes derived from the maps, e.g. patched from the ones of another snapshot
+  private RealmSnapshot(long loadedAt, Map<String, JsonObject> users,
+      Map<String, JsonObject> groups, Map<String, String> groupParents,
+      Map<String, JsonObject> roles, Map<String, Set<String>> roleComposites,
+      Map<String, Set<String>> groupRoles, Map<String, Set<String>> userGroups,
+      Map<String, Set<String>> userRoles, Map<String, Long> dirtyUsers,
+      Map<String, String> userIdsByName, Map<String, String> groupIdsByName,
+      Map<String, String> roleIdsByName, Map<String, List<String>> groupMembers) {
+    this.loadedAt = loadedAt;
+    this.users = users;
+    this.groups = groups;
+    this.groupParents = groupParents;
+    this.roles = roles;
+    this.roleComposites = roleComposites;
+    this.groupRoles = groupRoles;
+    this.userGroups = userGroups;
+    this.userRoles = userRoles;
+    this.dirtyUsers = dirtyUsers;
+    this.userIdsByName = userIdsByName;
+    this.groupIdsByName = groupIdsByName;
+    this.roleIdsByName = roleIdsByName;
+    this.groupMembers = groupMembers;
+  }
+
+  private static Map<String, String> userIds(final Map<String, JsonObject> users) {
+    final Map<String, String> res = new HashMap<>();
+    users.forEach((id, user) -> res.put(userKey(user.getString("username", "")), id));
+    return res;
+  }
+
+  private static Map<String, String> groupIds(final Map<String, JsonObject> groups) {
+    final Map<String, String> res = new HashMap<>();
+    final Set<String> ambiguous = new HashSet<>();
+    groups.forEach((id, group) -> {
+      final String name = group.getString("name", null);
+      if (name != null && res.putIfAbsent(name, id) != null) {
+        ambiguous.add(name);
+      }
+    });
+    ambiguous.forEach(res::remove);
+    groups.forEach((id, group) -> {
+      if (group.containsKey("path")) {
+        res.put(group.getString("path"), id);
+      }
+    });
+    return res;
+  }
+
+  private static Map<String, String> roleIds(final Map<String, JsonObject> roles) {
+    final Map<String, String> res = new HashMap<>();
+    roles.forEach((id, role) -> res.put(role.getString("name", ""), id));
+    return res;
+  }
+
+  private static Map<String, List<String>> groupMembers(final Map<String, JsonObject> users,
+      final Map<String, Set<String>> userGroups) {
+    final Map<String, List<String>> res = new HashMap<>();
+    userGroups.forEach((userId, groupIds) -> {
+      if (users.containsKey(userId)) {
+        groupIds.forEach(groupId ->
+            res.computeIfAbsent(groupId, id -> new ArrayList<>()).add(userId));
+      }
+    });
+    res.values().forEach(members -> members.sort(byUsername(users)));
+    return res;
+  }
+
+  // The members with the user added to, or removed from, the given groups
+  private static Map<String, List<String>> withMember(final Map<String, List<String>> members,
+      final Map<String, JsonObject> users, final String userId, final Collection<String> groupIds,
+      final boolean added) {
+    Map<String, List<String>> res = members;
+    for (String groupId : groupIds) {
+      final List<String> list = new ArrayList<>(res.getOrDefault(groupId, List.of()));
+      if (added) {
+        final int at = Collections.binarySearch(list, userId, byUsername(users));
+        list.add((at < 0) ? -at - 1 : at, userId);
+      } else {
+        list.remove(userId);
+      }
+      res = list.isEmpty() ? LayeredMap.without(res, groupId)
+          : LayeredMap.with(res, groupId, list);
+    }
+    return res;
+  }
+
+  private static Comparator<String> byUsername(final Map<String, JsonObject> users) {
+    return Comparator.comparing(id -> users.get(id).getString("username", ""));
+  }
+
+  public long getLoadedAt() {
+    return loadedAt;
+  }
+
+  /**
+   * @return the age of the snapshot in millis.
+   */
+  public long getAge() {
+    return System.currentTimeMillis() - loadedAt;
+  }
+
+  public int getUserCount() {
+    return users.size();
+  }
+
+  public int getGroupCount() {
+    return groups.size();
+  }
+
+  public int getRoleCount() {
+    return roles.size();
+  }
+
+  @Override
+  public long estimatedBytes() {
+    // The indexes hold the ids of the maps, and a couple of bitsets per user
+    final int bitsets = (roles.size() + groups.size() + 127) / 64;
+    return 64L + CacheWeights.estimate(users) + CacheWeights.estimate(groups)
+        + CacheWeights.estimate(groupParents) + CacheWeights.estimate(roles)
+        + CacheWeights.estimate(roleComposites) + CacheWeights.estimate(groupRoles)
+        + CacheWeights.estimate(userGroups) + CacheWeights.estimate(userRoles)
+        + 48L * (users.size() + groups.size() + roles.size())
+        + users.size() * (48L + 8L * bitsets);
+  }
+
+  /**
+   * @return true if there are no changes of this client pending to be patched in.
+   */
+  public boolean isClean() {
+    return dirtyUsers.isEmpty();
+  }
+
+  /**
+   * Same as KeycloakClientLogic#getUserInfo: the user enriched with its effective realm roles and
+   * its groups.
+   *
+   * @param userName username of the user.
+   * @return the user, or null if it is not in the snapshot or it is dirty.
+   */
+  public KeycloakUserRepresentation getUserInfo(final String userName) {
+    final String id = this.cleanUserId(userName);
+    if (id == null) {
+      return null;
+    }
+    return KeycloakUserRepresentation.from(users.get(id))
+        .addRoles(this.effectiveRoles(id))
+        .addGroups(userGroups.getOrDefault(id, Set.of()).stream()
+            .map(groups::get)
+            .filter(Objects::nonNull)
+            .map(TrikoraGroupRepresentation::from)
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * Same as KeycloakClientLogic#getUserRoles: the effective realm roles of the user, including the
+   * ones of its groups, their parent groups and the composites of all of them.
+   *
+   * @param userName username of the user.
+   * @return the roles, or null if the user is not in the snapshot or it is dirty.
+   */
+  public List<RoleRepresentation> getUserRoles(final String userName) {
+    final String id = this.cleanUserId(userName);
+    return (id == null) ? null : this.effectiveRoles(id);
+  }
+
+  /**
+   * Same as KeycloakGroupLogic#getGroupMembers: the direct members of the group, by username.
+   *
+   * @param groupName name of the group, or its path.
+   * @param first     first member to be returned.
+   * @param recCount  maximum number of members to be returned.
+   * @return the members, or null if the group is not in the snapshot or any user is dirty.
+   */
+  public List<KeycloakUserRepresentation> getGroupMembers(final String groupName,
+      final int first, final int recCount) {
+    final String groupId = groupIdsByName.get(groupName);
+    return (groupId == null) ? null : this.getGroupMembersById(groupId, first, recCount);
+  }
+
+  /**
+   * Same as {@link #getGroupMembers(String, int, int)}, with the id of the group.
+   *
+   * @param groupId  id of the group.
+   * @param first    first member to be returned.
+   * @param recCount maximum number of members to be returned.
+   * @return the members, or null if the group is not in the snapshot or any user is dirty.
+   */
+  public List<KeycloakUserRepresentation> getGroupMembersById(final String groupId,
+      final int first, final int recCount) {
+    if (!groups.containsKey(groupId) || !this.isClean()) {
+      return null;
+    }
+    return groupMembers.getOrDefault(groupId, List.of()).stream()
+        .skip(first)
+        .limit(recCount)
+        .map(users::get)
+        .map(KeycloakUserRepresentation::from)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Same as KeycloakClientLogic#getAllUserInEffectiveRole: the users assigned the role or a
+   * composite role including it, plus the members of the groups assigned any of them and of their
+   * subgroups.
+   *
+   * @param roleName name of the realm role.
+   * @return the users, or null if the role is not in the snapshot or any user is dirty.
+   */
+  public Set<KeycloakUserRepresentation> getAllUserInEffectiveRole(final String roleName) {
+    final String roleId = roleIdsByName.get(roleName);
+    if (roleId == null || !this.isClean()) {
+      return null;
+    }
+    final Set<String> granting = this.grantingRoles(roleId);
+    final Set<String> userIds = new LinkedHashSet<>();
+    groupMembers.forEach((groupId, members) -> {
+      // The roles of the parent groups are inherited
+      for (String id = groupId; id != null; id = groupParents.get(id)) {
+        if (!Collections.disjoint(granting, groupRoles.getOrDefault(id, Set.of()))) {
+          userIds.addAll(members);
+          break;
+        }
+      }
+    });
+    userRoles.forEach((userId, roleIds) -> {
+      if (!Collections.disjoint(granting, roleIds)) {
+        userIds.add(userId);
+      }
+    });
+    return userIds.stream()
+        .map(users::get)
+        .map(KeycloakUserRepresentation::from)
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
+
+  // The role and the composite roles including it, directly or not
+  private Set<String> grantingRoles(final String roleId) {
+    final Set<String> granting = new HashSet<>();
+    final Deque<String> pending = new ArrayDeque<>(List.of(roleId));
+    while (!pending.isEmpty()) {
+      final String id = pending.pop();
+      if (granting.add(id)) {
+        roleComposites.forEach((composite, included) -> {
+          if (included.contains(id)) {
+            pending.add(composite);
+          }
+        });
+      }
+    }
+    return granting;
+  }
+
+  private String cleanUserId(final String userName) {
+    final String key = userKey(userName);
+    return dirtyUsers.containsKey(key) ? null : userIdsByName.get(key);
+  }
+
+  /**
+   * Answers whether the user has the realm role effective: assigned, inherited from its groups and
+   * their parents, or included in a composite role. Answered from memory in a few map lookups.
+   *
+   * @param userName username of the user.
+   * @param roleName name of the realm role.
+   * @return the answer, or null if the user or the role are not in the snapshot, the user is
+   *     dirty or the index of the snapshot is being built.
+   */
+  public Boolean hasEffectiveRole(final String userName, final String roleName) {
+    final String userId = this.cleanUserId(userName);
+    final String roleId = roleIdsByName.get(roleName);
+    final AuthorizationIndex index = (userId == null || roleId == null) ? null
+        : this.authorization();
+    return (index == null) ? null : index.hasRole(userId, roleId);
+  }
+
+  /**
+   * Answers whether the user is a member of the group or of any of its subgroups. Answered from
+   * memory in a few map lookups.
+   *
+   * @param userName  username of the user.
+   * @param groupName name of the group, or its path.
+   * @return the answer, or null if the user or the group are not in the snapshot, the user is
+   *     dirty or the index of the snapshot is being built.
+   */
+  public Boolean isMember(final String userName, final String groupName) {
+    final String userId = this.cleanUserId(userName);
+    final String groupId = groupIdsByName.get(groupName);
+    final AuthorizationIndex index = (userId == null || groupId == null) ? null
+        : this.authorization();
+    return (index == null) ? null : index.isMember(userId, groupId);
+  }
+
+  /**
+   * Builds the authorization index of the snapshot, unless it has one. The loader calls it on a
+   * worker thread before installing the snapshot, so no check waits for it.
+   *
+   * @return this snapshot.
+   */
+  RealmSnapshot indexed() {
+    if (authorization == null) {
+      // Two threads may both build it, they build the same index
+      authorization = AuthorizationIndex.of(this);
+    }
+    return this;
+  }
+
+  // Null while the index is built on a worker thread, never on the thread of the check
+  private AuthorizationIndex authorization() {
+    final AuthorizationIndex index = authorization;
+    if (index == null && indexing.compareAndSet(false, true)) {
+      Infrastructure.getDefaultWorkerPool().execute(this::indexed);
+    }
+    return index;
+  }
+
+  // The index of a copy with the same users, roles and groups
+  private RealmSnapshot sameIndex(final RealmSnapshot copy) {
+    copy.authorization = authorization;
+    return copy;
+  }
+
+  // The index of a copy where only the given users changed
+  private RealmSnapshot patchedIndex(final RealmSnapshot copy, final String... userIds) {
+    return this.patchedIndex(copy, Arrays.stream(userIds).filter(Objects::nonNull)
+        .collect(Collectors.toSet()));
+  }
+
+  private RealmSnapshot patchedIndex(final RealmSnapshot copy, final Set<String> userIds) {
+    final AuthorizationIndex index = authorization;
+    copy.authorization = (index == null) ? null : index.withUsers(copy, userIds);
+    return copy;
+  }
+
+  /**
+   * @return ids of the realm roles the user has effective.
+   */
+  Set<String> effectiveRoleIds(final String userId) {
+    final Set<String> granted = new HashSet<>(userRoles.getOrDefault(userId, Set.of()));
+    for (String groupId : userGroups.getOrDefault(userId, Set.of())) {
+      // The roles of the parent groups are inherited
+      for (String id = groupId; id != null; id = groupParents.get(id)) {
+        granted.addAll(groupRoles.getOrDefault(id, Set.of()));
+      }
+    }
+    final Set<String> effective = new LinkedHashSet<>();
+    final Deque<String> pending = new ArrayDeque<>(granted);
+    while (!pending.isEmpty()) {
+      final String roleId = pending.pop();
+      if (effective.add(roleId)) {
+        pending.addAll(roleComposites.getOrDefault(roleId, Set.of()));
+      }
+    }
+    effective.retainAll(roles.keySet());
+    return effective;
+  }
+
+  /**
+   * @return ids of the groups the user is a member of, directly or through a subgroup.
+   */
+  Set<String> memberGroupIds(final String userId) {
+    final Set<String> res = new HashSet<>();
+    for (String groupId : userGroups.getOrDefault(userId, Set.of())) {
+      // Up to the root, or to a parent already added
+      String id = groupId;
+      while (id != null && res.add(id)) {
+        id = groupParents.get(id);
+      }
+    }
+    res.retainAll(groups.keySet());
+    return res;
+  }
+
+  private List<RoleRepresentation> effectiveRoles(final String userId) {
+    return this.effectiveRoleIds(userId).stream()
+        .map(roles::get)
+        .filter(Objects::nonNull)
+        .map(RoleRepresentation::from)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @param marks the last write of each user changed, by lower case username.
+   * @return a copy of the snapshot where the given users are dirty.
+   */
+  RealmSnapshot withDirtyUsers(final Map<String, Long> marks) {
+    if (marks.isEmpty()) {
+      return this;
+    }
+    final Map<String, Long> dirty = new HashMap<>(dirtyUsers);
+    marks.forEach((key, mark) -> dirty.merge(key, mark, Math::max));
+    return this.sameIndex(this.withDirty(dirty));
+  }
+
+  private RealmSnapshot withDirty(final Map<String, Long> dirty) {
+    return new RealmSnapshot(loadedAt, users, groups, groupParents, roles, roleComposites,
+        groupRoles, userGroups, userRoles, dirty, userIdsByName, groupIdsByName, roleIdsByName,
+        groupMembers);
+  }
+
+  /**
+   * Patches in the state of a user read after the given write. The patch is dropped if the user
+   * has been written again since then, a newer patch is on its way.
+   *
+   * @param userName username the patch was read for.
+   * @param mark     the write the patch was read after.
+   * @param user     the user, null if it does not exist any more.
+   * @param groupsOf the direct groups of the user.
+   * @param rolesOf  the realm roles directly mapped to the user.
+   * @return the patched snapshot, or this one if the patch is outdated.
+   */
+  RealmSnapshot withUser(final String userName, final long mark, final JsonObject user,
+      final Collection<JsonObject> groupsOf, final Collection<JsonObject> rolesOf) {
+    final String key = userKey(userName);
+    if (dirtyUsers.getOrDefault(key, -1L) != mark) {
+      return this;
+    }
+    final Map<String, Long> dirty = new HashMap<>(dirtyUsers);
+    dirty.remove(key);
+    final String oldId = userIdsByName.get(key);
+    RealmSnapshot res = ((oldId == null) ? this : this.removed(oldId)).withDirty(dirty);
+    if (user == null) {
+      return this.patchedIndex(res, oldId);
+    }
+    final String id = user.getString("id");
+    if (res.users.containsKey(id)) {
+      // Renamed by others since the load, known by its former name
+      res = res.removed(id);
+    }
+    res = res.withKnown(groupsOf, rolesOf).added(id, user,
+        groupsOf.stream().map(group -> group.getString("id"))
+            .collect(Collectors.toUnmodifiableSet()),
+        rolesOf.stream().map(role -> role.getString("id"))
+            .collect(Collectors.toUnmodifiableSet()));
+    return this.patchedIndex(res, oldId, id);
+  }
+
+  // A copy without the user and its edges
+  private RealmSnapshot removed(final String id) {
+    final String userName = users.get(id).getString("username", "");
+    return new RealmSnapshot(loadedAt, LayeredMap.without(users, id), groups, groupParents, roles,
+        roleComposites, groupRoles, LayeredMap.without(userGroups, id),
+        LayeredMap.without(userRoles, id), dirtyUsers,
+        LayeredMap.without(userIdsByName, userKey(userName)), groupIdsByName, roleIdsByName,
+        withMember(groupMembers, users, id, userGroups.getOrDefault(id, Set.of()), false));
+  }
+
+  // A copy with the user and its edges, the user must not be in this one
+  private RealmSnapshot added(final String id, final JsonObject user, final Set<String> groupIds,
+      final Set<String> roleIds) {
+    final Map<String, JsonObject> newUsers = LayeredMap.with(users, id, user);
+    return new RealmSnapshot(loadedAt, newUsers, groups, groupParents, roles, roleComposites,
+        groupRoles, LayeredMap.with(userGroups, id, groupIds),
+        LayeredMap.with(userRoles, id, roleIds), dirtyUsers,
+        LayeredMap.with(userIdsByName, userKey(user.getString("username", "")), id),
+        groupIdsByName, roleIdsByName, withMember(groupMembers, newUsers, id, groupIds, true));
+  }
+
+  // A copy with the groups and roles not in this one yet, e.g. created after the load
+  private RealmSnapshot withKnown(final Collection<JsonObject> groupsOf,
+      final Collection<JsonObject> rolesOf) {
+    Map<String, JsonObject> newGroups = groups;
+    for (JsonObject group : groupsOf) {
+      if (!newGroups.containsKey(group.getString("id"))) {
+        newGroups = LayeredMap.with(newGroups, group.getString("id"), group);
+      }
+    }
+    Map<String, JsonObject> newRoles = roles;
+    for (JsonObject role : rolesOf) {
+      if (!newRoles.containsKey(role.getString("id"))) {
+        newRoles = LayeredMap.with(newRoles, role.getString("id"), role);
+      }
+    }
+    if (newGroups == groups && newRoles == roles) {
+      return this;
+    }
+    // Rare, their names are indexed again
+    return new RealmSnapshot(loadedAt, users, newGroups, groupParents, newRoles, roleComposites,
+        groupRoles, userGroups, userRoles, dirtyUsers, userIdsByName,
+        (newGroups == groups) ? groupIdsByName : groupIds(newGroups),
+        (newRoles == roles) ? roleIdsByName : roleIds(newRoles), groupMembers);
+  }
+
+  /**
+   * @param userName username of the user updated.
+   * @param fields   the fields of the user written, the missing ones are kept.
+   * @return a copy of the snapshot with the user updated, or null if the user is not in the
+   *     snapshot or it is dirty.
+   */
+  RealmSnapshot withUserFields(final String userName, final JsonObject fields) {
+    final String id = this.cleanUserId(userName);
+    if (id == null) {
+      return null;
+    }
+    final JsonObjectBuilder builder = Json.createObjectBuilder(users.get(id));
+    fields.forEach(builder::add);
+    final JsonObject user = builder.build();
+    if (!user.getString("username", "").equals(users.get(id).getString("username", ""))) {
+      // Renamed: indexed again by its new name, and sorted again among the members of its groups
+      return this.sameIndex(this.removed(id).added(id, user,
+          userGroups.getOrDefault(id, Set.of()), userRoles.getOrDefault(id, Set.of())));
+    }
+    return this.sameIndex(new RealmSnapshot(loadedAt, LayeredMap.with(users, id, user), groups,
+        groupParents, roles, roleComposites, groupRoles, userGroups, userRoles, dirtyUsers,
+        userIdsByName, groupIdsByName, roleIdsByName, groupMembers));
+  }
+
+  /**
+   * @return a copy of the snapshot without the user, or null if the user is dirty.
+   */
+  RealmSnapshot withoutUser(final String userName) {
+    final String key = userKey(userName);
+    if (dirtyUsers.containsKey(key)) {
+      return null;
+    }
+    final String id = userIdsByName.get(key);
+    if (id == null) {
+      return this;
+    }
+    return this.patchedIndex(this.removed(id), id);
+  }
+
+  /**
+   * @param userName username of the user.
+   * @param groupId  id of the group.
+   * @param member   true if the user joined the group, false if it left it.
+   * @return a copy of the snapshot with the membership changed, or null if the user or the group
+   *     are not in the snapshot or the user is dirty.
+   */
+  RealmSnapshot withMembership(final String userName, final String groupId,
+      final boolean member) {
+    final String id = this.cleanUserId(userName);
+    if (id == null || !groups.containsKey(groupId)) {
+      return null;
+    }
+    final Set<String> current = userGroups.getOrDefault(id, Set.of());
+    if (current.contains(groupId) == member) {
+      return this;
+    }
+    return this.patchedIndex(new RealmSnapshot(loadedAt, users, groups, groupParents, roles,
+        roleComposites, groupRoles,
+        LayeredMap.with(userGroups, id, changed(current, Set.of(groupId), member)), userRoles,
+        dirtyUsers, userIdsByName, groupIdsByName, roleIdsByName,
+        withMember(groupMembers, users, id, Set.of(groupId), member)), id);
+  }
+
+  /**
+   * @param groupId id of the group.
+   * @param roleIds ids of the realm roles.
+   * @param granted true if the roles were added to the group, false if they were removed.
+   * @return a copy of the snapshot with the roles of the group changed, or null if the group or
+   *     any role are not in the snapshot.
+   */
+  RealmSnapshot withGroupRoles(final String groupId, final Collection<String> roleIds,
+      final boolean granted) {
+    if (!groups.containsKey(groupId) || !roles.keySet().containsAll(roleIds)) {
+      return null;
+    }
+    // The members of the group and of its subgroups inherit the roles
+    final Set<String> affected = new HashSet<>();
+    this.subtree(groupId).forEach(id -> affected.addAll(groupMembers.getOrDefault(id, List.of())));
+    return this.patchedIndex(new RealmSnapshot(loadedAt, users, groups, groupParents, roles,
+        roleComposites, LayeredMap.with(groupRoles, groupId,
+            changed(groupRoles.getOrDefault(groupId, Set.of()), roleIds, granted)), userGroups,
+        userRoles, dirtyUsers, userIdsByName, groupIdsByName, roleIdsByName, groupMembers),
+        affected);
+  }
+
+  // The group and its subgroups, at any depth
+  private Set<String> subtree(final String groupId) {
+    final Set<String> res = new HashSet<>(Set.of(groupId));
+    boolean grown = true;
+    while (grown) {
+      grown = false;
+      for (Map.Entry<String, String> edge : groupParents.entrySet()) {
+        if (res.contains(edge.getValue()) && res.add(edge.getKey())) {
+          grown = true;
+        }
+      }
+    }
+    return res;
+  }
+
+  private static Set<String> changed(final Set<String> ids, final Collection<String> changes,
+      final boolean added) {
+    final Set<String> res = new HashSet<>(ids);
+    if (added) {
+      res.addAll(changes);
+    } else {
+      res.removeAll(changes);
+    }
+    return Set.copyOf(res);
+  }
+
+  /**
+   * @param loadedAt instant (epoch millis) the copy reflects the realm at.
+   * @return a copy of the snapshot stamped with another load instant, e.g. once a snapshot read
+   *     from disk has been brought up to date.
+   */
+  RealmSnapshot withLoadedAt(final long loadedAt) {
+    return this.sameIndex(new RealmSnapshot(loadedAt, users, groups, groupParents, roles,
+        roleComposites, groupRoles, userGroups, userRoles, dirtyUsers, userIdsByName,
+        groupIdsByName, roleIdsByName, groupMembers));
+  }
+
+  // The parts of the snapshot, to persist it
+  Map<String, JsonObject> users() {
+    return users;
+  }
+
+  Map<String, JsonObject> groups() {
+    return groups;
+  }
+
+  Map<String, String> groupParents() {
+    return groupParents;
+  }
+
+  Map<String, JsonObject> roles() {
+    return roles;
+  }
+
+  Map<String, Set<String>> roleComposites() {
+    return roleComposites;
+  }
+
+  Map<String, Set<String>> groupRoles() {
+    return groupRoles;
+  }
+
+  Map<String, Set<String>> userGroups() {
+    return userGroups;
+  }
+
+  Map<String, Set<String>> userRoles() {
+    return userRoles;
+  }
+
+  /**
+   * @return the users changed by this client not patched in yet, by lower case username.
+   */
+  Set<String> dirtyUsers() {
+    return dirtyUsers.keySet();
+  }
+
+  /**
+   * @return the username of the user with the given id, null if it is not in the snapshot.
+   */
+  String getUserName(final String userId) {
+    final JsonObject user = users.get(userId);
+    return (user == null) ? null : user.getString("username", null);
+  }
+
+  static String userKey(final String userName) {
+    return userName.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,234 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Binary file of the snapshot of a realm, so a restart only fetches the changes made since it was
+ * written. The layout, all numbers big endian and the strings as a length and their UTF-8 bytes:
+ * <pre>
+ * int    magic "TKRS"
+ * int    version
+ * long   CRC32 of the payload
+ * int    length of the payload
+ * payload:
+ *   string realm
+ *   long   load instant of the snapshot, the checkpoint of the admin events it includes
+ *   users, groups, roles:   int count, then id and JSON representation of each
+ *   group parents:          int count, then group id and parent id of each
+ *   role composites, group roles, user groups, user roles: int count, then the id and the ids
+ *                           it is mapped to (int count and the ids) of each
+ * </pre>
+ * The file is written to a temporary file and moved in place, and read back memory mapped. A file
+ * of another version, of another realm or with a wrong checksum is ignored.
+ */
+final class SnapshotFile {
+
+  private static final int MAGIC = 0x544B5253;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 20;
+
+  private SnapshotFile() {
+  }
+
+  /**
+   * @param dir   directory of the snapshot files.
+   * @param realm the realm name.
+   * @return the file of the realm.
+   */
+  static Path of(final Path dir, final String realm) {
+    return dir.resolve(realm.replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot");
+  }
+
+  static void write(final Path file, final String realm, final RealmSnapshot snapshot)
+      throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      writeString(out, realm);
+      out.writeLong(snapshot.getLoadedAt());
+      writeObjects(out, snapshot.users());
+      writeObjects(out, snapshot.groups());
+      writeObjects(out, snapshot.roles());
+      out.writeInt(snapshot.groupParents().size());
+      for (Map.Entry<String, String> parent : snapshot.groupParents().entrySet()) {
+        writeString(out, parent.getKey());
+        writeString(out, parent.getValue());
+      }
+      writeEdges(out, snapshot.roleComposites());
+      writeEdges(out, snapshot.groupRoles());
+      writeEdges(out, snapshot.userGroups());
+      writeEdges(out, snapshot.userRoles());
+    }
+    final byte[] payload = bytes.toByteArray();
+    final CRC32 crc = new CRC32();
+    crc.update(payload);
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+        .putInt(MAGIC).putInt(VERSION).putLong(crc.getValue()).putInt(payload.length);
+    header.flip();
+
+    Files.createDirectories(file.getParent());
+    // Only readable by its owner where the file system has permissions, it holds the users
+    final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      final ByteBuffer[] buffers = {header, ByteBuffer.wrap(payload)};
+      while (buffers[1].hasRemaining()) {
+        channel.write(buffers);
+      }
+      channel.force(true);
+    } catch (IOException ex) {
+      Files.deleteIfExists(tmp);
+      throw ex;
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * @param file  the file of the realm.
+   * @param realm the realm name.
+   * @return the snapshot in the file, clean, or null if there is no file.
+   * @throws IOException if the file can not be read, or it is corrupt or outdated.
+   */
+  static RealmSnapshot read(final Path file, final String realm) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+        throw new IOException("Unexpected size " + size);
+      }
+      final MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (in.getInt() != MAGIC) {
+        throw new IOException("Not a snapshot file");
+      }
+      final int version = in.getInt();
+      if (version != VERSION) {
+        throw new IOException("Snapshot version " + version + " instead of " + VERSION);
+      }
+      final long checksum = in.getLong();
+      if (in.getInt() != size - HEADER_SIZE) {
+        throw new IOException("Truncated snapshot");
+      }
+      final CRC32 crc = new CRC32();
+      crc.update(in.slice());
+      if (crc.getValue() != checksum) {
+        throw new IOException("Wrong checksum");
+      }
+      return readPayload(in, realm);
+    } catch (BufferUnderflowException | IllegalArgumentException | JsonException ex) {
+      throw new IOException("Corrupt snapshot: " + ex.getMessage(), ex);
+    }
+  }
+
+  private static RealmSnapshot readPayload(final ByteBuffer in, final String realm)
+      throws IOException {
+    final String fileRealm = readString(in);
+    if (!realm.equals(fileRealm)) {
+      throw new IOException("Snapshot of the realm " + fileRealm);
+    }
+    final long loadedAt = in.getLong();
+    final Map<String, JsonObject> users = readObjects(in);
+    final Map<String, JsonObject> groups = readObjects(in);
+    final Map<String, JsonObject> roles = readObjects(in);
+    final int parentCount = readCount(in);
+    final Map<String, String> groupParents = new HashMap<>(parentCount * 2);
+    for (int i = 0; i < parentCount; i++) {
+      groupParents.put(readString(in), readString(in));
+    }
+    return new RealmSnapshot(loadedAt, users, groups, groupParents, roles, readEdges(in),
+        readEdges(in), readEdges(in), readEdges(in), Map.of());
+  }
+
+  private static void writeObjects(final DataOutputStream out,
+      final Map<String, JsonObject> objects) throws IOException {
+    out.writeInt(objects.size());
+    for (Map.Entry<String, JsonObject> object : objects.entrySet()) {
+      writeString(out, object.getKey());
+      writeString(out, object.getValue().toString());
+    }
+  }
+
+  private static Map<String, JsonObject> readObjects(final ByteBuffer in) throws IOException {
+    final int count = readCount(in);
+    final Map<String, JsonObject> objects = new HashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      final String id = readString(in);
+      try (JsonReader reader = Json.createReader(new StringReader(readString(in)))) {
+        objects.put(id, reader.readObject());
+      }
+    }
+    return objects;
+  }
+
+  private static void writeEdges(final DataOutputStream out,
+      final Map<String, Set<String>> edges) throws IOException {
+    out.writeInt(edges.size());
+    for (Map.Entry<String, Set<String>> edge : edges.entrySet()) {
+      writeString(out, edge.getKey());
+      out.writeInt(edge.getValue().size());
+      for (String id : edge.getValue()) {
+        writeString(out, id);
+      }
+    }
+  }
+
+  private static Map<String, Set<String>> readEdges(final ByteBuffer in) throws IOException {
+    final int count = readCount(in);
+    final Map<String, Set<String>> edges = new HashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      final String id = readString(in);
+      final String[] ids = new String[readCount(in)];
+      for (int j = 0; j < ids.length; j++) {
+        ids[j] = readString(in);
+      }
+      edges.put(id, Set.of(ids));
+    }
+    return edges;
+  }
+
+  private static void writeString(final DataOutputStream out, final String value)
+      throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(final ByteBuffer in) throws IOException {
+    final byte[] bytes = new byte[readCount(in)];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // The checksum already passed, a bad count means a bug or a hand edited file
+  private static int readCount(final ByteBuffer in) throws IOException {
+    final int count = in.getInt();
+    if (count < 0 || count > in.remaining()) {
+      throw new IOException("Corrupt count " + count);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,216 @@
+package com.trikorasolutions.keycloak.client.realm;
+
+import com.trikorasolutions.keycloak.client.cache.KeycloakCacheMemory;
+import com.trikorasolutions.keycloak.client.token.KeycloakTokenManager;
+import io.smallrye.mutiny.Uni;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes the work of each realm to its own {@link RealmContext}, so a realm running a bulk job only
+ * exhausts its own limit of requests in flight. The contexts are created on first use and dropped
+ * after being idle for the configured time.
+ * <p>
+ * Each realm can override the defaults with:
+ * <pre>
+ * trikora.keycloak.realms.&lt;realm&gt;.client-id=backend-service
+ * trikora.keycloak.realms.&lt;realm&gt;.client-secret=...
+ * trikora.keycloak.realms.&lt;realm&gt;.buffer-size=100
+ * trikora.keycloak.realms.&lt;realm&gt;.max-in-flight=16
+ * trikora.keycloak.realms.&lt;realm&gt;.mirror=true
+ * </pre>
+ */
+@ApplicationScoped
+public final class KeycloakRealmRouter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakRealmRouter.class);
+  private static final String REALM_PREFIX = "trikora.keycloak.realms.";
+
+  @ConfigProperty(name = "trikora.keycloak.buffer-size")
+  private Integer KC_BUFFER_SIZE;
+
+  @ConfigProperty(name = "trikora.keycloak.realm.max-in-flight", defaultValue = "32")
+  private Integer MAX_IN_FLIGHT;
+
+  @ConfigProperty(name = "trikora.keycloak.realm.idle-timeout", defaultValue = "600")
+  private Integer IDLE_TIMEOUT;
+
+  @ConfigProperty(name = "trikora.keycloak.realm.max-realms", defaultValue = "1000")
+  private Integer MAX_REALMS;
+
+  @ConfigProperty(name = "trikora.keycloak.mirror.enabled", defaultValue = "false")
+  private Boolean MIRROR_ENABLED;
+
+  @ConfigProperty(name = "trikora.keycloak.single-flight.enabled", defaultValue = "true")
+  private Boolean SINGLE_FLIGHT_ENABLED;
+
+  @Inject
+  private Config config;
+
+  @Inject
+  private KeycloakTokenManager tokenManager;
+
+  @Inject
+  private KeycloakCacheMemory memory;
+
+  private final Map<String, RealmContext> contexts = new ConcurrentHashMap<>();
+  private final AtomicLong nextSweep = new AtomicLong();
+
+  /**
+   * Returns the context of the realm, creating it on first use.
+   *
+   * @param realm the realm name.
+   * @return the context of the realm.
+   */
+  public RealmContext context(final String realm) {
+    this.sweepIfDue();
+    final RealmContext context = contexts.computeIfAbsent(realm, this::create);
+    context.touch();
+    return context;
+  }
+
+  /**
+   * Returns the context of the realm if it is live, without creating it nor counting it as used,
+   * so background work on the realm does not keep it from going idle.
+   *
+   * @param realm the realm name.
+   * @return the context of the realm, or null if it has none.
+   */
+  public RealmContext getIfActive(final String realm) {
+    return contexts.get(realm);
+  }
+
+  /**
+   * Runs a request against Keycloak within the limit of requests in flight of its realm.
+   *
+   * @param realm   the realm name the request is addressed to.
+   * @param request supplier of the request to be run.
+   * @param <T>     type of the result of the request.
+   * @return the result of the request.
+   */
+  public <T> Uni<T> submit(final String realm, final Supplier<Uni<T>> request) {
+    return Uni.createFrom().deferred(() -> this.context(realm).submit(request));
+  }
+
+  /**
+   * Runs an idempotent read against Keycloak within the limit of requests in flight of its realm.
+   * The callers asking for the same read at the same time share a single request.
+   *
+   * @param realm   the realm name the request is addressed to.
+   * @param key     identity of the read, see {@link SingleFlight#key(Object...)}: the endpoint,
+   *                its parameters and the authorization.
+   * @param request supplier of the request to be run.
+   * @param <T>     type of the result of the request.
+   * @return the result of the request.
+   */
+  public <T> Uni<T> read(final String realm, final String key, final Supplier<Uni<T>> request) {
+    if (!SINGLE_FLIGHT_ENABLED) {
+      return this.submit(realm, request);
+    }
+    return Uni.createFrom().deferred(() -> this.context(realm).read(key, request));
+  }
+
+  /**
+   * Makes the reads of the realm started from now on ignore the ones in flight, after a change.
+   *
+   * @param realm the realm name.
+   */
+  public void changed(final String realm) {
+    final RealmContext context = contexts.get(realm);
+    if (context != null) {
+      context.getReads().forget();
+    }
+  }
+
+  /**
+   * @param realm the realm name.
+   * @return number of records asked to Keycloak on each page of a listing of the realm.
+   */
+  public int getPageSize(final String realm) {
+    return this.context(realm).getPageSize();
+  }
+
+  /**
+   * Get the service token of the client configured for the realm. It can throw
+   * TrikoraGenericException if the realm has no client configured.
+   *
+   * @param realm the realm name.
+   * @return an access token of the service account of the realm client.
+   */
+  public Uni<String> getServiceToken(final String realm) {
+    return Uni.createFrom().deferred(() -> this.context(realm).getServiceToken());
+  }
+
+  /**
+   * Drops the context of the realm and all its cached state.
+   *
+   * @param realm the realm name.
+   */
+  public void evict(final String realm) {
+    final RealmContext context = contexts.remove(realm);
+    if (context != null) {
+      context.close();
+    }
+  }
+
+  /**
+   * @return the names of the realms with a live context.
+   */
+  public Set<String> getActiveRealms() {
+    return Set.copyOf(contexts.keySet());
+  }
+
+  private RealmContext create(final String realm) {
+    LOGGER.debug("Creating the context of the realm {}", realm);
+    return new RealmContext(realm,
+        config.getOptionalValue(REALM_PREFIX + realm + ".client-id", String.class).orElse(null),
+        config.getOptionalValue(REALM_PREFIX + realm + ".client-secret", String.class)
+            .orElse(null),
+        config.getOptionalValue(REALM_PREFIX + realm + ".buffer-size", Integer.class)
+            .orElse(KC_BUFFER_SIZE),
+        config.getOptionalValue(REALM_PREFIX + realm + ".max-in-flight", Integer.class)
+            .orElse(MAX_IN_FLIGHT),
+        config.getOptionalValue(REALM_PREFIX + realm + ".mirror", Boolean.class)
+            .orElse(MIRROR_ENABLED),
+        tokenManager, memory);
+  }
+
+  // Checked on the way, at most once every tenth of the idle timeout
+  private void sweepIfDue() {
+    final long now = System.currentTimeMillis();
+    final long due = nextSweep.get();
+    if ((now < due && contexts.size() < MAX_REALMS) || !nextSweep.compareAndSet(due,
+        now + IDLE_TIMEOUT * 100L)) {
+      return;
+    }
+    final long idleSince = now - IDLE_TIMEOUT * 1000L;
+    contexts.forEach((realm, context) -> {
+      if (context.isIdleSince(idleSince) && contexts.remove(realm, context)) {
+        LOGGER.debug("Dropping the idle context of the realm {}", realm);
+        context.close();
+      }
+    });
+    // Still too many realms: drop the least recently used idle ones
+    if (contexts.size() >= MAX_REALMS) {
+      contexts.values().stream()
+          .filter(context -> context.isIdleSince(now))
+          .sorted(Comparator.comparingLong(RealmContext::getLastAccess))
+          .limit(contexts.size() - MAX_REALMS + 1L)
+          .forEach(context -> {
+            if (contexts.remove(context.getRealm(), context)) {
+              context.close();
+            }
+          });
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.trikorasolutions.keycloak.client.realm;
+
+import com.trikorasolutions.keycloak.client.cache.CacheStats;
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
+import com.trikorasolutions.keycloak.client.cache.KeycloakCacheMemory;
+import com.trikorasolutions.keycloak.client.exception.TrikoraGenericException;
+import com.trikorasolutions.keycloak.client.token.KeycloakTokenManager;
+import io.smallrye.mutiny.Uni;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * State of one realm: the client used to get its service token, its page size, its own limit of
+ * requests in flight and its partition of the caches. It is created by the
+ * {@link KeycloakRealmRouter} the first time the realm is used and dropped when it stays idle, so
+ * the state of a realm never outlives its context.
+ */
+public final class RealmContext {
+
+  private final String realm;
+  private final String clientId;
+  private final String clientSecret;
+  private final int pageSize;
+  private final boolean mirrored;
+  private final RequestLimiter limiter;
+  private final SingleFlight reads = new SingleFlight();
+  private final KeycloakTokenManager tokenManager;
+  private final KeycloakCacheMemory memory;
+  private final Map<String, ExpiringCache<?, ?>> caches = new ConcurrentHashMap<>();
+  private final long createdAt;
+  private volatile long lastAccess;
+
+  RealmContext(String realm, String clientId, String clientSecret, int pageSize,
+      int maxInFlight, boolean mirrored, KeycloakTokenManager tokenManager,
+      KeycloakCacheMemory memory) {
+    this.realm = realm;
+    this.clientId = clientId;
+    this.clientSecret = clientSecret;
+    this.pageSize = pageSize;
+    this.mirrored = mirrored;
+    this.limiter = new RequestLimiter(maxInFlight);
+    this.tokenManager = tokenManager;
+    this.memory = memory;
+    this.createdAt = System.currentTimeMillis();
+    this.lastAccess = createdAt;
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  /**
+   * @return id of the client configured for the realm, null if there is none.
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * @return number of records asked to Keycloak on each page of a listing.
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * @return true if the reads of the realm can be served by its mirror.
+   */
+  public boolean isMirrored() {
+    return mirrored;
+  }
+
+  public RequestLimiter getLimiter() {
+    return limiter;
+  }
+
+  public SingleFlight getReads() {
+    return reads;
+  }
+
+  /**
+   * Get the service token of the client configured for the realm. It can throw
+   * TrikoraGenericException if the realm has no client configured.
+   *
+   * @return an access token of the service account of the realm client.
+   */
+  public Uni<String> getServiceToken() {
+    if (clientId == null || clientSecret == null) {
+      return Uni.createFrom().failure(
+          new TrikoraGenericException("There is no client configured for the realm " + realm));
+    }
+    return tokenManager.getServiceToken(realm, clientId, clientSecret);
+  }
+
+  /**
+   * Runs a request against Keycloak within the limit of requests in flight of the realm.
+   *
+   * @param request supplier of the request to be run.
+   * @param <T>     type of the result of the request.
+   * @return the result of the request.
+   */
+  public <T> Uni<T> submit(final Supplier<Uni<T>> request) {
+    this.touch();
+    return limiter.submit(request);
+  }
+
+  /**
+   * Same as {@link #submit(Supplier)} for an idempotent read, joining the identical read already in
+   * flight if there is one.
+   *
+   * @param key     identity of the read: its endpoint, parameters and authorization.
+   * @param request supplier of the request to be run.
+   * @param <T>     type of the result of the request.
+   * @return the result of the request.
+   */
+  public <T> Uni<T> read(final String key, final Supplier<Uni<T>> request) {
+    this.touch();
+    return reads.run(key, () -> limiter.submit(request));
+  }
+
+  /**
+   * Returns the cache of the realm with the given name, creating it on first use. The caches of
+   * all the realms share the memory budget of the {@link KeycloakCacheMemory}.
+   *
+   * @param name       name of the cache, unique within the realm.
+   * @param maxEntries maximum number of entries of the cache.
+   * @param defaultTtl time to live of the entries.
+   * @param <K>        type of the keys.
+   * @param <V>        type of the values.
+   * @return the cache partition of the realm.
+   */
+  @SuppressWarnings("unchecked")
+  public <K, V> ExpiringCache<K, V> cache(final String name, final int maxEntries,
+      final Duration defaultTtl) {
+    this.touch();
+    return (ExpiringCache<K, V>) caches.computeIfAbsent(name,
+        n -> memory.create(realm + '/' + n, maxEntries, defaultTtl));
+  }
+
+  public List<CacheStats> cacheStats() {
+    return caches.values().stream().map(ExpiringCache::stats).collect(Collectors.toList());
+  }
+
+  /**
+   * @return instant (epoch millis) the context was created, nothing of the realm is cached from
+   *     before it.
+   */
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  long getLastAccess() {
+    return lastAccess;
+  }
+
+  void touch() {
+    lastAccess = System.currentTimeMillis();
+  }
+
+  boolean isIdleSince(final long instant) {
+    return lastAccess < instant && limiter.isIdle();
+  }
+
+  /**
+   * Drops every cached entry of the realm, e.g. when it has changed too much to tell what.
+   */
+  public void invalidateCaches() {
+    reads.forget();
+    caches.values().forEach(ExpiringCache::invalidateAll);
+  }
+
+  void close() {
+    this.invalidateCaches();
+    if (clientId != null) {
+      tokenManager.invalidate(realm, clientId);
+    }
+  }
+}
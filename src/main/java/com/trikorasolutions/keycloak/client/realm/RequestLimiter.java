@@ -0,0 +1,137 @@
+package com.trikorasolutions.keycloak.client.realm;
+
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.Cancellable;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of requests in flight. The requests over the limit wait in FIFO order until
+ * one of the running requests ends, nothing is blocked while waiting.
+ */
+public final class RequestLimiter {
+
+  private final int maxInFlight;
+
+  // Guarded by this
+  private int inFlight;
+  private final Queue<Runnable> waiting = new ArrayDeque<>();
+  // A thread is handing the permits to the waiting requests. Guarded by this
+  private boolean handingOff;
+  private final LongAdder started = new LongAdder();
+
+  /**
+   * @param maxInFlight maximum number of requests running at the same time.
+   */
+  public RequestLimiter(final int maxInFlight) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("The limit of requests in flight must be positive");
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Runs the request as soon as there is room for it. The request is not started if the caller
+   * cancels while waiting.
+   *
+   * @param request supplier of the request to be run.
+   * @param <T>     type of the result of the request.
+   * @return the result of the request.
+   */
+  public <T> Uni<T> submit(final Supplier<Uni<T>> request) {
+    return Uni.createFrom().emitter(emitter -> {
+      final AtomicBoolean terminated = new AtomicBoolean();
+      final AtomicReference<Cancellable> running = new AtomicReference<>();
+      emitter.onTermination(() -> {
+        terminated.set(true);
+        final Cancellable cancellable = running.get();
+        if (cancellable != null) {
+          cancellable.cancel();
+        }
+      });
+      this.acquire(() -> {
+        if (terminated.get()) {
+          // Cancelled while waiting, hand the permit to the next one
+          this.release();
+          return;
+        }
+        started.increment();
+        final Cancellable cancellable = Uni.createFrom().deferred(request::get)
+            // Called once, on item, failure or cancellation
+            .onTermination().invoke(this::release)
+            .subscribe().with(emitter::complete, emitter::fail);
+        // Set before checking, so either this or the termination callback cancels it
+        running.set(cancellable);
+        if (terminated.get()) {
+          cancellable.cancel();
+        }
+      });
+    });
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  /**
+   * @return the number of requests started since the creation of the limiter.
+   */
+  public long getStarted() {
+    return started.sum();
+  }
+
+  public synchronized boolean isIdle() {
+    return inFlight == 0 && waiting.isEmpty();
+  }
+
+  private void acquire(final Runnable start) {
+    synchronized (this) {
+      if (inFlight >= maxInFlight) {
+        waiting.add(start);
+        return;
+      }
+      inFlight++;
+    }
+    start.run();
+  }
+
+  // The requests started here may end at once, or be cancelled ones, and release again: those
+  // nested calls only return the permit and this loop hands it on, so the stack does not grow
+  // with the number of waiting requests
+  private void release() {
+    synchronized (this) {
+      inFlight--;
+      if (handingOff) {
+        return;
+      }
+      handingOff = true;
+    }
+    while (true) {
+      final Runnable next;
+      synchronized (this) {
+        next = (inFlight < maxInFlight) ? waiting.poll() : null;
+        if (next == null) {
+          handingOff = false;
+          return;
+        }
+        inFlight++;
+      }
+      try {
+        next.run();
+      } catch (RuntimeException ex) {
+        synchronized (this) {
+          handingOff = false;
+        }
+        throw ex;
+      }
+    }
+  }
+}
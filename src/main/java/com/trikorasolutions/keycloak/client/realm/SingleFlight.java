@@ -0,0 +1,85 @@
+package com.trikorasolutions.keycloak.client.realm;
+
+import io.smallrye.mutiny.Uni;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical reads in flight: the callers asking for a read already running share its
+ * result, or its failure, instead of sending the same request again. Nothing is kept once the read
+ * ends, so it holds no stale data and works without any cache.
+ * <p>
+ * A read started after {@link #forget()} (called on each change made through this client) never
+ * joins one started before, it would miss the change.
+ */
+public final class SingleFlight {
+
+  private final Map<String, Uni<?>> inFlight = new ConcurrentHashMap<>();
+  private final LongAdder shared = new LongAdder();
+
+  /**
+   * @param parts the endpoint, its parameters and the authorization of a read.
+   * @return the key identifying the read.
+   */
+  public static String key(final Object... parts) {
+    final StringBuilder key = new StringBuilder();
+    for (Object part : parts) {
+      key.append(part).append('\0');
+    }
+    return key.toString();
+  }
+
+  /**
+   * Runs the read, or joins the identical one in flight. A caller cancelling does not cancel the
+   * read for the others.
+   *
+   * @param key     identity of the read, see {@link #key(Object...)}.
+   * @param request supplier of the read, only called if there is none in flight.
+   * @param <T>     type of the result of the read, the same for every read with the same key.
+   * @return the result of the read.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Uni<T> run(final String key, final Supplier<Uni<T>> request) {
+    return Uni.createFrom().deferred(() -> {
+      final Uni<?> running = inFlight.get(key);
+      if (running != null) {
+        shared.increment();
+        return (Uni<T>) running;
+      }
+      return (Uni<T>) inFlight.computeIfAbsent(key, k -> this.start(k, request));
+    });
+  }
+
+  private <T> Uni<T> start(final String key, final Supplier<Uni<T>> request) {
+    final AtomicReference<Uni<T>> self = new AtomicReference<>();
+    final Uni<T> running = Uni.createFrom().deferred(request::get)
+        .eventually(() -> inFlight.remove(key, self.get()))
+        .memoize().indefinitely();
+    self.set(running);
+    return running;
+  }
+
+  /**
+   * Lets the reads in flight end for their callers, the following ones are sent again.
+   */
+  public void forget() {
+    inFlight.clear();
+  }
+
+  /**
+   * @return number of reads running.
+   */
+  public int getInFlight() {
+    return inFlight.size();
+  }
+
+  /**
+   * @return number of reads answered by joining one in flight.
+   */
+  public long getShared() {
+    return shared.sum();
+  }
+}
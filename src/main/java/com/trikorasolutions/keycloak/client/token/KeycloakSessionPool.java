@@ -0,0 +1,309 @@
+package com.trikorasolutions.keycloak.client.token;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE_PS;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.UNAUTHORIZED;
+
+import com.trikorasolutions.keycloak.client.cache.CacheStats;
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthorizationResource;
+import com.trikorasolutions.keycloak.client.dto.TokenRepresentation;
+import com.trikorasolutions.keycloak.client.exception.ClientNotFoundException;
+import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
+import com.trikorasolutions.keycloak.client.exception.TrikoraGenericException;
+import io.smallrye.mutiny.Uni;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.resteasy.reactive.ClientWebApplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of user sessions obtained with the password grant. Keycloak hashes the password of the user
+ * on every password grant, which is very expensive, so each session is kept and renewed with its
+ * refresh token before the access token expires. The password grant is only used again when the
+ * session is unknown, its refresh token has expired or Keycloak has revoked it.
+ * <p>
+ * The sessions are identified by realm, client, username and a keyed digest of the password: a
+ * different password never gets the session of another one, and the password itself is never kept
+ * in memory.
+ */
+@ApplicationScoped
+public final class KeycloakSessionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakSessionPool.class);
+  static final String GRANT_TYPE_RT = "refresh_token";
+
+  @ConfigProperty(name = "trikora.keycloak.session-pool.max-sessions", defaultValue = "1000")
+  private Integer MAX_SESSIONS;
+
+  @ConfigProperty(name = "trikora.keycloak.token.expiry-margin", defaultValue = "30")
+  private Integer EXPIRY_MARGIN;
+
+  @RestClient
+  private KeycloakAuthorizationResource keycloakUserClient;
+
+  private ExpiringCache<SessionKey, PooledSession> sessions;
+  private final SecretDigest digest = new SecretDigest();
+  private final LongAdder passwordGrants = new LongAdder();
+  private final LongAdder refreshGrants = new LongAdder();
+
+  @PostConstruct
+  void init() {
+    // The default ttl is never used, every session expires with its refresh token
+    sessions = new ExpiringCache<>("sessions", MAX_SESSIONS, Duration.ZERO);
+  }
+
+  /**
+   * Get a valid access token for the given user, reusing and renewing its pooled session. It can
+   * throw InvalidTokenException (wrong credentials) or ClientNotFoundException.
+   *
+   * @param realm            the realm name in which the user is registered.
+   * @param keycloakClientId id of the client (service name).
+   * @param secret           secret of the client (the one given by KC).
+   * @param username         username of the user.
+   * @param password         password of the user.
+   * @return a valid access token of the user.
+   */
+  public Uni<String> getAccessToken(final String realm, final String keycloakClientId,
+      final String secret, final String username, final String password) {
+    return Uni.createFrom().deferred(() -> {
+      final SessionKey key = new SessionKey(realm, keycloakClientId, username,
+          digest.of(password));
+      final PooledSession session = sessions.getIfPresent(key);
+      final Uni<PooledSession> current = (session != null) ? Uni.createFrom().item(session)
+          : sessions.get(key, () -> this.login(realm, keycloakClientId, secret, username, password),
+              PooledSession::getRefreshExpiresAt);
+      return current.flatMap(s -> this.renewIfNeeded(key, s, realm, keycloakClientId, secret))
+          .onFailure(RevokedSessionException.class).recoverWithUni(() -> {
+            // The refresh token is no longer valid: forget the session and log in again
+            sessions.invalidate(key);
+            return sessions.get(key,
+                () -> this.login(realm, keycloakClientId, secret, username, password),
+                PooledSession::getRefreshExpiresAt);
+          })
+          .map(s -> s.token.accessToken);
+    });
+  }
+
+  /**
+   * Ends the pooled session of the user, both in memory and in Keycloak.
+   *
+   * @param realm            the realm name in which the user is registered.
+   * @param keycloakClientId id of the client (service name).
+   * @param secret           secret of the client (the one given by KC).
+   * @param username         username of the user.
+   * @param password         password of the user.
+   * @return true if there was a pooled session.
+   */
+  public Uni<Boolean> logout(final String realm, final String keycloakClientId,
+      final String secret, final String username, final String password) {
+    return Uni.createFrom().deferred(() -> {
+      final SessionKey key = new SessionKey(realm, keycloakClientId, username,
+          digest.of(password));
+      final PooledSession session = sessions.getIfPresent(key);
+      sessions.invalidate(key);
+      if (session == null || session.token.refreshToken == null) {
+        return Uni.createFrom().item(session != null);
+      }
+      return keycloakUserClient.logout(realm, keycloakClientId, secret,
+              session.token.refreshToken)
+          .map(x -> Boolean.TRUE)
+          // Already revoked by Keycloak
+          .onFailure(ClientWebApplicationException.class).recoverWithItem(Boolean.TRUE);
+    });
+  }
+
+  /**
+   * Forgets all the pooled sessions of the user (e.g. after changing its password).
+   *
+   * @param realm    the realm name in which the user is registered.
+   * @param username username of the user.
+   */
+  public void invalidate(final String realm, final String username) {
+    sessions.invalidateIf((key, session) -> key.realm.equals(realm)
+        && key.username.equals(username));
+  }
+
+  /**
+   * Forgets all the pooled sessions of the user with the given id, e.g. after a change of the user
+   * notified with its id only.
+   *
+   * @param realm  the realm name in which the user is registered.
+   * @param userId id of the user, the subject of its tokens.
+   */
+  public void invalidateSubject(final String realm, final String userId) {
+    sessions.invalidateIf((key, session) -> key.realm.equals(realm)
+        && userId.equals(session.subject));
+  }
+
+  public CacheStats stats() {
+    return sessions.stats();
+  }
+
+  /**
+   * @return the number of password grants sent to Keycloak, each one costs a password hash.
+   */
+  public long getPasswordGrants() {
+    return passwordGrants.sum();
+  }
+
+  /**
+   * @return the number of sessions renewed with their refresh token.
+   */
+  public long getRefreshGrants() {
+    return refreshGrants.sum();
+  }
+
+  private Uni<PooledSession> login(final String realm, final String keycloakClientId,
+      final String secret, final String username, final String password) {
+    LOGGER.debug("Password grant for [realm: {}, client_id: {}, username: {}]", realm,
+        keycloakClientId, username);
+    passwordGrants.increment();
+    return keycloakUserClient.getToken(realm, GRANT_TYPE_PS, keycloakClientId, secret, username,
+            password)
+        .onFailure(ClientWebApplicationException.class).transform(ex -> {
+          if (ex.getMessage().contains(String.valueOf(UNAUTHORIZED.getStatusCode()))
+              || ex.getMessage().contains(String.valueOf(BAD_REQUEST.getStatusCode()))) {
+            return new InvalidTokenException("the credentials of " + username + " were rejected");
+          } else if (ex.getMessage().contains(String.valueOf(NOT_FOUND.getStatusCode()))) {
+            return new ClientNotFoundException(keycloakClientId, realm);
+          } else {
+            return new TrikoraGenericException(
+                "Unable to log in " + username + ", with error: " + ex.getMessage());
+          }
+        })
+        .map(TokenRepresentation::from)
+        .onItem().ifNull()
+        .failWith(() -> new TrikoraGenericException("Token response without access token"))
+        .map(tok -> new PooledSession(tok, System.currentTimeMillis(), EXPIRY_MARGIN));
+  }
+
+  private Uni<PooledSession> renewIfNeeded(final SessionKey key, final PooledSession session,
+      final String realm, final String keycloakClientId, final String secret) {
+    final long now = System.currentTimeMillis();
+    if (now < session.refreshAt) {
+      return Uni.createFrom().item(session);
+    }
+    if (session.token.refreshToken == null || now >= session.refreshExpiresAt) {
+      return Uni.createFrom().failure(new RevokedSessionException());
+    }
+    synchronized (session) {
+      if (session.renewal == null) {
+        refreshGrants.increment();
+        session.renewal = keycloakUserClient.refreshToken(realm, GRANT_TYPE_RT, keycloakClientId,
+                secret, session.token.refreshToken)
+            // invalid_grant: the refresh token has been revoked or the session has ended
+            .onFailure(ClientWebApplicationException.class)
+            .transform(ex -> ex.getMessage().contains(String.valueOf(BAD_REQUEST.getStatusCode()))
+                ? new RevokedSessionException() : ex)
+            .map(TokenRepresentation::from)
+            .onItem().ifNull().failWith(RevokedSessionException::new)
+            .map(tok -> {
+              final PooledSession renewed = new PooledSession(tok, System.currentTimeMillis(),
+                  EXPIRY_MARGIN);
+              sessions.put(key, renewed, renewed.refreshExpiresAt);
+              return renewed;
+            })
+            // Let the next caller retry the renewal
+            .onFailure().invoke(() -> this.clearRenewal(session))
+            .memoize().indefinitely();
+      }
+      return session.renewal;
+    }
+  }
+
+  private void clearRenewal(final PooledSession session) {
+    synchronized (session) {
+      session.renewal = null;
+    }
+  }
+
+  /**
+   * Identifies the session of one user of a client, opened with one password.
+   */
+  private static final class SessionKey {
+
+    private final String realm;
+    private final String clientId;
+    private final String username;
+    private final String passwordDigest;
+
+    private SessionKey(String realm, String clientId, String username, String passwordDigest) {
+      this.realm = realm;
+      this.clientId = clientId;
+      this.username = username;
+      this.passwordDigest = passwordDigest;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof SessionKey)) {
+        return false;
+      }
+      final SessionKey other = (SessionKey) o;
+      return realm.equals(other.realm) && clientId.equals(other.clientId)
+          && username.equals(other.username) && passwordDigest.equals(other.passwordDigest);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(realm, clientId, username, passwordDigest);
+    }
+
+    @Override
+    public String toString() {
+      // Used in the logs, leave the digest out
+      return realm + '/' + clientId + '/' + username;
+    }
+  }
+
+  /**
+   * Tokens of one user session. The session is immutable, a renewal replaces it in the pool.
+   */
+  private static final class PooledSession {
+
+    private final TokenRepresentation token;
+    private final String subject;
+    private final long refreshAt;
+    private final long refreshExpiresAt;
+    // The renewal shared by the callers that find this session stale. Guarded by this
+    private Uni<PooledSession> renewal;
+
+    private PooledSession(TokenRepresentation token, long now, int marginSeconds) {
+      final long lifetime = (token.expiresIn == null ? 0L : token.expiresIn) * 1000L;
+      this.token = token;
+      this.subject = KeycloakTokenValidator.subjectOf(token.accessToken);
+      this.refreshAt = now + lifetime - Math.min(marginSeconds * 1000L, lifetime / 2);
+      // refresh_expires_in is 0 for offline tokens, which do not expire with the SSO session
+      this.refreshExpiresAt = (token.refreshExpiresIn == null || token.refreshExpiresIn == 0)
+          ? now + Math.max(lifetime, Duration.ofDays(1).toMillis())
+          : now + token.refreshExpiresIn * 1000L;
+    }
+
+    private long getRefreshExpiresAt() {
+      return refreshExpiresAt;
+    }
+  }
+
+  /**
+   * The refresh token of a session can no longer be used.
+   */
+  private static final class RevokedSessionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private RevokedSessionException() {
+      super("The refresh token has been revoked", null, false, false);
+    }
+  }
+}
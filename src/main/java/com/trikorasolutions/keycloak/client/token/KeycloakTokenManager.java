@@ -0,0 +1,207 @@
+package com.trikorasolutions.keycloak.client.token;
+
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.UNAUTHORIZED;
+
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthorizationResource;
+import com.trikorasolutions.keycloak.client.dto.TokenRepresentation;
+import com.trikorasolutions.keycloak.client.exception.ClientNotFoundException;
+import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
+import com.trikorasolutions.keycloak.client.exception.TrikoraGenericException;
+import io.smallrye.mutiny.Uni;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.resteasy.reactive.ClientWebApplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the service account (client_credentials) tokens of every (realm, client) pair this
+ * application talks to. A token is requested to Keycloak only when there is none, or when it is
+ * about to expire; the callers arriving while a request is running share that same request.
+ * <p>
+ * When a token enters its expiry margin it is still returned to the callers while a single
+ * background request fetches its replacement, so the callers never wait for a refresh unless the
+ * token has really expired.
+ * <p>
+ * The tokens are identified by realm, client and a keyed digest of the secret: a wrong or revoked
+ * secret never gets the token obtained with the right one.
+ */
+@ApplicationScoped
+public final class KeycloakTokenManager {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakTokenManager.class);
+  static final String GRANT_TYPE_CC = "client_credentials";
+
+  @ConfigProperty(name = "trikora.keycloak.token.expiry-margin", defaultValue = "30")
+  private Integer EXPIRY_MARGIN;
+
+  @RestClient
+  private KeycloakAuthorizationResource keycloakUserClient;
+
+  private final Map<SlotKey, TokenSlot> slots = new ConcurrentHashMap<>();
+  private final SecretDigest digest = new SecretDigest();
+
+  /**
+   * Get a service account access token for the given client. It can throw InvalidTokenException
+   * (wrong credentials) or ClientNotFoundException.
+   *
+   * @param realm            the realm name in which the client is registered.
+   * @param keycloakClientId id of the client (service name).
+   * @param secret           secret of the client (the one given by KC).
+   * @return a valid access token, cached while it does not reach its expiry margin.
+   */
+  public Uni<String> getServiceToken(final String realm, final String keycloakClientId,
+      final String secret) {
+    return Uni.createFrom().deferred(() -> {
+      final SlotKey key = new SlotKey(realm, keycloakClientId, digest.of(secret));
+      final long now = System.currentTimeMillis();
+      final TokenSlot seen = slots.get(key);
+      if (seen != null && seen.isFresh(now)) {
+        return Uni.createFrom().item(seen.token.accessToken);
+      }
+
+      // A slot without token is already requesting one. Otherwise, only the caller that finds the
+      // stale slot in the map replaces it, the others reuse the replacement
+      final TokenSlot slot = (seen != null && seen.token == null) ? seen
+          : slots.compute(key, (k, current) -> (current != seen) ? current
+              : this.newSlot(key, realm, keycloakClientId, secret, seen));
+      if (slot.isFresh(now)) {
+        return Uni.createFrom().item(slot.token.accessToken);
+      }
+      if (slot.previous != null && slot.previous.isUsable(now)) {
+        // Refresh ahead: start the request and keep serving the still valid token
+        slot.pending.subscribe().with(tok -> LOGGER.debug("Token refreshed for {}", key),
+            ex -> LOGGER.warn("Unable to refresh the token for {}: {}", key, ex.getMessage()));
+        return Uni.createFrom().item(slot.previous.token.accessToken);
+      }
+      return slot.pending.map(TokenRepresentation::getAccessToken);
+    });
+  }
+
+  /**
+   * Drops the cached tokens of the given client, whatever the secret they were obtained with. The
+   * next call will request a new one. Useful when Keycloak rejected a token before its expiration
+   * (e.g. the session was revoked).
+   *
+   * @param realm            the realm name in which the client is registered.
+   * @param keycloakClientId id of the client (service name).
+   */
+  public void invalidate(final String realm, final String keycloakClientId) {
+    slots.keySet()
+        .removeIf(key -> key.realm.equals(realm) && key.clientId.equals(keycloakClientId));
+  }
+
+  private TokenSlot newSlot(final SlotKey key, final String realm, final String keycloakClientId,
+      final String secret, final TokenSlot previous) {
+    LOGGER.debug("Requesting token with params [realm: {}, client_id: {}]", realm,
+        keycloakClientId);
+    final TokenSlot slot = new TokenSlot(previous);
+    slot.pending = keycloakUserClient.getToken(realm, GRANT_TYPE_CC, keycloakClientId, secret)
+        .onFailure(ClientWebApplicationException.class).transform(ex -> {
+          if (ex.getMessage().contains(String.valueOf(UNAUTHORIZED.getStatusCode()))) {
+            return new InvalidTokenException();
+          } else if (ex.getMessage().contains(String.valueOf(NOT_FOUND.getStatusCode()))) {
+            return new ClientNotFoundException(keycloakClientId, realm);
+          } else {
+            return new TrikoraGenericException(
+                "Unable to get a token from Keycloak, with error: " + ex.getMessage());
+          }
+        })
+        .map(TokenRepresentation::from)
+        .onItem().ifNull()
+        .failWith(() -> new TrikoraGenericException("Token response without access token"))
+        .invoke(tok -> slot.resolve(tok, System.currentTimeMillis(), EXPIRY_MARGIN))
+        .onFailure().invoke(ex -> slots.remove(key, slot))
+        .memoize().indefinitely();
+    return slot;
+  }
+
+  /**
+   * Identifies the token of one client, obtained with one secret.
+   */
+  private static final class SlotKey {
+
+    private final String realm;
+    private final String clientId;
+    private final String secretDigest;
+
+    private SlotKey(String realm, String clientId, String secretDigest) {
+      this.realm = realm;
+      this.clientId = clientId;
+      this.secretDigest = secretDigest;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof SlotKey)) {
+        return false;
+      }
+      final SlotKey other = (SlotKey) o;
+      return realm.equals(other.realm) && clientId.equals(other.clientId)
+          && secretDigest.equals(other.secretDigest);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(realm, clientId, secretDigest);
+    }
+
+    @Override
+    public String toString() {
+      // Used in the logs, leave the digest out
+      return realm + '/' + clientId;
+    }
+  }
+
+  /**
+   * One entry of the token map. It holds the request that produces its token, which is shared by
+   * all the subscribers, and the token once it has been resolved.
+   */
+  private static final class TokenSlot {
+
+    private final TokenSlot previous;
+    private volatile Uni<TokenRepresentation> pending;
+    private volatile TokenRepresentation token;
+    private volatile long refreshAt = Long.MAX_VALUE;
+    private volatile long expiresAt = Long.MAX_VALUE;
+
+    private TokenSlot(TokenSlot previous) {
+      // Only the last token is kept, do not chain the whole history
+      this.previous = (previous == null || previous.token == null) ? null
+          : new TokenSlot(previous.token, previous.refreshAt, previous.expiresAt);
+    }
+
+    private TokenSlot(TokenRepresentation token, long refreshAt, long expiresAt) {
+      this.previous = null;
+      this.token = token;
+      this.refreshAt = refreshAt;
+      this.expiresAt = expiresAt;
+    }
+
+    private void resolve(TokenRepresentation token, long now, int marginSeconds) {
+      final long lifetime = (token.expiresIn == null ? 0L : token.expiresIn) * 1000L;
+      // Never use a margin longer than half of the lifetime, short lived tokens would never be
+      // cached otherwise
+      final long margin = Math.min(marginSeconds * 1000L, lifetime / 2);
+      this.expiresAt = now + lifetime;
+      this.refreshAt = this.expiresAt - margin;
+      this.token = token;
+    }
+
+    private boolean isFresh(long now) {
+      return token != null && now < refreshAt;
+    }
+
+    private boolean isUsable(long now) {
+      return token != null && now < expiresAt;
+    }
+  }
+}
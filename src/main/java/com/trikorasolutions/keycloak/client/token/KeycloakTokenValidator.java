@@ -0,0 +1,423 @@
+package com.trikorasolutions.keycloak.client.token;
+
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthorizationResource;
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
+import com.trikorasolutions.keycloak.client.exception.TrikoraGenericException;
+import io.smallrye.mutiny.Uni;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.enterprise.context.ApplicationScoped;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates the bearer tokens issued by Keycloak without calling Keycloak. The public keys of every
+ * realm (JWKS) are fetched once and kept in memory, the signature, expiration and issuer of each
+ * token are then checked locally.
+ * <p>
+ * When a token is signed with a key that is not in memory (the realm keys have been rotated) the
+ * keys of the realm are fetched again. Those reloads are shared by the concurrent callers and are
+ * not repeated more often than the configured interval, so a flood of forged tokens cannot be used
+ * to flood Keycloak.
+ */
+@ApplicationScoped
+public final class KeycloakTokenValidator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakTokenValidator.class);
+  private static final Base64.Decoder B64 = Base64.getUrlDecoder();
+
+  @ConfigProperty(name = "trikora.keycloak.jwks.reload-interval", defaultValue = "10")
+  private Integer JWKS_RELOAD_INTERVAL;
+
+  @ConfigProperty(name = "trikora.keycloak.jwt.clock-skew", defaultValue = "0")
+  private Integer CLOCK_SKEW;
+
+  @RestClient
+  private KeycloakAuthorizationResource keycloakUserClient;
+
+  private final Map<String, RealmKeys> realmKeys = new ConcurrentHashMap<>();
+
+  /**
+   * Validates the token and return the identity it carries. It can throw InvalidTokenException.
+   *
+   * @param realm the realm name that must have issued the token.
+   * @param token raw access token (without the "Bearer " prefix).
+   * @return a KeycloakUserRepresentation built from the claims of the token, with the realm roles
+   * of the token.
+   */
+  public Uni<KeycloakUserRepresentation> getUserInfo(final String realm, final String token) {
+    return this.verify(realm, token).map(KeycloakTokenValidator::toUser);
+  }
+
+  /**
+   * Validates the token and return its claims. It can throw InvalidTokenException.
+   *
+   * @param realm the realm name that must have issued the token.
+   * @param token raw access token (without the "Bearer " prefix).
+   * @return the claims of the token.
+   */
+  public Uni<JsonObject> verify(final String realm, final String token) {
+    return Uni.createFrom().deferred(() -> {
+      final ParsedToken parsed;
+      try {
+        parsed = ParsedToken.parse(token);
+      } catch (InvalidTokenException ex) {
+        return Uni.createFrom().failure(ex);
+      }
+      final RealmKeys keys = realmKeys.get(realm);
+      if (keys != null && keys.keys.containsKey(parsed.kid)) {
+        return Uni.createFrom().item(() -> this.check(realm, parsed, keys.keys.get(parsed.kid)));
+      }
+      return this.loadKeys(realm, keys)
+          .map(loaded -> this.check(realm, parsed, loaded.keys.get(parsed.kid)));
+    });
+  }
+
+  /**
+   * Validates the token and returns the scope of what its caller may read with the admin API: its
+   * subject and its realm-management roles. Two tokens with the same scope get the same answers
+   * from Keycloak. It can throw InvalidTokenException.
+   *
+   * @param realm the realm name that must have issued the token.
+   * @param token raw access token (without the "Bearer " prefix).
+   * @return the scope, e.g. "f3a1...|query-groups,view-realm".
+   */
+  public Uni<String> getAdminScope(final String realm, final String token) {
+    return this.verify(realm, token).map(claims -> {
+      final JsonObject access = claims.containsKey("resource_access")
+          && claims.get("resource_access").getValueType() == ValueType.OBJECT
+          ? claims.getJsonObject("resource_access") : JsonValue.EMPTY_JSON_OBJECT;
+      final JsonObject management = access.containsKey("realm-management")
+          && access.get("realm-management").getValueType() == ValueType.OBJECT
+          ? access.getJsonObject("realm-management") : JsonValue.EMPTY_JSON_OBJECT;
+      final Set<String> roles = new TreeSet<>();
+      if (management.containsKey("roles")) {
+        management.getJsonArray("roles").getValuesAs(JsonString.class)
+            .forEach(role -> roles.add(role.getString()));
+      }
+      return claims.getString("sub", "") + "|" + String.join(",", roles);
+    });
+  }
+
+  /**
+   * Drops the keys of the given realm, they will be fetched again with the next validation.
+   *
+   * @param realm the realm name whose keys are discarded.
+   */
+  public void invalidate(final String realm) {
+    realmKeys.remove(realm);
+  }
+
+  private Uni<RealmKeys> loadKeys(final String realm, final RealmKeys seen) {
+    if (seen != null && seen.pending != null) {
+      return seen.pending;
+    }
+    final long now = System.currentTimeMillis();
+    if (seen != null && now - seen.loadedAt < JWKS_RELOAD_INTERVAL * 1000L) {
+      // Recently loaded, the unknown key is not a rotation
+      return Uni.createFrom().item(seen);
+    }
+    final RealmKeys slot = realmKeys.compute(realm,
+        (k, current) -> (current != seen) ? current : this.newLoad(realm, seen));
+    return (slot.pending != null) ? slot.pending : Uni.createFrom().item(slot);
+  }
+
+  private RealmKeys newLoad(final String realm, final RealmKeys previous) {
+    LOGGER.debug("Loading the JWKS of realm {}", realm);
+    final RealmKeys slot = new RealmKeys(previous == null ? Collections.emptyMap() : previous.keys,
+        previous == null ? 0L : previous.loadedAt);
+    slot.pending = keycloakUserClient.certs(realm)
+        .onFailure().transform(ex -> new TrikoraGenericException(
+            "Unable to get the keys of realm " + realm + ", with error: " + ex.getMessage()))
+        .map(KeycloakTokenValidator::parseJwks)
+        .map(keys -> {
+          final RealmKeys loaded = new RealmKeys(keys, System.currentTimeMillis());
+          realmKeys.replace(realm, slot, loaded);
+          return loaded;
+        })
+        .onFailure().invoke(ex -> {
+          if (previous == null) {
+            realmKeys.remove(realm, slot);
+          } else {
+            realmKeys.replace(realm, slot, previous);
+          }
+        })
+        .memoize().indefinitely();
+    return slot;
+  }
+
+  private JsonObject check(final String realm, final ParsedToken token, final PublicKey key) {
+    if (key == null) {
+      throw new InvalidTokenException("unknown signing key " + token.kid);
+    }
+    if (!token.hasValidSignature(key)) {
+      throw new InvalidTokenException("invalid signature");
+    }
+
+    final JsonObject claims = token.claims;
+    final long now = System.currentTimeMillis() / 1000L;
+    final long exp = numericClaim(claims, "exp", Long.MIN_VALUE);
+    if (exp == Long.MIN_VALUE || now > exp + CLOCK_SKEW) {
+      throw new InvalidTokenException("expired");
+    }
+    if (now + CLOCK_SKEW < numericClaim(claims, "nbf", 0L)) {
+      throw new InvalidTokenException("not valid yet");
+    }
+    final String issuer = claims.getString("iss", "");
+    if (!issuer.endsWith("/realms/" + realm)) {
+      throw new InvalidTokenException("issued by " + issuer);
+    }
+    final String type = claims.getString("typ", "Bearer");
+    if (!"Bearer".equalsIgnoreCase(type)) {
+      throw new InvalidTokenException("not an access token (" + type + ")");
+    }
+    return claims;
+  }
+
+  /**
+   * Reads the subject of a token without validating it, for tokens this client got from Keycloak
+   * itself.
+   *
+   * @return the subject, or null if the token can not be parsed.
+   */
+  static String subjectOf(final String token) {
+    try {
+      return ParsedToken.parse(token).claims.getString("sub", null);
+    } catch (InvalidTokenException | ClassCastException ex) {
+      return null;
+    }
+  }
+
+  private static long numericClaim(final JsonObject claims, final String name, final long def) {
+    final JsonValue value = claims.get(name);
+    return (value == null || value.getValueType() != ValueType.NUMBER) ? def
+        : claims.getJsonNumber(name).longValue();
+  }
+
+  private static KeycloakUserRepresentation toUser(final JsonObject claims) {
+    final KeycloakUserRepresentation user = KeycloakUserRepresentation.from(claims);
+    if (user == null) {
+      throw new InvalidTokenException("the token has no username");
+    }
+    // Keycloak does not issue tokens to disabled users
+    user.setEnabled(Boolean.TRUE);
+    final JsonObject realmAccess = claims.containsKey("realm_access")
+        && claims.get("realm_access").getValueType() == ValueType.OBJECT
+        ? claims.getJsonObject("realm_access") : null;
+    if (realmAccess != null && realmAccess.containsKey("roles")) {
+      realmAccess.getJsonArray("roles").getValuesAs(JsonString.class)
+          .forEach(role -> user.roles.add(new RoleRepresentation(role.getString(), null)));
+    }
+    return user;
+  }
+
+  static Map<String, PublicKey> parseJwks(final JsonObject jwks) {
+    final Map<String, PublicKey> keys = new HashMap<>();
+    if (jwks == null || !jwks.containsKey("keys")) {
+      return keys;
+    }
+    for (JsonValue value : jwks.getJsonArray("keys")) {
+      final JsonObject jwk = value.asJsonObject();
+      if (!"sig".equals(jwk.getString("use", "sig")) || !jwk.containsKey("kid")) {
+        continue;
+      }
+      try {
+        switch (jwk.getString("kty", "")) {
+          case "RSA":
+            keys.put(jwk.getString("kid"), KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(unsigned(jwk.getString("n")), unsigned(jwk.getString("e")))));
+            break;
+          case "EC":
+            final AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec(curveName(jwk.getString("crv", ""))));
+            final ECPoint point = new ECPoint(unsigned(jwk.getString("x")),
+                unsigned(jwk.getString("y")));
+            keys.put(jwk.getString("kid"), KeyFactory.getInstance("EC").generatePublic(
+                new ECPublicKeySpec(point, params.getParameterSpec(ECParameterSpec.class))));
+            break;
+          default:
+            break;
+        }
+      } catch (GeneralSecurityException | RuntimeException ex) {
+        LOGGER.warn("Skipping the key {}: {}", jwk.getString("kid"), ex.getMessage());
+      }
+    }
+    return keys;
+  }
+
+  private static BigInteger unsigned(final String base64Url) {
+    return new BigInteger(1, B64.decode(base64Url));
+  }
+
+  private static String curveName(final String crv) {
+    switch (crv) {
+      case "P-256":
+        return "secp256r1";
+      case "P-384":
+        return "secp384r1";
+      case "P-521":
+        return "secp521r1";
+      default:
+        throw new IllegalArgumentException("Unsupported curve " + crv);
+    }
+  }
+
+  /**
+   * Keys of one realm. While a load is running, the slot in the map carries the request and the
+   * keys that were known before it.
+   */
+  private static final class RealmKeys {
+
+    private final Map<String, PublicKey> keys;
+    private final long loadedAt;
+    private volatile Uni<RealmKeys> pending;
+
+    private RealmKeys(Map<String, PublicKey> keys, long loadedAt) {
+      this.keys = keys;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  /**
+   * A JWS compact serialization split in its parts. The signature is not checked on parsing.
+   */
+  private static final class ParsedToken {
+
+    private final String signingInput;
+    private final byte[] signature;
+    private final String alg;
+    private final String kid;
+    private final JsonObject claims;
+
+    private ParsedToken(String signingInput, byte[] signature, String alg, String kid,
+        JsonObject claims) {
+      this.signingInput = signingInput;
+      this.signature = signature;
+      this.alg = alg;
+      this.kid = kid;
+      this.claims = claims;
+    }
+
+    private static ParsedToken parse(final String token) {
+      if (token == null) {
+        throw new InvalidTokenException("missing token");
+      }
+      final int first = token.indexOf('.');
+      final int second = token.indexOf('.', first + 1);
+      if (first < 0 || second < 0 || token.indexOf('.', second + 1) >= 0) {
+        throw new InvalidTokenException("not a signed JWT");
+      }
+      try {
+        final JsonObject header = readJson(token.substring(0, first));
+        return new ParsedToken(token.substring(0, second), B64.decode(token.substring(second + 1)),
+            header.getString("alg", ""), header.getString("kid", ""),
+            readJson(token.substring(first + 1, second)));
+      } catch (IllegalArgumentException | JsonException | ClassCastException ex) {
+        throw new InvalidTokenException("malformed JWT");
+      }
+    }
+
+    private static JsonObject readJson(final String base64Url) {
+      try (JsonReader reader = Json.createReader(
+          new StringReader(new String(B64.decode(base64Url), StandardCharsets.UTF_8)))) {
+        return reader.readObject();
+      }
+    }
+
+    private boolean hasValidSignature(final PublicKey key) {
+      try {
+        final Signature verifier;
+        byte[] sig = signature;
+        switch (alg) {
+          case "RS256":
+            verifier = Signature.getInstance("SHA256withRSA");
+            break;
+          case "RS384":
+            verifier = Signature.getInstance("SHA384withRSA");
+            break;
+          case "RS512":
+            verifier = Signature.getInstance("SHA512withRSA");
+            break;
+          case "ES256":
+            verifier = Signature.getInstance("SHA256withECDSA");
+            sig = joseToDer(signature);
+            break;
+          case "ES384":
+            verifier = Signature.getInstance("SHA384withECDSA");
+            sig = joseToDer(signature);
+            break;
+          case "ES512":
+            verifier = Signature.getInstance("SHA512withECDSA");
+            sig = joseToDer(signature);
+            break;
+          default:
+            throw new InvalidTokenException("unsupported algorithm " + alg);
+        }
+        verifier.initVerify(key);
+        verifier.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+        return verifier.verify(sig);
+      } catch (GeneralSecurityException ex) {
+        LOGGER.debug("Signature verification error: {}", ex.getMessage());
+        return false;
+      }
+    }
+
+    /**
+     * JWS carries the ECDSA signatures as the concatenation R|S, while the JDK expects them as a
+     * DER sequence of two integers.
+     */
+    private static byte[] joseToDer(final byte[] jose) {
+      final int half = jose.length / 2;
+      final byte[] r = new BigInteger(1, Arrays.copyOfRange(jose, 0, half))
+          .toByteArray();
+      final byte[] s = new BigInteger(1, Arrays.copyOfRange(jose, half, jose.length))
+          .toByteArray();
+      final int seqLength = 2 + r.length + 2 + s.length;
+      final byte[] der = new byte[seqLength + (seqLength > 127 ? 3 : 2)];
+      int i = 0;
+      der[i++] = 0x30;
+      if (seqLength > 127) {
+        der[i++] = (byte) 0x81;
+      }
+      der[i++] = (byte) seqLength;
+      der[i++] = 0x02;
+      der[i++] = (byte) r.length;
+      System.arraycopy(r, 0, der, i, r.length);
+      i += r.length;
+      der[i++] = 0x02;
+      der[i++] = (byte) s.length;
+      System.arraycopy(s, 0, der, i, s.length);
+      return der;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.trikorasolutions.keycloak.client.token;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.BEARER;
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE;
+import static javax.ws.rs.core.Response.Status.UNAUTHORIZED;
+
+import com.trikorasolutions.keycloak.client.cache.CacheStats;
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
+import com.trikorasolutions.keycloak.client.cache.KeycloakCacheMemory;
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthorizationResource;
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
+import io.smallrye.mutiny.Uni;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue.ValueType;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.resteasy.reactive.ClientWebApplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the responses of the userinfo endpoint, for the tokens that cannot be validated locally
+ * with the {@link KeycloakTokenValidator} (opaque tokens, or tokens of realms whose keys are not
+ * reachable).
+ * <p>
+ * The entries are keyed by the SHA-256 digest of the token, the raw token is never kept in memory.
+ * Each entry lives until the expiration of its token (the exp claim when the token is a JWT) and
+ * never longer than the configured max-ttl, so a revoked token is answered from memory at most for
+ * that time.
+ */
+@ApplicationScoped
+public final class KeycloakUserInfoCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakUserInfoCache.class);
+
+  @ConfigProperty(name = "trikora.keycloak.userinfo-cache.max-entries", defaultValue = "10000")
+  private Integer MAX_ENTRIES;
+
+  @ConfigProperty(name = "trikora.keycloak.userinfo-cache.max-ttl", defaultValue = "300")
+  private Integer MAX_TTL;
+
+  @RestClient
+  private KeycloakAuthorizationResource keycloakUserClient;
+
+  @Inject
+  private KeycloakCacheMemory memory;
+
+  private ExpiringCache<String, JsonObject> cache;
+
+  @PostConstruct
+  void init() {
+    cache = memory.create("userinfo", MAX_ENTRIES, Duration.ofSeconds(MAX_TTL));
+  }
+
+  /**
+   * Return the personal information of the owner of the token. It can throw
+   * InvalidTokenException.
+   *
+   * @param realm            the realm name in which the token has been issued.
+   * @param token            access token provided by the keycloak SecurityIdentity.
+   * @param keycloakClientId id of the client (service name).
+   * @return a KeycloakUserRepresentation with the userinfo claims of the token owner.
+   */
+  public Uni<KeycloakUserRepresentation> getUserInfo(final String realm, final String token,
+      final String keycloakClientId) {
+    return Uni.createFrom().deferred(() -> {
+      final long now = System.currentTimeMillis();
+      final long expiresAt = Math.min(expirationOf(token), now + MAX_TTL * 1000L);
+      final Uni<JsonObject> userInfo = (expiresAt <= now)
+          // Expired, let Keycloak reject it
+          ? this.fetch(realm, token, keycloakClientId)
+          : cache.get(realm + ':' + digest(token),
+              () -> this.fetch(realm, token, keycloakClientId), json -> expiresAt);
+      return userInfo.map(KeycloakUserRepresentation::from);
+    });
+  }
+
+  /**
+   * Drops the cached information of one token, e.g. after a logout.
+   *
+   * @param realm the realm name in which the token has been issued.
+   * @param token access token whose information is discarded.
+   */
+  public void invalidate(final String realm, final String token) {
+    cache.invalidate(realm + ':' + digest(token));
+  }
+
+  /**
+   * @return the counters of the cache, to size it.
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  private Uni<JsonObject> fetch(final String realm, final String token,
+      final String keycloakClientId) {
+    return keycloakUserClient.userInfo(BEARER + token, realm, GRANT_TYPE, keycloakClientId)
+        .onFailure(ClientWebApplicationException.class).transform(ex ->
+            ex.getMessage().contains(String.valueOf(UNAUTHORIZED.getStatusCode()))
+                ? new InvalidTokenException() : ex);
+  }
+
+  /**
+   * Reads the exp claim of a JWT without checking its signature, it is only used to bound the life
+   * of the cache entries.
+   *
+   * @return the expiration in epoch millis, or Long.MAX_VALUE if the token is not a JWT or it has
+   * not exp claim.
+   */
+  static long expirationOf(final String token) {
+    final int first = token.indexOf('.');
+    final int second = token.indexOf('.', first + 1);
+    if (first < 0 || second < 0) {
+      return Long.MAX_VALUE;
+    }
+    try (JsonReader reader = Json.createReader(new StringReader(new String(
+        Base64.getUrlDecoder().decode(token.substring(first + 1, second)),
+        StandardCharsets.UTF_8)))) {
+      final JsonObject claims = reader.readObject();
+      return (claims.containsKey("exp") && claims.get("exp").getValueType() == ValueType.NUMBER)
+          ? claims.getJsonNumber("exp").longValue() * 1000L : Long.MAX_VALUE;
+    } catch (RuntimeException ex) {
+      LOGGER.debug("The token is not a JWT: {}", ex.getMessage());
+      return Long.MAX_VALUE;
+    }
+  }
+
+  static String digest(final String token) {
+    try {
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(
+          MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException ex) {
+      // Every JVM must provide SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+}
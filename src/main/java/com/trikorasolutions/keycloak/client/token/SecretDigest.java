@@ -0,0 +1,36 @@
+package com.trikorasolutions.keycloak.client.token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keyed digest (HMAC-SHA256) of the secrets and passwords used to identify cached tokens. The key
+ * is random and lives only in this process, so the digests cannot be checked against a guess
+ * outside of it and the secrets themselves are never kept in memory.
+ */
+final class SecretDigest {
+
+  private final SecretKeySpec key;
+
+  SecretDigest() {
+    final byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    this.key = new SecretKeySpec(bytes, "HmacSHA256");
+  }
+
+  String of(final String secret) {
+    try {
+      final Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(key);
+      return Base64.getUrlEncoder().withoutPadding()
+          .encodeToString(mac.doFinal(String.valueOf(secret).getBytes(StandardCharsets.UTF_8)));
+    } catch (GeneralSecurityException ex) {
+      // Every JVM must provide HmacSHA256
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package com.trikorasolutions.keycloak.client.warmup;
+
+import static com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic.GRANT_TYPE;
+
+import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakGroupLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakSession;
+import com.trikorasolutions.keycloak.client.cache.CacheWeights;
+import com.trikorasolutions.keycloak.client.clientresource.KeycloakAuthAdminResource;
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.dto.TrikoraGroupRepresentation;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional warm-up run at startup, so the first requests after a deploy do not pay for the cold
+ * caches, the connection setup and the JIT. For each realm it gets the service token, opens a set
+ * of connections to Keycloak, and preloads the role catalog, the group index and, optionally, the
+ * username to id index. Meanwhile it runs the DTO parsing paths enough times for the JIT to compile
+ * them. The {@link KeycloakWarmUpCheck} reports the application as not ready until it finishes.
+ * <p>
+ * The realms warmed up are the ones listed, or else the ones with a client configured:
+ * <pre>
+ * trikora.keycloak.warm-up.enabled=true
+ * trikora.keycloak.warm-up.realms=trikorasolutions
+ * </pre>
+ * A realm that fails to warm up (e.g. Keycloak is not reachable yet) is reported and skipped, the
+ * warm-up never keeps the application from being ready longer than its timeout.
+ */
+@ApplicationScoped
+public final class KeycloakWarmUp {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeycloakWarmUp.class);
+  private static final Pattern REALM_CLIENT = Pattern.compile(
+      "trikora\\.keycloak\\.realms\\.([^.]+)\\.client-id");
+
+  @ConfigProperty(name = "trikora.keycloak.warm-up.enabled", defaultValue = "false")
+  private Boolean WARM_UP_ENABLED;
+
+  @ConfigProperty(name = "trikora.keycloak.warm-up.realms")
+  private Optional<List<String>> WARM_UP_REALMS;
+
+  @ConfigProperty(name = "trikora.keycloak.warm-up.connections", defaultValue = "8")
+  private Integer WARM_UP_CONNECTIONS;
+
+  @ConfigProperty(name = "trikora.keycloak.warm-up.users", defaultValue = "false")
+  private Boolean WARM_UP_USERS;
+
+  @ConfigProperty(name = "trikora.keycloak.warm-up.parse-iterations", defaultValue = "5000")
+  private Integer WARM_UP_PARSE_ITERATIONS;
+
+  @ConfigProperty(name = "trikora.keycloak.warm-up.timeout", defaultValue = "120")
+  private Integer WARM_UP_TIMEOUT;
+
+  @RestClient
+  private KeycloakAuthAdminResource keycloakClient;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  @Inject
+  private KeycloakClientLogic blClient;
+
+  @Inject
+  private KeycloakGroupLogic blGroup;
+
+  @Inject
+  private Config config;
+
+  private final Map<String, String> results = new ConcurrentHashMap<>();
+  private volatile boolean done = true;
+
+  void onStart(@Observes final StartupEvent event) {
+    if (!WARM_UP_ENABLED) {
+      return;
+    }
+    done = false;
+    final long startedAt = System.currentTimeMillis();
+    this.warmUp().subscribe().with(
+        x -> {
+          LOGGER.info("Warm-up done in {} ms: {}", System.currentTimeMillis() - startedAt,
+              results);
+          done = true;
+        },
+        ex -> {
+          LOGGER.warn("Warm-up not completed: {}", ex.getMessage());
+          done = true;
+        });
+  }
+
+  /**
+   * @return false while the startup warm-up is running.
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * @return outcome of the warm-up of each realm, and of the parsing paths.
+   */
+  public Map<String, String> getResults() {
+    return new TreeMap<>(results);
+  }
+
+  /**
+   * Warms up the configured realms and the parsing paths, at most for the configured timeout.
+   *
+   * @return completes when the warm-up is done, the failures are recorded in the results.
+   */
+  public Uni<Void> warmUp() {
+    final List<Uni<Void>> steps = new ArrayList<>();
+    steps.add(Uni.createFrom().item(this::exerciseParsers)
+        .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+        .invoke(weight -> results.put("parsing", WARM_UP_PARSE_ITERATIONS + " iterations"))
+        .replaceWithVoid());
+    this.realmsToWarmUp().forEach(realm -> steps.add(this.warmUp(realm)));
+    return Uni.join().all(steps).andCollectFailures()
+        .ifNoItem().after(Duration.ofSeconds(WARM_UP_TIMEOUT)).recoverWithItem(() -> {
+          LOGGER.warn("Warm-up still running after {} seconds, giving up", WARM_UP_TIMEOUT);
+          return null;
+        })
+        .replaceWithVoid();
+  }
+
+  /**
+   * Warms up one realm. The failure of a step is recorded and ends the warm-up of the realm.
+   *
+   * @param realm the realm name.
+   * @return completes when the realm is warm or has failed.
+   */
+  public Uni<Void> warmUp(final String realm) {
+    return realms.getServiceToken(realm)
+        .map(token -> blClient.session(realm, token, realms.context(realm).getClientId()))
+        .flatMap(session -> this.openConnections(session)
+            .flatMap(connections -> blClient.preloadRoleCatalog(session)
+                .flatMap(roles -> blGroup.preloadGroupIndex(session)
+                    .flatMap(groups -> (WARM_UP_USERS ? blClient.preloadUserIds(session)
+                        : Uni.createFrom().item(0))
+                        .map(users -> String.format("%d connections, %d roles, %d groups, %d users",
+                            connections, roles, groups, users))))))
+        .onFailure().recoverWithItem(ex -> "failed: " + ex.getMessage())
+        .invoke(result -> results.put(realm, result))
+        .replaceWithVoid();
+  }
+
+  // Concurrent cheap requests, so the pool of the REST client opens its connections
+  private Uni<Integer> openConnections(final KeycloakSession session) {
+    if (WARM_UP_CONNECTIONS <= 0) {
+      return Uni.createFrom().item(0);
+    }
+    final List<Uni<JsonArray>> requests = IntStream.range(0, WARM_UP_CONNECTIONS)
+        .mapToObj(i -> realms.submit(session.getRealm(), () -> keycloakClient.listAllUsers(
+            session.getAuthorization(), session.getRealm(), GRANT_TYPE, session.getClientId(),
+            0, 1)))
+        .collect(Collectors.toList());
+    return Uni.join().all(requests).andFailFast().map(List::size);
+  }
+
+  private List<String> realmsToWarmUp() {
+    return WARM_UP_REALMS.orElseGet(() -> StreamSupport
+        .stream(config.getPropertyNames().spliterator(), false)
+        .map(REALM_CLIENT::matcher)
+        .filter(Matcher::matches)
+        .map(matcher -> matcher.group(1))
+        .distinct()
+        .collect(Collectors.toList()));
+  }
+
+  // The same parsing done on the Keycloak responses, on representative documents
+  private long exerciseParsers() {
+    final JsonObject user = Json.createObjectBuilder()
+        .add("id", "5c2d3b59-6a0e-4d8f-9d1e-2f1c7c3e8a41").add("username", "warm-up")
+        .add("firstName", "Warm").add("lastName", "Up").add("email", "warm-up@example.com")
+        .add("enabled", true).build();
+    final JsonObject role = Json.createObjectBuilder()
+        .add("id", "0f6a8b2e-3c1d-4e5f-8a9b-7c6d5e4f3a2b").add("name", "warm-up")
+        .add("description", "Warm-up role").add("composite", false).add("clientRole", false)
+        .add("containerId", "warm-up").build();
+    final JsonObject group = Json.createObjectBuilder()
+        .add("id", "9e8d7c6b-5a4f-3e2d-1c0b-a9b8c7d6e5f4").add("name", "warm-up")
+        .add("path", "/warm-up").build();
+    final String users = Json.createArrayBuilder().add(user).add(user).add(user).build()
+        .toString();
+    final String roles = Json.createArrayBuilder().add(role).add(role).add(role).build()
+        .toString();
+    final String groups = Json.createArrayBuilder().add(group).add(group).add(group).build()
+        .toString();
+    long weight = 0L;
+    for (int i = 0; i < WARM_UP_PARSE_ITERATIONS; i++) {
+      weight += CacheWeights.estimate(KeycloakUserRepresentation.allFrom(read(users)));
+      weight += CacheWeights.estimate(RoleRepresentation.allFrom(read(roles)));
+      weight += CacheWeights.estimate(TrikoraGroupRepresentation.allFrom(read(groups)));
+    }
+    return weight;
+  }
+
+  private static JsonArray read(final String json) {
+    try (JsonReader reader = Json.createReader(new StringReader(json))) {
+      return reader.readArray();
+    }
+  }
+}
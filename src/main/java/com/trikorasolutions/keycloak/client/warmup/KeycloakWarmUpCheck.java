@@ -0,0 +1,29 @@
+package com.trikorasolutions.keycloak.client.warmup;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
+import org.eclipse.microprofile.health.Readiness;
+
+/**
+ * Readiness of the client: down while the startup warm-up of the {@link KeycloakWarmUp} runs, up
+ * once it is done (or when it is disabled). The outcome of each realm is given as data.
+ */
+@Readiness
+@ApplicationScoped
+public final class KeycloakWarmUpCheck implements HealthCheck {
+
+  @Inject
+  private KeycloakWarmUp warmUp;
+
+  @Override
+  public HealthCheckResponse call() {
+    final HealthCheckResponseBuilder response = HealthCheckResponse
+        .named("keycloak-client-warm-up")
+        .status(warmUp.isDone());
+    warmUp.getResults().forEach(response::withData);
+    return response.build();
+  }
+}
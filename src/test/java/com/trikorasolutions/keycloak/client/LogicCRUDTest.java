@@ -1,8 +1,13 @@
 package com.trikorasolutions.keycloak.client;
 
+import com.trikorasolutions.keycloak.client.bl.Enrichment;
 import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakSession;
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
 import com.trikorasolutions.keycloak.client.dto.UserRepresentation;
 import com.trikorasolutions.keycloak.client.exception.*;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
 import io.quarkus.test.TestReactiveTransaction;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.vertx.UniAsserter;
@@ -12,7 +17,10 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -38,6 +46,9 @@ public final class LogicCRUDTest {
   @Inject
   private KeycloakClientLogic clientLogic;
 
+  @Inject
+  private KeycloakRealmRouter realms;
+
   @Inject
   private TrikoraKeycloakClientInfo tkrKcCli;
 
@@ -189,6 +200,14 @@ public final class LogicCRUDTest {
               Assertions.assertThat(user.username).isEqualTo(newUser.username);
               Assertions.assertThat(user.id).is(keycloakId);
             })
+        .assertThat( // Only the selected facets
+            () -> clientLogic.getUserInfo(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username, EnumSet.of(Enrichment.ROLES)),
+            user -> {
+              Assertions.assertThat(user.username).isEqualTo(newUser.username);
+              Assertions.assertThat(user.roles).isNotEmpty();
+              Assertions.assertThat(user.groups).isEmpty();
+            })
     ;
 
   }
@@ -323,6 +342,68 @@ public final class LogicCRUDTest {
     ;
   }
 
+  @Test
+  public void testListUsersEnriched(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final KeycloakSession session = clientLogic.session(tkrKcCli.getRealmName(), accessToken,
+        tkrKcCli.getClientId());
+    final AtomicReference<KeycloakUserRepresentation> enriched = new AtomicReference<>();
+
+    asserter
+        .assertThat( // The bulk enrichment gives the same facets as getUserInfo
+            () -> session.listAllUsers(0, Integer.MAX_VALUE, Enrichment.ofUser()),
+            listOfUser -> {
+              enriched.set(listOfUser.stream()
+                  .filter(user -> "mrsquare".equals(user.username))
+                  .findFirst().orElseThrow());
+              Assertions.assertThat(enriched.get().roles).isNotEmpty();
+            })
+        .assertThat(
+            () -> session.getUserInfo("mrsquare"),
+            user -> {
+              Assertions.assertThat(enriched.get().roles.stream()
+                      .map(RoleRepresentation::getName)
+                      .collect(Collectors.toList()))
+                  .containsExactlyInAnyOrderElementsOf(user.roles.stream()
+                      .map(RoleRepresentation::getName)
+                      .collect(Collectors.toList()));
+              Assertions.assertThat(enriched.get().groups)
+                  .containsExactlyInAnyOrderElementsOf(user.groups);
+            })
+    ;
+  }
+
+  @Test
+  public void testListUsersEnrichedPages(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final KeycloakSession session = clientLogic.session(tkrKcCli.getRealmName(), accessToken,
+        tkrKcCli.getClientId());
+    final AtomicLong plain = new AtomicLong();
+    final AtomicLong enriched = new AtomicLong();
+
+    asserter
+        .execute( // The first page fetches the memberships of the realm
+            () -> session.listAllUsers(0, 2, Enrichment.ofUser()))
+        .execute(() -> plain.set(this.requestsStarted()))
+        .execute(() -> session.listAllUsers(2, 2))
+        .execute(() -> {
+          plain.set(this.requestsStarted() - plain.get());
+          enriched.set(this.requestsStarted());
+        })
+        .assertThat( // The second one is enriched from them, it only lists the users
+            () -> session.listAllUsers(2, 2, Enrichment.ofUser()),
+            listOfUser -> {
+              Assertions.assertThat(this.requestsStarted() - enriched.get())
+                  .isEqualTo(plain.get());
+              listOfUser.forEach(user -> Assertions.assertThat(user.roles).isNotEmpty());
+            })
+    ;
+  }
+
+  private long requestsStarted() {
+    return realms.context(tkrKcCli.getRealmName()).getLimiter().getStarted();
+  }
+
   @Test
   public void testEnableDisableUser(UniAsserter asserter) {
     final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
@@ -391,4 +472,111 @@ public final class LogicCRUDTest {
     ;
   }
 
+  @Test
+  public void testSessionUserLifecycle(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final KeycloakSession session = clientLogic.session(tkrKcCli.getRealmName(), accessToken,
+        tkrKcCli.getClientId());
+    UserRepresentation newUser = new UserRepresentation("mr", "session",
+        "mrsession@trikorasolutions.com", true,
+        "mrsession", "mrsession");
+
+    asserter
+        .execute( // Delete the test user
+            () -> session.deleteUser(newUser.username))
+        .assertThat( // Create a test user, its id is remembered by the session
+            () -> session.createUser(newUser),
+            user -> Assertions.assertThat(user.id).is(keycloakId))
+        .assertThat(
+            () -> session.disableUser(newUser.username),
+            disabled -> Assertions.assertThat(disabled).isTrue())
+        .assertThat(
+            () -> session.getUserRoles(newUser.username),
+            roles -> Assertions.assertThat(roles).isNotNull())
+        .assertThat(
+            () -> session.deleteUser(newUser.username),
+            bool -> Assertions.assertThat(bool).isTrue())
+        .assertFailedWith( // The deleted user is forgotten by the session
+            () -> session.getUserInfo(newUser.username),
+            NoSuchUserException.class)
+    ;
+  }
+
+  @Test
+  public void testUserIdCacheHit(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    UserRepresentation newUser = new UserRepresentation("mr", "cached",
+        "mrcached@trikorasolutions.com", true,
+        "mrcached", "mrcached");
+    UserRepresentation updatedUser = new UserRepresentation("mr", "cached",
+        "updatedcached@trikorasolutions.com", true,
+        "mrcached", "mrcached");
+    final AtomicLong hitsBefore = new AtomicLong();
+
+    asserter
+        .execute( // Delete the test user
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username))
+        .execute( // Create a test user, it fills the id cache
+            () -> clientLogic.createUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser))
+        .execute(() -> hitsBefore.set(this.userIdCacheHits()))
+        .assertThat( // Another session, the id comes from the cache of the realm
+            () -> clientLogic.updateUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username, updatedUser),
+            user -> {
+              Assertions.assertThat(user.email).isEqualTo(updatedUser.email);
+              Assertions.assertThat(this.userIdCacheHits())
+                  .isGreaterThan(hitsBefore.get());
+            })
+        .assertThat(
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username),
+            bool -> Assertions.assertThat(bool).isTrue())
+        .assertThat( // The deleted user is no longer in the cache
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username),
+            bool -> Assertions.assertThat(bool).isFalse())
+    ;
+  }
+
+  @Test
+  public void testMissingUserIsCached(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    UserRepresentation newUser = new UserRepresentation("mr", "missing",
+        "mrmissing@trikorasolutions.com", true,
+        "mrmissing", "mrmissing");
+    final AtomicLong hitsBefore = new AtomicLong();
+
+    asserter
+        .execute( // Delete the test user
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username))
+        .execute( // The user does not exist, the miss is remembered
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username))
+        .execute(() -> hitsBefore.set(tkrKcCli.getCacheHits("/not-found")))
+        .assertThat( // Answered without searching the user again
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username),
+            bool -> {
+              Assertions.assertThat(bool).isFalse();
+              Assertions.assertThat(tkrKcCli.getCacheHits("/not-found"))
+                  .isGreaterThan(hitsBefore.get());
+            })
+        .assertThat( // Creating the user clears the miss
+            () -> clientLogic.createUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser),
+            user -> Assertions.assertThat(user.username).isEqualTo(newUser.username))
+        .assertThat(
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username),
+            bool -> Assertions.assertThat(bool).isTrue())
+    ;
+  }
+
+  private long userIdCacheHits() {
+    return tkrKcCli.getCacheHits("/user-ids");
+  }
+
 }
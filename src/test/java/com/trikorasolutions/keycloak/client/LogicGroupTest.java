@@ -1,16 +1,21 @@
 package com.trikorasolutions.keycloak.client;
 
+import com.trikorasolutions.keycloak.client.bl.Enrichment;
 import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
 import com.trikorasolutions.keycloak.client.bl.KeycloakGroupLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakSession;
 import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
 import com.trikorasolutions.keycloak.client.dto.TrikoraGroupRepresentation;
 import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
 import com.trikorasolutions.keycloak.client.exception.NoSuchGroupException;
+import com.trikorasolutions.keycloak.client.exception.NoSuchRoleException;
 import io.quarkus.test.TestReactiveTransaction;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.vertx.UniAsserter;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 import org.assertj.core.api.Assertions;
@@ -69,6 +74,36 @@ public final class LogicGroupTest {
     ;
   }
 
+  @Test
+  public void testGroupInfoAttributes(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final TrikoraGroupRepresentation newGroup = new TrikoraGroupRepresentation("TEST_ATTRIBUTES");
+
+    asserter
+        .execute(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()))
+        .execute(
+            () -> blGroup.createGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(),
+                Map.of("tkr-tenant", List.of("TEST_ATTRIBUTES"))))
+        .assertThat( // Only the selected facets
+            () -> blGroup.getGroupInfo(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(),
+                EnumSet.of(Enrichment.ATTRIBUTES, Enrichment.CLIENT_ROLES)),
+            group -> {
+              Assertions.assertThat(group.getAttributes())
+                  .containsEntry("tkr-tenant", List.of("TEST_ATTRIBUTES"));
+              Assertions.assertThat(group.getClientRoles()).isEmpty();
+              Assertions.assertThat(group.getRoles()).isEmpty();
+            })
+        .assertThat(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()),
+            bool -> Assertions.assertThat(bool).isTrue())
+    ;
+  }
+
   @Test
   public void testGroupInfoOk(UniAsserter asserter) {
     final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
@@ -144,6 +179,34 @@ public final class LogicGroupTest {
     ;
   }
 
+  @Test
+  public void testUpdateGroupByPathOk(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final TrikoraGroupRepresentation newGroup = new TrikoraGroupRepresentation("TEST_UPD_PATH");
+
+    asserter
+        .execute(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()))
+        .execute(
+            () -> blGroup.createGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(), null))
+        .assertThat( // Addressed by its path, the group keeps its name
+            () -> blGroup.updateGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), "/" + newGroup.getName(),
+                Map.of("tkr-tenant", List.of("TEST_UPD_PATH"))),
+            group -> Assertions.assertThat(group.getName()).isEqualTo(newGroup.getName()))
+        .assertThat(
+            () -> blGroup.getGroupInfoNoEnrich(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()),
+            group -> Assertions.assertThat(group.getName()).isEqualTo(newGroup.getName()))
+        .assertThat(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()),
+            bool -> Assertions.assertThat(bool).isTrue())
+    ;
+  }
+
   @Test
   public void testDeleteGroupOk(UniAsserter asserter) {
     final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
@@ -175,6 +238,30 @@ public final class LogicGroupTest {
     ;
   }
 
+  @Test
+  public void testCreateGroupAfterMiss(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final String groupName = "TEST_CREATE_AFTER_MISS";
+
+    asserter
+        .execute( // Delete the test group
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), groupName))
+        .assertThat( // The group does not exist, the miss is remembered
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), groupName),
+            bool -> Assertions.assertThat(bool).isFalse())
+        .assertThat( // Creating the group reads it back past the remembered miss
+            () -> blGroup.createGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), groupName, null),
+            group -> Assertions.assertThat(group.getName()).isEqualTo(groupName))
+        .assertThat(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), groupName),
+            bool -> Assertions.assertThat(bool).isTrue())
+    ;
+  }
+
   @Test
   public void testGroupListUsers(UniAsserter asserter) {
     final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
@@ -202,6 +289,16 @@ public final class LogicGroupTest {
               Assertions.assertThat(usernameList).isNotEmpty();
               Assertions.assertThat(usernameList).contains(userToEnroll);
             })
+        .assertThat( // Same members by the id of the group, within one session
+            () -> {
+              final KeycloakSession session = blClient.session(tkrKcCli.getRealmName(),
+                  accessToken, tkrKcCli.getClientId());
+              return session.getGroupInfo(newGroup.getName())
+                  .flatMap(group -> session.getGroupMembersById(group.getId()));
+            },
+            listOfUser -> Assertions.assertThat(listOfUser.stream()
+                .map(KeycloakUserRepresentation::getUsername)
+                .collect(Collectors.toList())).containsExactly(userToEnroll))
     ;
   }
 
@@ -255,4 +352,78 @@ public final class LogicGroupTest {
     ;
   }
 
+  @Test
+  public void testGroupIndexHit(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final TrikoraGroupRepresentation newGroup = new TrikoraGroupRepresentation("TEST_INDEXED");
+    final AtomicLong hitsBefore = new AtomicLong();
+
+    asserter
+        .execute(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()))
+        .execute( // Loads the index of the realm, the new group is added to it
+            () -> blGroup.createGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(), null))
+        .execute(() -> hitsBefore.set(this.groupIndexHits()))
+        .assertThat( // Another session, the id comes from the index of the realm
+            () -> blGroup.getGroupInfoNoEnrich(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()),
+            group -> {
+              Assertions.assertThat(group.getName()).isEqualTo(newGroup.getName());
+              Assertions.assertThat(this.groupIndexHits()).isGreaterThan(hitsBefore.get());
+            })
+        .assertThat( // The group can also be addressed by its path
+            () -> blGroup.getGroupInfoNoEnrich(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), "/" + newGroup.getName()),
+            group -> Assertions.assertThat(group.getName()).isEqualTo(newGroup.getName()))
+        .assertThat(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()),
+            bool -> Assertions.assertThat(bool).isTrue())
+        .assertFailedWith( // The deleted group is no longer in the index
+            () -> blGroup.getGroupInfoNoEnrich(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()),
+            NoSuchGroupException.class)
+    ;
+  }
+
+  @Test
+  public void testRoleCatalogHit(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final TrikoraGroupRepresentation newGroup = new TrikoraGroupRepresentation("TEST_CATALOG");
+    final AtomicLong hitsBefore = new AtomicLong();
+
+    asserter
+        .execute(
+            () -> blGroup.deleteGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName()))
+        .execute(
+            () -> blGroup.createGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(), null))
+        .execute( // Loads the role catalog of the realm
+            () -> blGroup.addRolesToGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(), "application_user"))
+        .execute(() -> hitsBefore.set(tkrKcCli.getCacheHits("/role-catalog")))
+        .assertThat( // The roles are resolved with the catalog
+            () -> blGroup.removeRolesFromGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(), "application_user"),
+            group -> {
+              Assertions.assertThat(group.getRoles().stream()
+                  .map(RoleRepresentation::getName)
+                  .collect(Collectors.toList())).doesNotContain("application_user");
+              Assertions.assertThat(tkrKcCli.getCacheHits("/role-catalog"))
+                  .isGreaterThan(hitsBefore.get());
+            })
+        .assertFailedWith( // Unknown roles are still reported
+            () -> blGroup.addRolesToGroup(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newGroup.getName(), "unknown_role"),
+            NoSuchRoleException.class)
+    ;
+  }
+
+  private long groupIndexHits() {
+    return tkrKcCli.getCacheHits("/group-index");
+  }
+
 }
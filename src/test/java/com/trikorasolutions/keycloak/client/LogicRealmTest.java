@@ -0,0 +1,306 @@
+package com.trikorasolutions.keycloak.client;
+
+import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.cache.CacheStats;
+import com.trikorasolutions.keycloak.client.cache.KeycloakCacheMemory;
+import com.trikorasolutions.keycloak.client.digest.KeycloakRealmDigest;
+import com.trikorasolutions.keycloak.client.digest.RealmDigest;
+import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.dto.UserRepresentation;
+import com.trikorasolutions.keycloak.client.exception.TrikoraGenericException;
+import com.trikorasolutions.keycloak.client.invalidation.CacheInvalidation;
+import com.trikorasolutions.keycloak.client.invalidation.InvalidationChannel;
+import com.trikorasolutions.keycloak.client.invalidation.KeycloakCacheInvalidator;
+import com.trikorasolutions.keycloak.client.mirror.KeycloakRealmMirror;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import com.trikorasolutions.keycloak.client.realm.SingleFlight;
+import com.trikorasolutions.keycloak.client.warmup.KeycloakWarmUp;
+import com.trikorasolutions.keycloak.client.warmup.KeycloakWarmUpCheck;
+import io.quarkus.test.TestReactiveTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.vertx.UniAsserter;
+import io.smallrye.mutiny.Uni;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.inject.Inject;
+import org.assertj.core.api.Assertions;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+@TestReactiveTransaction
+public final class LogicRealmTest {
+
+  @Inject
+  private KeycloakClientLogic clientLogic;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  @Inject
+  private KeycloakRealmMirror mirror;
+
+  @Inject
+  private KeycloakRealmDigest digests;
+
+  @Inject
+  private KeycloakCacheMemory memory;
+
+  @Inject
+  private InvalidationChannel channel;
+
+  @Inject
+  private KeycloakCacheInvalidator invalidator;
+
+  @Inject
+  private KeycloakWarmUp warmUp;
+
+  @Inject
+  private KeycloakWarmUpCheck warmUpCheck;
+
+  @Inject
+  private TrikoraKeycloakClientInfo tkrKcCli;
+
+  @Test
+  public void testRealmServiceToken(UniAsserter asserter) {
+    asserter
+        .assertThat(() -> realms.getServiceToken(tkrKcCli.getRealmName()),
+            token -> Assertions.assertThat(token).isNotBlank())
+        .assertFailedWith( // No client configured for this realm
+            () -> realms.getServiceToken("master"), TrikoraGenericException.class);
+  }
+
+  @Test
+  public void testRealmRequestsInFlightBounded(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final List<Uni<List<RoleRepresentation>>> requests = IntStream.range(0, 16)
+        .mapToObj(i -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+            tkrKcCli.getClientId()))
+        .collect(Collectors.toList());
+
+    asserter.assertThat(() -> Uni.join().all(requests).andFailFast(), roles -> {
+      Assertions.assertThat(roles).hasSize(16).allSatisfy(
+          list -> Assertions.assertThat(list).isNotEmpty());
+      Assertions.assertThat(realms.context(tkrKcCli.getRealmName()).getLimiter().isIdle())
+          .isTrue();
+      Assertions.assertThat(realms.getActiveRealms()).contains(tkrKcCli.getRealmName());
+    });
+  }
+
+  @Test
+  public void testRealmReadsShared(UniAsserter asserter) {
+    final AtomicInteger sent = new AtomicInteger();
+    final List<Uni<String>> reads = IntStream.range(0, 8)
+        .mapToObj(i -> realms.read(tkrKcCli.getRealmName(), SingleFlight.key("test-read"),
+            () -> {
+              sent.incrementAndGet();
+              return Uni.createFrom().item("read").onItem().delayIt().by(Duration.ofMillis(200));
+            }))
+        .collect(Collectors.toList());
+
+    asserter.assertThat(() -> Uni.join().all(reads).andFailFast(), results -> {
+      Assertions.assertThat(results).hasSize(8).containsOnly("read");
+      Assertions.assertThat(sent.get()).isEqualTo(1);
+      Assertions.assertThat(realms.context(tkrKcCli.getRealmName()).getReads().getInFlight())
+          .isZero();
+    });
+  }
+
+  @Test
+  public void testRealmMirrorMatchesKeycloak(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    asserter.assertThat(() -> Uni.combine().all().unis(
+        mirror.refresh(tkrKcCli.getRealmName()),
+        clientLogic.getUserRoles(tkrKcCli.getRealmName(), accessToken, tkrKcCli.getClientId(),
+            tkrKcCli.getAdm())).asTuple(), tuple -> {
+      Assertions.assertThat(tuple.getItem1().isClean()).isTrue();
+      Assertions.assertThat(tuple.getItem1().getUserInfo(tkrKcCli.getAdm())).isNotNull();
+      Assertions.assertThat(tuple.getItem1().getUserRoles(tkrKcCli.getAdm()))
+          .extracting(RoleRepresentation::getName)
+          .containsExactlyInAnyOrderElementsOf(tuple.getItem2().stream()
+              .map(RoleRepresentation::getName).collect(Collectors.toList()));
+    });
+  }
+
+  @Test
+  public void testRealmAuthorizationChecks(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    asserter.assertThat(() -> Uni.combine().all().unis(
+        mirror.refresh(tkrKcCli.getRealmName()),
+        clientLogic.getUserRoles(tkrKcCli.getRealmName(), accessToken, tkrKcCli.getClientId(),
+            tkrKcCli.getAdm()),
+        clientLogic.hasEffectiveRole(tkrKcCli.getRealmName(), accessToken,
+            tkrKcCli.getClientId(), tkrKcCli.getAdm(), "project_manager")).asTuple(), tuple -> {
+      // The checks from memory agree with the roles read from Keycloak
+      tuple.getItem2().forEach(role -> Assertions.assertThat(
+          tuple.getItem1().hasEffectiveRole(tkrKcCli.getAdm(), role.getName())).isTrue());
+      Assertions.assertThat(tuple.getItem1().hasEffectiveRole(tkrKcCli.getAdm(),
+          "project_manager")).isEqualTo(tuple.getItem3());
+      Assertions.assertThat(tuple.getItem1().hasEffectiveRole(tkrKcCli.getAdm(), "unknown_role"))
+          .isNull();
+    });
+  }
+
+  @Test
+  public void testRealmSnapshotWritten(UniAsserter asserter) {
+    final Path file = Path.of("target", "mirror-snapshots", tkrKcCli.getRealmName() + ".snapshot");
+    asserter
+        .execute(() -> mirror.refresh(tkrKcCli.getRealmName()))
+        .assertThat( // Written in the background
+            () -> Uni.createFrom().item(() -> Files.isRegularFile(file))
+                .repeat().withDelay(Duration.ofMillis(100)).whilst(written -> !written)
+                .collect().last()
+                .ifNoItem().after(Duration.ofSeconds(5)).fail(),
+            x -> Assertions.assertThat(file).isRegularFile().isNotEmptyFile());
+  }
+
+  @Test
+  public void testRealmDigest(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    asserter.assertThat(() -> Uni.combine().all().unis(
+        digests.digest(tkrKcCli.getRealmName(), accessToken, tkrKcCli.getClientId()),
+        digests.digest(tkrKcCli.getRealmName(), accessToken, tkrKcCli.getClientId()),
+        clientLogic.listAllUsers(tkrKcCli.getRealmName(), accessToken,
+            tkrKcCli.getClientId())).asTuple(), tuple -> {
+      final RealmDigest first = tuple.getItem1();
+      final RealmDigest second = tuple.getItem2();
+      Assertions.assertThat(first.getUserCount()).isEqualTo(tuple.getItem3().size());
+      Assertions.assertThat(second.matches(first)).isTrue();
+      Assertions.assertThat(second.getFingerprint()).isEqualTo(first.getFingerprint());
+      Assertions.assertThat(second.usersChanged(first)).isFalse();
+      Assertions.assertThat(second.changedUserPages(first)).isEmpty();
+      Assertions.assertThat(second.changedUserPages(null))
+          .hasSize(second.getUserPageCount());
+    });
+  }
+
+  @Test
+  public void testInvalidationsShared(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final RoleRepresentation newRole = new RoleRepresentation("test-shared-role",
+        "test-shared-role-desc");
+    final CompletableFuture<CacheInvalidation> received = new CompletableFuture<>();
+    final AtomicReference<Runnable> subscription = new AtomicReference<>();
+
+    asserter
+        .execute( // Another instance of the client, listening in the same JVM
+            () -> subscription.set(channel.subscribe(message -> {
+              if (newRole.name.equals(message.getName())) {
+                received.complete(message);
+              }
+            })))
+        .execute(
+            () -> clientLogic.createRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole))
+        .assertThat(
+            () -> Uni.createFrom().completionStage(received)
+                .ifNoItem().after(Duration.ofSeconds(5)).fail(),
+            message -> {
+              Assertions.assertThat(message.getType()).isEqualTo(CacheInvalidation.Type.ROLE);
+              Assertions.assertThat(message.getRealm()).isEqualTo(tkrKcCli.getRealmName());
+              Assertions.assertThat(message.getOrigin()).isEqualTo(invalidator.getInstanceId());
+            })
+        .execute(
+            () -> clientLogic.deleteRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name))
+        .execute(() -> subscription.get().run());
+  }
+
+  @Test
+  public void testInvalidationsReceived(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final UserRepresentation newUser = new UserRepresentation("mr", "shared",
+        "mrshared@trikorasolutions.com", true, "mrshared", "mrshared");
+    final UserRepresentation updatedUser = new UserRepresentation("mr", "shared",
+        "updatedshared@trikorasolutions.com", true, "mrshared", "mrshared");
+    final AtomicReference<CacheStats> before = new AtomicReference<>();
+
+    asserter
+        .execute( // Delete the test user
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username))
+        .execute( // Create a test user, it fills the id cache
+            () -> clientLogic.createUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser))
+        .execute(() -> { // The own messages come back from the channel, they are skipped
+          invalidator.receive(new CacheInvalidation(CacheInvalidation.Type.USER,
+              tkrKcCli.getRealmName(), null, newUser.username, invalidator.getInstanceId()));
+          before.set(tkrKcCli.getCacheStats("/user-ids"));
+        })
+        .assertThat( // Another session, the id is still cached
+            () -> clientLogic.updateUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username, updatedUser),
+            user -> Assertions.assertThat(tkrKcCli.getCacheStats("/user-ids").getHits())
+                .isGreaterThan(before.get().getHits()))
+        .execute(() -> { // Another instance changed the user
+          invalidator.receive(new CacheInvalidation(CacheInvalidation.Type.USER,
+              tkrKcCli.getRealmName(), null, newUser.username, "other-instance"));
+          before.set(tkrKcCli.getCacheStats("/user-ids"));
+        })
+        .assertThat( // The id was dropped, it is searched again
+            () -> clientLogic.updateUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username, newUser),
+            user -> {
+              Assertions.assertThat(user.email).isEqualTo(newUser.email);
+              Assertions.assertThat(tkrKcCli.getCacheStats("/user-ids").getHits())
+                  .isEqualTo(before.get().getHits());
+              Assertions.assertThat(tkrKcCli.getCacheStats("/user-ids").getMisses())
+                  .isGreaterThan(before.get().getMisses());
+            })
+        .assertThat(
+            () -> clientLogic.deleteUser(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newUser.username),
+            bool -> Assertions.assertThat(bool).isTrue());
+  }
+
+  @Test
+  public void testCachesShrinkUnderPressure(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+
+    asserter
+        .execute(
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()))
+        .execute(() -> {
+          Assertions.assertThat(this.realmCacheWeight()).isPositive();
+          Assertions.assertThat(memory.getBudget().getUsed())
+              .isLessThanOrEqualTo(memory.getBudget().getMaxBytes());
+          memory.shrink(0.0);
+          Assertions.assertThat(memory.getBudget().isRestricted()).isTrue();
+          Assertions.assertThat(this.realmCacheWeight()).isZero();
+          memory.relax();
+          Assertions.assertThat(memory.getBudget().isRestricted()).isFalse();
+        })
+        .assertThat( // Loaded again
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()),
+            roles -> Assertions.assertThat(roles).isNotEmpty());
+  }
+
+  private long realmCacheWeight() {
+    return realms.context(tkrKcCli.getRealmName()).cacheStats().stream()
+        .mapToLong(CacheStats::getWeight).sum();
+  }
+
+  @Test
+  public void testRealmWarmUp(UniAsserter asserter) {
+    asserter
+        .execute(() -> warmUp.warmUp(tkrKcCli.getRealmName()))
+        .execute(() -> {
+          Assertions.assertThat(warmUp.getResults().get(tkrKcCli.getRealmName()))
+              .isNotNull().doesNotStartWith("failed");
+          Assertions.assertThat(realms.context(tkrKcCli.getRealmName()).cacheStats())
+              .anyMatch(stats -> stats.getName().endsWith("/role-catalog") && stats.getSize() == 1)
+              .anyMatch(stats -> stats.getName().endsWith("/group-index") && stats.getSize() == 1);
+          Assertions.assertThat(warmUpCheck.call().getStatus())
+              .isEqualTo(HealthCheckResponse.Status.UP);
+        });
+  }
+}
@@ -1,14 +1,21 @@
 package com.trikorasolutions.keycloak.client;
 
 import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.bl.KeycloakGroupLogic;
+import com.trikorasolutions.keycloak.client.cache.CacheStats;
 import com.trikorasolutions.keycloak.client.dto.RoleRepresentation;
+import com.trikorasolutions.keycloak.client.exception.NoSuchRoleException;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
 import io.quarkus.test.TestReactiveTransaction;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.vertx.UniAsserter;
+import org.jboss.resteasy.reactive.ClientWebApplicationException;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import javax.inject.Inject;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -23,6 +30,12 @@ public final class LogicRoleTest {
   @Inject
   private KeycloakClientLogic clientLogic;
 
+  @Inject
+  private KeycloakGroupLogic groupLogic;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
   @Inject
   private TrikoraKeycloakClientInfo tkrKcCli;
 
@@ -87,6 +100,69 @@ public final class LogicRoleTest {
         listOfRoles -> assertThat(listOfRoles).isNotEmpty());
   }
 
+  @Test
+  public void testRoleListingCached(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final RoleRepresentation newRole = new RoleRepresentation("test-cached-role",
+        "test-cached-role-desc");
+    final AtomicLong hitsBefore = new AtomicLong();
+
+    asserter
+        .execute(
+            () -> clientLogic.deleteRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name))
+        .execute( // Loads the listing
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()))
+        .execute(() -> hitsBefore.set(this.catalogHits()))
+        .assertThat(
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()),
+            roles -> {
+              assertThat(roles).isNotEmpty();
+              assertThat(this.catalogHits()).isGreaterThan(hitsBefore.get());
+            })
+        .execute(
+            () -> clientLogic.createRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole))
+        .assertThat( // The roles created by this client are listed at once
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()),
+            roles -> assertThat(roles.stream().map(RoleRepresentation::getName)
+                .collect(Collectors.toList())).contains(newRole.name))
+        .execute(
+            () -> clientLogic.deleteRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name))
+    ;
+  }
+
+  @Test
+  public void testRoleListingCachedPerCaller(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final String userToken = tkrKcCli.getAccessToken("jdoe", "jdoe");
+
+    asserter
+        .execute( // The admin warms the catalog cache
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()))
+        .execute(
+            () -> groupLogic.listAllGroups(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()))
+        .assertFailedWith( // A user without realm-management roles is still refused
+            () -> clientLogic.listAllRoles(tkrKcCli.getRealmName(), userToken,
+                tkrKcCli.getClientId()), ClientWebApplicationException.class)
+        .assertFailedWith(
+            () -> groupLogic.listAllGroups(tkrKcCli.getRealmName(), userToken,
+                tkrKcCli.getClientId()), ClientWebApplicationException.class)
+    ;
+  }
+
+  private long catalogHits() {
+    return realms.context(tkrKcCli.getRealmName()).cacheStats().stream()
+        .filter(stats -> stats.getName().endsWith("/catalogs"))
+        .mapToLong(CacheStats::getHits).sum();
+  }
+
   @Test
   public void testGetRoleUsers(UniAsserter asserter) {
     final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
@@ -118,6 +194,23 @@ public final class LogicRoleTest {
         listOfUsers -> assertThat(listOfUsers).isNotEmpty());
   }
 
+  @Test
+  public void testStreamUsersInEffectiveRole(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+
+    asserter.assertThat(
+        () -> clientLogic.streamUsersInEffectiveRole(tkrKcCli.getRealmName(), accessToken,
+            tkrKcCli.getClientId(), "project_manager").collect().asList(),
+        listOfUsers -> {
+          assertThat(listOfUsers).isNotEmpty();
+          assertThat(listOfUsers).doesNotHaveDuplicates();
+        });
+    asserter.assertFailedWith(
+        () -> clientLogic.streamUsersInEffectiveRole(tkrKcCli.getRealmName(), accessToken,
+            tkrKcCli.getClientId(), "unknown_role").collect().asList(),
+        NoSuchRoleException.class);
+  }
+
   @Test
   public void testGetToken(UniAsserter asserter) {
 
@@ -158,4 +251,33 @@ public final class LogicRoleTest {
             bool -> Assertions.assertThat(bool).isEqualTo(false))
     ;
   }
+
+  @Test
+  public void testCreateRoleAfterMiss(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final RoleRepresentation newRole = new RoleRepresentation("test-create-after-miss",
+        "test-create-after-miss-desc");
+
+    asserter
+        .execute( // Delete the test role
+            () -> clientLogic.deleteRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name))
+        .assertThat( // The role does not exist, the miss is remembered
+            () -> clientLogic.deleteRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name),
+            bool -> Assertions.assertThat(bool).isFalse())
+        .assertThat( // Creating the role reads it back past the remembered miss
+            () -> clientLogic.createRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole),
+            role -> assertThat(role.name).isEqualTo(newRole.name))
+        .assertThat( // Updating it reads it back again
+            () -> clientLogic.updateRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name, newRole),
+            role -> assertThat(role.description).isEqualTo(newRole.description))
+        .assertThat(
+            () -> clientLogic.deleteRole(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId(), newRole.name),
+            bool -> Assertions.assertThat(bool).isTrue())
+    ;
+  }
 }
@@ -0,0 +1,162 @@
+package com.trikorasolutions.keycloak.client;
+
+import com.trikorasolutions.keycloak.client.bl.KeycloakClientLogic;
+import com.trikorasolutions.keycloak.client.exception.InvalidTokenException;
+import com.trikorasolutions.keycloak.client.token.KeycloakSessionPool;
+import com.trikorasolutions.keycloak.client.token.KeycloakTokenValidator;
+import com.trikorasolutions.keycloak.client.token.KeycloakUserInfoCache;
+import io.quarkus.test.TestReactiveTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.vertx.UniAsserter;
+import io.smallrye.mutiny.Uni;
+import java.util.List;
+import javax.inject.Inject;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@QuarkusTest
+@TestReactiveTransaction
+public final class LogicTokenTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LogicTokenTest.class);
+
+  @Inject
+  private KeycloakClientLogic clientLogic;
+
+  @Inject
+  private KeycloakTokenValidator tokenValidator;
+
+  @Inject
+  private KeycloakUserInfoCache userInfoCache;
+
+  @Inject
+  private KeycloakSessionPool sessionPool;
+
+  @Inject
+  private TrikoraKeycloakClientInfo tkrKcCli;
+
+  @Test
+  public void testServiceTokenIsCached(UniAsserter asserter) {
+    asserter.assertThat(
+        () -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                tkrKcCli.getClientSecret())
+            .flatMap(first -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(),
+                    tkrKcCli.getClientId(), tkrKcCli.getClientSecret())
+                .map(second -> List.of(first, second))),
+        tokens -> {
+          Assertions.assertThat(tokens.get(0)).isNotBlank();
+          Assertions.assertThat(tokens.get(1)).isEqualTo(tokens.get(0));
+        });
+  }
+
+  @Test
+  public void testServiceTokenSharedRequest(UniAsserter asserter) {
+    asserter.assertThat(
+        () -> Uni.join().all(
+                clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                    tkrKcCli.getClientSecret()),
+                clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                    tkrKcCli.getClientSecret()))
+            .andFailFast(),
+        tokens -> Assertions.assertThat(tokens).hasSize(2).containsOnly(tokens.get(0)));
+  }
+
+  @Test
+  public void testServiceTokenInvalidSecretErr(UniAsserter asserter) {
+    asserter.assertFailedWith(
+        () -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(), "client_is_not_defined",
+            "BAD SECRET"),
+        InvalidTokenException.class);
+  }
+
+  @Test
+  public void testServiceTokenBadSecretAfterCachedErr(UniAsserter asserter) {
+    asserter
+        .assertThat( // Caches the token of the right secret
+            () -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                tkrKcCli.getClientSecret()),
+            token -> Assertions.assertThat(token).isNotBlank())
+        .assertFailedWith( // Same client, a wrong secret does not get that token
+            () -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                "BAD SECRET"),
+            InvalidTokenException.class);
+  }
+
+  @Test
+  public void testLocalTokenValidationOk(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+
+    asserter.assertThat(
+        () -> tokenValidator.getUserInfo(tkrKcCli.getRealmName(), accessToken),
+        user -> {
+          Assertions.assertThat(user.username).isEqualTo(tkrKcCli.getAdm());
+          Assertions.assertThat(user.id).isNotBlank();
+          Assertions.assertThat(user.enabled).isTrue();
+        });
+  }
+
+  @Test
+  public void testLocalTokenValidationErr(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+
+    asserter
+        .assertFailedWith(
+            () -> tokenValidator.getUserInfo(tkrKcCli.getRealmName(), "BAD TOKEN"),
+            InvalidTokenException.class)
+        .assertFailedWith( // Same token, but checked against another realm
+            () -> tokenValidator.getUserInfo("master", accessToken),
+            InvalidTokenException.class);
+  }
+
+  @Test
+  public void testUserInfoCacheHit(UniAsserter asserter) {
+    final String accessToken = tkrKcCli.getAccessToken(tkrKcCli.getAdm(), tkrKcCli.getAdm());
+    final long hitsBefore = userInfoCache.stats().getHits();
+
+    asserter
+        .assertThat(
+            () -> userInfoCache.getUserInfo(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()),
+            user -> Assertions.assertThat(user.username).isEqualTo(tkrKcCli.getAdm()))
+        .assertThat(
+            () -> userInfoCache.getUserInfo(tkrKcCli.getRealmName(), accessToken,
+                tkrKcCli.getClientId()),
+            user -> {
+              Assertions.assertThat(user.username).isEqualTo(tkrKcCli.getAdm());
+              Assertions.assertThat(userInfoCache.stats().getHits()).isGreaterThan(hitsBefore);
+            });
+  }
+
+  @Test
+  public void testUserSessionIsPooled(UniAsserter asserter) {
+    final long grantsBefore = sessionPool.getPasswordGrants();
+
+    asserter
+        .assertThat(
+            () -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                    tkrKcCli.getClientSecret(), tkrKcCli.getAdm(), tkrKcCli.getAdm())
+                .flatMap(first -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(),
+                        tkrKcCli.getClientId(), tkrKcCli.getClientSecret(), tkrKcCli.getAdm(),
+                        tkrKcCli.getAdm())
+                    .map(second -> List.of(first, second))),
+            tokens -> {
+              Assertions.assertThat(tokens.get(0)).isNotBlank();
+              Assertions.assertThat(tokens.get(1)).isEqualTo(tokens.get(0));
+              Assertions.assertThat(sessionPool.getPasswordGrants()).isEqualTo(grantsBefore + 1);
+            })
+        .assertThat(
+            () -> sessionPool.logout(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+                tkrKcCli.getClientSecret(), tkrKcCli.getAdm(), tkrKcCli.getAdm()),
+            pooled -> Assertions.assertThat(pooled).isTrue());
+  }
+
+  @Test
+  public void testUserSessionBadPasswordErr(UniAsserter asserter) {
+    asserter.assertFailedWith(
+        () -> clientLogic.getTokenForUser(tkrKcCli.getRealmName(), tkrKcCli.getClientId(),
+            tkrKcCli.getClientSecret(), tkrKcCli.getAdm(), "BAD PASSWORD"),
+        InvalidTokenException.class);
+  }
+}
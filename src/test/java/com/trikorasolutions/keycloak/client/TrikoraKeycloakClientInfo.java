@@ -1,5 +1,7 @@
 package com.trikorasolutions.keycloak.client;
 
+import com.trikorasolutions.keycloak.client.cache.CacheStats;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
 import io.restassured.RestAssured;
 import io.restassured.parsing.Parser;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -8,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 
 /**
  * These variables regarding the "backend-service" client belongs to a testing example project, do
@@ -32,6 +35,9 @@ public final class TrikoraKeycloakClientInfo {
   @ConfigProperty(name = "trikora.keycloak.realm-name")
   private String realmName;
 
+  @Inject
+  private KeycloakRealmRouter realms;
+
   public String getAccessToken(String userName, String password) {
     RestAssured.defaultParser = Parser.JSON;
     return RestAssured.given()
@@ -45,6 +51,26 @@ public final class TrikoraKeycloakClientInfo {
         .getToken();
   }
 
+  /**
+   * @param cacheSuffix end of the name of the cache, e.g. "/user-ids".
+   * @return the statistics of the cache of the test realm.
+   */
+  public CacheStats getCacheStats(final String cacheSuffix) {
+    return realms.context(realmName).cacheStats().stream()
+        .filter(stats -> stats.getName().endsWith(cacheSuffix))
+        .findFirst().orElseThrow();
+  }
+
+  /**
+   * @param cacheSuffix end of the name of the cache, e.g. "/user-ids".
+   * @return the hits of the cache of the test realm, 0 before its first use.
+   */
+  public long getCacheHits(final String cacheSuffix) {
+    return realms.context(realmName).cacheStats().stream()
+        .filter(stats -> stats.getName().endsWith(cacheSuffix))
+        .mapToLong(CacheStats::getHits).sum();
+  }
+
   public String getClientSecret() {
     return clientSecret;
   }
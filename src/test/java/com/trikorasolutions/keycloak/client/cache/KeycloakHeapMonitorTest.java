@@ -0,0 +1,60 @@
+package com.trikorasolutions.keycloak.client.cache;
+
+import io.quarkus.test.junit.QuarkusTest;
+import java.time.Duration;
+import javax.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+@QuarkusTest
+public final class KeycloakHeapMonitorTest {
+
+  @Inject
+  private KeycloakHeapMonitor monitor;
+
+  @Inject
+  private KeycloakCacheMemory memory;
+
+  @Test
+  public void testShrinkOnceWhileOldGenStaysFull() {
+    final ExpiringCache<String, String> cache = memory.create("heap-test", 10,
+        Duration.ofMinutes(5));
+    cache.put("key1", "value1");
+    cache.put("key2", "value2");
+    final CacheBudget budget = memory.getBudget();
+
+    try {
+      monitor.afterCollection(0.99);
+      final long limit = budget.getLimit();
+      assertThat(budget.isRestricted()).isTrue();
+      assertThat(limit).isPositive();
+
+      // A young collection while the old generation is still full does not shrink them again
+      monitor.afterCollection(0.99);
+      assertThat(budget.isRestricted()).isTrue();
+      assertThat(budget.getLimit()).isEqualTo(limit);
+
+      monitor.afterCollection(0.1);
+      assertThat(budget.isRestricted()).isFalse();
+      assertThat(budget.getLimit()).isEqualTo(budget.getMaxBytes());
+    } finally {
+      memory.relax();
+    }
+  }
+
+  @Test
+  public void testShrinkKeepsSingleEntryCaches() {
+    final ExpiringCache<String, String> single = memory.create("single-test", 1,
+        Duration.ofMinutes(5));
+    single.put("state", "value");
+
+    try {
+      monitor.afterCollection(0.99);
+      assertThat(single.getIfPresent("state")).isEqualTo("value");
+    } finally {
+      memory.relax();
+    }
+  }
+}
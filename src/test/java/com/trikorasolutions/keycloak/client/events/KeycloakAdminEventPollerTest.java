@@ -0,0 +1,114 @@
+package com.trikorasolutions.keycloak.client.events;
+
+import com.trikorasolutions.keycloak.client.TrikoraKeycloakClientInfo;
+import com.trikorasolutions.keycloak.client.cache.ExpiringCache;
+import com.trikorasolutions.keycloak.client.events.KeycloakAdminEventPoller.Checkpoint;
+import com.trikorasolutions.keycloak.client.realm.KeycloakRealmRouter;
+import com.trikorasolutions.keycloak.client.realm.RealmContext;
+import io.quarkus.test.junit.QuarkusTest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+@QuarkusTest
+public final class KeycloakAdminEventPollerTest {
+
+  @ConfigProperty(name = "trikora.keycloak.admin-events.max-events", defaultValue = "1000")
+  private Integer ADMIN_EVENTS_MAX;
+
+  @Inject
+  private KeycloakAdminEventPoller poller;
+
+  @Inject
+  private KeycloakRealmRouter realms;
+
+  @Inject
+  private TrikoraKeycloakClientInfo tkrKcCli;
+
+  @Test
+  public void testCheckpointSameMillisecond() {
+    final Checkpoint checkpoint = new Checkpoint(null);
+    checkpoint.start(List.of(event(1000L, "users/a"), event(1000L, "users/b"),
+        event(900L, "users/c")));
+
+    // The events of the newest millisecond already seen are not new, the others are
+    assertThat(checkpoint.isNew(event(1000L, "users/a"))).isFalse();
+    assertThat(checkpoint.isNew(event(1000L, "users/b"))).isFalse();
+    assertThat(checkpoint.isNew(event(1000L, "users/d"))).isTrue();
+    assertThat(checkpoint.isNew(event(999L, "users/d"))).isFalse();
+    assertThat(checkpoint.isNew(event(1001L, "users/a"))).isTrue();
+
+    // Another event of the same millisecond applied later is added to the seen ones
+    checkpoint.advance(List.of(event(1000L, "users/d")));
+    assertThat(checkpoint.isNew(event(1000L, "users/a"))).isFalse();
+    assertThat(checkpoint.isNew(event(1000L, "users/d"))).isFalse();
+
+    // A newer event moves the checkpoint
+    checkpoint.advance(List.of(event(1001L, "users/a")));
+    assertThat(checkpoint.isNew(event(1001L, "users/a"))).isFalse();
+    assertThat(checkpoint.isNew(event(1000L, "users/d"))).isFalse();
+  }
+
+  @Test
+  public void testCheckpointWithoutEvents() {
+    final Checkpoint checkpoint = new Checkpoint(null);
+    assertThat(checkpoint.isStarted()).isFalse();
+    checkpoint.start(List.of());
+
+    assertThat(checkpoint.isStarted()).isTrue();
+    assertThat(checkpoint.isNew(event(1L, "users/a"))).isTrue();
+  }
+
+  @Test
+  public void testCollectStopsAtCheckpointWhenPagesShift() {
+    final Checkpoint checkpoint = new Checkpoint(null);
+    checkpoint.start(List.of(event(1000L, "users/a")));
+    final List<JsonObject> pending = new ArrayList<>();
+
+    assertThat(checkpoint.collect(List.of(event(1003L, "users/x"), event(1002L, "users/y")), 2,
+        pending)).isFalse();
+    // An event happens meanwhile, the next page repeats the last one of the previous page and
+    // only reaches the event of the checkpoint, at its same millisecond
+    assertThat(checkpoint.collect(List.of(event(1002L, "users/y"), event(1000L, "users/a")), 2,
+        pending)).isTrue();
+
+    assertThat(pending).containsExactly(event(1003L, "users/x"), event(1002L, "users/y"));
+  }
+
+  @Test
+  public void testTooManyEventsDropAllCaches() {
+    final String realm = tkrKcCli.getRealmName();
+    final RealmContext context = realms.context(realm);
+    final ExpiringCache<String, String> cache = context.cache("poller-test", 10,
+        Duration.ofMinutes(5));
+    cache.put("key", "value");
+    final Checkpoint checkpoint = new Checkpoint(context);
+    checkpoint.start(List.of(event(1000L, "users/a")));
+    final List<JsonObject> events = new ArrayList<>();
+    for (int i = ADMIN_EVENTS_MAX; i >= 0; i--) {
+      events.add(event(2000L + i, "users/" + i));
+    }
+
+    assertThat(poller.apply(realm, checkpoint, events)).isEqualTo(events.size());
+    assertThat(cache.getIfPresent("key")).isNull();
+    // The checkpoint moves past the dropped events
+    assertThat(checkpoint.isNew(events.get(0))).isFalse();
+  }
+
+  private static JsonObject event(final long time, final String resourcePath) {
+    return Json.createObjectBuilder()
+        .add("time", time)
+        .add("operationType", "UPDATE")
+        .add("resourceType", "USER")
+        .add("resourcePath", resourcePath)
+        .build();
+  }
+}
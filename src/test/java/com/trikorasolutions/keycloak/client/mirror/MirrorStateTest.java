@@ -0,0 +1,90 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public final class MirrorStateTest {
+
+  private static final String USER_ID = "7f1c2d8e-0000-0000-0000-000000000001";
+
+  @Test
+  public void testLoadDoesNotOverwriteWrite() {
+    final MirrorState state = new MirrorState();
+    installed(state, snapshot(true));
+
+    // A load reads the user before it is disabled, and ends after it
+    final long generation = state.getGeneration();
+    final long since = state.beginLoad();
+    assertThat(state.writeThrough("jdoe", disabled())).isTrue();
+    assertThat(state.current().getUserInfo("jdoe").enabled).isFalse();
+    final Map<String, Long> pending = state.install(snapshot(true), generation, since);
+    state.endLoad();
+
+    // The write is replayed on the loaded snapshot
+    assertThat(pending).isEmpty();
+    assertThat(state.current().getUserInfo("jdoe").enabled).isFalse();
+  }
+
+  @Test
+  public void testUnreplayableWriteLeavesUserDirty() {
+    final MirrorState state = new MirrorState();
+    installed(state, snapshot(true));
+
+    // The snapshot loaded does not have the user, the write can not be replayed on it
+    final long generation = state.getGeneration();
+    final long since = state.beginLoad();
+    assertThat(state.writeThrough("jdoe", disabled())).isTrue();
+    final Map<String, Long> pending = state.install(empty(), generation, since);
+    state.endLoad();
+
+    assertThat(pending).containsOnlyKeys(RealmSnapshot.userKey("jdoe"));
+    assertThat(state.current().getUserInfo("jdoe")).isNull();
+    assertThat(state.current().isClean()).isFalse();
+  }
+
+  @Test
+  public void testInvalidatedLoadIsNotInstalled() {
+    final MirrorState state = new MirrorState();
+
+    final long generation = state.getGeneration();
+    final long since = state.beginLoad();
+    state.invalidate();
+    assertThat(state.install(snapshot(true), generation, since)).isNull();
+    state.endLoad();
+
+    assertThat(state.current()).isNull();
+  }
+
+  private static void installed(final MirrorState state, final RealmSnapshot snapshot) {
+    final long generation = state.getGeneration();
+    final long since = state.beginLoad();
+    assertThat(state.install(snapshot, generation, since)).isEmpty();
+    state.endLoad();
+  }
+
+  private static UnaryOperator<RealmSnapshot> disabled() {
+    return current -> current.withUserFields("jdoe",
+        Json.createObjectBuilder().add("enabled", false).build());
+  }
+
+  private static RealmSnapshot snapshot(final boolean enabled) {
+    final JsonObject user = Json.createObjectBuilder()
+        .add("id", USER_ID)
+        .add("username", "jdoe")
+        .add("enabled", enabled)
+        .build();
+    return new RealmSnapshot(System.currentTimeMillis(), Map.of(USER_ID, user), Map.of(),
+        Map.of(), Map.of(), Map.of(), Map.of(), Map.of(), Map.of(), Map.of());
+  }
+
+  private static RealmSnapshot empty() {
+    return new RealmSnapshot(System.currentTimeMillis(), Map.of(), Map.of(), Map.of(), Map.of(),
+        Map.of(), Map.of(), Map.of(), Map.of(), Map.of());
+  }
+}
@@ -0,0 +1,117 @@
+package com.trikorasolutions.keycloak.client.mirror;
+
+import com.trikorasolutions.keycloak.client.dto.KeycloakUserRepresentation;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.json.Json;
+import javax.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public final class RealmSnapshotTest {
+
+  private static final String GROUP_ID = "group-1";
+
+  @Test
+  public void testPatchedMembersStaySorted() {
+    RealmSnapshot snapshot = snapshot(100);
+    final String joining = "user-" + 150;
+    snapshot = snapshot.withDirtyUsers(Map.of(RealmSnapshot.userKey(joining), 1L))
+        .withUser(joining, 1L, user(joining), List.of(group()), List.of());
+    snapshot = snapshot.withMembership("user-10", GROUP_ID, false);
+    snapshot = snapshot.withoutUser("user-20");
+
+    final List<String> members = usernames(snapshot);
+    assertThat(members).hasSize(99).isSorted().contains(joining)
+        .doesNotContain("user-10", "user-20");
+    // The same as indexing the patched maps from scratch
+    assertThat(members).isEqualTo(usernames(reindexed(snapshot)));
+  }
+
+  @Test
+  public void testRenamedUserIsIndexedByItsNewName() {
+    final RealmSnapshot snapshot = snapshot(10).withUserFields("user-3",
+        Json.createObjectBuilder().add("username", "user-99").build());
+
+    assertThat(snapshot.getUserInfo("user-3")).isNull();
+    assertThat(snapshot.getUserInfo("user-99").id).isEqualTo("id-user-3");
+    assertThat(usernames(snapshot)).isSorted().endsWith("user-99")
+        .isEqualTo(usernames(reindexed(snapshot)));
+  }
+
+  @Test
+  public void testManyPatchesKeepTheMaps() {
+    RealmSnapshot snapshot = snapshot(50);
+    for (int i = 0; i < 50; i += 2) {
+      snapshot = snapshot.withoutUser("user-" + i);
+    }
+
+    assertThat(snapshot.getUserCount()).isEqualTo(25);
+    assertThat(snapshot.users().keySet()).hasSize(25).contains("id-user-1")
+        .doesNotContain("id-user-0");
+    assertThat(usernames(snapshot)).isEqualTo(usernames(reindexed(snapshot)));
+  }
+
+  @Test
+  public void testGroupRolesPatchTheIndex() {
+    final JsonObject role = Json.createObjectBuilder().add("id", "role-1").add("name", "ROLE")
+        .build();
+    final RealmSnapshot loaded = snapshot(10);
+    final RealmSnapshot snapshot = new RealmSnapshot(loaded.getLoadedAt(), loaded.users(),
+        loaded.groups(), loaded.groupParents(), Map.of("role-1", role), Map.of(), Map.of(),
+        loaded.userGroups(), Map.of(), Map.of()).indexed();
+    assertThat(snapshot.hasEffectiveRole("user-1", "ROLE")).isFalse();
+
+    // Answered by the index derived for the members of the group, not built again
+    final RealmSnapshot granted = snapshot.withGroupRoles(GROUP_ID, Set.of("role-1"), true);
+    assertThat(granted.hasEffectiveRole("user-1", "ROLE")).isTrue();
+    assertThat(granted.withGroupRoles(GROUP_ID, Set.of("role-1"), false)
+        .hasEffectiveRole("user-1", "ROLE")).isFalse();
+  }
+
+  private static List<String> usernames(final RealmSnapshot snapshot) {
+    return snapshot.getGroupMembersById(GROUP_ID, 0, Integer.MAX_VALUE).stream()
+        .map(KeycloakUserRepresentation::getUsername)
+        .collect(Collectors.toList());
+  }
+
+  private static RealmSnapshot reindexed(final RealmSnapshot snapshot) {
+    return new RealmSnapshot(snapshot.getLoadedAt(), new HashMap<>(snapshot.users()),
+        snapshot.groups(), snapshot.groupParents(), snapshot.roles(), snapshot.roleComposites(),
+        snapshot.groupRoles(), new HashMap<>(snapshot.userGroups()),
+        new HashMap<>(snapshot.userRoles()), Map.of());
+  }
+
+  private static RealmSnapshot snapshot(final int userCount) {
+    final Map<String, JsonObject> users = new HashMap<>();
+    final Map<String, Set<String>> userGroups = new HashMap<>();
+    for (int i = 0; i < userCount; i++) {
+      final JsonObject user = user("user-" + i);
+      users.put(user.getString("id"), user);
+      userGroups.put(user.getString("id"), Set.of(GROUP_ID));
+    }
+    return new RealmSnapshot(System.currentTimeMillis(), users, Map.of(GROUP_ID, group()),
+        Map.of(), Map.of(), Map.of(), Map.of(), userGroups, Map.of(), Map.of());
+  }
+
+  private static JsonObject user(final String username) {
+    return Json.createObjectBuilder()
+        .add("id", "id-" + username)
+        .add("username", username)
+        .add("enabled", true)
+        .build();
+  }
+
+  private static JsonObject group() {
+    return Json.createObjectBuilder()
+        .add("id", GROUP_ID)
+        .add("name", "GROUP")
+        .add("path", "/GROUP")
+        .build();
+  }
+}